@@ -32,6 +32,13 @@ CONCURRENCIES = list([1, 2, 3, 4, 5, 6])
 TOTAL_PAYLOAD_LENGTH = max(MESSAGE_COUNTS) * max(PAYLOAD_LENGTHS) * 50
 
 
+PUBLISH_BATCH_SIZES = list([10, 100, 500, 1000])
+PUBLISH_PAYLOAD_LENGTHS = [(byte_count * 1024) for byte_count in [1, 4, 16]]
+PUBLISH_CONCURRENCIES = list([1, 2, 4, 8])
+PUBLISH_ATTRIBUTE_COUNTS = list([0, 4, 16])
+TOTAL_PUBLISH_PAYLOAD_LENGTH = max(PUBLISH_BATCH_SIZES) * max(PUBLISH_PAYLOAD_LENGTHS) * 50
+
+
 def ensure_cpu_count():
 
     LOGGER.info("ensuring CPU count")
@@ -195,6 +202,220 @@ def read_client_benchmark_time(output_filepath):
             return long(match.groups()[0])
 
 
+def read_client_latencies(output_filepath, operation):
+    # Reads the latencies seen by the caller, i.e., including retries, rather
+    # than the "attempt latency" and "failed attempt latency" lines.
+    for line in open(output_filepath):
+        match = re.match(
+            "^.*\[benchmark\] {} latency \(us\): count=[0-9]+ "
+            "p50=([0-9]+) p99=([0-9]+) p999=([0-9]+) max=([0-9]+)$".format(operation),
+            line.strip())
+        if match:
+            (p50, p99, p999, max_latency) = match.groups()
+            return {
+                "p50": long(p50),
+                "p99": long(p99),
+                "p999": long(p999),
+                "max": long(max_latency)
+            }
+
+
+def read_client_jvm_stats(output_filepath):
+    for line in open(output_filepath):
+        match = re.match(
+            "^.*\[benchmark\] allocated [0-9]+ bytes \(([0-9.]+) MB/s\), "
+            "gc count ([0-9]+), gc pause ([0-9]+) ms, max gc pause ([0-9]+) ms$",
+            line.strip())
+        if match:
+            (alloc_mb_rate, gc_count, gc_pause, max_gc_pause) = match.groups()
+            return {
+                "alloc_mb_rate": float(alloc_mb_rate),
+                "gc_count": long(gc_count),
+                "gc_pause": long(gc_pause),
+                "max_gc_pause": long(max_gc_pause)
+            }
+
+
+def run_publish_benchmarks():
+    LOGGER.info("starting publish benchmarks...")
+    start_instant_seconds = time.time()
+    for batch_size in PUBLISH_BATCH_SIZES:
+        # Publish responses carry a message ID per message, hence a server per batch size.
+        server_ctx = start_server(batch_size, PAYLOAD_LENGTHS[0])
+        try:
+            for payload_length in PUBLISH_PAYLOAD_LENGTHS:
+                for attribute_count in PUBLISH_ATTRIBUTE_COUNTS:
+                    for concurrency in PUBLISH_CONCURRENCIES:
+                        run_publish_client(batch_size, payload_length, attribute_count, concurrency)
+        finally:
+            stop_server(server_ctx)
+    stop_instant_seconds = time.time()
+    duration_seconds = stop_instant_seconds - start_instant_seconds
+    LOGGER.info("publish benchmarks completed (duration_seconds=%.1f)", duration_seconds)
+
+
+def get_publish_client_output_filepath(batch_size, payload_length, attribute_count, concurrency):
+    return os.path.join(
+        BENCHMARK_DIR,
+        "out",
+        "publish-client-b{}-l{}-a{}-c{}.out".format(
+            batch_size, payload_length, attribute_count, concurrency))
+
+
+def run_publish_client(batch_size, payload_length, attribute_count, concurrency):
+
+    # Execute "mvn" command.
+    publish_count = TOTAL_PUBLISH_PAYLOAD_LENGTH / (batch_size * payload_length)
+    LOGGER.info(
+        "starting publish client (batch_size=%d, payload_length=%d, attribute_count=%d, concurrency=%d, publish_count=%d)",
+        batch_size, payload_length, attribute_count, concurrency, publish_count)
+    output_filepath = get_publish_client_output_filepath(
+        batch_size, payload_length, attribute_count, concurrency)
+    with open(output_filepath, "w") as output_stream:
+        taskset_cpus = "1-2" if concurrency > 1 else "1"
+        popen = subprocess.Popen(
+            ["taskset",
+             "-c", taskset_cpus,
+             "mvn", "exec:java",
+             "-Dexec.classpathScope=test",
+             "-Dexec.mainClass=com.vlkan.pubsub.BenchmarkClient",
+             "-Dbenchmark.mode=publish",
+             "-Dbenchmark.concurrency={}".format(concurrency),
+             "-Dbenchmark.publishCount={}".format(publish_count),
+             "-Dbenchmark.publishBatchSize={}".format(batch_size),
+             "-Dbenchmark.publishPayloadLength={}".format(payload_length),
+             "-Dbenchmark.publishAttributeCount={}".format(attribute_count)],
+            cwd=PROJECT_DIR,
+            env=MVN_ENV,
+            stdout=output_stream,
+            stderr=subprocess.STDOUT)
+
+        # Verify completion.
+        LOGGER.info("waiting publish client completion")
+        popen.communicate()
+        return_code = popen.returncode
+        if return_code != 0:
+            LOGGER.error("unexpected return code (return_code=%d)", return_code)
+            sys.exit(return_code)
+
+    # Extract the benchmark result.
+    LOGGER.info("extracting publish benchmark result")
+    publish_result = read_publish_client_benchmark_result(output_filepath)
+    if not publish_result:
+        LOGGER.error("failed to extract publish benchmark result")
+        sys.exit(1)
+
+
+def read_publish_client_benchmark_result(output_filepath):
+    for line in open(output_filepath):
+        match = re.match(
+            "^.*\[benchmark\] published [0-9]+ messages \([0-9]+ bytes\) in ([0-9]+) ms "
+            "\(([0-9.]+) messages/s, ([0-9.]+) MB/s\)$",
+            line.strip())
+        if match:
+            (benchmark_time, message_rate, mb_rate) = match.groups()
+            return {
+                "benchmark_time": long(benchmark_time),
+                "message_rate": float(message_rate),
+                "mb_rate": float(mb_rate)
+            }
+
+
+def load_and_report_publish_results():
+
+    # Dump CSV file.
+    LOGGER.info("reporting publish results...")
+    csv_file = os.path.join(BENCHMARK_DIR, "publish-results.csv")
+    max_mb_rate = 0     # Too small to be true.
+    with open(csv_file, "w") as csv_file_handle:
+        csv_file_handle.write("""#batch_size,payload_length,attribute_count,concurrency,benchmark_time,message_rate,mb_rate,\
+publish_p50,publish_p99,publish_p999,alloc_mb_rate,gc_pause
+""")
+        for batch_size in PUBLISH_BATCH_SIZES:
+            for payload_length in PUBLISH_PAYLOAD_LENGTHS:
+                for attribute_count in PUBLISH_ATTRIBUTE_COUNTS:
+                    for concurrency in PUBLISH_CONCURRENCIES:
+                        client_output_file = get_publish_client_output_filepath(
+                            batch_size, payload_length, attribute_count, concurrency)
+                        result = read_publish_client_benchmark_result(client_output_file)
+                        latencies = read_client_latencies(client_output_file, "publish")
+                        jvm_stats = read_client_jvm_stats(client_output_file)
+                        max_mb_rate = max(max_mb_rate, result["mb_rate"])
+                        csv_file_handle.write("""{},{},{},{},{},{:.1f},{:.3f},{},{},{},{:.3f},{}
+""".format(
+                            batch_size, payload_length, attribute_count, concurrency,
+                            result["benchmark_time"], result["message_rate"], result["mb_rate"],
+                            latencies["p50"], latencies["p99"], latencies["p999"],
+                            jvm_stats["alloc_mb_rate"], jvm_stats["gc_pause"]))
+
+    # Dump Gnuplot files, one per metric, each containing one plot per
+    # attribute count and payload length, one line per batch size.
+    metrics = [
+        ("publish-results", "throughput (MB/s)", "7", "[0:{}]".format(max_mb_rate * 1.1)),
+        ("publish-latencies", "p99 latency (ms)", "($9/1000.0)", "[0:*]"),
+        ("publish-allocations", "allocation (MB/s)", "11", "[0:*]")]
+    for (file_name, ylabel, ycolumn, yrange) in metrics:
+        report_publish_metric_in_gnuplot(csv_file, file_name, ylabel, ycolumn, yrange)
+
+
+def report_publish_metric_in_gnuplot(csv_file, file_name, ylabel, ycolumn, yrange):
+
+    # Dump Gnuplot file.
+    gnuplot_file = os.path.join(BENCHMARK_DIR, "{}.gnuplot".format(file_name))
+    gnuplot_img_file = os.path.join(BENCHMARK_DIR, "{}.png".format(file_name))
+    with open(gnuplot_file, "w") as gnuplot_file_handle:
+        gnuplot_file_handle.write("""
+set terminal pngcairo size {},{} enhanced font 'Verdana,8';
+set output '{}';
+set datafile separator ',';
+set grid;
+set xtics;
+set ytics;
+set xlabel 'concurrency';
+set ylabel '{}';
+set key top left;
+set origin 0,0;
+set xrange [{}:{}];
+set yrange {};
+set multiplot layout {},{};
+""".format(
+            200 * len(PUBLISH_PAYLOAD_LENGTHS),
+            300 * len(PUBLISH_ATTRIBUTE_COUNTS),
+            gnuplot_img_file,
+            ylabel,
+            PUBLISH_CONCURRENCIES[0] - 1,
+            PUBLISH_CONCURRENCIES[-1] + 1,
+            yrange,
+            len(PUBLISH_ATTRIBUTE_COUNTS),
+            len(PUBLISH_PAYLOAD_LENGTHS)))
+        for attribute_count in PUBLISH_ATTRIBUTE_COUNTS:
+            for payload_length in PUBLISH_PAYLOAD_LENGTHS:
+                if attribute_count != PUBLISH_ATTRIBUTE_COUNTS[0] or payload_length != PUBLISH_PAYLOAD_LENGTHS[0]:
+                    gnuplot_file_handle.write("""
+unset key;""")
+                title = "{:,d} KiB, {} attributes".format(payload_length / 1024, attribute_count)
+                plots = ", ".join(
+                    """'{}' using (($1=={} && $2=={} && $3=={})?$4:1/0):{} with linespoints title 'batch {}'""".format(
+                        os.path.basename(csv_file), batch_size, payload_length, attribute_count, ycolumn, batch_size)
+                    for batch_size in PUBLISH_BATCH_SIZES)
+                gnuplot_file_handle.write("""
+set title '{}';
+plot {}
+""".format(title, plots))
+
+    # Execute gnuplot.
+    popen = subprocess.Popen(
+        ["gnuplot", gnuplot_file],
+        cwd=BENCHMARK_DIR)
+
+    # Verify gnuplot completion.
+    popen.communicate()
+    return_code = popen.returncode
+    if return_code != 0:
+        LOGGER.error("unexpected return code (return_code=%d)", return_code)
+        sys.exit(return_code)
+
+
 def load_results():
     LOGGER.info("loading results...")
     benchmark_time_by_concurrency_by_payload_length_by_message_count = {}
@@ -250,15 +471,24 @@ def report_results_in_gnuplot(
     LOGGER.info("reporting results via Gnuplot...")
     csv_file = os.path.join(BENCHMARK_DIR, "results.csv")
     with open(csv_file, "w") as csv_file_handle:
-        csv_file_handle.write("""#message_count,payload_length,concurrency,benchmark_time
+        csv_file_handle.write("""#message_count,payload_length,concurrency,benchmark_time,\
+pull_p50,pull_p99,pull_p999,ack_p50,ack_p99,ack_p999,alloc_mb_rate,gc_pause
 """)
         for message_count in MESSAGE_COUNTS:
             for payload_length in PAYLOAD_LENGTHS:
                 for concurrency in CONCURRENCIES:
                     benchmark_time = \
                         benchmark_time_by_concurrency_by_payload_length_by_message_count[message_count][payload_length][concurrency]
-                    csv_file_handle.write("""{},{},{},{}
-""".format(message_count, payload_length, concurrency, benchmark_time))
+                    client_output_file = get_client_output_filepath(message_count, payload_length, concurrency)
+                    pull_latencies = read_client_latencies(client_output_file, "pull")
+                    ack_latencies = read_client_latencies(client_output_file, "ack")
+                    jvm_stats = read_client_jvm_stats(client_output_file)
+                    csv_file_handle.write("""{},{},{},{},{},{},{},{},{},{},{:.3f},{}
+""".format(
+                        message_count, payload_length, concurrency, benchmark_time,
+                        pull_latencies["p50"], pull_latencies["p99"], pull_latencies["p999"],
+                        ack_latencies["p50"], ack_latencies["p99"], ack_latencies["p999"],
+                        jvm_stats["alloc_mb_rate"], jvm_stats["gc_pause"]))
 
     # Dump Gnuplot file.
     gnuplot_file = os.path.join(BENCHMARK_DIR, "results.gnuplot")
@@ -267,7 +497,7 @@ def report_results_in_gnuplot(
 
         # Write header.
         gnuplot_file_handle.write("""
-set terminal pngcairo size {},300 enhanced font 'Verdana,8';
+set terminal pngcairo size {},1200 enhanced font 'Verdana,8';
 set output '{}';
 set datafile separator ',';
 set grid;
@@ -275,10 +505,11 @@ set xtics;
 set ytics;
 set xlabel 'concurrency';
 set ylabel 'time (sec)';
+set key top left;
 set origin 0,0;
 set xrange [{}:{}];
 set yrange [{}:{}];
-set multiplot layout 1,{};
+set multiplot layout 4,{};
 """.format(
             150 * len(PAYLOAD_LENGTHS),
             gnuplot_img_file,
@@ -300,6 +531,32 @@ set title '{}';
 plot '{}' using ($2=={}?$3:1/0):($4/1000.0):($1/4000.0) with points linestyle 6 notitle
 """.format(title, os.path.basename(csv_file), payload_length))
 
+        # Write latency and allocation plots, one row per metric. Point
+        # sizes denote the batch size, as in the timing plots above.
+        rows = [
+            ("pull latency (ms)", [("p50", 5), ("p99", 6), ("p999", 7)], 1000.0),
+            ("ack latency (ms)", [("p50", 8), ("p99", 9), ("p999", 10)], 1000.0),
+            ("allocation (MB/s)", [("alloc", 11)], 1.0)]
+        for (ylabel, columns, divisor) in rows:
+            gnuplot_file_handle.write("""
+set autoscale y;
+set key top left;
+set ylabel '{}';""".format(ylabel))
+            for payload_length in PAYLOAD_LENGTHS:
+                if payload_length != PAYLOAD_LENGTHS[0]:
+                    gnuplot_file_handle.write("""
+unset key;
+unset ylabel;""")
+                title = "{:,d} KiB".format(payload_length / 1024)
+                plots = ", ".join(
+                    """'{}' using ($2=={}?$3:1/0):(${}/{}):($1/4000.0) with points linestyle {} title '{}'""".format(
+                        os.path.basename(csv_file), payload_length, column, divisor, 6 + index, column_title)
+                    for (index, (column_title, column)) in enumerate(columns))
+                gnuplot_file_handle.write("""
+set title '{}';
+plot {}
+""".format(title, plots))
+
     # Execute gnuplot.
     popen = subprocess.Popen(
         ["gnuplot", gnuplot_file],
@@ -448,7 +705,7 @@ def load_and_report_results():
 def main():
     args = sys.argv
     if len(args) != 2:
-        print >>sys.stderr, "usage: {} <run|report>".format(args[0])
+        print >>sys.stderr, "usage: {} <run|report|run-publish|report-publish>".format(args[0])
         sys.exit(1)
     try:
         if args[1] == "run":
@@ -456,6 +713,11 @@ def main():
             run_benchmarks()
         elif args[1] == "report":
             load_and_report_results()
+        elif args[1] == "run-publish":
+            ensure_cpu_count()
+            run_publish_benchmarks()
+        elif args[1] == "report-publish":
+            load_and_report_publish_results()
         else:
             print >>sys.stderr, "invalid argument: {}".format(args[1])
             sys.exit(1)
@@ -16,49 +16,79 @@
 
 package com.vlkan.pubsub;
 
+import com.google.auth.oauth2.AccessToken;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.auth.oauth2.ServiceAccountCredentials;
 import com.vlkan.pubsub.util.BoundedScheduledThreadPoolExecutor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 
 import javax.annotation.Nullable;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Caches the access token of a set of credentials.
+ *
+ * <p>Tokens are refreshed on the executor service ahead of their expiration,
+ * hence readers are served the cached token without any locking or blocking.
+ * Concurrent readers arriving when there is no valid token, e.g., at startup,
+ * share a single refresh.
+ *
+ * <p>Service account credentials can be used to sign JWTs locally, see
+ * {@link Builder#setSelfSignedJwtEnabled(boolean)}, which renders the OAuth2
+ * token exchange over the network unnecessary.
+ */
 public class PubsubAccessTokenCache {
 
     private static final class DefaultExecutorServiceHolder {
 
-        private static final ScheduledExecutorService INSTANCE =
-                new BoundedScheduledThreadPoolExecutor(
-                        100,
-                        new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        private static final ScheduledExecutorService INSTANCE = createInstance();
 
-                            private final AtomicInteger threadCounter = new AtomicInteger(0);
+        private static ScheduledExecutorService createInstance() {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
 
-                            @Override
-                            public Thread newThread(Runnable runnable) {
-                                String name = String.format(
-                                        "PubsubAccessTokenCacheWorker-%02d",
-                                        threadCounter.incrementAndGet());
-                                Thread thread = new Thread(runnable, name);
-                                thread.setDaemon(true);
-                                return thread;
-                            }
+                private final AtomicInteger threadCounter = new AtomicInteger(0);
 
-                        }));
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    String name = String.format(
+                            "PubsubAccessTokenCacheWorker-%02d",
+                            threadCounter.incrementAndGet());
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+
+            });
+            // Rescheduled refreshes should not leave cancelled tasks occupying the bounded queue.
+            executor.setRemoveOnCancelPolicy(true);
+            return new BoundedScheduledThreadPoolExecutor(100, executor);
+        }
 
     }
 
@@ -66,17 +96,31 @@ public class PubsubAccessTokenCache {
         return DefaultExecutorServiceHolder.INSTANCE;
     }
 
+    /**
+     * Refresh period for tokens without an expiration time, which is also the
+     * upper bound of the delay between retries of failed refreshes.
+     */
     public static final Duration DEFAULT_ACCESS_TOKEN_REFRESH_PERIOD = Duration.ofMinutes(1);
 
-    private static final class DefaultInstanceHolder {
+    /**
+     * Duration before the expiration of a token its refresh gets started.
+     */
+    public static final Duration DEFAULT_ACCESS_TOKEN_REFRESH_MARGIN = Duration.ofMinutes(5);
 
-        private static final PubsubAccessTokenCache INSTANCE =
-                PubsubAccessTokenCache.builder().build();
+    public static final String DEFAULT_SELF_SIGNED_JWT_AUDIENCE = "https://pubsub.googleapis.com/";
 
-    }
+    public static final String DEFAULT_METER_NAME_PREFIX = "pubsub.accessTokenCache";
 
+    public static final Map<String, String> DEFAULT_METER_TAGS = Collections.emptyMap();
+
+    private static final long MIN_REFRESH_RETRY_DELAY_MILLIS = 1_000L;
+
+    /**
+     * Returns the cache of the default credentials in {@link
+     * PubsubAccessTokenCacheRegistry#getDefaultInstance()}.
+     */
     public static PubsubAccessTokenCache getDefaultInstance() {
-        return DefaultInstanceHolder.INSTANCE;
+        return PubsubAccessTokenCacheRegistry.getDefaultInstance().getAccessTokenCache((String) null);
     }
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PubsubAccessTokenCache.class);
@@ -87,35 +131,93 @@ public class PubsubAccessTokenCache {
 
     private static final List<String> SCOPES = Arrays.asList(CLOUD_PLATFORM_URI, PUBSUB_URI);
 
+    private static final class CachedAccessToken {
+
+        private final Mono<String> valueMono;
+
+        private final long refreshInstantMillis;
+
+        private final long expirationInstantMillis;
+
+        private CachedAccessToken(String value, long refreshInstantMillis, long expirationInstantMillis) {
+            this.valueMono = Mono.just(value);
+            this.refreshInstantMillis = refreshInstantMillis;
+            this.expirationInstantMillis = expirationInstantMillis;
+        }
+
+    }
+
     private final GoogleCredentials credentials;
 
-    private volatile String accessToken;
+    @Nullable
+    private final PubsubSelfSignedJwtIssuer selfSignedJwtIssuer;
+
+    private final ScheduledExecutorService executorService;
+
+    private final PubsubAccessTokenRefreshScheduler refreshScheduler;
+
+    @Nullable
+    private final Timer refreshLatencyTimer;
+
+    @Nullable
+    private final Counter refreshFailureCounter;
+
+    private final long refreshPeriodMillis;
+
+    private final long refreshMarginMillis;
+
+    private final AtomicReference<Mono<String>> refreshMonoRef = new AtomicReference<>();
+
+    @Nullable
+    private volatile CachedAccessToken cachedAccessToken;
+
+    // Only accessed by the refresh task, which is serialized by refreshMonoRef.
+    private volatile long refreshRetryDelayMillis = MIN_REFRESH_RETRY_DELAY_MILLIS;
 
     private PubsubAccessTokenCache(Builder builder) {
-        this.credentials = createGoogleCredentials(builder.credentials);
-        long accessTokenRefreshPeriodMillis = builder.accessTokenRefreshPeriod.toMillis();
-        builder.executorService.scheduleAtFixedRate(
-                this::refreshAccessToken,
-                accessTokenRefreshPeriodMillis,
-                accessTokenRefreshPeriodMillis,
-                TimeUnit.MILLISECONDS);
+        this.credentials = builder.googleCredentials != null
+                ? scopeGoogleCredentials(builder.googleCredentials)
+                : createGoogleCredentials(builder.credentials);
+        this.selfSignedJwtIssuer = builder.selfSignedJwtEnabled
+                ? createSelfSignedJwtIssuer(credentials, builder.selfSignedJwtAudience)
+                : null;
+        this.executorService = builder.executorService;
+        this.refreshScheduler = builder.refreshScheduler != null
+                ? builder.refreshScheduler
+                : builder.executorService == getDefaultExecutorService()
+                ? PubsubAccessTokenRefreshScheduler.getDefaultInstance()
+                : new PubsubAccessTokenRefreshScheduler(builder.executorService);
+        if (builder.meterRegistry == null) {
+            this.refreshLatencyTimer = null;
+            this.refreshFailureCounter = null;
+        } else {
+            List<Tag> tags = new ArrayList<>();
+            builder.meterTags.forEach((tagName, tagValue) -> tags.add(Tag.of(tagName, tagValue)));
+            this.refreshLatencyTimer = builder.meterRegistry.timer(
+                    builder.meterNamePrefix + ".refreshLatency",
+                    Tags.of(tags).and("type", "timer"));
+            this.refreshFailureCounter = builder.meterRegistry.counter(
+                    builder.meterNamePrefix + ".refreshFailureCount",
+                    Tags.of(tags).and("type", "counter"));
+        }
+        this.refreshPeriodMillis = builder.accessTokenRefreshPeriod.toMillis();
+        this.refreshMarginMillis = builder.accessTokenRefreshMargin.toMillis();
+        refreshAccessTokenInBackground();
     }
 
-    String getAccessToken() {
-        if (accessToken == null) {
-            synchronized (this) {
-                if (accessToken == null) {
-                    refreshAccessToken();
-                }
-            }
+    /**
+     * Returns the cached access token, if there is a one that is not expired
+     * yet; otherwise, returns a refresh shared by all concurrent callers.
+     */
+    Mono<String> getAccessToken() {
+        @Nullable CachedAccessToken token = cachedAccessToken;
+        if (token != null && System.currentTimeMillis() < token.expirationInstantMillis) {
+            return token.valueMono;
         }
-        if (accessToken == null) {
-            throw new IllegalStateException("access token is not available");
-        }
-        return accessToken;
+        return refreshAccessToken();
     }
 
-    private static GoogleCredentials createGoogleCredentials(@Nullable String credentials) {
+    static GoogleCredentials createGoogleCredentials(@Nullable String credentials) {
         GoogleCredentials googleCredentials;
         if (credentials == null) {
             try {
@@ -127,6 +229,10 @@ public class PubsubAccessTokenCache {
             Objects.requireNonNull(credentials, "credentials");
             googleCredentials = createServiceAccountCredentials(credentials);
         }
+        return scopeGoogleCredentials(googleCredentials);
+    }
+
+    static GoogleCredentials scopeGoogleCredentials(GoogleCredentials googleCredentials) {
         return googleCredentials.createScopedRequired()
                 ? googleCredentials.createScoped(SCOPES)
                 : googleCredentials;
@@ -141,13 +247,111 @@ public class PubsubAccessTokenCache {
         }
     }
 
-    private synchronized void refreshAccessToken() {
+    private static PubsubSelfSignedJwtIssuer createSelfSignedJwtIssuer(
+            GoogleCredentials credentials,
+            String audience) {
+        if (!(credentials instanceof ServiceAccountCredentials)) {
+            String message = String.format(
+                    "was expecting service account credentials for self-signed JWTs (credentialsClass=%s)",
+                    credentials.getClass().getCanonicalName());
+            throw new IllegalArgumentException(message);
+        }
+        ServiceAccountCredentials serviceAccountCredentials = (ServiceAccountCredentials) credentials;
+        return new PubsubSelfSignedJwtIssuer(
+                PubsubClient.getDefaultObjectMapper(),
+                serviceAccountCredentials,
+                audience);
+    }
+
+    private void refreshAccessTokenInBackground() {
+        // Failures are already logged by the refresh task.
+        refreshAccessToken().subscribe(null, ignored -> {});
+    }
+
+    private Mono<String> refreshAccessToken() {
+        for (;;) {
+            @Nullable Mono<String> refreshMono = refreshMonoRef.get();
+            if (refreshMono != null) {
+                return refreshMono;
+            }
+            Sinks.One<String> sink = Sinks.one();
+            Mono<String> newRefreshMono = sink.asMono();
+            if (refreshMonoRef.compareAndSet(null, newRefreshMono)) {
+                try {
+                    executorService.execute(() -> completeRefresh(sink));
+                } catch (RejectedExecutionException error) {
+                    refreshMonoRef.set(null);
+                    return Mono.error(error);
+                }
+                return newRefreshMono;
+            }
+        }
+    }
+
+    private void completeRefresh(Sinks.One<String> sink) {
+        AccessToken accessToken;
+        long startTimeNanos = System.nanoTime();
         try {
-            credentials.refreshIfExpired();
-            this.accessToken = credentials.getAccessToken().getTokenValue();
-        } catch (IOException error) {
+            accessToken = fetchAccessToken();
+        } catch (Throwable error) {
             LOGGER.error("access token refresh failure", error);
+            if (refreshFailureCounter != null) {
+                refreshFailureCounter.increment();
+            }
+            long retryDelayMillis = refreshRetryDelayMillis;
+            long maxRetryDelayMillis = Math.max(MIN_REFRESH_RETRY_DELAY_MILLIS, refreshPeriodMillis);
+            refreshRetryDelayMillis = Math.min(2 * retryDelayMillis, maxRetryDelayMillis);
+            scheduleRefresh(System.currentTimeMillis() + retryDelayMillis);
+            refreshMonoRef.set(null);
+            sink.tryEmitError(error);
+            return;
+        }
+        if (refreshLatencyTimer != null) {
+            refreshLatencyTimer.record(System.nanoTime() - startTimeNanos, TimeUnit.NANOSECONDS);
         }
+        CachedAccessToken token = cacheAccessToken(accessToken);
+        refreshRetryDelayMillis = MIN_REFRESH_RETRY_DELAY_MILLIS;
+        scheduleRefresh(token.refreshInstantMillis);
+        refreshMonoRef.set(null);
+        sink.tryEmitValue(accessToken.getTokenValue());
+    }
+
+    private AccessToken fetchAccessToken() throws IOException {
+        if (selfSignedJwtIssuer != null) {
+            return selfSignedJwtIssuer.issue();
+        }
+        credentials.refresh();
+        @Nullable AccessToken accessToken = credentials.getAccessToken();
+        if (accessToken == null) {
+            throw new IllegalStateException("credentials did not provide an access token");
+        }
+        return accessToken;
+    }
+
+    private CachedAccessToken cacheAccessToken(AccessToken accessToken) {
+        long nowMillis = System.currentTimeMillis();
+        @Nullable Date expirationTime = accessToken.getExpirationTime();
+        long expirationInstantMillis;
+        long refreshInstantMillis;
+        if (expirationTime == null) {
+            expirationInstantMillis = Long.MAX_VALUE;
+            refreshInstantMillis = nowMillis + refreshPeriodMillis;
+        } else {
+            // Short-lived tokens get refreshed at half of their lifetime.
+            expirationInstantMillis = expirationTime.getTime();
+            long lifetimeMillis = Math.max(0, expirationInstantMillis - nowMillis);
+            refreshInstantMillis = expirationInstantMillis - Math.min(refreshMarginMillis, lifetimeMillis / 2);
+        }
+        CachedAccessToken token = new CachedAccessToken(
+                accessToken.getTokenValue(),
+                refreshInstantMillis,
+                expirationInstantMillis);
+        this.cachedAccessToken = token;
+        return token;
+    }
+
+    private void scheduleRefresh(long refreshInstantMillis) {
+        refreshScheduler.schedule(this, this::refreshAccessTokenInBackground, refreshInstantMillis);
     }
 
     public static Builder builder() {
@@ -160,9 +364,28 @@ public class PubsubAccessTokenCache {
 
         private Duration accessTokenRefreshPeriod = DEFAULT_ACCESS_TOKEN_REFRESH_PERIOD;
 
+        private Duration accessTokenRefreshMargin = DEFAULT_ACCESS_TOKEN_REFRESH_MARGIN;
+
         @Nullable
         private String credentials;
 
+        @Nullable
+        private GoogleCredentials googleCredentials;
+
+        private boolean selfSignedJwtEnabled = false;
+
+        private String selfSignedJwtAudience = DEFAULT_SELF_SIGNED_JWT_AUDIENCE;
+
+        @Nullable
+        private PubsubAccessTokenRefreshScheduler refreshScheduler;
+
+        @Nullable
+        private MeterRegistry meterRegistry;
+
+        private String meterNamePrefix = DEFAULT_METER_NAME_PREFIX;
+
+        private Map<String, String> meterTags = DEFAULT_METER_TAGS;
+
         private Builder() {}
 
         public Builder setExecutorService(ScheduledExecutorService executorService) {
@@ -175,16 +398,75 @@ public class PubsubAccessTokenCache {
             return this;
         }
 
+        public Builder setAccessTokenRefreshMargin(Duration accessTokenRefreshMargin) {
+            Objects.requireNonNull(accessTokenRefreshMargin, "accessTokenRefreshMargin");
+            if (accessTokenRefreshMargin.isNegative()) {
+                throw new IllegalArgumentException(
+                        "was expecting a non-negative access token refresh margin");
+            }
+            this.accessTokenRefreshMargin = accessTokenRefreshMargin;
+            return this;
+        }
+
         public Builder setCredentials(@Nullable String credentials) {
             this.credentials = credentials;
             return this;
         }
 
+        /**
+         * Sets the credentials to be used as is, taking precedence over
+         * {@link #setCredentials(String)}.
+         */
+        public Builder setGoogleCredentials(@Nullable GoogleCredentials googleCredentials) {
+            this.googleCredentials = googleCredentials;
+            return this;
+        }
+
+        /**
+         * Enables signing JWTs locally with the private key of the service
+         * account credentials rather than exchanging them for OAuth2 access
+         * tokens over the network. Disabled by default.
+         */
+        public Builder setSelfSignedJwtEnabled(boolean selfSignedJwtEnabled) {
+            this.selfSignedJwtEnabled = selfSignedJwtEnabled;
+            return this;
+        }
+
+        public Builder setSelfSignedJwtAudience(String selfSignedJwtAudience) {
+            this.selfSignedJwtAudience = Objects.requireNonNull(selfSignedJwtAudience, "selfSignedJwtAudience");
+            return this;
+        }
+
+        Builder setRefreshScheduler(PubsubAccessTokenRefreshScheduler refreshScheduler) {
+            this.refreshScheduler = Objects.requireNonNull(refreshScheduler, "refreshScheduler");
+            this.executorService = refreshScheduler.getExecutorService();
+            return this;
+        }
+
+        public Builder setMeterRegistry(MeterRegistry meterRegistry) {
+            this.meterRegistry = Objects.requireNonNull(meterRegistry, "meterRegistry");
+            return this;
+        }
+
+        public Builder setMeterNamePrefix(String meterNamePrefix) {
+            this.meterNamePrefix = Objects.requireNonNull(meterNamePrefix, "meterNamePrefix");
+            return this;
+        }
+
+        public Builder setMeterTags(Map<String, String> meterTags) {
+            this.meterTags = Objects.requireNonNull(meterTags, "meterTags");
+            return this;
+        }
+
         public PubsubAccessTokenCache build() {
             if (executorService == null) {
                 executorService = getDefaultExecutorService();
             }
             Objects.requireNonNull(accessTokenRefreshPeriod, "accessTokenRefreshPeriod");
+            if (accessTokenRefreshPeriod.isNegative() || accessTokenRefreshPeriod.isZero()) {
+                throw new IllegalArgumentException(
+                        "was expecting a non-zero positive access token refresh period");
+            }
             return new PubsubAccessTokenCache(this);
         }
 
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import com.google.auth.oauth2.ComputeEngineCredentials;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.auth.oauth2.ServiceAccountCredentials;
+import com.google.auth.oauth2.UserCredentials;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Registry of {@link PubsubAccessTokenCache}s keyed by credentials.
+ *
+ * <p>Caches of equal credentials are shared and tokens of all caches get
+ * refreshed by a single expiry-ordered scheduler, which occupies at most one
+ * slot in the executor service queue. If a meter registry is provided, each
+ * cache exposes refresh latency and failure meters tagged by the {@code
+ * credentials} tag, which contains the client e-mail of service accounts,
+ * the client ID of users, and the credentials class name otherwise.
+ */
+public class PubsubAccessTokenCacheRegistry {
+
+    private static final class DefaultInstanceHolder {
+
+        private static final PubsubAccessTokenCacheRegistry INSTANCE =
+                PubsubAccessTokenCacheRegistry.builder().build();
+
+    }
+
+    public static PubsubAccessTokenCacheRegistry getDefaultInstance() {
+        return DefaultInstanceHolder.INSTANCE;
+    }
+
+    private static final Object DEFAULT_CREDENTIALS_KEY = new Object();
+
+    /**
+     * Key of credentials without a meaningful {@link Object#equals(Object)}.
+     */
+    private static final class IdentityKey {
+
+        private final Object object;
+
+        private IdentityKey(Object object) {
+            this.object = object;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            return object instanceof IdentityKey && ((IdentityKey) object).object == this.object;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(object);
+        }
+
+    }
+
+    private final PubsubAccessTokenRefreshScheduler refreshScheduler;
+
+    private final Duration accessTokenRefreshPeriod;
+
+    private final Duration accessTokenRefreshMargin;
+
+    private final boolean selfSignedJwtEnabled;
+
+    private final String selfSignedJwtAudience;
+
+    @Nullable
+    private final MeterRegistry meterRegistry;
+
+    private final String meterNamePrefix;
+
+    private final Map<String, String> meterTags;
+
+    private final ConcurrentMap<Object, PubsubAccessTokenCache> cacheByKey = new ConcurrentHashMap<>();
+
+    private PubsubAccessTokenCacheRegistry(Builder builder) {
+        this.refreshScheduler = builder.executorService == PubsubAccessTokenCache.getDefaultExecutorService()
+                ? PubsubAccessTokenRefreshScheduler.getDefaultInstance()
+                : new PubsubAccessTokenRefreshScheduler(builder.executorService);
+        this.accessTokenRefreshPeriod = builder.accessTokenRefreshPeriod;
+        this.accessTokenRefreshMargin = builder.accessTokenRefreshMargin;
+        this.selfSignedJwtEnabled = builder.selfSignedJwtEnabled;
+        this.selfSignedJwtAudience = builder.selfSignedJwtAudience;
+        this.meterRegistry = builder.meterRegistry;
+        this.meterNamePrefix = builder.meterNamePrefix;
+        this.meterTags = builder.meterTags;
+    }
+
+    /**
+     * Returns the cache of the given Base64-encoded service account
+     * credentials, or of the application default credentials, if {@code null}.
+     */
+    public PubsubAccessTokenCache getAccessTokenCache(@Nullable String credentials) {
+        if (credentials == null) {
+            return cacheByKey.computeIfAbsent(
+                    DEFAULT_CREDENTIALS_KEY,
+                    ignored -> createAccessTokenCache(PubsubAccessTokenCache.createGoogleCredentials(null)));
+        }
+        GoogleCredentials googleCredentials = PubsubAccessTokenCache.createGoogleCredentials(credentials);
+        return getAccessTokenCache(googleCredentials);
+    }
+
+    public PubsubAccessTokenCache getAccessTokenCache(GoogleCredentials credentials) {
+        Objects.requireNonNull(credentials, "credentials");
+        GoogleCredentials scopedCredentials = PubsubAccessTokenCache.scopeGoogleCredentials(credentials);
+        Object key = createKey(scopedCredentials);
+        return cacheByKey.computeIfAbsent(key, ignored -> createAccessTokenCache(scopedCredentials));
+    }
+
+    /**
+     * Returns the number of distinct credentials registered.
+     */
+    public int getAccessTokenCacheCount() {
+        return cacheByKey.size();
+    }
+
+    private static Object createKey(GoogleCredentials credentials) {
+        // Only the following have equality defined by their immutable configuration.
+        boolean equatable = credentials instanceof ServiceAccountCredentials
+                || credentials instanceof UserCredentials
+                || credentials instanceof ComputeEngineCredentials;
+        return equatable ? credentials : new IdentityKey(credentials);
+    }
+
+    private PubsubAccessTokenCache createAccessTokenCache(GoogleCredentials credentials) {
+        PubsubAccessTokenCache.Builder builder = PubsubAccessTokenCache
+                .builder()
+                .setRefreshScheduler(refreshScheduler)
+                .setGoogleCredentials(credentials)
+                .setAccessTokenRefreshPeriod(accessTokenRefreshPeriod)
+                .setAccessTokenRefreshMargin(accessTokenRefreshMargin)
+                .setSelfSignedJwtEnabled(selfSignedJwtEnabled)
+                .setSelfSignedJwtAudience(selfSignedJwtAudience);
+        if (meterRegistry != null) {
+            Map<String, String> cacheMeterTags = new HashMap<>(meterTags);
+            cacheMeterTags.put("credentials", getCredentialsName(credentials));
+            builder.setMeterRegistry(meterRegistry)
+                    .setMeterNamePrefix(meterNamePrefix)
+                    .setMeterTags(cacheMeterTags);
+        }
+        return builder.build();
+    }
+
+    private static String getCredentialsName(GoogleCredentials credentials) {
+        if (credentials instanceof ServiceAccountCredentials) {
+            return ((ServiceAccountCredentials) credentials).getClientEmail();
+        } else if (credentials instanceof UserCredentials) {
+            return ((UserCredentials) credentials).getClientId();
+        } else {
+            return credentials.getClass().getSimpleName();
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+
+        private ScheduledExecutorService executorService;
+
+        private Duration accessTokenRefreshPeriod = PubsubAccessTokenCache.DEFAULT_ACCESS_TOKEN_REFRESH_PERIOD;
+
+        private Duration accessTokenRefreshMargin = PubsubAccessTokenCache.DEFAULT_ACCESS_TOKEN_REFRESH_MARGIN;
+
+        private boolean selfSignedJwtEnabled = false;
+
+        private String selfSignedJwtAudience = PubsubAccessTokenCache.DEFAULT_SELF_SIGNED_JWT_AUDIENCE;
+
+        @Nullable
+        private MeterRegistry meterRegistry;
+
+        private String meterNamePrefix = PubsubAccessTokenCache.DEFAULT_METER_NAME_PREFIX;
+
+        private Map<String, String> meterTags = Collections.emptyMap();
+
+        private Builder() {}
+
+        public Builder setExecutorService(ScheduledExecutorService executorService) {
+            this.executorService = Objects.requireNonNull(executorService, "executorService");
+            return this;
+        }
+
+        public Builder setAccessTokenRefreshPeriod(Duration accessTokenRefreshPeriod) {
+            this.accessTokenRefreshPeriod = Objects.requireNonNull(accessTokenRefreshPeriod, "accessTokenRefreshPeriod");
+            return this;
+        }
+
+        public Builder setAccessTokenRefreshMargin(Duration accessTokenRefreshMargin) {
+            this.accessTokenRefreshMargin = Objects.requireNonNull(accessTokenRefreshMargin, "accessTokenRefreshMargin");
+            return this;
+        }
+
+        public Builder setSelfSignedJwtEnabled(boolean selfSignedJwtEnabled) {
+            this.selfSignedJwtEnabled = selfSignedJwtEnabled;
+            return this;
+        }
+
+        public Builder setSelfSignedJwtAudience(String selfSignedJwtAudience) {
+            this.selfSignedJwtAudience = Objects.requireNonNull(selfSignedJwtAudience, "selfSignedJwtAudience");
+            return this;
+        }
+
+        public Builder setMeterRegistry(MeterRegistry meterRegistry) {
+            this.meterRegistry = Objects.requireNonNull(meterRegistry, "meterRegistry");
+            return this;
+        }
+
+        public Builder setMeterNamePrefix(String meterNamePrefix) {
+            this.meterNamePrefix = Objects.requireNonNull(meterNamePrefix, "meterNamePrefix");
+            return this;
+        }
+
+        public Builder setMeterTags(Map<String, String> meterTags) {
+            this.meterTags = Objects.requireNonNull(meterTags, "meterTags");
+            return this;
+        }
+
+        public PubsubAccessTokenCacheRegistry build() {
+            if (executorService == null) {
+                executorService = PubsubAccessTokenCache.getDefaultExecutorService();
+            }
+            return new PubsubAccessTokenCacheRegistry(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the refresh tasks of access token caches in the order of their due
+ * instants, keeping at most a single task scheduled on the executor service
+ * no matter how many caches are registered.
+ */
+final class PubsubAccessTokenRefreshScheduler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PubsubAccessTokenRefreshScheduler.class);
+
+    private static final class DefaultInstanceHolder {
+
+        private static final PubsubAccessTokenRefreshScheduler INSTANCE =
+                new PubsubAccessTokenRefreshScheduler(PubsubAccessTokenCache.getDefaultExecutorService());
+
+    }
+
+    static PubsubAccessTokenRefreshScheduler getDefaultInstance() {
+        return DefaultInstanceHolder.INSTANCE;
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+
+        private final Object key;
+
+        private final Runnable task;
+
+        private final long dueInstantMillis;
+
+        private final long sequenceNumber;
+
+        private Entry(Object key, Runnable task, long dueInstantMillis, long sequenceNumber) {
+            this.key = key;
+            this.task = task;
+            this.dueInstantMillis = dueInstantMillis;
+            this.sequenceNumber = sequenceNumber;
+        }
+
+        @Override
+        public int compareTo(Entry that) {
+            int instantComparison = Long.compare(dueInstantMillis, that.dueInstantMillis);
+            return instantComparison != 0
+                    ? instantComparison
+                    : Long.compare(sequenceNumber, that.sequenceNumber);
+        }
+
+    }
+
+    private final ScheduledExecutorService executorService;
+
+    private final PriorityQueue<Entry> entries = new PriorityQueue<>();
+
+    private final Map<Object, Entry> entryByKey = new HashMap<>();
+
+    private long sequenceNumber = 0;
+
+    @Nullable
+    private ScheduledFuture<?> future;
+
+    private long futureInstantMillis = Long.MAX_VALUE;
+
+    PubsubAccessTokenRefreshScheduler(ScheduledExecutorService executorService) {
+        this.executorService = Objects.requireNonNull(executorService, "executorService");
+    }
+
+    ScheduledExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    /**
+     * Schedules the task to run at the given instant, replacing the one that
+     * is already scheduled for the same key, if there is any.
+     */
+    synchronized void schedule(Object key, Runnable task, long dueInstantMillis) {
+        Objects.requireNonNull(key, "key");
+        Objects.requireNonNull(task, "task");
+        @Nullable Entry lastEntry = entryByKey.remove(key);
+        if (lastEntry != null) {
+            entries.remove(lastEntry);
+        }
+        Entry entry = new Entry(key, task, dueInstantMillis, sequenceNumber++);
+        entries.add(entry);
+        entryByKey.put(key, entry);
+        if (dueInstantMillis < futureInstantMillis) {
+            arm(dueInstantMillis);
+        }
+    }
+
+    synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    private void arm(long instantMillis) {
+        if (future != null) {
+            future.cancel(false);
+        }
+        long delayMillis = Math.max(0, instantMillis - System.currentTimeMillis());
+        try {
+            future = executorService.schedule(this::runDueTasks, delayMillis, TimeUnit.MILLISECONDS);
+            futureInstantMillis = instantMillis;
+        } catch (RejectedExecutionException error) {
+            // Entries are kept and the next schedule() call retries arming.
+            future = null;
+            futureInstantMillis = Long.MAX_VALUE;
+            LOGGER.error("access token refresh scheduling failure", error);
+        }
+    }
+
+    private void runDueTasks() {
+        List<Runnable> dueTasks = pollDueTasks();
+        for (Runnable dueTask : dueTasks) {
+            try {
+                dueTask.run();
+            } catch (Throwable error) {
+                LOGGER.error("access token refresh task failure", error);
+            }
+        }
+    }
+
+    private synchronized List<Runnable> pollDueTasks() {
+        future = null;
+        futureInstantMillis = Long.MAX_VALUE;
+        long nowMillis = System.currentTimeMillis();
+        List<Runnable> dueTasks = new ArrayList<>();
+        @Nullable Entry entry;
+        while ((entry = entries.peek()) != null && entry.dueInstantMillis <= nowMillis) {
+            entries.poll();
+            entryByKey.remove(entry.key);
+            dueTasks.add(entry.task);
+        }
+        if (entry != null) {
+            arm(entry.dueInstantMillis);
+        }
+        return dueTasks;
+    }
+
+}
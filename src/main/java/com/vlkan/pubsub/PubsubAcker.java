@@ -19,22 +19,54 @@ package com.vlkan.pubsub;
 import com.vlkan.pubsub.model.PubsubAckRequest;
 import com.vlkan.pubsub.model.PubsubPullResponse;
 import com.vlkan.pubsub.model.PubsubReceivedMessage;
+import com.vlkan.pubsub.util.MicrometerHelpers;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
 import reactor.core.publisher.Mono;
 
+import javax.annotation.Nullable;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 public class PubsubAcker {
 
+    public static final String DEFAULT_METER_NAME_PREFIX = "pubsub.acker";
+
+    public static final Map<String, String> DEFAULT_METER_TAGS = Collections.emptyMap();
+
     private final PubsubAckerConfig config;
 
     private final PubsubClient client;
 
+    @Nullable
+    private final PubsubLeasedMessageTracker leasedMessageTracker;
+
+    @Nullable
+    private final AtomicInteger activeAckCount;
+
     private PubsubAcker(Builder builder) {
         this.config = builder.config;
         this.client = builder.client;
+        this.leasedMessageTracker = builder.leasedMessageTracker;
+        if (builder.meterRegistry == null) {
+            this.activeAckCount = null;
+        } else {
+            List<Tag> tags = new ArrayList<>();
+            builder.meterTags.forEach((tagName, tagValue) -> tags.add(Tag.of(tagName, tagValue)));
+            this.activeAckCount = MicrometerHelpers.registerCountGauge(
+                    builder.meterRegistry,
+                    builder.meterNamePrefix + ".activeAckCount",
+                    Tags.of(tags).and(
+                            "type", "gauge",
+                            "projectName", config.getProjectName(),
+                            "subscriptionName", config.getSubscriptionName()));
+        }
     }
 
     public PubsubAckerConfig getConfig() {
@@ -45,6 +77,11 @@ public class PubsubAcker {
         return client;
     }
 
+    @Nullable
+    public PubsubLeasedMessageTracker getLeasedMessageTracker() {
+        return leasedMessageTracker;
+    }
+
     public Mono<Void> ackPullResponse(PubsubPullResponse pullResponse) {
         Objects.requireNonNull(pullResponse, "pullResponse");
         return ackMessages(pullResponse.getReceivedMessages());
@@ -80,9 +117,18 @@ public class PubsubAcker {
 
     public Mono<Void> ack(PubsubAckRequest ackRequest) {
         Objects.requireNonNull(ackRequest, "ackRequest");
-        return client
-                .ack(config.getProjectName(), config.getSubscriptionName(), ackRequest)
-                .checkpoint("ack");
+        Mono<Void> ackResponseMono =
+                client.ack(config.getProjectName(), config.getSubscriptionName(), ackRequest);
+        if (leasedMessageTracker != null) {
+            ackResponseMono = ackResponseMono
+                    .doOnSuccess(ignored -> leasedMessageTracker.release(ackRequest.getAckIds()));
+        }
+        if (activeAckCount != null) {
+            ackResponseMono = ackResponseMono
+                    .doOnSubscribe(ignored -> activeAckCount.incrementAndGet())
+                    .doFinally(ignored -> activeAckCount.decrementAndGet());
+        }
+        return ackResponseMono.checkpoint("ack");
     }
 
     public static Builder builder() {
@@ -95,6 +141,16 @@ public class PubsubAcker {
 
         private PubsubClient client;
 
+        @Nullable
+        private PubsubLeasedMessageTracker leasedMessageTracker;
+
+        @Nullable
+        private MeterRegistry meterRegistry;
+
+        private String meterNamePrefix = DEFAULT_METER_NAME_PREFIX;
+
+        private Map<String, String> meterTags = DEFAULT_METER_TAGS;
+
         private Builder() {}
 
         public Builder setConfig(PubsubAckerConfig config) {
@@ -107,6 +163,31 @@ public class PubsubAcker {
             return this;
         }
 
+        /**
+         * Sets the tracker to release the leases of acknowledged messages,
+         * which are expected to be leased by a {@link PubsubPuller} sharing
+         * the same tracker.
+         */
+        public Builder setLeasedMessageTracker(@Nullable PubsubLeasedMessageTracker leasedMessageTracker) {
+            this.leasedMessageTracker = leasedMessageTracker;
+            return this;
+        }
+
+        public Builder setMeterRegistry(MeterRegistry meterRegistry) {
+            this.meterRegistry = Objects.requireNonNull(meterRegistry, "meterRegistry");
+            return this;
+        }
+
+        public Builder setMeterNamePrefix(String meterNamePrefix) {
+            this.meterNamePrefix = Objects.requireNonNull(meterNamePrefix, "meterNamePrefix");
+            return this;
+        }
+
+        public Builder setMeterTags(Map<String, String> meterTags) {
+            this.meterTags = Objects.requireNonNull(meterTags, "meterTags");
+            return this;
+        }
+
         public PubsubAcker build() {
             Objects.requireNonNull(config, "config");
             if (client == null) {
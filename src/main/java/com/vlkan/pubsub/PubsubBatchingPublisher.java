@@ -0,0 +1,552 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import com.vlkan.pubsub.model.PubsubDraftedMessage;
+import com.vlkan.pubsub.model.PubsubPublishResponse;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe publisher accumulating messages of concurrent producers into
+ * batches. A batch gets published when either the accumulated message count
+ * or byte count reaches its configured threshold, or the oldest accumulated
+ * message waits longer than the configured linger period.
+ *
+ * <p>Producers only contend on a lock-free queue and a couple of atomic
+ * counters. Batches are drained by whichever thread happens to trip a
+ * threshold, without ever blocking the others.
+ *
+ * <p>Messages with an ordering key are accumulated in a separate lane per
+ * key. A lane keeps at most one batch in flight and publishes the messages
+ * accumulated meanwhile as soon as the in-flight batch succeeds, whereas
+ * lanes of different keys proceed independently. If a batch fails, its lane
+ * gets paused: pending and subsequent messages of the key fail until
+ * {@link #resumePublish(String)} is called.
+ */
+public class PubsubBatchingPublisher {
+
+    private final PubsubBatchingPublisherConfig config;
+
+    private final PubsubPublisher publisher;
+
+    @Nullable
+    private final Scheduler scheduler;
+
+    @Nullable
+    private final PubsubFlowController flowController;
+
+    private final long lingerPeriodNanos;
+
+    private final Queue<PendingMessage> pendingMessages = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pendingMessageCount = new AtomicInteger(0);
+
+    private final AtomicLong pendingByteCount = new AtomicLong(0);
+
+    private final AtomicBoolean lingerTimerArmed = new AtomicBoolean(false);
+
+    private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+
+    private final AtomicInteger drainWorkInProgress = new AtomicInteger(0);
+
+    private final ConcurrentHashMap<String, OrderedLane> orderedLanes = new ConcurrentHashMap<>();
+
+    private static final class PendingMessage {
+
+        private final PubsubDraftedMessage message;
+
+        private final long byteCount;
+
+        private final MonoSink<String> sink;
+
+        private PendingMessage(PubsubDraftedMessage message, long byteCount, MonoSink<String> sink) {
+            this.message = message;
+            this.byteCount = byteCount;
+            this.sink = sink;
+        }
+
+    }
+
+    private PubsubBatchingPublisher(Builder builder) {
+        this.config = builder.config;
+        this.publisher = builder.publisher;
+        this.scheduler = builder.scheduler;
+        this.flowController = builder.flowController;
+        this.lingerPeriodNanos = config.getLingerPeriod().toNanos();
+    }
+
+    public PubsubBatchingPublisherConfig getConfig() {
+        return config;
+    }
+
+    public PubsubPublisher getPublisher() {
+        return publisher;
+    }
+
+    @Nullable
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    @Nullable
+    public PubsubFlowController getFlowController() {
+        return flowController;
+    }
+
+    /**
+     * Enqueues the given message to the next batch upon subscription. If
+     * there is a flow controller, the message is enqueued once it fits into
+     * the outstanding limits, and counts against them until its batch
+     * completes.
+     * Messages sharing an ordering key are published in subscription order.
+     *
+     * @return the ID assigned by the server to the published message; note
+     *         that cancelling the subscription does not withdraw the message
+     *         from the batch
+     */
+    public Mono<String> publish(PubsubDraftedMessage message) {
+        Objects.requireNonNull(message, "message");
+        Mono<String> messageIdMono = Mono.create(sink -> enqueue(message, sink));
+        return (flowController == null
+                ? messageIdMono
+                : flowController.control(1, message.estimateSerializedByteCount(), messageIdMono))
+                .checkpoint("publish");
+    }
+
+    /**
+     * Triggers the publication of all accumulated messages without waiting
+     * for the configured thresholds. Ordered lanes with a batch in flight
+     * publish their accumulated messages once that batch succeeds.
+     */
+    public void flush() {
+        drain(true);
+        for (OrderedLane orderedLane : orderedLanes.values()) {
+            orderedLane.flush();
+        }
+    }
+
+    /**
+     * Resumes publishing messages with the given ordering key after a failure.
+     */
+    public void resumePublish(String orderingKey) {
+        Objects.requireNonNull(orderingKey, "orderingKey");
+        @Nullable OrderedLane orderedLane = orderedLanes.get(orderingKey);
+        if (orderedLane != null) {
+            orderedLane.resume();
+        }
+    }
+
+    private void enqueue(PubsubDraftedMessage message, MonoSink<String> sink) {
+
+        // Reject messages that cannot fit into a request.
+        long messageByteCount = message.estimateSerializedByteCount();
+        if (messageByteCount > PubsubBatchingPublisherConfig.MAX_BATCH_BYTE_COUNT) {
+            String errorMessage = String.format(
+                    "message is too large (messageByteCount=%d, maxBatchByteCount=%d)",
+                    messageByteCount, PubsubBatchingPublisherConfig.MAX_BATCH_BYTE_COUNT);
+            sink.error(new IllegalArgumentException(errorMessage));
+            return;
+        }
+        PendingMessage pendingMessage = new PendingMessage(message, messageByteCount, sink);
+
+        // Hand over ordered messages to their lane.
+        @Nullable String orderingKey = message.getOrderingKey();
+        if (orderingKey != null) {
+            // Retry if the lane gets retired in between.
+            while (!orderedLanes
+                    .computeIfAbsent(orderingKey, OrderedLane::new)
+                    .enqueue(pendingMessage)) {}
+            return;
+        }
+
+        // Enqueue the message.
+        pendingMessages.offer(pendingMessage);
+        int messageCount = pendingMessageCount.incrementAndGet();
+        long byteCount = pendingByteCount.addAndGet(messageByteCount);
+
+        // Either drain the full batch, or make sure that there is a timer to flush the pending one.
+        if (messageCount >= config.getBatchMessageCount() || byteCount >= config.getBatchByteCount()) {
+            drain(false);
+        } else {
+            armLingerTimer();
+        }
+
+    }
+
+    private void armLingerTimer() {
+        if (lingerTimerArmed.compareAndSet(false, true) && !scheduleLinger(this::linger)) {
+            // Flush immediately if there is no scheduler to wait for.
+            linger();
+        }
+    }
+
+    /**
+     * @return {@code false}, if the scheduler rejects the task, in which case
+     *         the caller is expected to flush right away
+     */
+    private boolean scheduleLinger(Runnable task) {
+        try {
+            if (scheduler == null) {
+                Schedulers.parallel().schedule(task, lingerPeriodNanos, TimeUnit.NANOSECONDS);
+            } else {
+                scheduler.schedule(task, lingerPeriodNanos, TimeUnit.NANOSECONDS);
+            }
+            return true;
+        } catch (RejectedExecutionException ignored) {
+            return false;
+        }
+    }
+
+    private void linger() {
+        lingerTimerArmed.set(false);
+        drain(true);
+    }
+
+    /**
+     * Drains full batches, or all pending messages if a flush is requested.
+     * Only one thread drains at a time, the rest merely signal it to take
+     * another pass.
+     */
+    private void drain(boolean flushing) {
+        if (flushing) {
+            flushRequested.set(true);
+        }
+        if (drainWorkInProgress.getAndIncrement() != 0) {
+            return;
+        }
+        int missedDrainCount = 1;
+        do {
+            boolean flushingAll = flushRequested.getAndSet(false);
+            while (flushingAll ? !pendingMessages.isEmpty() : isBatchFull()) {
+                List<PendingMessage> batch = pollBatch();
+                if (batch.isEmpty()) {
+                    break;
+                }
+                publishBatch(batch);
+            }
+            if (pendingMessageCount.get() > 0) {
+                armLingerTimer();
+            }
+            missedDrainCount = drainWorkInProgress.addAndGet(-missedDrainCount);
+        } while (missedDrainCount != 0);
+    }
+
+    private boolean isBatchFull() {
+        return pendingMessageCount.get() >= config.getBatchMessageCount() ||
+                pendingByteCount.get() >= config.getBatchByteCount();
+    }
+
+    private List<PendingMessage> pollBatch() {
+        List<PendingMessage> batch = pollBatch(pendingMessages, pendingMessageCount.get());
+        long batchByteCount = 0;
+        for (PendingMessage pendingMessage : batch) {
+            batchByteCount += pendingMessage.byteCount;
+        }
+        pendingMessageCount.addAndGet(-batch.size());
+        pendingByteCount.addAndGet(-batchByteCount);
+        return batch;
+    }
+
+    private List<PendingMessage> pollBatch(Queue<PendingMessage> pendingMessages, int pendingMessageCount) {
+        int batchMessageCount = config.getBatchMessageCount();
+        long batchByteCountLimit = config.getBatchByteCount();
+        List<PendingMessage> batch = new ArrayList<>(
+                Math.max(1, Math.min(pendingMessageCount, batchMessageCount)));
+        long batchByteCount = 0;
+        @Nullable PendingMessage pendingMessage;
+        while (batch.size() < batchMessageCount &&
+                (pendingMessage = pendingMessages.peek()) != null) {
+            // A single message exceeding the threshold still makes a batch on its own.
+            if (!batch.isEmpty() && batchByteCount + pendingMessage.byteCount > batchByteCountLimit) {
+                break;
+            }
+            pendingMessages.poll();
+            batch.add(pendingMessage);
+            batchByteCount += pendingMessage.byteCount;
+        }
+        return batch;
+    }
+
+    private void publishBatch(List<PendingMessage> batch) {
+        createBatchPublisher(batch).subscribe(null, ignored -> {});
+    }
+
+    /**
+     * Creates a publisher completing the messages of the batch, which in
+     * turn completes empty or fails with the error of the batch.
+     */
+    private Mono<Void> createBatchPublisher(List<PendingMessage> batch) {
+        List<PubsubDraftedMessage> messages = new ArrayList<>(batch.size());
+        for (PendingMessage pendingMessage : batch) {
+            messages.add(pendingMessage.message);
+        }
+        return publisher
+                .publishMessages(messages)
+                .switchIfEmpty(Mono.error(() -> new IllegalStateException("empty publish response")))
+                .doOnNext(publishResponse -> completeBatch(batch, publishResponse))
+                .doOnError(error -> failBatch(batch, error))
+                .then();
+    }
+
+    private static void completeBatch(List<PendingMessage> batch, PubsubPublishResponse publishResponse) {
+        List<String> messageIds = publishResponse.getMessageIds();
+        int messageCount = batch.size();
+        if (messageIds.size() != messageCount) {
+            String errorMessage = String.format(
+                    "message ID count mismatch (messageCount=%d, messageIdCount=%d)",
+                    messageCount, messageIds.size());
+            throw new IllegalStateException(errorMessage);
+        }
+        for (int messageIndex = 0; messageIndex < messageCount; messageIndex++) {
+            String messageId = messageIds.get(messageIndex);
+            batch.get(messageIndex).sink.success(messageId);
+        }
+    }
+
+    private static void failBatch(List<PendingMessage> batch, Throwable error) {
+        for (PendingMessage pendingMessage : batch) {
+            pendingMessage.sink.error(error);
+        }
+    }
+
+    /**
+     * Accumulator of messages sharing an ordering key. In contrast to the
+     * unordered accumulator, a lane is guarded by its own monitor: producers
+     * of the same key need to agree on the order anyway, whereas producers
+     * of different keys never touch the same lane. Sinks get completed and
+     * batches get published outside the monitor.
+     */
+    private final class OrderedLane {
+
+        private final String orderingKey;
+
+        private final Queue<PendingMessage> pendingMessages = new ArrayDeque<>();
+
+        private long pendingByteCount = 0;
+
+        private boolean batchInFlight = false;
+
+        private boolean lingerTimerArmed = false;
+
+        @Nullable
+        private Throwable pauseCause = null;
+
+        private boolean retired = false;
+
+        private OrderedLane(String orderingKey) {
+            this.orderingKey = orderingKey;
+        }
+
+        /**
+         * @return {@code false}, if the lane is retired and the message needs
+         *         to be enqueued to a new one
+         */
+        private boolean enqueue(PendingMessage pendingMessage) {
+            @Nullable List<PendingMessage> batch = null;
+            @Nullable Throwable pauseError = null;
+            boolean lingerRejected = false;
+            synchronized (this) {
+                if (retired) {
+                    return false;
+                }
+                if (pauseCause != null) {
+                    pauseError = createPauseError();
+                } else {
+                    pendingMessages.offer(pendingMessage);
+                    pendingByteCount += pendingMessage.byteCount;
+                    if (!batchInFlight) {
+                        if (pendingMessages.size() >= config.getBatchMessageCount() ||
+                                pendingByteCount >= config.getBatchByteCount()) {
+                            batch = pollBatch();
+                        } else if (!lingerTimerArmed) {
+                            lingerTimerArmed = scheduleLinger(this::linger);
+                            lingerRejected = !lingerTimerArmed;
+                        }
+                    }
+                }
+            }
+            if (pauseError != null) {
+                pendingMessage.sink.error(pauseError);
+            } else if (batch != null) {
+                publishBatch(batch);
+            } else if (lingerRejected) {
+                // Flush immediately if there is no scheduler to wait for.
+                flush();
+            }
+            return true;
+        }
+
+        private void linger() {
+            synchronized (this) {
+                lingerTimerArmed = false;
+            }
+            flush();
+        }
+
+        private void flush() {
+            @Nullable List<PendingMessage> batch;
+            synchronized (this) {
+                batch = batchInFlight || pendingMessages.isEmpty() ? null : pollBatch();
+            }
+            if (batch != null) {
+                publishBatch(batch);
+            }
+        }
+
+        private void resume() {
+            synchronized (this) {
+                pauseCause = null;
+                retireIfIdle();
+            }
+        }
+
+        private List<PendingMessage> pollBatch() {
+            List<PendingMessage> batch =
+                    PubsubBatchingPublisher.this.pollBatch(pendingMessages, pendingMessages.size());
+            for (PendingMessage pendingMessage : batch) {
+                pendingByteCount -= pendingMessage.byteCount;
+            }
+            batchInFlight = true;
+            return batch;
+        }
+
+        private void publishBatch(List<PendingMessage> batch) {
+            createBatchPublisher(batch).subscribe(null, this::onBatchFailure, this::onBatchSuccess);
+        }
+
+        private void onBatchSuccess() {
+
+            // Pipeline the messages accumulated while the batch was in flight.
+            @Nullable List<PendingMessage> batch = null;
+            synchronized (this) {
+                batchInFlight = false;
+                if (pendingMessages.isEmpty()) {
+                    retireIfIdle();
+                } else {
+                    batch = pollBatch();
+                }
+            }
+            if (batch != null) {
+                publishBatch(batch);
+            }
+
+        }
+
+        private void onBatchFailure(Throwable error) {
+
+            // Pause the lane and fail the pending messages.
+            List<PendingMessage> pausedMessages;
+            Throwable pauseError;
+            synchronized (this) {
+                batchInFlight = false;
+                pauseCause = error;
+                pauseError = createPauseError();
+                pausedMessages = new ArrayList<>(pendingMessages);
+                pendingMessages.clear();
+                pendingByteCount = 0;
+            }
+            failBatch(pausedMessages, pauseError);
+
+        }
+
+        private Throwable createPauseError() {
+            String errorMessage = String.format("ordering key is paused (orderingKey=%s)", orderingKey);
+            return new IllegalStateException(errorMessage, pauseCause);
+        }
+
+        /**
+         * Removes the lane from the registry, if it has nothing left to do,
+         * so that idle ordering keys do not pile up.
+         */
+        private void retireIfIdle() {
+            if (!batchInFlight && pauseCause == null && pendingMessages.isEmpty()) {
+                retired = true;
+                orderedLanes.remove(orderingKey, this);
+            }
+        }
+
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+
+        private PubsubBatchingPublisherConfig config = PubsubBatchingPublisherConfig.DEFAULT;
+
+        private PubsubPublisher publisher;
+
+        @Nullable
+        private Scheduler scheduler;
+
+        @Nullable
+        private PubsubFlowController flowController;
+
+        private Builder() {}
+
+        public Builder setConfig(PubsubBatchingPublisherConfig config) {
+            this.config = Objects.requireNonNull(config, "config");
+            return this;
+        }
+
+        public Builder setPublisher(PubsubPublisher publisher) {
+            this.publisher = Objects.requireNonNull(publisher, "publisher");
+            return this;
+        }
+
+        public Builder setScheduler(@Nullable Scheduler scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * Sets the flow controller bounding the messages accumulated and in
+         * flight. Note that the controller of the wrapped publisher, if there
+         * is any, would count the same messages once more.
+         */
+        public Builder setFlowController(@Nullable PubsubFlowController flowController) {
+            this.flowController = flowController;
+            return this;
+        }
+
+        public PubsubBatchingPublisher build() {
+            Objects.requireNonNull(config, "config");
+            Objects.requireNonNull(publisher, "publisher");
+            return new PubsubBatchingPublisher(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import java.time.Duration;
+import java.util.Objects;
+
+public class PubsubBatchingPublisherConfig {
+
+    /**
+     * Maximum number of messages Pub/Sub accepts in a single publish request.
+     */
+    public static final int MAX_BATCH_MESSAGE_COUNT = 1_000;
+
+    /**
+     * Maximum size of a single publish request Pub/Sub accepts.
+     */
+    public static final long MAX_BATCH_BYTE_COUNT = 10_000_000L;
+
+    public static final int DEFAULT_BATCH_MESSAGE_COUNT = 100;
+
+    public static final long DEFAULT_BATCH_BYTE_COUNT = 1_000_000L;
+
+    public static final Duration DEFAULT_LINGER_PERIOD = Duration.ofMillis(10);
+
+    public static final PubsubBatchingPublisherConfig DEFAULT = builder().build();
+
+    private final int batchMessageCount;
+
+    private final long batchByteCount;
+
+    private final Duration lingerPeriod;
+
+    private PubsubBatchingPublisherConfig(Builder builder) {
+        this.batchMessageCount = builder.batchMessageCount;
+        this.batchByteCount = builder.batchByteCount;
+        this.lingerPeriod = builder.lingerPeriod;
+    }
+
+    /**
+     * Number of accumulated messages that triggers a flush.
+     */
+    public int getBatchMessageCount() {
+        return batchMessageCount;
+    }
+
+    /**
+     * Estimated serialized size of accumulated messages that triggers a flush.
+     */
+    public long getBatchByteCount() {
+        return batchByteCount;
+    }
+
+    /**
+     * Maximum duration a message waits in the accumulator before getting
+     * flushed.
+     */
+    public Duration getLingerPeriod() {
+        return lingerPeriod;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) return true;
+        if (object == null || getClass() != object.getClass()) return false;
+        PubsubBatchingPublisherConfig that = (PubsubBatchingPublisherConfig) object;
+        return batchMessageCount == that.batchMessageCount &&
+                batchByteCount == that.batchByteCount &&
+                lingerPeriod.equals(that.lingerPeriod);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(batchMessageCount, batchByteCount, lingerPeriod);
+    }
+
+    @Override
+    public String toString() {
+        return "PubsubBatchingPublisherConfig{" +
+                "batchMessageCount=" + batchMessageCount +
+                ", batchByteCount=" + batchByteCount +
+                ", lingerPeriod=" + lingerPeriod +
+                '}';
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+
+        private int batchMessageCount = DEFAULT_BATCH_MESSAGE_COUNT;
+
+        private long batchByteCount = DEFAULT_BATCH_BYTE_COUNT;
+
+        private Duration lingerPeriod = DEFAULT_LINGER_PERIOD;
+
+        private Builder() {}
+
+        public Builder setBatchMessageCount(int batchMessageCount) {
+            if (batchMessageCount < 1 || batchMessageCount > MAX_BATCH_MESSAGE_COUNT) {
+                String message = String.format(
+                        "was expecting a batch message count in [1, %d], found %d",
+                        MAX_BATCH_MESSAGE_COUNT, batchMessageCount);
+                throw new IllegalArgumentException(message);
+            }
+            this.batchMessageCount = batchMessageCount;
+            return this;
+        }
+
+        public Builder setBatchByteCount(long batchByteCount) {
+            if (batchByteCount < 1 || batchByteCount > MAX_BATCH_BYTE_COUNT) {
+                String message = String.format(
+                        "was expecting a batch byte count in [1, %d], found %d",
+                        MAX_BATCH_BYTE_COUNT, batchByteCount);
+                throw new IllegalArgumentException(message);
+            }
+            this.batchByteCount = batchByteCount;
+            return this;
+        }
+
+        public Builder setLingerPeriod(Duration lingerPeriod) {
+            Objects.requireNonNull(lingerPeriod, "lingerPeriod");
+            if (lingerPeriod.isNegative() || lingerPeriod.isZero()) {
+                throw new IllegalArgumentException(
+                        "was expecting a non-zero positive linger period");
+            }
+            this.lingerPeriod = lingerPeriod;
+            return this;
+        }
+
+        public PubsubBatchingPublisherConfig build() {
+            return new PubsubBatchingPublisherConfig(this);
+        }
+
+    }
+
+}
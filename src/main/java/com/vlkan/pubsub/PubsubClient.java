@@ -26,7 +26,9 @@ import com.vlkan.pubsub.model.PubsubPullRequest;
 import com.vlkan.pubsub.model.PubsubPullResponse;
 import com.vlkan.pubsub.util.MicrometerHelpers;
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
 import io.micrometer.core.instrument.Timer;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -38,18 +40,24 @@ import reactor.core.publisher.Mono;
 import reactor.netty.ByteBufMono;
 import reactor.netty.http.client.HttpClient;
 import reactor.netty.http.client.HttpClientResponse;
+import reactor.netty.resources.ConnectionProvider;
 
 import javax.annotation.Nullable;
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Objects;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
-public class PubsubClient {
+public class PubsubClient implements Closeable {
 
     private static final class DefaultObjectMapperHolder {
 
@@ -110,6 +118,12 @@ public class PubsubClient {
 
     private final HttpClient httpClient;
 
+    /**
+     * The connection pool created for connection pool metrics, if enabled.
+     */
+    @Nullable
+    private final ConnectionProvider connectionProvider;
+
     @Nullable
     private final MeterRegistry meterRegistry;
 
@@ -123,22 +137,39 @@ public class PubsubClient {
     @Nullable
     private final Map<String, Counter> counterByRequestUrl;
 
+    @Nullable
+    private final Map<String, RequestMeters> requestMetersByRequestUrl;
+
+    private final boolean meterPercentileHistogramEnabled;
+
+    @Nullable
+    private final double[] meterPercentiles;
+
+    @Nullable
+    private final Duration[] latencyServiceLevelObjectives;
+
     private PubsubClient(Builder builder) {
         this.config = builder.config;
         this.objectMapper = builder.objectMapper;
         this.accessTokenCache = builder.accessTokenCache;
         this.httpClient = builder.httpClient;
+        this.connectionProvider = builder.connectionProvider;
         if (builder.meterRegistry == null) {
             this.meterRegistry = null;
             this.timerByRequestUrl = null;
             this.counterByRequestUrl = null;
+            this.requestMetersByRequestUrl = null;
         } else {
             this.meterRegistry = builder.meterRegistry;
             this.timerByRequestUrl = Collections.synchronizedMap(new WeakHashMap<>());
             this.counterByRequestUrl = Collections.synchronizedMap(new WeakHashMap<>());
+            this.requestMetersByRequestUrl = new ConcurrentHashMap<>();
         }
         this.meterNamePrefix = builder.meterNamePrefix;
         this.meterTags = builder.meterTags;
+        this.meterPercentileHistogramEnabled = builder.meterPercentileHistogramEnabled;
+        this.meterPercentiles = builder.meterPercentiles;
+        this.latencyServiceLevelObjectives = builder.latencyServiceLevelObjectives;
     }
 
     Mono<PubsubPullResponse> pull(
@@ -150,7 +181,7 @@ public class PubsubClient {
                 ? config.getPullTimeout()
                 : Duration.ZERO;
         Mono<PubsubPullResponse> pullResponseMono = meterRegistry == null
-                ? executeRequest(requestUrl, pullRequest, PubsubPullResponse.class, timeout)
+                ? executeRequest(requestUrl, pullRequest, PubsubPullResponse.class, timeout, null)
                 : pullMeasured(projectName, subscriptionName, pullRequest, requestUrl, timeout);
         return pullResponseMono.checkpoint(requestUrl);
     }
@@ -169,17 +200,23 @@ public class PubsubClient {
             Duration timeout) {
         Function<Boolean, String[]> meterTagSupplier =
                 createMeterTagSupplier(projectName, "subscriptionName", subscriptionName);
-        return executeRequest(requestUrl, pullRequest, PubsubPullResponse.class, timeout)
+        String endpointMeterNamePrefix = meterNamePrefix + ".pull";
+        RequestMeters requestMeters = getOrCreateRequestMeters(
+                requestUrl, endpointMeterNamePrefix, projectName, "subscriptionName", subscriptionName);
+        return executeRequest(requestUrl, pullRequest, PubsubPullResponse.class, timeout, requestMeters)
+                .doOnNext(pullResponse -> requestMeters
+                        .messageCountSummary
+                        .record(pullResponse.getReceivedMessages().size()))
+                .transform(requestMeters::trackActiveRequest)
                 .transform(mono -> MicrometerHelpers.measureLatency(
-                        meterRegistry,
-                        meterNamePrefix + ".pull.latency",
+                        tags -> createTimer(endpointMeterNamePrefix + ".latency", tags),
                         timerByRequestUrl,
                         requestUrl,
                         meterTagSupplier,
                         mono))
                 .transform(mono -> MicrometerHelpers.measureCount(
                         meterRegistry,
-                        meterNamePrefix + ".pull.count",
+                        endpointMeterNamePrefix + ".count",
                         counterByRequestUrl,
                         requestUrl,
                         () -> meterTagSupplier.apply(true),
@@ -193,7 +230,7 @@ public class PubsubClient {
             PubsubAckRequest ackRequest) {
         String requestUrl = config.getBaseUrl() + createAckRequestRelativePath(projectName, subscriptionName);
         Mono<Void> ackResponseMono = meterRegistry == null
-                ? executeRequest(requestUrl, ackRequest, Void.class, config.getAckTimeout())
+                ? executeRequest(requestUrl, ackRequest, Void.class, config.getAckTimeout(), null)
                 : ackMeasured(projectName, subscriptionName, ackRequest, requestUrl);
         return ackResponseMono.checkpoint(requestUrl);
     }
@@ -211,17 +248,23 @@ public class PubsubClient {
             String requestUrl) {
         Function<Boolean, String[]> meterTagSupplier =
                 createMeterTagSupplier(projectName, "subscriptionName", subscriptionName);
-        return executeRequest(requestUrl, ackRequest, Void.class, config.getAckTimeout())
+        String endpointMeterNamePrefix = meterNamePrefix + ".ack";
+        RequestMeters requestMeters = getOrCreateRequestMeters(
+                requestUrl, endpointMeterNamePrefix, projectName, "subscriptionName", subscriptionName);
+        return executeRequest(requestUrl, ackRequest, Void.class, config.getAckTimeout(), requestMeters)
+                .doOnSubscribe(ignored -> requestMeters
+                        .messageCountSummary
+                        .record(ackRequest.getAckIds().size()))
+                .transform(requestMeters::trackActiveRequest)
                 .transform(mono -> MicrometerHelpers.measureLatency(
-                        meterRegistry,
-                        meterNamePrefix + ".ack.latency",
+                        tags -> createTimer(endpointMeterNamePrefix + ".latency", tags),
                         timerByRequestUrl,
                         requestUrl,
                         meterTagSupplier,
                         mono))
                 .transform(mono -> MicrometerHelpers.measureCount(
                         meterRegistry,
-                        meterNamePrefix + ".ack.count",
+                        endpointMeterNamePrefix + ".count",
                         counterByRequestUrl,
                         requestUrl,
                         () -> meterTagSupplier.apply(true),
@@ -235,7 +278,8 @@ public class PubsubClient {
             PubsubPublishRequest publishRequest) {
         String requestUrl = config.getBaseUrl() + createPublishRequestRelativePath(projectName, topicName);
         Mono<PubsubPublishResponse> publishResponseMono = meterRegistry == null
-                ? executeRequest(requestUrl, publishRequest, PubsubPublishResponse.class, config.getPublishTimeout())
+                ? executeRequest(
+                        requestUrl, publishRequest, PubsubPublishResponse.class, config.getPublishTimeout(), null)
                 : publishMeasured(projectName, topicName, publishRequest, requestUrl);
         return publishResponseMono.checkpoint(requestUrl);
     }
@@ -253,17 +297,24 @@ public class PubsubClient {
             String requestUrl) {
         Function<Boolean, String[]> meterTagSupplier =
                 createMeterTagSupplier(projectName, "topicName", topicName);
-        return executeRequest(requestUrl, publishRequest, PubsubPublishResponse.class, config.getPublishTimeout())
+        String endpointMeterNamePrefix = meterNamePrefix + ".publish";
+        RequestMeters requestMeters = getOrCreateRequestMeters(
+                requestUrl, endpointMeterNamePrefix, projectName, "topicName", topicName);
+        return executeRequest(
+                requestUrl, publishRequest, PubsubPublishResponse.class, config.getPublishTimeout(), requestMeters)
+                .doOnSubscribe(ignored -> requestMeters
+                        .messageCountSummary
+                        .record(publishRequest.getMessages().size()))
+                .transform(requestMeters::trackActiveRequest)
                 .transform(mono -> MicrometerHelpers.measureLatency(
-                        meterRegistry,
-                        meterNamePrefix + ".publish.latency",
+                        tags -> createTimer(endpointMeterNamePrefix + ".latency", tags),
                         timerByRequestUrl,
                         requestUrl,
                         meterTagSupplier,
                         mono))
                 .transform(mono -> MicrometerHelpers.measureCount(
                         meterRegistry,
-                        meterNamePrefix + ".publish.count",
+                        endpointMeterNamePrefix + ".count",
                         counterByRequestUrl,
                         requestUrl,
                         () -> meterTagSupplier.apply(true),
@@ -292,6 +343,69 @@ public class PubsubClient {
         };
     }
 
+    private RequestMeters getOrCreateRequestMeters(
+            String requestUrl,
+            String endpointMeterNamePrefix,
+            String projectName,
+            String extensionKey,
+            String extensionValue) {
+        return requestMetersByRequestUrl.computeIfAbsent(requestUrl, ignored -> {
+            String[] summaryTags = extendMeterTags(
+                    "type", "summary",
+                    "projectName", projectName,
+                    extensionKey, extensionValue);
+            AtomicInteger activeRequestCount = MicrometerHelpers.registerCountGauge(
+                    meterRegistry,
+                    endpointMeterNamePrefix + ".activeRequestCount",
+                    Tags.of(extendMeterTags(
+                            "type", "gauge",
+                            "projectName", projectName,
+                            extensionKey, extensionValue)));
+            String phaseTimerName = endpointMeterNamePrefix + ".phaseLatency";
+            Function<String, Timer> phaseTimerFactory = phase -> createTimer(phaseTimerName, extendMeterTags(
+                    "type", "timer",
+                    "projectName", projectName,
+                    extensionKey, extensionValue,
+                    "phase", phase));
+            return new RequestMeters(
+                    activeRequestCount,
+                    createSummary(endpointMeterNamePrefix + ".messageCountPerRequest", null, summaryTags),
+                    createSummary(endpointMeterNamePrefix + ".requestBodySize", "bytes", summaryTags),
+                    createSummary(endpointMeterNamePrefix + ".responseBodySize", "bytes", summaryTags),
+                    phaseTimerFactory.apply("serialization"),
+                    phaseTimerFactory.apply("acquisition"),
+                    phaseTimerFactory.apply("firstByte"),
+                    phaseTimerFactory.apply("bodyRead"),
+                    phaseTimerFactory.apply("deserialization"));
+        });
+    }
+
+    private Timer createTimer(String meterName, String[] tags) {
+        Timer.Builder timerBuilder = Timer
+                .builder(meterName)
+                .tags(tags)
+                .publishPercentileHistogram(meterPercentileHistogramEnabled);
+        if (meterPercentiles != null) {
+            timerBuilder.publishPercentiles(meterPercentiles);
+        }
+        if (latencyServiceLevelObjectives != null) {
+            timerBuilder.serviceLevelObjectives(latencyServiceLevelObjectives);
+        }
+        return timerBuilder.register(meterRegistry);
+    }
+
+    private DistributionSummary createSummary(String meterName, @Nullable String baseUnit, String[] tags) {
+        DistributionSummary.Builder summaryBuilder = DistributionSummary
+                .builder(meterName)
+                .tags(tags)
+                .baseUnit(baseUnit)
+                .publishPercentileHistogram(meterPercentileHistogramEnabled);
+        if (meterPercentiles != null) {
+            summaryBuilder.publishPercentiles(meterPercentiles);
+        }
+        return summaryBuilder.register(meterRegistry);
+    }
+
     private String[] extendMeterTags(String... extensionTags) {
         String[] tags = new String[extensionTags.length + meterTags.size() * 2];
         System.arraycopy(extensionTags, 0, tags, 0, extensionTags.length);
@@ -307,25 +421,57 @@ public class PubsubClient {
             String requestUrl,
             Object requestPayload,
             Class<T> responsePayloadClass,
-            Duration timeout) {
+            Duration timeout,
+            @Nullable RequestMeters requestMeters) {
         Mono<ByteBuf> requestPayloadByteBufMono = Mono
-                .fromCallable(() -> serializeRequestPayload(requestPayload))
+                .fromCallable(() -> requestMeters == null
+                        ? serializeRequestPayload(requestPayload)
+                        : serializeRequestPayloadMeasured(requestPayload, requestMeters))
                 .checkpoint("serializeRequestPayload");
         return Mono
-                .fromCallable(() -> String.format("Bearer %s", accessTokenCache.getAccessToken()))
-                .flatMap(authorizationHeaderValue -> httpClient
-                        .headers(headers -> setRequestHeaders(headers, authorizationHeaderValue))
-                        .post()
-                        .uri(requestUrl)
-                        .send(requestPayloadByteBufMono)
-                        .responseSingle((response, responsePayloadByteBufMono) ->
-                                handleResponse(responsePayloadClass, response, responsePayloadByteBufMono))
+                .defer(accessTokenCache::getAccessToken)
+                .map(accessToken -> "Bearer " + accessToken)
+                .flatMap(authorizationHeaderValue -> sendRequest(
+                        requestUrl,
+                        authorizationHeaderValue,
+                        requestPayloadByteBufMono,
+                        responsePayloadClass,
+                        requestMeters)
                         .transform(responseMono -> Duration.ZERO.equals(timeout)
                                 ? responseMono
                                 : responseMono.timeout(timeout)))
                 .checkpoint("executeRequest");
     }
 
+    private <T> Mono<T> sendRequest(
+            String requestUrl,
+            String authorizationHeaderValue,
+            Mono<ByteBuf> requestPayloadByteBufMono,
+            Class<T> responsePayloadClass,
+            @Nullable RequestMeters requestMeters) {
+        HttpClient requestHttpClient = httpClient
+                .headers(headers -> setRequestHeaders(headers, authorizationHeaderValue));
+        if (requestMeters == null) {
+            return requestHttpClient
+                    .post()
+                    .uri(requestUrl)
+                    .send(requestPayloadByteBufMono)
+                    .responseSingle((response, responsePayloadByteBufMono) -> handleResponse(
+                            responsePayloadClass, response, responsePayloadByteBufMono, null));
+        }
+        RequestPhaseClock phaseClock = new RequestPhaseClock(requestMeters);
+        return requestHttpClient
+                .doOnRequest((ignoredRequest, ignoredConnection) -> phaseClock.recordAcquisition())
+                .doAfterRequest((ignoredRequest, ignoredConnection) -> phaseClock.recordRequestSent())
+                .doOnResponse((ignoredResponse, ignoredConnection) -> phaseClock.recordFirstByte())
+                .post()
+                .uri(requestUrl)
+                .send(requestPayloadByteBufMono)
+                .responseSingle((response, responsePayloadByteBufMono) -> handleResponse(
+                        responsePayloadClass, response, responsePayloadByteBufMono, phaseClock))
+                .doOnSubscribe(ignored -> phaseClock.start());
+    }
+
     private void setRequestHeaders(HttpHeaders headers, String authorizationHeaderValue) {
         headers
                 .set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON)
@@ -339,25 +485,28 @@ public class PubsubClient {
     private <T> Mono<T> handleResponse(
             Class<T> responsePayloadClass,
             HttpClientResponse response,
-            ByteBufMono responsePayloadByteBufMono) {
+            ByteBufMono responsePayloadByteBufMono,
+            @Nullable RequestPhaseClock phaseClock) {
 
         // Check the response status.
         HttpResponseStatus responseStatus = response.status();
         if (!is2xxSuccessful(responseStatus)) {
             if (config.isFailedResponsePayloadExposed()) {
+                // Failed responses can come without a payload, still fail.
                 return responsePayloadByteBufMono
                         .asByteArray()
+                        .defaultIfEmpty(new byte[0])
                         .flatMap(responsePayloadBytes -> {
                             String responsePayload = new String(responsePayloadBytes, StandardCharsets.UTF_8);
                             String message = String.format(
                                     "unexpected response (responseStatus=%s, responsePayload=%s)",
                                     responseStatus, responsePayload);
-                            RuntimeException error = new RuntimeException(message);
+                            RuntimeException error = new PubsubResponseException(message, responseStatus.code());
                             return Mono.error(error);
                         });
             } else {
                 String message = String.format("unexpected response (responseStatus=%s)", responseStatus);
-                RuntimeException error = new RuntimeException(message);
+                RuntimeException error = new PubsubResponseException(message, responseStatus.code());
                 return Mono.error(error);
             }
         }
@@ -366,8 +515,10 @@ public class PubsubClient {
         return responsePayloadByteBufMono
                 .asByteArray()
                 .flatMap(responsePayloadBytes -> {
-                    @Nullable T responsePayload =
-                            deserializeResponsePayload(responsePayloadBytes, responsePayloadClass);
+                    @Nullable T responsePayload = phaseClock == null
+                            ? deserializeResponsePayload(responsePayloadBytes, responsePayloadClass)
+                            : deserializeResponsePayloadMeasured(
+                                    responsePayloadBytes, responsePayloadClass, phaseClock);
                     return responsePayload != null
                             ? Mono.just(responsePayload)
                             : Mono.empty();
@@ -397,6 +548,28 @@ public class PubsubClient {
         }
     }
 
+    private ByteBuf serializeRequestPayloadMeasured(Object requestPayload, RequestMeters requestMeters) {
+        long startInstantNanos = System.nanoTime();
+        ByteBuf requestPayloadByteBuf = serializeRequestPayload(requestPayload);
+        requestMeters.serializationTimer.record(System.nanoTime() - startInstantNanos, TimeUnit.NANOSECONDS);
+        requestMeters.requestBodySizeSummary.record(requestPayloadByteBuf.readableBytes());
+        return requestPayloadByteBuf;
+    }
+
+    @Nullable
+    private <T> T deserializeResponsePayloadMeasured(
+            byte[] responsePayloadBytes,
+            Class<T> responsePayloadClass,
+            RequestPhaseClock phaseClock) {
+        phaseClock.recordBodyRead();
+        RequestMeters requestMeters = phaseClock.requestMeters;
+        requestMeters.responseBodySizeSummary.record(responsePayloadBytes.length);
+        long startInstantNanos = System.nanoTime();
+        @Nullable T responsePayload = deserializeResponsePayload(responsePayloadBytes, responsePayloadClass);
+        requestMeters.deserializationTimer.record(System.nanoTime() - startInstantNanos, TimeUnit.NANOSECONDS);
+        return responsePayload;
+    }
+
     @Nullable
     private <T> T deserializeResponsePayload(
             byte[] responsePayloadBytes,
@@ -412,10 +585,127 @@ public class PubsubClient {
         }
     }
 
+    /**
+     * Meters of a particular endpoint, e.g., pull requests of a subscription.
+     */
+    private static final class RequestMeters {
+
+        private final AtomicInteger activeRequestCount;
+
+        private final DistributionSummary messageCountSummary;
+
+        private final DistributionSummary requestBodySizeSummary;
+
+        private final DistributionSummary responseBodySizeSummary;
+
+        private final Timer serializationTimer;
+
+        private final Timer acquisitionTimer;
+
+        private final Timer firstByteTimer;
+
+        private final Timer bodyReadTimer;
+
+        private final Timer deserializationTimer;
+
+        private RequestMeters(
+                AtomicInteger activeRequestCount,
+                DistributionSummary messageCountSummary,
+                DistributionSummary requestBodySizeSummary,
+                DistributionSummary responseBodySizeSummary,
+                Timer serializationTimer,
+                Timer acquisitionTimer,
+                Timer firstByteTimer,
+                Timer bodyReadTimer,
+                Timer deserializationTimer) {
+            this.activeRequestCount = activeRequestCount;
+            this.messageCountSummary = messageCountSummary;
+            this.requestBodySizeSummary = requestBodySizeSummary;
+            this.responseBodySizeSummary = responseBodySizeSummary;
+            this.serializationTimer = serializationTimer;
+            this.acquisitionTimer = acquisitionTimer;
+            this.firstByteTimer = firstByteTimer;
+            this.bodyReadTimer = bodyReadTimer;
+            this.deserializationTimer = deserializationTimer;
+        }
+
+        private <T> Mono<T> trackActiveRequest(Mono<T> mono) {
+            return mono
+                    .doOnSubscribe(ignored -> activeRequestCount.incrementAndGet())
+                    .doFinally(ignored -> activeRequestCount.decrementAndGet());
+        }
+
+    }
+
+    /**
+     * Tracks the network phases of a single HTTP exchange, that is,
+     * <ol>
+     *     <li>{@code acquisition}: from subscription to the pooled connection
+     *     acquisition (including the connect and TLS handshake, if a new
+     *     connection gets established),</li>
+     *     <li>{@code firstByte}: from the complete transmission of the
+     *     request to the reception of the response headers, and</li>
+     *     <li>{@code bodyRead}: from the reception of the response headers to
+     *     the aggregation of the response body.</li>
+     * </ol>
+     * Each phase is recorded relative to the end of the previous one, since
+     * phases execute in sequence, albeit on different threads.
+     */
+    private static final class RequestPhaseClock {
+
+        private final RequestMeters requestMeters;
+
+        private volatile long lastInstantNanos;
+
+        private RequestPhaseClock(RequestMeters requestMeters) {
+            this.requestMeters = requestMeters;
+        }
+
+        private void start() {
+            lastInstantNanos = System.nanoTime();
+        }
+
+        private void recordAcquisition() {
+            record(requestMeters.acquisitionTimer);
+        }
+
+        private void recordRequestSent() {
+            lastInstantNanos = System.nanoTime();
+        }
+
+        private void recordFirstByte() {
+            record(requestMeters.firstByteTimer);
+        }
+
+        private void recordBodyRead() {
+            record(requestMeters.bodyReadTimer);
+        }
+
+        private void record(Timer timer) {
+            long instantNanos = System.nanoTime();
+            timer.record(instantNanos - lastInstantNanos, TimeUnit.NANOSECONDS);
+            lastInstantNanos = instantNanos;
+        }
+
+    }
+
+    /**
+     * Disposes the connection pool created for connection pool metrics, if
+     * there is one. HTTP clients provided by the user are left intact.
+     */
+    @Override
+    public void close() {
+        if (connectionProvider != null) {
+            connectionProvider.dispose();
+        }
+    }
+
     public static Builder builder() {
         return new Builder();
     }
 
+    private static final AtomicInteger CONNECTION_POOL_INDEX = new AtomicInteger(0);
+
     public static final class Builder {
 
         private PubsubClientConfig config = PubsubClientConfig.DEFAULT;
@@ -433,6 +723,19 @@ public class PubsubClient {
 
         private Map<String, String> meterTags = DEFAULT_METER_TAGS;
 
+        private boolean meterPercentileHistogramEnabled = false;
+
+        @Nullable
+        private double[] meterPercentiles;
+
+        @Nullable
+        private Duration[] latencyServiceLevelObjectives;
+
+        private boolean connectionPoolMetricsEnabled = false;
+
+        @Nullable
+        private ConnectionProvider connectionProvider;
+
         private Builder() {}
 
         public Builder setConfig(PubsubClientConfig config) {
@@ -471,10 +774,82 @@ public class PubsubClient {
             return this;
         }
 
+        /**
+         * Enables publishing percentile histograms of latency timers and
+         * size distribution summaries, e.g., for aggregable percentiles in
+         * Prometheus.
+         */
+        public Builder setMeterPercentileHistogramEnabled(boolean meterPercentileHistogramEnabled) {
+            this.meterPercentileHistogramEnabled = meterPercentileHistogramEnabled;
+            return this;
+        }
+
+        /**
+         * Sets the client-side computed percentiles, e.g., {@code 0.5} and
+         * {@code 0.99}, of latency timers and size distribution summaries.
+         */
+        public Builder setMeterPercentiles(double... meterPercentiles) {
+            Objects.requireNonNull(meterPercentiles, "meterPercentiles");
+            for (double meterPercentile : meterPercentiles) {
+                if (!(meterPercentile >= 0 && meterPercentile <= 1)) {
+                    String message = String.format(
+                            "was expecting meter percentiles in [0, 1], found %s", meterPercentile);
+                    throw new IllegalArgumentException(message);
+                }
+            }
+            this.meterPercentiles = meterPercentiles.length > 0
+                    ? Arrays.copyOf(meterPercentiles, meterPercentiles.length)
+                    : null;
+            return this;
+        }
+
+        /**
+         * Sets the service level objective buckets of latency timers.
+         */
+        public Builder setLatencyServiceLevelObjectives(Duration... latencyServiceLevelObjectives) {
+            Objects.requireNonNull(latencyServiceLevelObjectives, "latencyServiceLevelObjectives");
+            for (Duration latencyServiceLevelObjective : latencyServiceLevelObjectives) {
+                Objects.requireNonNull(latencyServiceLevelObjective, "latencyServiceLevelObjective");
+                if (latencyServiceLevelObjective.isNegative() || latencyServiceLevelObjective.isZero()) {
+                    String message = String.format(
+                            "was expecting non-zero positive latency service level objectives, found %s",
+                            latencyServiceLevelObjective);
+                    throw new IllegalArgumentException(message);
+                }
+            }
+            this.latencyServiceLevelObjectives = latencyServiceLevelObjectives.length > 0
+                    ? Arrays.copyOf(latencyServiceLevelObjectives, latencyServiceLevelObjectives.length)
+                    : null;
+            return this;
+        }
+
+        /**
+         * Enables connection pool gauges, i.e., active, idle, pending, and
+         * allocated connection counts. This requires a meter registry and
+         * makes the client create a dedicated connection pool, hence it cannot
+         * be combined with a custom HTTP client. (Custom HTTP clients can
+         * employ {@link PubsubConnectionPoolMeterRegistrar} instead.)
+         */
+        public Builder setConnectionPoolMetricsEnabled(boolean connectionPoolMetricsEnabled) {
+            this.connectionPoolMetricsEnabled = connectionPoolMetricsEnabled;
+            return this;
+        }
+
         public PubsubClient build() {
             if (objectMapper == null) {
                 objectMapper = getDefaultObjectMapper();
             }
+            if (connectionPoolMetricsEnabled) {
+                if (meterRegistry == null) {
+                    throw new IllegalArgumentException(
+                            "was expecting a meter registry for connection pool metrics");
+                }
+                if (httpClient != null) {
+                    throw new IllegalArgumentException(
+                            "was expecting no custom HTTP client for connection pool metrics");
+                }
+                httpClient = createConnectionPoolMeasuredHttpClient();
+            }
             if (httpClient == null) {
                 httpClient = getDefaultHttpClient();
             }
@@ -484,6 +859,22 @@ public class PubsubClient {
             return new PubsubClient(this);
         }
 
+        private HttpClient createConnectionPoolMeasuredHttpClient() {
+            PubsubConnectionPoolMeterRegistrar meterRegistrar = PubsubConnectionPoolMeterRegistrar
+                    .builder()
+                    .setMeterRegistry(meterRegistry)
+                    .setMeterNamePrefix(meterNamePrefix + ".connectionPool")
+                    .setMeterTags(meterTags)
+                    .build();
+            // Pool names need to be unique to avoid clashing connection pool gauges.
+            String poolName = "pubsub-" + CONNECTION_POOL_INDEX.getAndIncrement();
+            connectionProvider = ConnectionProvider
+                    .builder(poolName)
+                    .metrics(true, () -> meterRegistrar)
+                    .build();
+            return HttpClient.create(connectionProvider);
+        }
+
     }
 
 }
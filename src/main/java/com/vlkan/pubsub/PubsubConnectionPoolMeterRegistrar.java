@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import reactor.netty.resources.ConnectionPoolMetrics;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Registers reactor-netty connection pool gauges, i.e., active, idle,
+ * pending, and allocated connection counts per remote address.
+ * <p>
+ * {@link PubsubClient} employs it for the connection pool it creates when
+ * connection pool metrics are enabled. Custom HTTP clients can employ it via
+ * {@link ConnectionProvider.ConnectionPoolSpec#metrics(boolean, java.util.function.Supplier)}.
+ */
+public class PubsubConnectionPoolMeterRegistrar implements ConnectionProvider.MeterRegistrar {
+
+    public static final String DEFAULT_METER_NAME_PREFIX = PubsubClient.DEFAULT_METER_NAME_PREFIX + ".connectionPool";
+
+    public static final Map<String, String> DEFAULT_METER_TAGS = Collections.emptyMap();
+
+    private final MeterRegistry meterRegistry;
+
+    private final String meterNamePrefix;
+
+    private final Tags tags;
+
+    private PubsubConnectionPoolMeterRegistrar(Builder builder) {
+        this.meterRegistry = builder.meterRegistry;
+        this.meterNamePrefix = builder.meterNamePrefix;
+        List<Tag> tags = new ArrayList<>();
+        builder.meterTags.forEach((tagName, tagValue) -> tags.add(Tag.of(tagName, tagValue)));
+        this.tags = Tags.of(tags).and("type", "gauge");
+    }
+
+    @Override
+    public void registerMetrics(
+            String poolName,
+            String id,
+            SocketAddress remoteAddress,
+            ConnectionPoolMetrics metrics) {
+        Tags poolTags = tags.and(
+                "poolName", poolName,
+                "remoteAddress", String.valueOf(remoteAddress));
+        registerGauge(".activeConnectionCount", poolTags, metrics, ConnectionPoolMetrics::acquiredSize);
+        registerGauge(".idleConnectionCount", poolTags, metrics, ConnectionPoolMetrics::idleSize);
+        registerGauge(".pendingConnectionCount", poolTags, metrics, ConnectionPoolMetrics::pendingAcquireSize);
+        registerGauge(".allocatedConnectionCount", poolTags, metrics, ConnectionPoolMetrics::allocatedSize);
+    }
+
+    private void registerGauge(
+            String meterNameSuffix,
+            Tags poolTags,
+            ConnectionPoolMetrics metrics,
+            ToDoubleFunction<ConnectionPoolMetrics> valueFunction) {
+        Gauge
+                .builder(meterNamePrefix + meterNameSuffix, metrics, valueFunction)
+                .tags(poolTags)
+                // Keep the metrics reachable, the pool might not hold a reference to them.
+                .strongReference(true)
+                .register(meterRegistry);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+
+        private MeterRegistry meterRegistry;
+
+        private String meterNamePrefix = DEFAULT_METER_NAME_PREFIX;
+
+        private Map<String, String> meterTags = DEFAULT_METER_TAGS;
+
+        private Builder() {}
+
+        public Builder setMeterRegistry(MeterRegistry meterRegistry) {
+            this.meterRegistry = Objects.requireNonNull(meterRegistry, "meterRegistry");
+            return this;
+        }
+
+        public Builder setMeterNamePrefix(String meterNamePrefix) {
+            this.meterNamePrefix = Objects.requireNonNull(meterNamePrefix, "meterNamePrefix");
+            return this;
+        }
+
+        public Builder setMeterTags(Map<String, String> meterTags) {
+            this.meterTags = Objects.requireNonNull(meterTags, "meterTags");
+            return this;
+        }
+
+        public PubsubConnectionPoolMeterRegistrar build() {
+            Objects.requireNonNull(meterRegistry, "meterRegistry");
+            return new PubsubConnectionPoolMeterRegistrar(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+
+/**
+ * Bounds the number and the estimated serialized size of messages in flight.
+ *
+ * <p>A reservation larger than the limits themselves is admitted only when
+ * nothing else is outstanding, so that it can neither starve nor deadlock.
+ */
+public class PubsubFlowController {
+
+    public static final String DEFAULT_METER_NAME_PREFIX = "pubsub.flowController";
+
+    public static final Map<String, String> DEFAULT_METER_TAGS = Collections.emptyMap();
+
+    private final PubsubFlowControllerConfig config;
+
+    private final Queue<Waiter> waiters = new ArrayDeque<>();
+
+    private long outstandingMessageCount = 0;
+
+    private long outstandingByteCount = 0;
+
+    @Nullable
+    private final Counter rejectionCounter;
+
+    private static final class Waiter {
+
+        private final long messageCount;
+
+        private final long byteCount;
+
+        private final MonoSink<Boolean> sink;
+
+        private boolean granted = false;
+
+        private Waiter(long messageCount, long byteCount, MonoSink<Boolean> sink) {
+            this.messageCount = messageCount;
+            this.byteCount = byteCount;
+            this.sink = sink;
+        }
+
+    }
+
+    private PubsubFlowController(Builder builder) {
+        this.config = builder.config;
+        if (builder.meterRegistry == null) {
+            this.rejectionCounter = null;
+        } else {
+            List<Tag> tags = new ArrayList<>();
+            builder.meterTags.forEach((tagName, tagValue) -> tags.add(Tag.of(tagName, tagValue)));
+            String meterNamePrefix = builder.meterNamePrefix;
+            MeterRegistry meterRegistry = builder.meterRegistry;
+            meterRegistry.gauge(
+                    meterNamePrefix + ".outstandingMessageCount",
+                    Tags.of(tags).and("type", "gauge"),
+                    this,
+                    PubsubFlowController::getOutstandingMessageCount);
+            meterRegistry.gauge(
+                    meterNamePrefix + ".outstandingByteCount",
+                    Tags.of(tags).and("type", "gauge"),
+                    this,
+                    PubsubFlowController::getOutstandingByteCount);
+            meterRegistry.gauge(
+                    meterNamePrefix + ".waiterCount",
+                    Tags.of(tags).and("type", "gauge"),
+                    this,
+                    PubsubFlowController::getWaiterCount);
+            this.rejectionCounter = meterRegistry.counter(
+                    meterNamePrefix + ".rejectionCount",
+                    Tags.of(tags).and("type", "counter"));
+        }
+    }
+
+    public PubsubFlowControllerConfig getConfig() {
+        return config;
+    }
+
+    public synchronized long getOutstandingMessageCount() {
+        return outstandingMessageCount;
+    }
+
+    public synchronized long getOutstandingByteCount() {
+        return outstandingByteCount;
+    }
+
+    public synchronized int getWaiterCount() {
+        return waiters.size();
+    }
+
+    /**
+     * Subscribes to the given {@code mono} once the given number of messages
+     * and bytes is reserved, and releases the reservation when the
+     * {@code mono} terminates or gets cancelled.
+     */
+    public <T> Mono<T> control(long messageCount, long byteCount, Mono<T> mono) {
+        Objects.requireNonNull(mono, "mono");
+        validateReservation(messageCount, byteCount);
+        return Mono.usingWhen(
+                reserve(messageCount, byteCount),
+                ignored -> mono,
+                ignored -> Mono.fromRunnable(() -> release(messageCount, byteCount)),
+                (ignored, error) -> Mono.fromRunnable(() -> release(messageCount, byteCount)),
+                ignored -> Mono.fromRunnable(() -> release(messageCount, byteCount)));
+    }
+
+    private static void validateReservation(long messageCount, long byteCount) {
+        if (messageCount < 0 || byteCount < 0) {
+            String message = String.format(
+                    "was expecting non-negative counts (messageCount=%d, byteCount=%d)",
+                    messageCount, byteCount);
+            throw new IllegalArgumentException(message);
+        }
+    }
+
+    private Mono<Boolean> reserve(long messageCount, long byteCount) {
+        switch (config.getLimitExceededBehavior()) {
+            case BLOCK: return Mono.fromCallable(() -> reserveBlocking(messageCount, byteCount));
+            case ERROR: return Mono.fromCallable(() -> reserveOrFail(messageCount, byteCount));
+            case WAIT: return Mono.create(sink -> reserveOrWait(messageCount, byteCount, sink));
+            default: throw new IllegalStateException("unknown limit exceeded behavior");
+        }
+    }
+
+    private synchronized boolean reserveBlocking(long messageCount, long byteCount) throws InterruptedException {
+        // Blocking, e.g., a Netty event loop might deadlock if the very same
+        // thread is expected to deliver the completions releasing capacity.
+        if (Schedulers.isInNonBlockingThread()) {
+            String message = String.format(
+                    "blocking flow control reservation on a non-blocking thread (thread=%s)",
+                    Thread.currentThread().getName());
+            throw new IllegalStateException(message);
+        }
+        while (!fits(messageCount, byteCount)) {
+            wait();
+        }
+        acquire(messageCount, byteCount);
+        return true;
+    }
+
+    private boolean reserveOrFail(long messageCount, long byteCount) {
+        synchronized (this) {
+            if (waiters.isEmpty() && fits(messageCount, byteCount)) {
+                acquire(messageCount, byteCount);
+                return true;
+            }
+        }
+        if (rejectionCounter != null) {
+            rejectionCounter.increment();
+        }
+        String message = String.format(
+                "flow control limits exceeded (messageCount=%d, byteCount=%d, config=%s)",
+                messageCount, byteCount, config);
+        throw new PubsubFlowControlException(message);
+    }
+
+    private void reserveOrWait(long messageCount, long byteCount, MonoSink<Boolean> sink) {
+        Waiter waiter = new Waiter(messageCount, byteCount, sink);
+        synchronized (this) {
+            if (waiters.isEmpty() && fits(messageCount, byteCount)) {
+                acquire(messageCount, byteCount);
+                waiter.granted = true;
+            } else {
+                waiters.offer(waiter);
+            }
+        }
+        if (waiter.granted) {
+            sink.success(true);
+            return;
+        }
+        sink.onCancel(() -> {
+            // The grant might have been dropped by the cancelled sink.
+            boolean granted;
+            synchronized (this) {
+                granted = waiter.granted;
+                if (!granted) {
+                    waiters.remove(waiter);
+                }
+            }
+            if (granted) {
+                release(messageCount, byteCount);
+            } else {
+                grantWaiters();
+            }
+        });
+    }
+
+    private boolean fits(long messageCount, long byteCount) {
+        if (outstandingMessageCount == 0 && outstandingByteCount == 0) {
+            return true;
+        }
+        return outstandingMessageCount + messageCount <= config.getMaxOutstandingMessageCount() &&
+                outstandingByteCount + byteCount <= config.getMaxOutstandingByteCount();
+    }
+
+    private void acquire(long messageCount, long byteCount) {
+        outstandingMessageCount += messageCount;
+        outstandingByteCount += byteCount;
+    }
+
+    private void release(long messageCount, long byteCount) {
+        synchronized (this) {
+            outstandingMessageCount -= messageCount;
+            outstandingByteCount -= byteCount;
+            notifyAll();
+        }
+        grantWaiters();
+    }
+
+    private void grantWaiters() {
+        List<Waiter> grantedWaiters = new ArrayList<>();
+        synchronized (this) {
+            @Nullable Waiter waiter;
+            while ((waiter = waiters.peek()) != null && fits(waiter.messageCount, waiter.byteCount)) {
+                waiters.poll();
+                acquire(waiter.messageCount, waiter.byteCount);
+                waiter.granted = true;
+                grantedWaiters.add(waiter);
+            }
+        }
+        for (Waiter grantedWaiter : grantedWaiters) {
+            grantedWaiter.sink.success(true);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+
+        private PubsubFlowControllerConfig config = PubsubFlowControllerConfig.DEFAULT;
+
+        @Nullable
+        private MeterRegistry meterRegistry;
+
+        private String meterNamePrefix = DEFAULT_METER_NAME_PREFIX;
+
+        private Map<String, String> meterTags = DEFAULT_METER_TAGS;
+
+        private Builder() {}
+
+        public Builder setConfig(PubsubFlowControllerConfig config) {
+            this.config = Objects.requireNonNull(config, "config");
+            return this;
+        }
+
+        public Builder setMeterRegistry(MeterRegistry meterRegistry) {
+            this.meterRegistry = Objects.requireNonNull(meterRegistry, "meterRegistry");
+            return this;
+        }
+
+        public Builder setMeterNamePrefix(String meterNamePrefix) {
+            this.meterNamePrefix = Objects.requireNonNull(meterNamePrefix, "meterNamePrefix");
+            return this;
+        }
+
+        public Builder setMeterTags(Map<String, String> meterTags) {
+            this.meterTags = Objects.requireNonNull(meterTags, "meterTags");
+            return this;
+        }
+
+        public PubsubFlowController build() {
+            Objects.requireNonNull(config, "config");
+            return new PubsubFlowController(this);
+        }
+
+    }
+
+}
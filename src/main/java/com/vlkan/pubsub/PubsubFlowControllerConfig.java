@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import java.util.Objects;
+
+public class PubsubFlowControllerConfig {
+
+    /**
+     * Behaviour when a reservation does not fit into the outstanding limits.
+     */
+    public enum LimitExceededBehavior {
+
+        /**
+         * Blocks the subscribing thread until the reservation fits. Hence,
+         * reservations must not be subscribed on non-blocking threads (e.g.,
+         * Netty event loops or {@code Schedulers.parallel()}), which fail with
+         * an {@link IllegalStateException} instead. Consider {@link #WAIT} or
+         * {@code subscribeOn(Schedulers.boundedElastic())} in such cases.
+         */
+        BLOCK,
+
+        /**
+         * Fails the reservation immediately with {@link PubsubFlowControlException}.
+         */
+        ERROR,
+
+        /**
+         * Delays the reservation without blocking until it fits, serving
+         * waiters in arrival order.
+         */
+        WAIT
+
+    }
+
+    public static final long DEFAULT_MAX_OUTSTANDING_MESSAGE_COUNT = 1_000L;
+
+    public static final long DEFAULT_MAX_OUTSTANDING_BYTE_COUNT = 100_000_000L;
+
+    public static final LimitExceededBehavior DEFAULT_LIMIT_EXCEEDED_BEHAVIOR = LimitExceededBehavior.WAIT;
+
+    public static final PubsubFlowControllerConfig DEFAULT = builder().build();
+
+    private final long maxOutstandingMessageCount;
+
+    private final long maxOutstandingByteCount;
+
+    private final LimitExceededBehavior limitExceededBehavior;
+
+    private PubsubFlowControllerConfig(Builder builder) {
+        this.maxOutstandingMessageCount = builder.maxOutstandingMessageCount;
+        this.maxOutstandingByteCount = builder.maxOutstandingByteCount;
+        this.limitExceededBehavior = builder.limitExceededBehavior;
+    }
+
+    /**
+     * Maximum number of messages that are allowed to be in flight.
+     */
+    public long getMaxOutstandingMessageCount() {
+        return maxOutstandingMessageCount;
+    }
+
+    /**
+     * Maximum estimated serialized size of messages that are allowed to be in
+     * flight.
+     */
+    public long getMaxOutstandingByteCount() {
+        return maxOutstandingByteCount;
+    }
+
+    public LimitExceededBehavior getLimitExceededBehavior() {
+        return limitExceededBehavior;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) return true;
+        if (object == null || getClass() != object.getClass()) return false;
+        PubsubFlowControllerConfig that = (PubsubFlowControllerConfig) object;
+        return maxOutstandingMessageCount == that.maxOutstandingMessageCount &&
+                maxOutstandingByteCount == that.maxOutstandingByteCount &&
+                limitExceededBehavior == that.limitExceededBehavior;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(maxOutstandingMessageCount, maxOutstandingByteCount, limitExceededBehavior);
+    }
+
+    @Override
+    public String toString() {
+        return "PubsubFlowControllerConfig{" +
+                "maxOutstandingMessageCount=" + maxOutstandingMessageCount +
+                ", maxOutstandingByteCount=" + maxOutstandingByteCount +
+                ", limitExceededBehavior=" + limitExceededBehavior +
+                '}';
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+
+        private long maxOutstandingMessageCount = DEFAULT_MAX_OUTSTANDING_MESSAGE_COUNT;
+
+        private long maxOutstandingByteCount = DEFAULT_MAX_OUTSTANDING_BYTE_COUNT;
+
+        private LimitExceededBehavior limitExceededBehavior = DEFAULT_LIMIT_EXCEEDED_BEHAVIOR;
+
+        private Builder() {}
+
+        public Builder setMaxOutstandingMessageCount(long maxOutstandingMessageCount) {
+            if (maxOutstandingMessageCount < 1) {
+                String message = String.format(
+                        "was expecting a positive max. outstanding message count, found %d",
+                        maxOutstandingMessageCount);
+                throw new IllegalArgumentException(message);
+            }
+            this.maxOutstandingMessageCount = maxOutstandingMessageCount;
+            return this;
+        }
+
+        public Builder setMaxOutstandingByteCount(long maxOutstandingByteCount) {
+            if (maxOutstandingByteCount < 1) {
+                String message = String.format(
+                        "was expecting a positive max. outstanding byte count, found %d",
+                        maxOutstandingByteCount);
+                throw new IllegalArgumentException(message);
+            }
+            this.maxOutstandingByteCount = maxOutstandingByteCount;
+            return this;
+        }
+
+        public Builder setLimitExceededBehavior(LimitExceededBehavior limitExceededBehavior) {
+            this.limitExceededBehavior = Objects.requireNonNull(limitExceededBehavior, "limitExceededBehavior");
+            return this;
+        }
+
+        public PubsubFlowControllerConfig build() {
+            return new PubsubFlowControllerConfig(this);
+        }
+
+    }
+
+}
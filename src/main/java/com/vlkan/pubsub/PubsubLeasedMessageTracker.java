@@ -0,0 +1,262 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import com.vlkan.pubsub.model.PubsubReceivedMessage;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks messages received, but not acknowledged yet, to measure the
+ * receive-to-ack delay and the age of the oldest leased message.
+ * <p>
+ * Messages are leased by {@link PubsubPuller} and released by
+ * {@link PubsubAcker}, given both share the tracker. Leases that are never
+ * released (e.g., messages whose ack deadline has expired) are evicted once
+ * they outlive the lease expiration period.
+ */
+public class PubsubLeasedMessageTracker {
+
+    public static final String DEFAULT_METER_NAME_PREFIX = "pubsub.leasedMessageTracker";
+
+    public static final Map<String, String> DEFAULT_METER_TAGS = Collections.emptyMap();
+
+    /**
+     * Defaults to the maximum ack deadline Pub/Sub allows.
+     */
+    public static final Duration DEFAULT_LEASE_EXPIRATION_PERIOD = Duration.ofMinutes(10);
+
+    private static final class Lease {
+
+        private final long publishEpochMillis;
+
+        private final long receiveInstantNanos;
+
+        private Lease(long publishEpochMillis, long receiveInstantNanos) {
+            this.publishEpochMillis = publishEpochMillis;
+            this.receiveInstantNanos = receiveInstantNanos;
+        }
+
+    }
+
+    private final Map<String, Lease> leaseByAckId = new ConcurrentHashMap<>();
+
+    private final long leaseExpirationPeriodNanos;
+
+    private final AtomicLong lastEvictionInstantNanos;
+
+    /**
+     * Publish epoch of the oldest lease, or {@link Long#MAX_VALUE}, if there
+     * are none. Leases only lower it, whereas releasing or evicting the oldest
+     * lease marks it stale, so that the next read rescans the leases.
+     */
+    private final AtomicLong oldestPublishEpochMillis = new AtomicLong(Long.MAX_VALUE);
+
+    private volatile boolean oldestPublishEpochMillisStale = false;
+
+    @Nullable
+    private final Timer receiveToAckDelayTimer;
+
+    private PubsubLeasedMessageTracker(Builder builder) {
+        this.leaseExpirationPeriodNanos = builder.leaseExpirationPeriod.toNanos();
+        this.lastEvictionInstantNanos = new AtomicLong(System.nanoTime());
+        if (builder.meterRegistry == null) {
+            this.receiveToAckDelayTimer = null;
+        } else {
+            List<Tag> tags = new ArrayList<>();
+            builder.meterTags.forEach((tagName, tagValue) -> tags.add(Tag.of(tagName, tagValue)));
+            String meterNamePrefix = builder.meterNamePrefix;
+            MeterRegistry meterRegistry = builder.meterRegistry;
+            this.receiveToAckDelayTimer = meterRegistry.timer(
+                    meterNamePrefix + ".receiveToAckDelay",
+                    Tags.of(tags).and("type", "timer"));
+            meterRegistry.gauge(
+                    meterNamePrefix + ".leasedMessageCount",
+                    Tags.of(tags).and("type", "gauge"),
+                    this,
+                    PubsubLeasedMessageTracker::getLeasedMessageCount);
+            TimeGauge
+                    .builder(
+                            meterNamePrefix + ".oldestLeasedMessageAge",
+                            this,
+                            TimeUnit.MILLISECONDS,
+                            PubsubLeasedMessageTracker::getOldestLeasedMessageAgeMillis)
+                    .tags(Tags.of(tags).and("type", "gauge"))
+                    .register(meterRegistry);
+        }
+    }
+
+    public int getLeasedMessageCount() {
+        return leaseByAckId.size();
+    }
+
+    /**
+     * Returns the time passed since the publication of the oldest leased
+     * message, or zero, if there are none. Leases are only scanned if the
+     * oldest one has been released or evicted since the last read.
+     */
+    public long getOldestLeasedMessageAgeMillis() {
+        evictExpiredLeasesIfNecessary(System.nanoTime());
+        if (oldestPublishEpochMillisStale) {
+            refreshOldestPublishEpochMillis();
+        }
+        long publishEpochMillis = oldestPublishEpochMillis.get();
+        return publishEpochMillis == Long.MAX_VALUE
+                ? 0
+                : Math.max(0, System.currentTimeMillis() - publishEpochMillis);
+    }
+
+    private void refreshOldestPublishEpochMillis() {
+        oldestPublishEpochMillisStale = false;
+        long prevPublishEpochMillis = oldestPublishEpochMillis.get();
+        long nextPublishEpochMillis = Long.MAX_VALUE;
+        for (Lease lease : leaseByAckId.values()) {
+            if (lease.publishEpochMillis < nextPublishEpochMillis) {
+                nextPublishEpochMillis = lease.publishEpochMillis;
+            }
+        }
+        // Concurrent leases might have lowered the value in the meantime.
+        if (!oldestPublishEpochMillis.compareAndSet(prevPublishEpochMillis, nextPublishEpochMillis)) {
+            oldestPublishEpochMillis.accumulateAndGet(nextPublishEpochMillis, Math::min);
+        }
+    }
+
+    private void markOldestPublishEpochMillisStaleIfNecessary(Lease lease) {
+        if (lease.publishEpochMillis <= oldestPublishEpochMillis.get()) {
+            oldestPublishEpochMillisStale = true;
+        }
+    }
+
+    public void lease(List<PubsubReceivedMessage> messages) {
+        Objects.requireNonNull(messages, "messages");
+        long receiveInstantNanos = System.nanoTime();
+        for (PubsubReceivedMessage message : messages) {
+            long publishEpochMillis = message.getPublishInstant().toEpochMilli();
+            Lease lease = new Lease(publishEpochMillis, receiveInstantNanos);
+            @Nullable Lease prevLease = leaseByAckId.put(message.getAckId(), lease);
+            if (prevLease != null) {
+                markOldestPublishEpochMillisStaleIfNecessary(prevLease);
+            }
+            oldestPublishEpochMillis.accumulateAndGet(publishEpochMillis, Math::min);
+        }
+        evictExpiredLeasesIfNecessary(receiveInstantNanos);
+    }
+
+    /**
+     * Releases the leases of the given acknowledged messages, recording
+     * their receive-to-ack delays.
+     */
+    public void release(List<String> ackIds) {
+        Objects.requireNonNull(ackIds, "ackIds");
+        long ackInstantNanos = System.nanoTime();
+        for (String ackId : ackIds) {
+            @Nullable Lease lease = leaseByAckId.remove(ackId);
+            if (lease == null) {
+                continue;
+            }
+            markOldestPublishEpochMillisStaleIfNecessary(lease);
+            if (receiveToAckDelayTimer != null) {
+                long delayNanos = ackInstantNanos - lease.receiveInstantNanos;
+                receiveToAckDelayTimer.record(delayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Evicts expired leases at most once per expiration period, so that the
+     * scan cost is amortized over the leases.
+     */
+    private void evictExpiredLeasesIfNecessary(long instantNanos) {
+        long lastInstantNanos = lastEvictionInstantNanos.get();
+        if (instantNanos - lastInstantNanos >= leaseExpirationPeriodNanos &&
+                lastEvictionInstantNanos.compareAndSet(lastInstantNanos, instantNanos)) {
+            evictExpiredLeases(instantNanos);
+        }
+    }
+
+    private void evictExpiredLeases(long instantNanos) {
+        boolean evicted = leaseByAckId
+                .values()
+                .removeIf(lease -> instantNanos - lease.receiveInstantNanos >= leaseExpirationPeriodNanos);
+        if (evicted) {
+            oldestPublishEpochMillisStale = true;
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+
+        private Duration leaseExpirationPeriod = DEFAULT_LEASE_EXPIRATION_PERIOD;
+
+        @Nullable
+        private MeterRegistry meterRegistry;
+
+        private String meterNamePrefix = DEFAULT_METER_NAME_PREFIX;
+
+        private Map<String, String> meterTags = DEFAULT_METER_TAGS;
+
+        private Builder() {}
+
+        public Builder setLeaseExpirationPeriod(Duration leaseExpirationPeriod) {
+            Objects.requireNonNull(leaseExpirationPeriod, "leaseExpirationPeriod");
+            if (leaseExpirationPeriod.isNegative() || leaseExpirationPeriod.isZero()) {
+                throw new IllegalArgumentException(
+                        "was expecting a non-zero positive lease expiration period");
+            }
+            this.leaseExpirationPeriod = leaseExpirationPeriod;
+            return this;
+        }
+
+        public Builder setMeterRegistry(MeterRegistry meterRegistry) {
+            this.meterRegistry = Objects.requireNonNull(meterRegistry, "meterRegistry");
+            return this;
+        }
+
+        public Builder setMeterNamePrefix(String meterNamePrefix) {
+            this.meterNamePrefix = Objects.requireNonNull(meterNamePrefix, "meterNamePrefix");
+            return this;
+        }
+
+        public Builder setMeterTags(Map<String, String> meterTags) {
+            this.meterTags = Objects.requireNonNull(meterTags, "meterTags");
+            return this;
+        }
+
+        public PubsubLeasedMessageTracker build() {
+            return new PubsubLeasedMessageTracker(this);
+        }
+
+    }
+
+}
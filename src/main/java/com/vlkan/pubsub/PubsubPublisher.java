@@ -16,13 +16,18 @@
 
 package com.vlkan.pubsub;
 
+import com.vlkan.pubsub.codec.PubsubPayloadCodec;
 import com.vlkan.pubsub.model.PubsubDraftedMessage;
 import com.vlkan.pubsub.model.PubsubPublishRequest;
 import com.vlkan.pubsub.model.PubsubPublishResponse;
 import reactor.core.publisher.Mono;
 
+import javax.annotation.Nullable;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 public class PubsubPublisher {
@@ -31,9 +36,13 @@ public class PubsubPublisher {
 
     private final PubsubClient client;
 
+    @Nullable
+    private final PubsubFlowController flowController;
+
     private PubsubPublisher(Builder builder) {
         this.config = builder.config;
         this.client = builder.client;
+        this.flowController = builder.flowController;
     }
 
     public PubsubPublisherConfig getConfig() {
@@ -44,6 +53,11 @@ public class PubsubPublisher {
         return client;
     }
 
+    @Nullable
+    public PubsubFlowController getFlowController() {
+        return flowController;
+    }
+
     public Mono<PubsubPublishResponse> publishMessage(PubsubDraftedMessage message) {
         Objects.requireNonNull(message, "message");
         List<PubsubDraftedMessage> messages = Collections.singletonList(message);
@@ -56,9 +70,71 @@ public class PubsubPublisher {
         return publish(publishRequest);
     }
 
+    /**
+     * Publishes the given request, encoding the payloads beforehand, if
+     * there is a codec configured.
+     */
     public Mono<PubsubPublishResponse> publish(PubsubPublishRequest publishRequest) {
         Objects.requireNonNull(publishRequest, "publishRequest");
-        return client.publish(config.getProjectName(), config.getTopicName(), publishRequest);
+        return config.getPayloadCodec() == null
+                ? publishEncoded(publishRequest)
+                : Mono.defer(() -> publishEncoded(encodePayloads(config.getPayloadCodec(), publishRequest)));
+    }
+
+    private PubsubPublishRequest encodePayloads(PubsubPayloadCodec payloadCodec, PubsubPublishRequest publishRequest) {
+        List<PubsubDraftedMessage> messages = publishRequest.getMessages();
+        @Nullable List<PubsubDraftedMessage> encodedMessages = null;
+        for (int messageIndex = 0; messageIndex < messages.size(); messageIndex++) {
+            PubsubDraftedMessage message = messages.get(messageIndex);
+            PubsubDraftedMessage encodedMessage = encodePayload(payloadCodec, message);
+            if (encodedMessage != message && encodedMessages == null) {
+                encodedMessages = new ArrayList<>(messages.subList(0, messageIndex));
+            }
+            if (encodedMessages != null) {
+                encodedMessages.add(encodedMessage);
+            }
+        }
+        return encodedMessages == null
+                ? publishRequest
+                : new PubsubPublishRequest(encodedMessages);
+    }
+
+    private PubsubDraftedMessage encodePayload(PubsubPayloadCodec payloadCodec, PubsubDraftedMessage message) {
+        Map<String, String> attributes = message.getAttributes();
+        if (attributes.containsKey(PubsubPayloadCodec.ATTRIBUTE_KEY)) {
+            String errorMessage = String.format(
+                    "message contains a reserved attribute (key=%s)",
+                    PubsubPayloadCodec.ATTRIBUTE_KEY);
+            throw new IllegalArgumentException(errorMessage);
+        }
+        if (message.getPayloadLength() < config.getPayloadCodecThreshold()) {
+            return message;
+        }
+        byte[] payload = message.getPayload();
+        // Skip the encoding if it does not pay off the marker attribute.
+        byte[] encodedPayload = payloadCodec.encode(payload);
+        String codecName = payloadCodec.getName();
+        int markerByteCount = PubsubPayloadCodec.ATTRIBUTE_KEY.length() + codecName.length();
+        if (encodedPayload.length + markerByteCount >= payload.length) {
+            return message;
+        }
+        Map<String, String> encodedAttributes = new LinkedHashMap<>(attributes);
+        encodedAttributes.put(PubsubPayloadCodec.ATTRIBUTE_KEY, codecName);
+        return new PubsubDraftedMessage(encodedPayload, encodedAttributes, message.getOrderingKey());
+    }
+
+    private Mono<PubsubPublishResponse> publishEncoded(PubsubPublishRequest publishRequest) {
+        Mono<PubsubPublishResponse> publishResponseMono =
+                client.publish(config.getProjectName(), config.getTopicName(), publishRequest);
+        if (flowController == null) {
+            return publishResponseMono;
+        }
+        List<PubsubDraftedMessage> messages = publishRequest.getMessages();
+        long byteCount = 0;
+        for (PubsubDraftedMessage message : messages) {
+            byteCount += message.estimateSerializedByteCount();
+        }
+        return flowController.control(messages.size(), byteCount, publishResponseMono);
     }
 
     public static Builder builder() {
@@ -71,6 +147,9 @@ public class PubsubPublisher {
 
         private PubsubClient client;
 
+        @Nullable
+        private PubsubFlowController flowController;
+
         private Builder() {}
 
         public Builder setConfig(PubsubPublisherConfig config) {
@@ -83,6 +162,11 @@ public class PubsubPublisher {
             return this;
         }
 
+        public Builder setFlowController(@Nullable PubsubFlowController flowController) {
+            this.flowController = flowController;
+            return this;
+        }
+
         public PubsubPublisher build() {
             Objects.requireNonNull(config, "config");
             if (client == null) {
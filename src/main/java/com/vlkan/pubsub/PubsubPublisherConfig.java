@@ -16,17 +16,29 @@
 
 package com.vlkan.pubsub;
 
+import com.vlkan.pubsub.codec.PubsubPayloadCodec;
+
+import javax.annotation.Nullable;
 import java.util.Objects;
 
 public class PubsubPublisherConfig {
 
+    public static final int DEFAULT_PAYLOAD_CODEC_THRESHOLD = 1024;
+
     private final String projectName;
 
     private final String topicName;
 
+    @Nullable
+    private final PubsubPayloadCodec payloadCodec;
+
+    private final int payloadCodecThreshold;
+
     private PubsubPublisherConfig(Builder builder) {
         this.projectName = builder.projectName;
         this.topicName = builder.topicName;
+        this.payloadCodec = builder.payloadCodec;
+        this.payloadCodecThreshold = builder.payloadCodecThreshold;
     }
 
     public String getProjectName() {
@@ -37,18 +49,36 @@ public class PubsubPublisherConfig {
         return topicName;
     }
 
+    /**
+     * Codec to encode payloads with. {@code null}, if payloads are published
+     * as is.
+     */
+    @Nullable
+    public PubsubPayloadCodec getPayloadCodec() {
+        return payloadCodec;
+    }
+
+    /**
+     * Minimum payload size to get encoded by the codec.
+     */
+    public int getPayloadCodecThreshold() {
+        return payloadCodecThreshold;
+    }
+
     @Override
     public boolean equals(Object object) {
         if (this == object) return true;
         if (object == null || getClass() != object.getClass()) return false;
         PubsubPublisherConfig that = (PubsubPublisherConfig) object;
-        return projectName.equals(that.projectName) &&
-                topicName.equals(that.topicName);
+        return payloadCodecThreshold == that.payloadCodecThreshold &&
+                projectName.equals(that.projectName) &&
+                topicName.equals(that.topicName) &&
+                Objects.equals(payloadCodec, that.payloadCodec);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(projectName, topicName);
+        return Objects.hash(projectName, topicName, payloadCodec, payloadCodecThreshold);
     }
 
     @Override
@@ -56,6 +86,8 @@ public class PubsubPublisherConfig {
         return "PubsubPublisherConfig{" +
                 "projectName='" + projectName + '\'' +
                 ", topicName='" + topicName + '\'' +
+                ", payloadCodec=" + payloadCodec +
+                ", payloadCodecThreshold=" + payloadCodecThreshold +
                 '}';
     }
 
@@ -69,6 +101,11 @@ public class PubsubPublisherConfig {
 
         private String topicName;
 
+        @Nullable
+        private PubsubPayloadCodec payloadCodec;
+
+        private int payloadCodecThreshold = DEFAULT_PAYLOAD_CODEC_THRESHOLD;
+
         private Builder() {}
 
         public Builder setProjectName(String projectName) {
@@ -81,6 +118,22 @@ public class PubsubPublisherConfig {
             return this;
         }
 
+        public Builder setPayloadCodec(@Nullable PubsubPayloadCodec payloadCodec) {
+            this.payloadCodec = payloadCodec;
+            return this;
+        }
+
+        public Builder setPayloadCodecThreshold(int payloadCodecThreshold) {
+            if (payloadCodecThreshold < 1) {
+                String message = String.format(
+                        "was expecting a positive payload codec threshold, found %d",
+                        payloadCodecThreshold);
+                throw new IllegalArgumentException(message);
+            }
+            this.payloadCodecThreshold = payloadCodecThreshold;
+            return this;
+        }
+
         public PubsubPublisherConfig build() {
             Objects.requireNonNull(projectName, "projectName");
             Objects.requireNonNull(topicName, "topicName");
@@ -16,20 +16,45 @@
 
 package com.vlkan.pubsub;
 
+import com.vlkan.pubsub.codec.PubsubPayloadCodec;
 import com.vlkan.pubsub.model.PubsubPullRequest;
 import com.vlkan.pubsub.model.PubsubPullResponse;
+import com.vlkan.pubsub.model.PubsubReceivedMessage;
+import com.vlkan.pubsub.ratelimiter.StagedRateLimiter;
+import com.vlkan.pubsub.util.MicrometerHelpers;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
 import org.reactivestreams.Publisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Scheduler;
 
 import javax.annotation.Nullable;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 public class PubsubPuller {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(PubsubPuller.class);
+
+    public static final String DEFAULT_METER_NAME_PREFIX = "pubsub.puller";
+
+    public static final Map<String, String> DEFAULT_METER_TAGS = Collections.emptyMap();
+
     private final PubsubPullerConfig config;
 
     private final PubsubClient client;
@@ -41,12 +66,57 @@ public class PubsubPuller {
 
     private final PubsubPullRequest pullRequest;
 
+    private final Map<String, PubsubPayloadCodec> payloadCodecByName;
+
+    @Nullable
+    private final StagedRateLimiter stagedRateLimiter;
+
+    @Nullable
+    private final PubsubLeasedMessageTracker leasedMessageTracker;
+
+    @Nullable
+    private final Timer publishToReceiveDelayTimer;
+
+    @Nullable
+    private final AtomicInteger activePullCount;
+
+    @Nullable
+    private final Counter decodingFailureCounter;
+
     private PubsubPuller(Builder builder) {
         this.config = builder.config;
         this.client = builder.client;
         this.scheduler = builder.scheduler;
+        this.stagedRateLimiter = builder.stagedRateLimiter;
+        this.leasedMessageTracker = builder.leasedMessageTracker;
+        if (builder.meterRegistry == null) {
+            this.publishToReceiveDelayTimer = null;
+            this.activePullCount = null;
+            this.decodingFailureCounter = null;
+        } else {
+            List<Tag> tags = new ArrayList<>();
+            builder.meterTags.forEach((tagName, tagValue) -> tags.add(Tag.of(tagName, tagValue)));
+            tags.add(Tag.of("projectName", config.getProjectName()));
+            tags.add(Tag.of("subscriptionName", config.getSubscriptionName()));
+            String meterNamePrefix = builder.meterNamePrefix;
+            MeterRegistry meterRegistry = builder.meterRegistry;
+            this.publishToReceiveDelayTimer = meterRegistry.timer(
+                    meterNamePrefix + ".publishToReceiveDelay",
+                    Tags.of(tags).and("type", "timer"));
+            this.activePullCount = MicrometerHelpers.registerCountGauge(
+                    meterRegistry,
+                    meterNamePrefix + ".activePullCount",
+                    Tags.of(tags).and("type", "gauge"));
+            this.decodingFailureCounter = meterRegistry.counter(
+                    meterNamePrefix + ".decodingFailureCount",
+                    Tags.of(tags).and("type", "counter"));
+        }
         this.immediateReturnEnabled = !Duration.ZERO.equals(config.getPullPeriod());
         this.pullRequest = new PubsubPullRequest(immediateReturnEnabled, config.getPullBufferSize());
+        this.payloadCodecByName = new HashMap<>();
+        for (PubsubPayloadCodec payloadCodec : config.getPayloadCodecs()) {
+            payloadCodecByName.put(payloadCodec.getName(), payloadCodec);
+        }
     }
 
     public PubsubPullerConfig getConfig() {
@@ -62,10 +132,20 @@ public class PubsubPuller {
         return scheduler;
     }
 
+    @Nullable
+    public StagedRateLimiter getStagedRateLimiter() {
+        return stagedRateLimiter;
+    }
+
+    @Nullable
+    public PubsubLeasedMessageTracker getLeasedMessageTracker() {
+        return leasedMessageTracker;
+    }
+
     public Mono<PubsubPullResponse> pullOne() {
-        return client
-                .pull(config.getProjectName(), config.getSubscriptionName(), pullRequest)
+        return pull()
                 .filter(pullResponse -> !pullResponse.getReceivedMessages().isEmpty())
+                .map(this::decodePayloads)
                 .checkpoint("pullOne");
     }
 
@@ -73,14 +153,88 @@ public class PubsubPuller {
         return Flux
                 .range(0, Integer.MAX_VALUE)
                 .flatMap(
-                        ignored -> client
-                                .pull(config.getProjectName(), config.getSubscriptionName(), pullRequest)
+                        ignored -> pull()
                                 .filter(pullResponse -> !pullResponse.getReceivedMessages().isEmpty())
-                                .transform(this::delayEmptyPullsIfNecessary),
+                                .transform(this::delayEmptyPullsIfNecessary)
+                                .map(this::decodePayloads),
                         config.getPullConcurrency())
                 .checkpoint("pullAll");
     }
 
+    /**
+     * Issues a pull request, shaped by the staged rate limiter, if there is
+     * one. Permits are claimed before issuing the request, whose max. message
+     * count is shrunk to the claimed permits, and the ones left unused by a
+     * short response are released. Hence, concurrent pulls never exceed the
+     * budget, and messages exceeding it stay unleased on the server rather
+     * than burning their ack deadlines on the client. Pull failures are not
+     * acknowledged to the limiter, since they do not reflect the health of
+     * the consumer.
+     */
+    private Mono<PubsubPullResponse> pull() {
+        Mono<PubsubPullResponse> pullResponseMono = stagedRateLimiter == null
+                ? client.pull(config.getProjectName(), config.getSubscriptionName(), pullRequest)
+                : claimPullPermits().flatMap(this::pull);
+        if (activePullCount != null) {
+            pullResponseMono = pullResponseMono
+                    .doOnSubscribe(ignored -> activePullCount.incrementAndGet())
+                    .doFinally(ignored -> activePullCount.decrementAndGet());
+        }
+        return publishToReceiveDelayTimer == null && leasedMessageTracker == null
+                ? pullResponseMono
+                : pullResponseMono.doOnNext(this::trackReceivedMessages);
+    }
+
+    private void trackReceivedMessages(PubsubPullResponse pullResponse) {
+        List<PubsubReceivedMessage> messages = pullResponse.getReceivedMessages();
+        if (publishToReceiveDelayTimer != null) {
+            long receiveEpochMillis = System.currentTimeMillis();
+            for (PubsubReceivedMessage message : messages) {
+                long publishEpochMillis = message.getPublishInstant().toEpochMilli();
+                // Clamp negative delays caused by clock skew.
+                long delayMillis = Math.max(0, receiveEpochMillis - publishEpochMillis);
+                publishToReceiveDelayTimer.record(delayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (leasedMessageTracker != null) {
+            leasedMessageTracker.lease(messages);
+        }
+    }
+
+    /**
+     * Claims the permits available for a pull request, waiting for the next
+     * permit, if there are none.
+     */
+    private Mono<StagedRateLimiter.PermitClaim> claimPullPermits() {
+        return Mono.defer(() -> {
+            StagedRateLimiter.PermitClaim permitClaim =
+                    stagedRateLimiter.claimAvailablePermits(pullRequest.getMaxMessageCount());
+            if (permitClaim.getPermitCount() > 0) {
+                return Mono.just(permitClaim);
+            }
+            Duration delay = Duration.ofNanos(permitClaim.getWaitPeriodNanos());
+            Mono<Long> delayMono = scheduler == null
+                    ? Mono.delay(delay)
+                    : Mono.delay(delay, scheduler);
+            return delayMono.then(claimPullPermits());
+        });
+    }
+
+    private Mono<PubsubPullResponse> pull(StagedRateLimiter.PermitClaim permitClaim) {
+        int permitCount = permitClaim.getPermitCount();
+        PubsubPullRequest permittedPullRequest = permitCount < pullRequest.getMaxMessageCount()
+                ? new PubsubPullRequest(immediateReturnEnabled, permitCount)
+                : pullRequest;
+        return client
+                .pull(config.getProjectName(), config.getSubscriptionName(), permittedPullRequest)
+                .doOnSuccess(pullResponse -> {
+                    int messageCount = pullResponse == null ? 0 : pullResponse.getReceivedMessages().size();
+                    int unusedPermitCount = Math.max(0, permitCount - messageCount);
+                    stagedRateLimiter.releasePermits(permitClaim, unusedPermitCount);
+                })
+                .doOnError(ignored -> stagedRateLimiter.releasePermits(permitClaim, permitCount));
+    }
+
     private Mono<PubsubPullResponse> delayEmptyPullsIfNecessary(Mono<PubsubPullResponse> pullResponseMono) {
         if (!immediateReturnEnabled) {
             return pullResponseMono;
@@ -91,6 +245,59 @@ public class PubsubPuller {
         return pullResponseMono.repeatWhenEmpty(repeatFactory);
     }
 
+    private PubsubPullResponse decodePayloads(PubsubPullResponse pullResponse) {
+        if (payloadCodecByName.isEmpty()) {
+            return pullResponse;
+        }
+        List<PubsubReceivedMessage> messages = pullResponse.getReceivedMessages();
+        @Nullable List<PubsubReceivedMessage> decodedMessages = null;
+        for (int messageIndex = 0; messageIndex < messages.size(); messageIndex++) {
+            PubsubReceivedMessage message = messages.get(messageIndex);
+            PubsubReceivedMessage decodedMessage = decodePayload(message);
+            if (decodedMessage != message && decodedMessages == null) {
+                decodedMessages = new ArrayList<>(messages.subList(0, messageIndex));
+            }
+            if (decodedMessages != null) {
+                decodedMessages.add(decodedMessage);
+            }
+        }
+        return decodedMessages == null
+                ? pullResponse
+                : new PubsubPullResponse(decodedMessages);
+    }
+
+    /**
+     * Decodes the payload of the message, if it is marked with a known codec.
+     * Messages failing to decode are passed through as is, so that they do
+     * not block the rest. That is, they keep the encoded payload along with
+     * the {@link PubsubPayloadCodec#ATTRIBUTE_KEY marker attribute}, which
+     * consumers can check to detect them.
+     */
+    private PubsubReceivedMessage decodePayload(PubsubReceivedMessage message) {
+        Map<String, String> attributes = message.getAttributes();
+        @Nullable String codecName = attributes.get(PubsubPayloadCodec.ATTRIBUTE_KEY);
+        if (codecName == null) {
+            return message;
+        }
+        @Nullable PubsubPayloadCodec payloadCodec = payloadCodecByName.get(codecName);
+        if (payloadCodec == null) {
+            return message;
+        }
+        byte[] decodedPayload;
+        try {
+            decodedPayload = payloadCodec.decode(message.getPayload());
+        } catch (RuntimeException error) {
+            LOGGER.warn("payload decoding failure (messageId={}, codecName={})", message.getId(), codecName, error);
+            if (decodingFailureCounter != null) {
+                decodingFailureCounter.increment();
+            }
+            return message;
+        }
+        Map<String, String> decodedAttributes = new LinkedHashMap<>(attributes);
+        decodedAttributes.remove(PubsubPayloadCodec.ATTRIBUTE_KEY);
+        return message.withPayload(decodedPayload, decodedAttributes);
+    }
+
     public static Builder builder() {
         return new Builder();
     }
@@ -104,6 +311,19 @@ public class PubsubPuller {
         @Nullable
         private Scheduler scheduler;
 
+        @Nullable
+        private StagedRateLimiter stagedRateLimiter;
+
+        @Nullable
+        private PubsubLeasedMessageTracker leasedMessageTracker;
+
+        @Nullable
+        private MeterRegistry meterRegistry;
+
+        private String meterNamePrefix = DEFAULT_METER_NAME_PREFIX;
+
+        private Map<String, String> meterTags = DEFAULT_METER_TAGS;
+
         private Builder() {}
 
         public Builder setConfig(PubsubPullerConfig config) {
@@ -121,6 +341,40 @@ public class PubsubPuller {
             return this;
         }
 
+        /**
+         * Sets the rate limiter shaping the demand of pull requests, i.e.,
+         * pull requests get delayed until the messages of earlier ones are
+         * within the budget.
+         */
+        public Builder setStagedRateLimiter(@Nullable StagedRateLimiter stagedRateLimiter) {
+            this.stagedRateLimiter = stagedRateLimiter;
+            return this;
+        }
+
+        /**
+         * Sets the tracker to lease received messages, which are expected to
+         * be released by a {@link PubsubAcker} sharing the same tracker.
+         */
+        public Builder setLeasedMessageTracker(@Nullable PubsubLeasedMessageTracker leasedMessageTracker) {
+            this.leasedMessageTracker = leasedMessageTracker;
+            return this;
+        }
+
+        public Builder setMeterRegistry(MeterRegistry meterRegistry) {
+            this.meterRegistry = Objects.requireNonNull(meterRegistry, "meterRegistry");
+            return this;
+        }
+
+        public Builder setMeterNamePrefix(String meterNamePrefix) {
+            this.meterNamePrefix = Objects.requireNonNull(meterNamePrefix, "meterNamePrefix");
+            return this;
+        }
+
+        public Builder setMeterTags(Map<String, String> meterTags) {
+            this.meterTags = Objects.requireNonNull(meterTags, "meterTags");
+            return this;
+        }
+
         public PubsubPuller build() {
             Objects.requireNonNull(config, "config");
             if (client == null) {
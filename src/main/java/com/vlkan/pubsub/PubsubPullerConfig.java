@@ -16,7 +16,12 @@
 
 package com.vlkan.pubsub;
 
+import com.vlkan.pubsub.codec.PubsubDeflatePayloadCodec;
+import com.vlkan.pubsub.codec.PubsubPayloadCodec;
+
 import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 
 public class PubsubPullerConfig {
@@ -27,6 +32,9 @@ public class PubsubPullerConfig {
 
     public static final int DEFAULT_PULL_CONCURRENCY = Runtime.getRuntime().availableProcessors() * 2 + 1;
 
+    public static final List<PubsubPayloadCodec> DEFAULT_PAYLOAD_CODECS =
+            Collections.singletonList(PubsubDeflatePayloadCodec.getDefaultInstance());
+
     private final int pullBufferSize;
 
     private final Duration pullPeriod;
@@ -37,12 +45,15 @@ public class PubsubPullerConfig {
 
     private final String subscriptionName;
 
+    private final List<PubsubPayloadCodec> payloadCodecs;
+
     private PubsubPullerConfig(Builder builder) {
         this.pullBufferSize = builder.pullBufferSize;
         this.pullPeriod = builder.pullPeriod;
         this.pullConcurrency = builder.pullConcurrency;
         this.projectName = builder.projectName;
         this.subscriptionName = builder.subscriptionName;
+        this.payloadCodecs = builder.payloadCodecs;
     }
 
     public int getPullBufferSize() {
@@ -65,6 +76,14 @@ public class PubsubPullerConfig {
         return subscriptionName;
     }
 
+    /**
+     * Codecs to decode the payloads of the messages marked by the
+     * {@link PubsubPayloadCodec#ATTRIBUTE_KEY} attribute with.
+     */
+    public List<PubsubPayloadCodec> getPayloadCodecs() {
+        return payloadCodecs;
+    }
+
     @Override
     public boolean equals(Object object) {
         if (this == object) return true;
@@ -74,7 +93,8 @@ public class PubsubPullerConfig {
                 pullConcurrency == that.pullConcurrency &&
                 pullPeriod.equals(that.pullPeriod) &&
                 projectName.equals(that.projectName) &&
-                subscriptionName.equals(that.subscriptionName);
+                subscriptionName.equals(that.subscriptionName) &&
+                payloadCodecs.equals(that.payloadCodecs);
     }
 
     @Override
@@ -84,7 +104,8 @@ public class PubsubPullerConfig {
                 pullConcurrency,
                 pullPeriod,
                 projectName,
-                subscriptionName);
+                subscriptionName,
+                payloadCodecs);
     }
 
     @Override
@@ -92,6 +113,7 @@ public class PubsubPullerConfig {
         return "PubsubPullerConfig{" +
                 "projectName='" + projectName + '\'' +
                 ", subscriptionName='" + subscriptionName + '\'' +
+                ", payloadCodecs=" + payloadCodecs +
                 '}';
     }
 
@@ -111,6 +133,8 @@ public class PubsubPullerConfig {
 
         private String subscriptionName;
 
+        private List<PubsubPayloadCodec> payloadCodecs = DEFAULT_PAYLOAD_CODECS;
+
         private Builder() {}
 
         public Builder setPullBufferSize(int pullBufferSize) {
@@ -146,6 +170,11 @@ public class PubsubPullerConfig {
             return this;
         }
 
+        public Builder setPayloadCodecs(List<PubsubPayloadCodec> payloadCodecs) {
+            this.payloadCodecs = Objects.requireNonNull(payloadCodecs, "payloadCodecs");
+            return this;
+        }
+
         public PubsubPullerConfig build() {
             Objects.requireNonNull(projectName, "projectName");
             Objects.requireNonNull(subscriptionName, "subscriptionName");
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+/**
+ * Thrown when Pub/Sub responds with a non-2xx status.
+ */
+public class PubsubResponseException extends RuntimeException {
+
+    private static final long serialVersionUID = 0L;
+
+    private final int statusCode;
+
+    PubsubResponseException(String message, int statusCode) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Indicates if the failed request is worth retrying, that is, the status
+     * is either 429 (Too Many Requests) or 5xx.
+     */
+    public boolean isRetryable() {
+        return statusCode == 429 || statusCode / 100 == 5;
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.ServiceAccountCredentials;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Issues JWTs signed by the private key of a service account to be used as
+ * access tokens, i.e., without an OAuth2 token exchange.
+ */
+final class PubsubSelfSignedJwtIssuer {
+
+    static final Duration TOKEN_LIFETIME = Duration.ofHours(1);
+
+    private static final Base64.Encoder BASE64_ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private final ObjectMapper objectMapper;
+
+    private final String clientEmail;
+
+    private final PrivateKey privateKey;
+
+    private final String audience;
+
+    private final String encodedHeader;
+
+    PubsubSelfSignedJwtIssuer(ObjectMapper objectMapper, ServiceAccountCredentials credentials, String audience) {
+        this.objectMapper = Objects.requireNonNull(objectMapper, "objectMapper");
+        Objects.requireNonNull(credentials, "credentials");
+        this.clientEmail = Objects.requireNonNull(credentials.getClientEmail(), "clientEmail");
+        this.privateKey = Objects.requireNonNull(credentials.getPrivateKey(), "privateKey");
+        this.audience = Objects.requireNonNull(audience, "audience");
+        this.encodedHeader = encodeHeader(credentials.getPrivateKeyId());
+    }
+
+    private String encodeHeader(@Nullable String privateKeyId) {
+        Map<String, Object> header = new LinkedHashMap<>();
+        header.put("alg", "RS256");
+        header.put("typ", "JWT");
+        if (privateKeyId != null) {
+            header.put("kid", privateKeyId);
+        }
+        return encodeJson(header);
+    }
+
+    AccessToken issue() {
+        long issueInstantSeconds = System.currentTimeMillis() / 1_000L;
+        long expirationInstantSeconds = issueInstantSeconds + TOKEN_LIFETIME.getSeconds();
+        Map<String, Object> claims = new LinkedHashMap<>();
+        claims.put("iss", clientEmail);
+        claims.put("sub", clientEmail);
+        claims.put("aud", audience);
+        claims.put("iat", issueInstantSeconds);
+        claims.put("exp", expirationInstantSeconds);
+        String content = encodedHeader + '.' + encodeJson(claims);
+        String signature = sign(content);
+        Date expirationTime = new Date(expirationInstantSeconds * 1_000L);
+        return new AccessToken(content + '.' + signature, expirationTime);
+    }
+
+    private String encodeJson(Map<String, Object> object) {
+        try {
+            byte[] bytes = objectMapper.writeValueAsBytes(object);
+            return BASE64_ENCODER.encodeToString(bytes);
+        } catch (JsonProcessingException error) {
+            throw new RuntimeException("JWT serialization failure", error);
+        }
+    }
+
+    private String sign(String content) {
+        try {
+            Signature signature = Signature.getInstance("SHA256withRSA");
+            signature.initSign(privateKey);
+            signature.update(content.getBytes(StandardCharsets.US_ASCII));
+            return BASE64_ENCODER.encodeToString(signature.sign());
+        } catch (GeneralSecurityException error) {
+            throw new RuntimeException("JWT signing failure", error);
+        }
+    }
+
+}
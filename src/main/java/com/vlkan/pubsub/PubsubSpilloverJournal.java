@@ -0,0 +1,558 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import com.vlkan.pubsub.model.PubsubDraftedMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of drafted messages stored in memory-mapped segment
+ * files along with a checkpoint file denoting the position of the first
+ * unconsumed record.
+ *
+ * <p>A record consists of its length, its CRC32 checksum, and the binary
+ * encoded message. The length is written last, hence a record interrupted
+ * by a crash reads as the end of the segment. Upon opening, segments are
+ * scanned from the checkpoint on to recover the write position. Records are
+ * consumed at least once: a crash between a publish and its checkpoint
+ * causes the same records to be read again.
+ *
+ * <p>Mapped buffers are flushed to the disk upon segment roll-over and
+ * close, which suffices to survive process restarts, but not necessarily
+ * operating system crashes.
+ *
+ * <p>The directory is exclusively locked while the journal is open, hence
+ * a second journal, either in the same or in another process, fails to
+ * open the same directory.
+ */
+final class PubsubSpilloverJournal implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PubsubSpilloverJournal.class);
+
+    private static final String LOCK_FILE_NAME = "lock";
+
+    private static final String CHECKPOINT_FILE_NAME = "checkpoint";
+
+    private static final String CHECKPOINT_TEMP_FILE_NAME = "checkpoint.tmp";
+
+    private static final Pattern SEGMENT_FILE_NAME_PATTERN = Pattern.compile("^segment-(\\d{20})\\.journal$");
+
+    private static final int RECORD_HEADER_BYTE_COUNT = 8;
+
+    private static final int CHECKPOINT_BYTE_COUNT = 16;
+
+    private static final byte RECORD_FORMAT_VERSION = 1;
+
+    static final class Position {
+
+        private final long segmentIndex;
+
+        private final int offset;
+
+        private Position(long segmentIndex, int offset) {
+            this.segmentIndex = segmentIndex;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (this == object) return true;
+            if (object == null || getClass() != object.getClass()) return false;
+            Position that = (Position) object;
+            return segmentIndex == that.segmentIndex &&
+                    offset == that.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(segmentIndex, offset);
+        }
+
+        @Override
+        public String toString() {
+            return "Position{" +
+                    "segmentIndex=" + segmentIndex +
+                    ", offset=" + offset +
+                    '}';
+        }
+
+    }
+
+    static final class Batch {
+
+        private final List<PubsubDraftedMessage> messages;
+
+        private final Position endPosition;
+
+        private Batch(List<PubsubDraftedMessage> messages, Position endPosition) {
+            this.messages = messages;
+            this.endPosition = endPosition;
+        }
+
+        List<PubsubDraftedMessage> getMessages() {
+            return messages;
+        }
+
+    }
+
+    private static final class Segment {
+
+        private final long index;
+
+        private final Path path;
+
+        private final MappedByteBuffer buffer;
+
+        /**
+         * Offset right after the last complete record.
+         */
+        private int limit;
+
+        private Segment(long index, Path path, MappedByteBuffer buffer) {
+            this.index = index;
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+    }
+
+    private final Path directory;
+
+    private final int segmentByteCount;
+
+    /**
+     * Channel of the lock file, whose closure releases the directory lock.
+     */
+    private final FileChannel lockFileChannel;
+
+    private final TreeMap<Long, Segment> segmentByIndex = new TreeMap<>();
+
+    private Position checkpointPosition;
+
+    private volatile long pendingMessageCount = 0;
+
+    private boolean closed = false;
+
+    PubsubSpilloverJournal(Path directory, int segmentByteCount) throws IOException {
+        this.directory = Objects.requireNonNull(directory, "directory");
+        this.segmentByteCount = segmentByteCount;
+        Files.createDirectories(directory);
+        this.lockFileChannel = lockDirectory(directory);
+        try {
+            recover();
+        } catch (IOException | RuntimeException error) {
+            close();
+            throw error;
+        }
+    }
+
+    private static FileChannel lockDirectory(Path directory) throws IOException {
+        Path lockFilePath = directory.resolve(LOCK_FILE_NAME);
+        FileChannel lockFileChannel =
+                FileChannel.open(lockFilePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        @Nullable FileLock lock;
+        try {
+            lock = lockFileChannel.tryLock();
+        } catch (OverlappingFileLockException ignored) {
+            // Locked by another journal of this process.
+            lock = null;
+        } catch (IOException | RuntimeException error) {
+            lockFileChannel.close();
+            throw error;
+        }
+        if (lock == null) {
+            lockFileChannel.close();
+            String message = String.format(
+                    "spillover journal directory is locked by another journal (directory=%s)",
+                    directory);
+            throw new IOException(message);
+        }
+        return lockFileChannel;
+    }
+
+    private void recover() throws IOException {
+
+        // Determine the first unconsumed position.
+        TreeSet<Long> segmentIndices = findSegmentIndices();
+        @Nullable Position checkpointPosition = readCheckpoint();
+        if (checkpointPosition == null || !segmentIndices.contains(checkpointPosition.segmentIndex)) {
+            long segmentIndex = segmentIndices.isEmpty()
+                    ? checkpointPosition != null ? checkpointPosition.segmentIndex : 0L
+                    : segmentIndices.first();
+            checkpointPosition = new Position(segmentIndex, 0);
+        }
+
+        // Delete consumed segments.
+        for (Long segmentIndex : segmentIndices.headSet(checkpointPosition.segmentIndex)) {
+            Files.delete(getSegmentPath(segmentIndex));
+        }
+
+        // Map the rest and count the unconsumed records.
+        for (Long segmentIndex : segmentIndices.tailSet(checkpointPosition.segmentIndex)) {
+            Segment segment = mapSegment(segmentIndex, -1);
+            segmentByIndex.put(segmentIndex, segment);
+            int startOffset = segmentIndex == checkpointPosition.segmentIndex
+                    ? checkpointPosition.offset
+                    : 0;
+            pendingMessageCount += scanSegment(segment, startOffset);
+        }
+        if (segmentByIndex.isEmpty()) {
+            Segment segment = mapSegment(checkpointPosition.segmentIndex, segmentByteCount);
+            segmentByIndex.put(segment.index, segment);
+        }
+        Segment firstSegment = segmentByIndex.firstEntry().getValue();
+        if (checkpointPosition.offset > firstSegment.limit) {
+            checkpointPosition = new Position(checkpointPosition.segmentIndex, firstSegment.limit);
+        }
+        this.checkpointPosition = checkpointPosition;
+
+        // Clear the leftovers of an interrupted write.
+        Segment lastSegment = segmentByIndex.lastEntry().getValue();
+        int capacity = lastSegment.buffer.capacity();
+        for (int offset = lastSegment.limit; offset < capacity; offset++) {
+            lastSegment.buffer.put(offset, (byte) 0);
+        }
+
+        if (pendingMessageCount > 0) {
+            LOGGER.info(
+                    "recovered spillover journal (directory={}, pendingMessageCount={})",
+                    directory, pendingMessageCount);
+        }
+
+    }
+
+    private TreeSet<Long> findSegmentIndices() throws IOException {
+        TreeSet<Long> segmentIndices = new TreeSet<>();
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory)) {
+            for (Path path : paths) {
+                Matcher matcher = SEGMENT_FILE_NAME_PATTERN.matcher(path.getFileName().toString());
+                if (matcher.matches()) {
+                    segmentIndices.add(Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        return segmentIndices;
+    }
+
+    private Path getSegmentPath(long segmentIndex) {
+        String fileName = String.format("segment-%020d.journal", segmentIndex);
+        return directory.resolve(fileName);
+    }
+
+    /**
+     * Maps the segment file with the given index, creating one with the given
+     * capacity, if necessary.
+     */
+    private Segment mapSegment(long segmentIndex, int capacity) throws IOException {
+        Path path = getSegmentPath(segmentIndex);
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            if (capacity > 0) {
+                file.setLength(capacity);
+            }
+            FileChannel channel = file.getChannel();
+            long byteCount = channel.size();
+            if (byteCount > Integer.MAX_VALUE) {
+                String message = String.format(
+                        "segment is too large (path=%s, byteCount=%d)", path, byteCount);
+                throw new IOException(message);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, byteCount);
+            // The mapping stays valid after the channel is closed.
+            return new Segment(segmentIndex, path, buffer);
+        }
+    }
+
+    /**
+     * Advances the limit of the segment over the valid records.
+     *
+     * @return number of records found after the given offset
+     */
+    private static long scanSegment(Segment segment, int startOffset) {
+        ByteBuffer buffer = segment.buffer;
+        int capacity = buffer.capacity();
+        int offset = 0;
+        long recordCount = 0;
+        while (offset + RECORD_HEADER_BYTE_COUNT <= capacity) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || length > capacity - offset - RECORD_HEADER_BYTE_COUNT) {
+                break;
+            }
+            int checksum = buffer.getInt(offset + 4);
+            byte[] bytes = readBytes(buffer, offset + RECORD_HEADER_BYTE_COUNT, length);
+            if (checksum != computeChecksum(bytes)) {
+                LOGGER.warn(
+                        "truncating corrupt spillover journal segment (path={}, offset={})",
+                        segment.path, offset);
+                break;
+            }
+            if (offset >= startOffset) {
+                recordCount++;
+            }
+            offset += RECORD_HEADER_BYTE_COUNT + length;
+        }
+        segment.limit = offset;
+        return recordCount;
+    }
+
+    long getPendingMessageCount() {
+        return pendingMessageCount;
+    }
+
+    synchronized void append(List<PubsubDraftedMessage> messages) throws IOException {
+        ensureOpen();
+        for (PubsubDraftedMessage message : messages) {
+            byte[] bytes = encodeMessage(message);
+            appendRecord(bytes);
+            pendingMessageCount++;
+        }
+    }
+
+    private void appendRecord(byte[] bytes) throws IOException {
+
+        // Roll over the segment, if necessary.
+        Segment segment = segmentByIndex.lastEntry().getValue();
+        int recordByteCount = RECORD_HEADER_BYTE_COUNT + bytes.length;
+        if (recordByteCount > segment.buffer.capacity() - segment.limit) {
+            segment.buffer.force();
+            int capacity = Math.max(segmentByteCount, recordByteCount);
+            segment = mapSegment(segment.index + 1, capacity);
+            segmentByIndex.put(segment.index, segment);
+        }
+
+        // Write the length last to make the record visible in one go.
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(segment.limit + 4);
+        buffer.putInt(computeChecksum(bytes));
+        buffer.put(bytes);
+        buffer.putInt(segment.limit, bytes.length);
+        segment.limit += recordByteCount;
+
+    }
+
+    /**
+     * Reads the unconsumed records from the checkpoint on.
+     */
+    synchronized Batch read(int maxMessageCount, long maxByteCount) {
+        ensureOpen();
+        List<PubsubDraftedMessage> messages = new ArrayList<>();
+        long byteCount = 0;
+        Segment segment = segmentByIndex.get(checkpointPosition.segmentIndex);
+        int offset = checkpointPosition.offset;
+        while (messages.size() < maxMessageCount) {
+
+            // Move to the next segment, if necessary.
+            if (offset >= segment.limit) {
+                Map.Entry<Long, Segment> nextEntry = segmentByIndex.higherEntry(segment.index);
+                if (nextEntry == null) {
+                    break;
+                }
+                segment = nextEntry.getValue();
+                offset = 0;
+                continue;
+            }
+
+            // Read the message.
+            int length = segment.buffer.getInt(offset);
+            byte[] bytes = readBytes(segment.buffer, offset + RECORD_HEADER_BYTE_COUNT, length);
+            PubsubDraftedMessage message = decodeMessage(bytes);
+            long messageByteCount = message.estimateSerializedByteCount();
+            if (!messages.isEmpty() && byteCount + messageByteCount > maxByteCount) {
+                break;
+            }
+            messages.add(message);
+            byteCount += messageByteCount;
+            offset += RECORD_HEADER_BYTE_COUNT + length;
+
+        }
+        Position endPosition = new Position(segment.index, offset);
+        return new Batch(messages, endPosition);
+    }
+
+    /**
+     * Marks the records of the given batch as consumed and deletes the
+     * segments left behind.
+     */
+    synchronized void commit(Batch batch) throws IOException {
+        ensureOpen();
+        writeCheckpoint(batch.endPosition);
+        checkpointPosition = batch.endPosition;
+        pendingMessageCount -= batch.messages.size();
+        Map.Entry<Long, Segment> firstEntry;
+        while ((firstEntry = segmentByIndex.firstEntry()).getKey() < checkpointPosition.segmentIndex) {
+            Segment segment = firstEntry.getValue();
+            segmentByIndex.remove(segment.index);
+            // There is no portable way to unmap the buffer, the GC takes care of it.
+            Files.delete(segment.path);
+        }
+    }
+
+    @Nullable
+    private Position readCheckpoint() throws IOException {
+        Path path = directory.resolve(CHECKPOINT_FILE_NAME);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        byte[] bytes = Files.readAllBytes(path);
+        if (bytes.length != CHECKPOINT_BYTE_COUNT) {
+            LOGGER.warn("ignoring malformed spillover journal checkpoint (path={})", path);
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long segmentIndex = buffer.getLong();
+        int offset = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (checksum != computeChecksum(readBytes(buffer, 0, CHECKPOINT_BYTE_COUNT - 4))) {
+            LOGGER.warn("ignoring corrupt spillover journal checkpoint (path={})", path);
+            return null;
+        }
+        return new Position(segmentIndex, offset);
+    }
+
+    private void writeCheckpoint(Position position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_BYTE_COUNT);
+        buffer.putLong(position.segmentIndex);
+        buffer.putInt(position.offset);
+        buffer.putInt(computeChecksum(readBytes(buffer, 0, CHECKPOINT_BYTE_COUNT - 4)));
+        buffer.flip();
+        Path tempPath = directory.resolve(CHECKPOINT_TEMP_FILE_NAME);
+        try (RandomAccessFile file = new RandomAccessFile(tempPath.toFile(), "rw")) {
+            file.setLength(0);
+            file.getChannel().write(buffer);
+            file.getChannel().force(true);
+        }
+        Path path = directory.resolve(CHECKPOINT_FILE_NAME);
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("journal is closed");
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Segment segment : segmentByIndex.values()) {
+            segment.buffer.force();
+        }
+        segmentByIndex.clear();
+        try {
+            lockFileChannel.close();
+        } catch (IOException error) {
+            LOGGER.warn("failed releasing the spillover journal lock (directory={})", directory, error);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.get(bytes);
+        return bytes;
+    }
+
+    private static int computeChecksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    static byte[] encodeMessage(PubsubDraftedMessage message) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (DataOutputStream dataOutputStream = new DataOutputStream(outputStream)) {
+            dataOutputStream.writeByte(RECORD_FORMAT_VERSION);
+            byte[] payload = message.getPayload();
+            dataOutputStream.writeInt(payload.length);
+            dataOutputStream.write(payload);
+            Map<String, String> attributes = message.getAttributes();
+            dataOutputStream.writeInt(attributes.size());
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                dataOutputStream.writeUTF(attribute.getKey());
+                dataOutputStream.writeUTF(attribute.getValue());
+            }
+            @Nullable String orderingKey = message.getOrderingKey();
+            dataOutputStream.writeBoolean(orderingKey != null);
+            if (orderingKey != null) {
+                dataOutputStream.writeUTF(orderingKey);
+            }
+        } catch (IOException error) {
+            throw new RuntimeException("message encoding failure", error);
+        }
+        return outputStream.toByteArray();
+    }
+
+    static PubsubDraftedMessage decodeMessage(byte[] bytes) {
+        try (DataInputStream dataInputStream = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            byte formatVersion = dataInputStream.readByte();
+            if (formatVersion != RECORD_FORMAT_VERSION) {
+                String message = String.format("unknown record format (formatVersion=%d)", formatVersion);
+                throw new IllegalStateException(message);
+            }
+            byte[] payload = new byte[dataInputStream.readInt()];
+            dataInputStream.readFully(payload);
+            int attributeCount = dataInputStream.readInt();
+            Map<String, String> attributes = attributeCount == 0
+                    ? Collections.emptyMap()
+                    : new LinkedHashMap<>(attributeCount);
+            for (int attributeIndex = 0; attributeIndex < attributeCount; attributeIndex++) {
+                String key = dataInputStream.readUTF();
+                String value = dataInputStream.readUTF();
+                attributes.put(key, value);
+            }
+            @Nullable String orderingKey = dataInputStream.readBoolean() ? dataInputStream.readUTF() : null;
+            return new PubsubDraftedMessage(payload, attributes, orderingKey);
+        } catch (IOException error) {
+            throw new RuntimeException("message decoding failure", error);
+        }
+    }
+
+}
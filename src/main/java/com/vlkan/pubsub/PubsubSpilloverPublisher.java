@@ -0,0 +1,433 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import com.vlkan.pubsub.model.PubsubDraftedMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.netty.channel.ChannelException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A publisher spilling messages over to a journal on the local disk rather
+ * than holding them in memory when Pub/Sub falls behind. Messages get
+ * journaled if the estimated byte count of direct publishes in flight
+ * exceeds the configured threshold, if their direct publish fails with a
+ * retryable error (see {@link #isRetryable(Throwable)}), or if the journal is
+ * not drained yet. Direct publishes failing with a permanent error fail the
+ * returned {@link Mono}. A background drain publishes the journaled messages
+ * in large batches and retries periodically until Pub/Sub recovers. If a
+ * batch fails with a permanent error, its messages are published one by one
+ * and the ones failing permanently are dropped. Messages journaled by a
+ * previous process are drained upon creation.
+ *
+ * <p>Journaled messages are published at least once and not necessarily in
+ * the order of their ordering keys.
+ */
+public class PubsubSpilloverPublisher implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PubsubSpilloverPublisher.class);
+
+    public static final String DEFAULT_METER_NAME_PREFIX = "pubsub.spilloverPublisher";
+
+    public static final Map<String, String> DEFAULT_METER_TAGS = Collections.emptyMap();
+
+    private final PubsubSpilloverPublisherConfig config;
+
+    private final PubsubPublisher publisher;
+
+    @Nullable
+    private final Scheduler scheduler;
+
+    /**
+     * Scheduler performing the blocking journal I/O, so that it never runs
+     * on the event loops delivering publish responses.
+     */
+    private final Scheduler journalScheduler;
+
+    private final PubsubSpilloverJournal journal;
+
+    private final AtomicLong outstandingByteCount = new AtomicLong(0);
+
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    /**
+     * Number of journaled messages to be drained one by one to isolate the
+     * ones failing permanently. Only accessed by the (single) drain in flight.
+     */
+    private volatile int isolatedMessageCount = 0;
+
+    @Nullable
+    private final Counter droppedMessageCounter;
+
+    private volatile boolean closed = false;
+
+    private PubsubSpilloverPublisher(Builder builder) {
+        this.config = builder.config;
+        this.publisher = builder.publisher;
+        this.scheduler = builder.scheduler;
+        this.journalScheduler = scheduler != null ? scheduler : Schedulers.boundedElastic();
+        if (builder.meterRegistry == null) {
+            this.droppedMessageCounter = null;
+        } else {
+            List<Tag> tags = new ArrayList<>();
+            builder.meterTags.forEach((tagName, tagValue) -> tags.add(Tag.of(tagName, tagValue)));
+            this.droppedMessageCounter = builder.meterRegistry.counter(
+                    builder.meterNamePrefix + ".droppedMessageCount",
+                    Tags.of(tags).and("type", "counter"));
+        }
+        try {
+            this.journal = new PubsubSpilloverJournal(config.getJournalDirectory(), config.getSegmentByteCount());
+        } catch (IOException error) {
+            String message = String.format(
+                    "failed opening the spillover journal (journalDirectory=%s)",
+                    config.getJournalDirectory());
+            throw new RuntimeException(message, error);
+        }
+        drain();
+    }
+
+    public PubsubSpilloverPublisherConfig getConfig() {
+        return config;
+    }
+
+    public PubsubPublisher getPublisher() {
+        return publisher;
+    }
+
+    @Nullable
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Number of journaled messages waiting to be published.
+     */
+    public long getPendingMessageCount() {
+        return journal.getPendingMessageCount();
+    }
+
+    public Mono<Void> publishMessage(PubsubDraftedMessage message) {
+        Objects.requireNonNull(message, "message");
+        List<PubsubDraftedMessage> messages = Collections.singletonList(message);
+        return publishMessages(messages);
+    }
+
+    /**
+     * Publishes the given messages either directly or via the journal.
+     *
+     * @return a {@link Mono} completing once the messages are either published
+     *         or journaled
+     */
+    public Mono<Void> publishMessages(List<PubsubDraftedMessage> messages) {
+        Objects.requireNonNull(messages, "messages");
+        return Mono
+                .defer(() -> {
+
+                    // Keep on spilling until the journal is drained.
+                    if (journal.getPendingMessageCount() > 0) {
+                        return spill(messages);
+                    }
+
+                    // Spill, if direct publishes are falling behind.
+                    long byteCount = 0;
+                    for (PubsubDraftedMessage message : messages) {
+                        byteCount += message.estimateSerializedByteCount();
+                    }
+                    long lastByteCount = byteCount;
+                    if (outstandingByteCount.addAndGet(byteCount) > config.getSpilloverByteCount()) {
+                        outstandingByteCount.addAndGet(-byteCount);
+                        return spill(messages);
+                    }
+
+                    // Publish directly and spill on retryable failures.
+                    return publisher
+                            .publishMessages(messages)
+                            .doFinally(ignored -> outstandingByteCount.addAndGet(-lastByteCount))
+                            .then()
+                            .onErrorResume(PubsubSpilloverPublisher::isRetryable, error -> {
+                                LOGGER.debug("spilling over failed publish (messageCount={})", messages.size(), error);
+                                return spill(messages);
+                            });
+
+                })
+                .checkpoint("publishMessages");
+    }
+
+    /**
+     * Indicates if the given publish failure is transient, that is, either an
+     * IO error, a timeout, a flow control rejection, or a Pub/Sub response
+     * with status 429 or 5xx. Other failures (e.g., 400, 403, 404, or invalid
+     * messages) are considered to be permanent.
+     */
+    static boolean isRetryable(Throwable error) {
+        for (@Nullable Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof PubsubResponseException) {
+                return ((PubsubResponseException) cause).isRetryable();
+            }
+            if (cause instanceof IOException ||
+                    cause instanceof TimeoutException ||
+                    cause instanceof ChannelException ||
+                    cause instanceof PubsubFlowControlException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Mono<Void> spill(List<PubsubDraftedMessage> messages) {
+        return Mono
+                .fromCallable(() -> {
+                    journal.append(messages);
+                    return messages.size();
+                })
+                .subscribeOn(journalScheduler)
+                .doOnSuccess(ignored -> drain())
+                .then();
+    }
+
+    /**
+     * Publishes the next batch from the journal, unless there is one already
+     * in flight or waiting for a retry. The batch is read on the journal
+     * scheduler.
+     */
+    private void drain() {
+        if (closed || !draining.compareAndSet(false, true)) {
+            return;
+        }
+        if (!scheduleJournalTask(this::drainNext, 0)) {
+            draining.set(false);
+        }
+    }
+
+    /**
+     * Schedules the given journal task after the given delay.
+     *
+     * @return {@code false}, if the scheduler rejects the task
+     */
+    private boolean scheduleJournalTask(Runnable task, long delayNanos) {
+        try {
+            if (delayNanos > 0) {
+                journalScheduler.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+            } else {
+                journalScheduler.schedule(task);
+            }
+            return true;
+        } catch (RejectedExecutionException ignored) {
+            return false;
+        }
+    }
+
+    private void drainNext() {
+        if (closed) {
+            draining.set(false);
+            return;
+        }
+        PubsubSpilloverJournal.Batch batch;
+        try {
+            int batchMessageCount = isolatedMessageCount > 0 ? 1 : config.getDrainBatchMessageCount();
+            batch = journal.read(batchMessageCount, config.getDrainBatchByteCount());
+        } catch (RuntimeException error) {
+            LOGGER.error("spillover journal read failure", error);
+            draining.set(false);
+            return;
+        }
+        if (batch.getMessages().isEmpty()) {
+            draining.set(false);
+            // Catch up with the messages journaled in the meantime.
+            if (journal.getPendingMessageCount() > 0) {
+                drain();
+            }
+            return;
+        }
+        // Deferring to catch the invalid messages rejected upon assembly.
+        Mono
+                .defer(() -> publisher.publishMessages(batch.getMessages()))
+                .subscribe(
+                        ignored -> {},
+                        error -> handleDrainFailure(batch, error),
+                        () -> commit(batch));
+    }
+
+    private void handleDrainFailure(PubsubSpilloverJournal.Batch batch, Throwable error) {
+        if (closed) {
+            return;
+        }
+        int messageCount = batch.getMessages().size();
+        if (isRetryable(error)) {
+            LOGGER.warn(
+                    "spillover drain failure (pendingMessageCount={})",
+                    journal.getPendingMessageCount(), error);
+            scheduleDrainRetry();
+        } else if (messageCount > 1) {
+            LOGGER.warn(
+                    "spillover drain failed permanently, isolating the failing messages (messageCount={})",
+                    messageCount, error);
+            isolatedMessageCount = messageCount;
+            draining.set(false);
+            drain();
+        } else {
+            LOGGER.error(
+                    "spillover drain failed permanently, dropping the message (pendingMessageCount={})",
+                    journal.getPendingMessageCount(), error);
+            if (droppedMessageCounter != null) {
+                droppedMessageCounter.increment(messageCount);
+            }
+            commit(batch);
+        }
+    }
+
+    /**
+     * Commits the given batch on the journal scheduler, since the publish
+     * responses get delivered on event loops.
+     */
+    private void commit(PubsubSpilloverJournal.Batch batch) {
+        if (!scheduleJournalTask(() -> commitNow(batch), 0)) {
+            // There is no scheduler to commit with, the next publisher will drain the batch again.
+            draining.set(false);
+        }
+    }
+
+    private void commitNow(PubsubSpilloverJournal.Batch batch) {
+        if (closed) {
+            return;
+        }
+        try {
+            journal.commit(batch);
+        } catch (IOException | RuntimeException error) {
+            // The journal might have been closed in the meantime.
+            if (closed) {
+                return;
+            }
+            LOGGER.error("spillover journal commit failure", error);
+            scheduleDrainRetry();
+            return;
+        }
+        if (isolatedMessageCount > 0) {
+            isolatedMessageCount -= batch.getMessages().size();
+        }
+        draining.set(false);
+        drain();
+    }
+
+    private void scheduleDrainRetry() {
+        if (closed) {
+            return;
+        }
+        long retryPeriodNanos = config.getDrainRetryPeriod().toNanos();
+        if (!scheduleJournalTask(this::drainNext, retryPeriodNanos)) {
+            // There is no scheduler to retry with, the next spillover will.
+            draining.set(false);
+        }
+    }
+
+    /**
+     * Stops draining and closes the journal. Messages that are not drained
+     * yet get published by the next publisher using the same journal
+     * directory.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        journal.close();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+
+        private PubsubSpilloverPublisherConfig config;
+
+        private PubsubPublisher publisher;
+
+        @Nullable
+        private Scheduler scheduler;
+
+        @Nullable
+        private MeterRegistry meterRegistry;
+
+        private String meterNamePrefix = DEFAULT_METER_NAME_PREFIX;
+
+        private Map<String, String> meterTags = DEFAULT_METER_TAGS;
+
+        private Builder() {}
+
+        public Builder setConfig(PubsubSpilloverPublisherConfig config) {
+            this.config = Objects.requireNonNull(config, "config");
+            return this;
+        }
+
+        public Builder setPublisher(PubsubPublisher publisher) {
+            this.publisher = Objects.requireNonNull(publisher, "publisher");
+            return this;
+        }
+
+        /**
+         * Sets the scheduler performing the blocking journal I/O and the
+         * drain retries. Defaults to {@link Schedulers#boundedElastic()}.
+         */
+        public Builder setScheduler(@Nullable Scheduler scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        public Builder setMeterRegistry(MeterRegistry meterRegistry) {
+            this.meterRegistry = Objects.requireNonNull(meterRegistry, "meterRegistry");
+            return this;
+        }
+
+        public Builder setMeterNamePrefix(String meterNamePrefix) {
+            this.meterNamePrefix = Objects.requireNonNull(meterNamePrefix, "meterNamePrefix");
+            return this;
+        }
+
+        public Builder setMeterTags(Map<String, String> meterTags) {
+            this.meterTags = Objects.requireNonNull(meterTags, "meterTags");
+            return this;
+        }
+
+        public PubsubSpilloverPublisher build() {
+            Objects.requireNonNull(config, "config");
+            Objects.requireNonNull(publisher, "publisher");
+            return new PubsubSpilloverPublisher(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Objects;
+
+public class PubsubSpilloverPublisherConfig {
+
+    public static final long DEFAULT_SPILLOVER_BYTE_COUNT = 50_000_000L;
+
+    public static final int DEFAULT_SEGMENT_BYTE_COUNT = 64 * 1024 * 1024;
+
+    public static final int DEFAULT_DRAIN_BATCH_MESSAGE_COUNT = PubsubBatchingPublisherConfig.MAX_BATCH_MESSAGE_COUNT;
+
+    public static final long DEFAULT_DRAIN_BATCH_BYTE_COUNT = 9_000_000L;
+
+    public static final Duration DEFAULT_DRAIN_RETRY_PERIOD = Duration.ofSeconds(1);
+
+    private final Path journalDirectory;
+
+    private final long spilloverByteCount;
+
+    private final int segmentByteCount;
+
+    private final int drainBatchMessageCount;
+
+    private final long drainBatchByteCount;
+
+    private final Duration drainRetryPeriod;
+
+    private PubsubSpilloverPublisherConfig(Builder builder) {
+        this.journalDirectory = builder.journalDirectory;
+        this.spilloverByteCount = builder.spilloverByteCount;
+        this.segmentByteCount = builder.segmentByteCount;
+        this.drainBatchMessageCount = builder.drainBatchMessageCount;
+        this.drainBatchByteCount = builder.drainBatchByteCount;
+        this.drainRetryPeriod = builder.drainRetryPeriod;
+    }
+
+    /**
+     * Directory hosting the journal segments and the checkpoint.
+     */
+    public Path getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    /**
+     * Outstanding byte count of direct publishes beyond which messages get
+     * spilled to the journal.
+     */
+    public long getSpilloverByteCount() {
+        return spilloverByteCount;
+    }
+
+    /**
+     * Size of a journal segment file. Records larger than a segment get a
+     * segment of their own.
+     */
+    public int getSegmentByteCount() {
+        return segmentByteCount;
+    }
+
+    public int getDrainBatchMessageCount() {
+        return drainBatchMessageCount;
+    }
+
+    public long getDrainBatchByteCount() {
+        return drainBatchByteCount;
+    }
+
+    /**
+     * Delay before draining the journal again after a failed publish.
+     */
+    public Duration getDrainRetryPeriod() {
+        return drainRetryPeriod;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) return true;
+        if (object == null || getClass() != object.getClass()) return false;
+        PubsubSpilloverPublisherConfig that = (PubsubSpilloverPublisherConfig) object;
+        return spilloverByteCount == that.spilloverByteCount &&
+                segmentByteCount == that.segmentByteCount &&
+                drainBatchMessageCount == that.drainBatchMessageCount &&
+                drainBatchByteCount == that.drainBatchByteCount &&
+                journalDirectory.equals(that.journalDirectory) &&
+                drainRetryPeriod.equals(that.drainRetryPeriod);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(
+                journalDirectory,
+                spilloverByteCount,
+                segmentByteCount,
+                drainBatchMessageCount,
+                drainBatchByteCount,
+                drainRetryPeriod);
+    }
+
+    @Override
+    public String toString() {
+        return "PubsubSpilloverPublisherConfig{" +
+                "journalDirectory=" + journalDirectory +
+                ", spilloverByteCount=" + spilloverByteCount +
+                ", segmentByteCount=" + segmentByteCount +
+                ", drainBatchMessageCount=" + drainBatchMessageCount +
+                ", drainBatchByteCount=" + drainBatchByteCount +
+                ", drainRetryPeriod=" + drainRetryPeriod +
+                '}';
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+
+        private Path journalDirectory;
+
+        private long spilloverByteCount = DEFAULT_SPILLOVER_BYTE_COUNT;
+
+        private int segmentByteCount = DEFAULT_SEGMENT_BYTE_COUNT;
+
+        private int drainBatchMessageCount = DEFAULT_DRAIN_BATCH_MESSAGE_COUNT;
+
+        private long drainBatchByteCount = DEFAULT_DRAIN_BATCH_BYTE_COUNT;
+
+        private Duration drainRetryPeriod = DEFAULT_DRAIN_RETRY_PERIOD;
+
+        private Builder() {}
+
+        public Builder setJournalDirectory(Path journalDirectory) {
+            this.journalDirectory = Objects.requireNonNull(journalDirectory, "journalDirectory");
+            return this;
+        }
+
+        public Builder setSpilloverByteCount(long spilloverByteCount) {
+            if (spilloverByteCount < 0) {
+                String message = String.format(
+                        "was expecting a non-negative spillover byte count, found %d",
+                        spilloverByteCount);
+                throw new IllegalArgumentException(message);
+            }
+            this.spilloverByteCount = spilloverByteCount;
+            return this;
+        }
+
+        public Builder setSegmentByteCount(int segmentByteCount) {
+            if (segmentByteCount < 1) {
+                String message = String.format(
+                        "was expecting a positive segment byte count, found %d",
+                        segmentByteCount);
+                throw new IllegalArgumentException(message);
+            }
+            this.segmentByteCount = segmentByteCount;
+            return this;
+        }
+
+        public Builder setDrainBatchMessageCount(int drainBatchMessageCount) {
+            int maxBatchMessageCount = PubsubBatchingPublisherConfig.MAX_BATCH_MESSAGE_COUNT;
+            if (drainBatchMessageCount < 1 || drainBatchMessageCount > maxBatchMessageCount) {
+                String message = String.format(
+                        "was expecting a drain batch message count in [1, %d], found %d",
+                        maxBatchMessageCount, drainBatchMessageCount);
+                throw new IllegalArgumentException(message);
+            }
+            this.drainBatchMessageCount = drainBatchMessageCount;
+            return this;
+        }
+
+        public Builder setDrainBatchByteCount(long drainBatchByteCount) {
+            long maxBatchByteCount = PubsubBatchingPublisherConfig.MAX_BATCH_BYTE_COUNT;
+            if (drainBatchByteCount < 1 || drainBatchByteCount > maxBatchByteCount) {
+                String message = String.format(
+                        "was expecting a drain batch byte count in [1, %d], found %d",
+                        maxBatchByteCount, drainBatchByteCount);
+                throw new IllegalArgumentException(message);
+            }
+            this.drainBatchByteCount = drainBatchByteCount;
+            return this;
+        }
+
+        public Builder setDrainRetryPeriod(Duration drainRetryPeriod) {
+            Objects.requireNonNull(drainRetryPeriod, "drainRetryPeriod");
+            if (drainRetryPeriod.isNegative() || drainRetryPeriod.isZero()) {
+                throw new IllegalArgumentException(
+                        "was expecting a non-zero positive drain retry period");
+            }
+            this.drainRetryPeriod = drainRetryPeriod;
+            return this;
+        }
+
+        public PubsubSpilloverPublisherConfig build() {
+            Objects.requireNonNull(journalDirectory, "journalDirectory");
+            return new PubsubSpilloverPublisherConfig(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub.codec;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link PubsubPayloadCodec} compressing payloads in zlib format using
+ * {@link Deflater}. Deflaters and inflaters are cached per thread to avoid
+ * allocating their native state for every payload.
+ */
+public class PubsubDeflatePayloadCodec implements PubsubPayloadCodec {
+
+    public static final String NAME = "deflate";
+
+    public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+
+    /**
+     * Maximum decoded payload size accepted to protect against decompression
+     * bombs.
+     */
+    public static final int MAX_DECODED_BYTE_COUNT = 100 * 1024 * 1024;
+
+    private static final PubsubDeflatePayloadCodec DEFAULT_INSTANCE = new PubsubDeflatePayloadCodec(DEFAULT_LEVEL);
+
+    private static final ThreadLocal<Inflater> INFLATER_REF = ThreadLocal.withInitial(Inflater::new);
+
+    private final int level;
+
+    private final ThreadLocal<Deflater> deflaterRef;
+
+    public PubsubDeflatePayloadCodec(int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            String message = String.format(
+                    "was expecting a level in [%d, %d], found %d",
+                    Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION, level);
+            throw new IllegalArgumentException(message);
+        }
+        this.level = level;
+        this.deflaterRef = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    public static PubsubDeflatePayloadCodec getDefaultInstance() {
+        return DEFAULT_INSTANCE;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(byte[] payload) {
+        Objects.requireNonNull(payload, "payload");
+        Deflater deflater = deflaterRef.get();
+        deflater.reset();
+        deflater.setInput(payload);
+        deflater.finish();
+        byte[] buffer = new byte[Math.max(64, payload.length / 2)];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    @Override
+    public byte[] decode(byte[] encodedPayload) {
+        Objects.requireNonNull(encodedPayload, "encodedPayload");
+        Inflater inflater = INFLATER_REF.get();
+        inflater.reset();
+        inflater.setInput(encodedPayload);
+        byte[] buffer = new byte[Math.max(64, encodedPayload.length * 4)];
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == buffer.length) {
+                    if (buffer.length >= MAX_DECODED_BYTE_COUNT) {
+                        String message = String.format(
+                                "decoded payload is too large (maxDecodedByteCount=%d)",
+                                MAX_DECODED_BYTE_COUNT);
+                        throw new IllegalArgumentException(message);
+                    }
+                    buffer = Arrays.copyOf(buffer, Math.min(MAX_DECODED_BYTE_COUNT, buffer.length * 2));
+                }
+                int inflatedByteCount = inflater.inflate(buffer, length, buffer.length - length);
+                if (inflatedByteCount == 0 &&
+                        !inflater.finished() &&
+                        (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("truncated payload");
+                }
+                length += inflatedByteCount;
+            }
+        } catch (DataFormatException error) {
+            throw new IllegalArgumentException("malformed payload", error);
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) return true;
+        if (object == null || getClass() != object.getClass()) return false;
+        PubsubDeflatePayloadCodec that = (PubsubDeflatePayloadCodec) object;
+        return level == that.level;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(level);
+    }
+
+    @Override
+    public String toString() {
+        return "PubsubDeflatePayloadCodec{" +
+                "level=" + level +
+                '}';
+    }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub.codec;
+
+/**
+ * Transforms message payloads on the way to and from Pub/Sub.
+ *
+ * <p>Publishers mark the encoded messages by the {@link #ATTRIBUTE_KEY}
+ * attribute carrying the {@link #getName() codec name}, which is used by
+ * pullers to pick the codec to decode the payload with.
+ */
+public interface PubsubPayloadCodec {
+
+    /**
+     * Attribute reserved for the name of the codec a payload is encoded with.
+     */
+    String ATTRIBUTE_KEY = "reactor-pubsub-payload-codec";
+
+    String getName();
+
+    byte[] encode(byte[] payload);
+
+    byte[] decode(byte[] encodedPayload);
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub.jackson;
+
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdScalarSerializer;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Serializes the remaining bytes of a {@link ByteBuffer} into a Base64-encoded
+ * string without copying them into an intermediate array. Neither the
+ * position, nor the limit of the buffer is modified.
+ */
+public class JacksonBase64EncodedByteBufferSerializer extends StdScalarSerializer<ByteBuffer> {
+
+    protected JacksonBase64EncodedByteBufferSerializer() {
+        super(ByteBuffer.class);
+    }
+
+    @Override
+    public void serialize(ByteBuffer value, JsonGenerator generator, SerializerProvider provider) throws IOException {
+        int length = value.remaining();
+        if (value.hasArray()) {
+            int offset = value.arrayOffset() + value.position();
+            generator.writeBinary(Base64Variants.MIME_NO_LINEFEEDS, value.array(), offset, length);
+        } else {
+            ByteBufferBackedInputStream inputStream = new ByteBufferBackedInputStream(value.duplicate());
+            generator.writeBinary(Base64Variants.MIME_NO_LINEFEEDS, inputStream, length);
+        }
+    }
+
+}
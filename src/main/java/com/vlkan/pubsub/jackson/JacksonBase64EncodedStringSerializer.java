@@ -16,12 +16,12 @@
 
 package com.vlkan.pubsub.jackson;
 
+import com.fasterxml.jackson.core.Base64Variants;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.ser.std.StdScalarSerializer;
 
 import java.io.IOException;
-import java.util.Base64;
 
 public class JacksonBase64EncodedStringSerializer extends StdScalarSerializer<byte[]> {
 
@@ -31,8 +31,8 @@ public class JacksonBase64EncodedStringSerializer extends StdScalarSerializer<by
 
     @Override
     public void serialize(byte[] value, JsonGenerator generator, SerializerProvider provider) throws IOException {
-        String base64EncodedValue = Base64.getEncoder().encodeToString(value);
-        generator.writeString(base64EncodedValue);
+        // Encode straight into the output buffer rather than into a temporary string.
+        generator.writeBinary(Base64Variants.MIME_NO_LINEFEEDS, value, 0, value.length);
     }
 
 }
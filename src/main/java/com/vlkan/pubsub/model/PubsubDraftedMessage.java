@@ -16,17 +16,27 @@
 
 package com.vlkan.pubsub.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
-import com.vlkan.pubsub.jackson.JacksonBase64EncodedStringSerializer;
+import com.vlkan.pubsub.jackson.JacksonBase64EncodedByteBufferSerializer;
+import io.netty.buffer.ByteBuf;
 
-import java.util.Arrays;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Objects;
 
 /**
  * Jackson-serializable Pub/Sub outbound message draft model.
+ *
+ * <p>Payloads given as {@link ByteBuffer}s, {@link ByteBuf}s, or array slices
+ * are neither copied, nor released: their content must stay intact until
+ * the message gets published. The only exception is {@link ByteBuf}s spanning
+ * multiple NIO buffers (e.g., {@link io.netty.buffer.CompositeByteBuf}s with
+ * more than one component), which get consolidated into a copy.
  */
 public class PubsubDraftedMessage {
 
@@ -36,57 +46,172 @@ public class PubsubDraftedMessage {
 
         static final String ATTRIBUTES = "attributes";
 
+        static final String ORDERING_KEY = "orderingKey";
+
     }
 
     @JsonProperty(JsonFieldName.PAYLOAD)
-    @JsonSerialize(using = JacksonBase64EncodedStringSerializer.class)
-    private final byte[] payload;
+    @JsonSerialize(using = JacksonBase64EncodedByteBufferSerializer.class)
+    private final ByteBuffer payload;
 
     @JsonProperty(JsonFieldName.ATTRIBUTES)
     private final Map<String, String> attributes;
 
+    @Nullable
+    @JsonProperty(JsonFieldName.ORDERING_KEY)
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final String orderingKey;
+
     public PubsubDraftedMessage(byte[] payload) {
         this(payload, Collections.emptyMap());
     }
 
     public PubsubDraftedMessage(byte[] payload, Map<String, String> attributes) {
-        this.payload = Objects.requireNonNull(payload, "payload");
+        this(payload, attributes, null);
+    }
+
+    public PubsubDraftedMessage(byte[] payload, Map<String, String> attributes, @Nullable String orderingKey) {
+        this(ByteBuffer.wrap(Objects.requireNonNull(payload, "payload")), attributes, orderingKey);
+    }
+
+    /**
+     * Creates a message with the payload of {@code length} bytes starting at
+     * {@code offset} of the given array.
+     */
+    public PubsubDraftedMessage(
+            byte[] payload,
+            int offset,
+            int length,
+            Map<String, String> attributes,
+            @Nullable String orderingKey) {
+        this(ByteBuffer.wrap(Objects.requireNonNull(payload, "payload"), offset, length), attributes, orderingKey);
+    }
+
+    /**
+     * Creates a message with the payload of the readable bytes of the given
+     * buffer. The reader index of the buffer is not modified. The readable
+     * bytes are shared, unless they span multiple NIO buffers (i.e.,
+     * {@link ByteBuf#nioBufferCount()} is greater than one), in which case
+     * they are copied.
+     */
+    public PubsubDraftedMessage(ByteBuf payload, Map<String, String> attributes, @Nullable String orderingKey) {
+        this(Objects.requireNonNull(payload, "payload").nioBuffer(), attributes, orderingKey);
+    }
+
+    /**
+     * Creates a message with the payload of the remaining bytes of the given
+     * buffer. The position of the buffer is not modified.
+     */
+    public PubsubDraftedMessage(ByteBuffer payload, Map<String, String> attributes, @Nullable String orderingKey) {
+        this.payload = Objects.requireNonNull(payload, "payload").slice();
         this.attributes = Objects.requireNonNull(attributes, "attributes");
-        if (payload.length == 0 && attributes.isEmpty()) {
+        if (!this.payload.hasRemaining() && attributes.isEmpty()) {
             throw new IllegalArgumentException("both payload and attributes cannot be empty");
         }
+        this.orderingKey = orderingKey == null || orderingKey.isEmpty() ? null : orderingKey;
     }
 
+    /**
+     * Returns the payload in an array, which is copied, unless the payload
+     * is backed by an entire array.
+     */
+    @JsonIgnore
     public byte[] getPayload() {
-        return payload;
+        if (payload.hasArray() && payload.arrayOffset() == 0 && payload.remaining() == payload.array().length) {
+            return payload.array();
+        }
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns a read-only view of the payload.
+     */
+    @JsonIgnore
+    public ByteBuffer getPayloadBuffer() {
+        return payload.asReadOnlyBuffer();
+    }
+
+    @JsonIgnore
+    public int getPayloadLength() {
+        return payload.remaining();
     }
 
     public Map<String, String> getAttributes() {
         return attributes;
     }
 
+    /**
+     * Key of the message for ordered delivery. Messages sharing the same key
+     * are delivered in the order they are published, given that the
+     * subscription has message ordering enabled. {@code null}, if the message
+     * is not ordered.
+     */
+    @Nullable
+    public String getOrderingKey() {
+        return orderingKey;
+    }
+
+    /**
+     * Estimates the number of bytes this message occupies in a JSON-serialized
+     * publish request, i.e., the Base64-encoded payload, the UTF-8 encoded
+     * attributes and ordering key, and the JSON scaffolding around them. JSON string escapes
+     * are not accounted for.
+     */
+    public long estimateSerializedByteCount() {
+        long byteCount = 32L;
+        byteCount += 4L * ((payload.remaining() + 2) / 3);
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            byteCount += 8L + utf8ByteCount(attribute.getKey()) + utf8ByteCount(attribute.getValue());
+        }
+        if (orderingKey != null) {
+            byteCount += 16L + utf8ByteCount(orderingKey);
+        }
+        return byteCount;
+    }
+
+    private static long utf8ByteCount(String text) {
+        long byteCount = 0;
+        int charCount = text.length();
+        for (int charIndex = 0; charIndex < charCount; charIndex++) {
+            char c = text.charAt(charIndex);
+            if (c < 0x80) {
+                byteCount += 1;
+            } else if (c < 0x800) {
+                byteCount += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                byteCount += 4;
+                charIndex++;
+            } else {
+                byteCount += 3;
+            }
+        }
+        return byteCount;
+    }
+
     @Override
     public boolean equals(Object object) {
         if (this == object) return true;
         if (object == null || getClass() != object.getClass()) return false;
         PubsubDraftedMessage that = (PubsubDraftedMessage) object;
-        return Arrays.equals(payload, that.payload) &&
-                Objects.equals(attributes, that.attributes);
+        return payload.equals(that.payload) &&
+                Objects.equals(attributes, that.attributes) &&
+                Objects.equals(orderingKey, that.orderingKey);
     }
 
     @Override
     public int hashCode() {
-        int result = Objects.hash(attributes);
-        result = 31 * result + Arrays.hashCode(payload);
-        return result;
+        return Objects.hash(payload, attributes, orderingKey);
     }
 
     @Override
     public String toString() {
-        int payloadLength = payload.length;
+        int payloadLength = payload.remaining();
         return "PubsubDraftedMessage{" +
                 "payloadLength=" + payloadLength +
                 ", attributes=" + attributes +
+                ", orderingKey=" + orderingKey +
                 '}';
     }
 
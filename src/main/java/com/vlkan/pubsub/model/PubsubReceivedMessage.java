@@ -20,6 +20,7 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import javax.annotation.Nullable;
 import java.time.Instant;
 import java.util.Map;
 import java.util.Objects;
@@ -82,6 +83,28 @@ public class PubsubReceivedMessage {
         return embedding.getAttributes();
     }
 
+    /**
+     * Key the message is published with for ordered delivery, if any.
+     */
+    @Nullable
+    @JsonIgnore
+    public String getOrderingKey() {
+        return embedding.getOrderingKey();
+    }
+
+    /**
+     * Creates a copy of this message with the given payload and attributes.
+     */
+    public PubsubReceivedMessage withPayload(byte[] payload, Map<String, String> attributes) {
+        PubsubReceivedMessageEmbedding newEmbedding = new PubsubReceivedMessageEmbedding(
+                embedding.getPublishInstant(),
+                embedding.getId(),
+                payload,
+                attributes,
+                embedding.getOrderingKey());
+        return new PubsubReceivedMessage(ackId, newEmbedding);
+    }
+
     @Override
     public boolean equals(Object object) {
         if (this == object) return true;
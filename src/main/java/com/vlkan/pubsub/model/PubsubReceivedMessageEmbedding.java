@@ -17,6 +17,7 @@
 package com.vlkan.pubsub.model;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
@@ -25,6 +26,7 @@ import com.vlkan.pubsub.jackson.JacksonBase64EncodedStringSerializer;
 import com.vlkan.pubsub.jackson.JacksonInstantDeserializer;
 import com.vlkan.pubsub.jackson.JacksonInstantSerializer;
 
+import javax.annotation.Nullable;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.Collections;
@@ -46,6 +48,8 @@ public class PubsubReceivedMessageEmbedding {
 
         static final String ATTRIBUTES = "attributes";
 
+        static final String ORDERING_KEY = "orderingKey";
+
     }
 
     @JsonProperty(JsonFieldName.PUBLISH_INSTANT)
@@ -62,6 +66,19 @@ public class PubsubReceivedMessageEmbedding {
     @JsonProperty(JsonFieldName.ATTRIBUTES)
     private final Map<String, String> attributes;
 
+    @Nullable
+    @JsonProperty(JsonFieldName.ORDERING_KEY)
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final String orderingKey;
+
+    public PubsubReceivedMessageEmbedding(
+            Instant publishInstant,
+            String id,
+            byte[] payload,
+            Map<String, String> attributes) {
+        this(publishInstant, id, payload, attributes, null);
+    }
+
     @JsonCreator
     public PubsubReceivedMessageEmbedding(
             @JsonProperty(value = JsonFieldName.PUBLISH_INSTANT, required = true)
@@ -73,7 +90,9 @@ public class PubsubReceivedMessageEmbedding {
             @JsonDeserialize(using = JacksonBase64EncodedStringDeserializer.class)
                     byte[] payload,
             @JsonProperty(JsonFieldName.ATTRIBUTES)
-                    Map<String, String> attributes) {
+                    Map<String, String> attributes,
+            @JsonProperty(JsonFieldName.ORDERING_KEY)
+                    String orderingKey) {
         this.publishInstant = Objects.requireNonNull(publishInstant, "publishInstant");
         this.id = Objects.requireNonNull(id, "id");
         this.payload = Objects.requireNonNull(payload, "payload");
@@ -83,6 +102,7 @@ public class PubsubReceivedMessageEmbedding {
         if (payload.length == 0 && this.attributes.isEmpty()) {
             throw new IllegalArgumentException("both payload and attributes cannot be null");
         }
+        this.orderingKey = orderingKey == null || orderingKey.isEmpty() ? null : orderingKey;
     }
 
     Instant getPublishInstant() {
@@ -101,6 +121,11 @@ public class PubsubReceivedMessageEmbedding {
         return attributes;
     }
 
+    @Nullable
+    String getOrderingKey() {
+        return orderingKey;
+    }
+
     @Override
     public boolean equals(Object object) {
         if (this == object) return true;
@@ -109,12 +134,13 @@ public class PubsubReceivedMessageEmbedding {
         return Objects.equals(publishInstant, that.publishInstant) &&
                 Objects.equals(id, that.id) &&
                 Arrays.equals(payload, that.payload) &&
-                Objects.equals(attributes, that.attributes);
+                Objects.equals(attributes, that.attributes) &&
+                Objects.equals(orderingKey, that.orderingKey);
     }
 
     @Override
     public int hashCode() {
-        int result = Objects.hash(publishInstant, id, attributes);
+        int result = Objects.hash(publishInstant, id, attributes, orderingKey);
         result = 31 * result + Arrays.hashCode(payload);
         return result;
     }
@@ -125,6 +151,7 @@ public class PubsubReceivedMessageEmbedding {
                 "id=" + id +
                 ", publishInstant=" + publishInstant +
                 ", attributes=" + attributes +
+                ", orderingKey=" + orderingKey +
                 '}';
     }
 
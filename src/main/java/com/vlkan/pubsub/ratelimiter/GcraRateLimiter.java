@@ -0,0 +1,202 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub.ratelimiter;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A rate limiter implementing the Generic Cell Rate Algorithm (GCRA), i.e., a
+ * token bucket tracking a single theoretical arrival time (TAT) rather than a
+ * token count.
+ * <p>
+ * Unlike {@link RateLimiter}, which replenishes all permits at cycle
+ * boundaries and hence lets them through in a burst at the start of each
+ * cycle, permits are spread evenly: one every {@code cyclePeriod /
+ * maxPermitCountPerCycle}. Up to {@link #burstPermitCount} permits can be
+ * claimed at once after an idle period. Hence, a burst permit count of 1
+ * yields a perfectly paced rate, whereas one equal to the max. permit count
+ * per cycle admits bursts as large as the ones of {@link RateLimiter}.
+ * <p>
+ * Like {@link RateLimiter}, claims boil down to a single CAS without any
+ * allocations.
+ */
+class GcraRateLimiter extends RateLimiter {
+
+    private final int burstPermitCount;
+
+    private final long emissionIntervalNanos;
+
+    private final long burstToleranceNanos;
+
+    private final AtomicLong theoreticalArrivalTimeNanos;
+
+    GcraRateLimiter(int maxPermitCountPerCycle, Duration cyclePeriod, int burstPermitCount) {
+        super(maxPermitCountPerCycle, cyclePeriod);
+        if (burstPermitCount < 1 || burstPermitCount > maxPermitCountPerCycle) {
+            String message = String.format(
+                    "was expecting a burst permit count in [1, %d], found %d",
+                    maxPermitCountPerCycle, burstPermitCount);
+            throw new IllegalArgumentException(message);
+        }
+        this.burstPermitCount = burstPermitCount;
+        // Round up to never exceed the rate.
+        long cyclePeriodNanos = cyclePeriod.toNanos();
+        this.emissionIntervalNanos = (cyclePeriodNanos + maxPermitCountPerCycle - 1) / maxPermitCountPerCycle;
+        this.burstToleranceNanos = emissionIntervalNanos * burstPermitCount;
+        this.theoreticalArrivalTimeNanos = new AtomicLong(currentTimeNanos());
+    }
+
+    int getBurstPermitCount() {
+        return burstPermitCount;
+    }
+
+    /**
+     * Returns an estimate of the acquire permits per second, that is, the max.
+     * rate scaled by the consumed fraction of the burst tolerance.
+     */
+    @Override
+    public double getAcquiredPermitCountPerSecond() {
+        long backlogNanos = Math.max(0, theoreticalArrivalTimeNanos.get() - currentTimeNanos());
+        double consumedBurstRatio = Math.min(1D, (double) backlogNanos / burstToleranceNanos);
+        return consumedBurstRatio * getMaxPermitPerSecond();
+    }
+
+    @Override
+    long nextPermitWaitPeriodNanos() {
+        for (;;) {
+            long currentTimeNanos = currentTimeNanos();
+            long prevArrivalTimeNanos = theoreticalArrivalTimeNanos.get();
+            long nextArrivalTimeNanos = Math.max(prevArrivalTimeNanos, currentTimeNanos) + emissionIntervalNanos;
+            long permitWaitPeriodNanos = nextArrivalTimeNanos - currentTimeNanos - burstToleranceNanos;
+            if (permitWaitPeriodNanos > 0) {
+                return permitWaitPeriodNanos;
+            }
+            if (theoreticalArrivalTimeNanos.compareAndSet(prevArrivalTimeNanos, nextArrivalTimeNanos)) {
+                return 0L;
+            }
+        }
+    }
+
+    @Override
+    long nextPermitWaitPeriodNanos(int permitCount) {
+        if (permitCount < 1) {
+            String message = String.format("was expecting a non-zero positive permit count, found %d", permitCount);
+            throw new IllegalArgumentException(message);
+        }
+        if (permitCount == 1) {
+            return nextPermitWaitPeriodNanos();
+        }
+        long permitIntervalNanos;
+        try {
+            permitIntervalNanos = Math.multiplyExact(emissionIntervalNanos, permitCount);
+        } catch (ArithmeticException error) {
+            String message = String.format("cannot reserve permits beyond the capacity (permitCount=%d)", permitCount);
+            throw new IllegalStateException(message, error);
+        }
+        for (;;) {
+            long currentTimeNanos = currentTimeNanos();
+            long prevArrivalTimeNanos = theoreticalArrivalTimeNanos.get();
+            long nextArrivalTimeNanos = Math.max(prevArrivalTimeNanos, currentTimeNanos) + permitIntervalNanos;
+            if (theoreticalArrivalTimeNanos.compareAndSet(prevArrivalTimeNanos, nextArrivalTimeNanos)) {
+                return Math.max(0L, nextArrivalTimeNanos - currentTimeNanos - burstToleranceNanos);
+            }
+        }
+    }
+
+    @Override
+    long tryClaimPermits(int permitCount) {
+        if (permitCount < 1) {
+            String message = String.format("was expecting a non-zero positive permit count, found %d", permitCount);
+            throw new IllegalArgumentException(message);
+        }
+        if (permitCount == 1) {
+            return nextPermitWaitPeriodNanos();
+        }
+        // Permits beyond the burst tolerance are never available at once.
+        if (permitCount > burstPermitCount) {
+            return Math.max(1L, calculatePermitWaitPeriodNanos());
+        }
+        long permitIntervalNanos = emissionIntervalNanos * permitCount;
+        for (;;) {
+            long currentTimeNanos = currentTimeNanos();
+            long prevArrivalTimeNanos = theoreticalArrivalTimeNanos.get();
+            long nextArrivalTimeNanos = Math.max(prevArrivalTimeNanos, currentTimeNanos) + permitIntervalNanos;
+            long permitWaitPeriodNanos = nextArrivalTimeNanos - currentTimeNanos - burstToleranceNanos;
+            if (permitWaitPeriodNanos > 0) {
+                return permitWaitPeriodNanos;
+            }
+            if (theoreticalArrivalTimeNanos.compareAndSet(prevArrivalTimeNanos, nextArrivalTimeNanos)) {
+                return 0L;
+            }
+        }
+    }
+
+    @Override
+    long claimAvailablePermits(int maxPermitCount) {
+        for (;;) {
+            long currentTimeNanos = currentTimeNanos();
+            long prevArrivalTimeNanos = theoreticalArrivalTimeNanos.get();
+            long arrivalTimeNanos = Math.max(prevArrivalTimeNanos, currentTimeNanos);
+            long availablePermitCount =
+                    (currentTimeNanos + burstToleranceNanos - arrivalTimeNanos) / emissionIntervalNanos;
+            int claimedPermitCount = (int) Math.max(0, Math.min(availablePermitCount, maxPermitCount));
+            long claim = packState(getCurrentCycleIndex(), claimedPermitCount);
+            if (claimedPermitCount == 0) {
+                return claim;
+            }
+            long nextArrivalTimeNanos = arrivalTimeNanos + claimedPermitCount * emissionIntervalNanos;
+            if (theoreticalArrivalTimeNanos.compareAndSet(prevArrivalTimeNanos, nextArrivalTimeNanos)) {
+                return claim;
+            }
+        }
+    }
+
+    @Override
+    void releasePermits(long claim, int permitCount) {
+        if (permitCount < 1) {
+            return;
+        }
+        long releasedIntervalNanos = permitCount * emissionIntervalNanos;
+        for (;;) {
+            long currentTimeNanos = currentTimeNanos();
+            long prevArrivalTimeNanos = theoreticalArrivalTimeNanos.get();
+            // Arrivals in the past are already replenished.
+            if (prevArrivalTimeNanos <= currentTimeNanos) {
+                return;
+            }
+            long nextArrivalTimeNanos = Math.max(currentTimeNanos, prevArrivalTimeNanos - releasedIntervalNanos);
+            if (theoreticalArrivalTimeNanos.compareAndSet(prevArrivalTimeNanos, nextArrivalTimeNanos)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    long calculatePermitWaitPeriodNanos() {
+        long currentTimeNanos = currentTimeNanos();
+        long nextArrivalTimeNanos =
+                Math.max(theoreticalArrivalTimeNanos.get(), currentTimeNanos) + emissionIntervalNanos;
+        return Math.max(0L, nextArrivalTimeNanos - currentTimeNanos - burstToleranceNanos);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%s~%d", getMaxPermitCountPerCycle(), getCyclePeriod(), burstPermitCount);
+    }
+
+}
@@ -18,9 +18,7 @@
 package com.vlkan.pubsub.ratelimiter;
 
 import java.time.Duration;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.LockSupport;
-import java.util.function.UnaryOperator;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A thread-safe rate limiter allowing claim of {@link #maxPermitCountPerCycle}
@@ -28,40 +26,73 @@ import java.util.function.UnaryOperator;
  * <p>
  * This class is a (shamelessly) trimmed down version of
  * <a href="https://github.com/resilience4j/resilience4j/blob/master/resilience4j-ratelimiter/src/main/java/io/github/resilience4j/ratelimiter/internal/AtomicRateLimiter.java">AtomicRateLimiter</a>.
+ * <p>
+ * The state is packed into a single {@code long}: the high 32 bits hold the
+ * cycle index (modulo 2<sup>32</sup>) and the low 32 bits hold the available
+ * permit count. Hence claiming a permit boils down to a single CAS without any
+ * allocations. Cycle indices are compared via their signed 32-bit difference:
+ * a claim sampling the time before the cycle the state is stored at (e.g., a
+ * preempted thread) neither replenishes the permits nor moves the state back
+ * to its cycle. Note that the state of a rate limiter that stayed untouched
+ * for 2<sup>31</sup> cycles (i.e., ~68 years for 1 second cycles) is
+ * misinterpreted.
  */
 class RateLimiter {
 
     private static final long CLASS_INIT_TIME_NANOS = System.nanoTime();
 
+    private static final long PERMIT_COUNT_MASK = 0xFFFF_FFFFL;
+
     private final int maxPermitCountPerCycle;
 
     private final Duration cyclePeriod;
 
     private final long cyclePeriodNanos;
 
-    private final AtomicReference<State> state;
+    private final AtomicLong state;
 
-    private static final class State {
+    RateLimiter(int maxPermitCountPerCycle, Duration cyclePeriod) {
+        this.maxPermitCountPerCycle = maxPermitCountPerCycle;
+        this.cyclePeriod = cyclePeriod;
+        this.cyclePeriodNanos = cyclePeriod.toNanos();
+        this.state = new AtomicLong(packState(0, maxPermitCountPerCycle));
+    }
 
-        private final long cycleIndex;
+    static long packState(long cycleIndex, int permitCount) {
+        return (cycleIndex << 32) | (permitCount & PERMIT_COUNT_MASK);
+    }
 
-        private final int permitCount;
+    /**
+     * Returns the time in nanoseconds the cycles are aligned to. Subclasses
+     * can override this along with {@link #getState()} and {@link
+     * #compareAndSetState(long, long)} to relocate the state.
+     */
+    long currentTimeNanos() {
+        return System.nanoTime() - CLASS_INIT_TIME_NANOS;
+    }
 
-        private final long permitWaitPeriodNanos;
+    long getState() {
+        return state.get();
+    }
 
-        private State(long cycleIndex, int permitCount, long permitWaitPeriodNanos) {
-            this.cycleIndex = cycleIndex;
-            this.permitCount = permitCount;
-            this.permitWaitPeriodNanos = permitWaitPeriodNanos;
-        }
+    boolean compareAndSetState(long prevState, long nextState) {
+        return state.compareAndSet(prevState, nextState);
+    }
 
+    int getMaxPermitCountPerCycle() {
+        return maxPermitCountPerCycle;
     }
 
-    RateLimiter(int maxPermitCountPerCycle, Duration cyclePeriod) {
-        this.maxPermitCountPerCycle = maxPermitCountPerCycle;
-        this.cyclePeriod = cyclePeriod;
-        this.cyclePeriodNanos = cyclePeriod.toNanos();
-        this.state = new AtomicReference<>(new State(0, maxPermitCountPerCycle, 0));
+    Duration getCyclePeriod() {
+        return cyclePeriod;
+    }
+
+    /**
+     * Returns the index of the current cycle modulo 2<sup>32</sup>.
+     */
+    int getCurrentCycleIndex() {
+        long currentTimeNanos = currentTimeNanos();
+        return (int) (currentTimeNanos / cyclePeriodNanos);
     }
 
     double getMaxPermitPerSecond() {
@@ -72,9 +103,10 @@ class RateLimiter {
      * Returns an estimate of the acquire permits per second.
      */
     public double getAcquiredPermitCountPerSecond() {
-        State currentState = state.get();
-        State estimatedState = calculateNextState(currentState);
-        return (1e9 * (maxPermitCountPerCycle - estimatedState.permitCount)) / cyclePeriodNanos;
+        long currentTimeNanos = currentTimeNanos();
+        long currentCycleIndex = currentTimeNanos / cyclePeriodNanos;
+        int permitCount = calculatePermitCount(getState(), currentCycleIndex);
+        return (1e9 * (maxPermitCountPerCycle - permitCount)) / cyclePeriodNanos;
     }
 
     /**
@@ -84,73 +116,216 @@ class RateLimiter {
      *         zero value indicates that the permit is immediately available.
      */
     long nextPermitWaitPeriodNanos() {
-        State modifiedState = updateState();
-        return modifiedState.permitWaitPeriodNanos;
+        for (;;) {
+
+            // Determine the current time and cycle.
+            long currentTimeNanos = currentTimeNanos();
+            long currentCycleIndex = currentTimeNanos / cyclePeriodNanos;
+
+            // Determine the available permits.
+            long prevState = getState();
+            int permitCount = calculatePermitCount(prevState, currentCycleIndex);
+            long stateCycleIndex = calculateStateCycleIndex(prevState, currentCycleIndex);
+
+            // Return the wait period, if there are no permits available.
+            // Since an unclaimed permit doesn't change the available permit
+            // count, there is no need to store the state.
+            long permitWaitPeriodNanos = calculatePermitWaitPeriodNanos(
+                    permitCount, currentTimeNanos, stateCycleIndex);
+            if (permitWaitPeriodNanos > 0) {
+                return permitWaitPeriodNanos;
+            }
+
+            // Claim the permit.
+            long nextState = packState(stateCycleIndex, permitCount - 1);
+            if (compareAndSetState(prevState, nextState)) {
+                return 0L;
+            }
+
+        }
     }
 
     /**
-     * {@link AtomicReference#updateAndGet(UnaryOperator)} clone employing
-     * {@link #compareAndSetWithBackOff(State, State)} rather than
-     * {@link AtomicReference#compareAndSet(Object, Object)}.
+     * Claim the given number of permits. Unlike {@link
+     * #nextPermitWaitPeriodNanos()}, if the permits are not immediately
+     * available, they are reserved from the upcoming cycles, i.e., the caller
+     * must not claim them again after waiting. A single permit is never
+     * reserved, but claimed via {@link #nextPermitWaitPeriodNanos()}.
+     *
+     * @return Time in nanoseconds that the permits will become available. A
+     *         zero value indicates that the permits are immediately available.
      */
-    private State updateState() {
-        RateLimiter.State prev;
-        RateLimiter.State next;
-        do {
-            prev = state.get();
-            next = calculateNextState(prev);
-        } while (!compareAndSetWithBackOff(prev, next));
-        return next;
+    long nextPermitWaitPeriodNanos(int permitCount) {
+        if (permitCount < 1) {
+            String message = String.format("was expecting a non-zero positive permit count, found %d", permitCount);
+            throw new IllegalArgumentException(message);
+        }
+        if (permitCount == 1) {
+            return nextPermitWaitPeriodNanos();
+        }
+        for (;;) {
+
+            // Determine the current time and cycle.
+            long currentTimeNanos = currentTimeNanos();
+            long currentCycleIndex = currentTimeNanos / cyclePeriodNanos;
+
+            // Reserve the permits.
+            long prevState = getState();
+            int availablePermitCount = calculatePermitCount(prevState, currentCycleIndex);
+            long nextPermitCount = (long) availablePermitCount - permitCount;
+            if (nextPermitCount < Integer.MIN_VALUE) {
+                String message = String.format(
+                        "cannot reserve permits beyond the capacity (permitCount=%d, availablePermitCount=%d)",
+                        permitCount, availablePermitCount);
+                throw new IllegalStateException(message);
+            }
+            long stateCycleIndex = calculateStateCycleIndex(prevState, currentCycleIndex);
+            long nextState = packState(stateCycleIndex, (int) nextPermitCount);
+            if (!compareAndSetState(prevState, nextState)) {
+                continue;
+            }
+
+            // Determine the wait period for the reservation to be covered.
+            if (nextPermitCount >= 0) {
+                return 0L;
+            }
+            long nextCycleTimeNanos = (stateCycleIndex + 1) * cyclePeriodNanos;
+            long nextCycleCompletionPeriodNanos = nextCycleTimeNanos - currentTimeNanos;
+            long pendingCycleCount = (-nextPermitCount + maxPermitCountPerCycle - 1) / maxPermitCountPerCycle;
+            return ((pendingCycleCount - 1) * cyclePeriodNanos) + nextCycleCompletionPeriodNanos;
+
+        }
     }
 
     /**
-     * {@link AtomicReference#compareAndSet(Object, Object)} shortcut with a
-     * constant back off. This technique was originally described in
-     * <a href="https://arxiv.org/abs/1305.5800">Lightweight Contention
-     * Management for Efficient Compare-and-Swap Operations</a> and showed
-     * great results in benchmarks.
+     * Claims the given number of permits, if they are all immediately
+     * available. Unlike {@link #nextPermitWaitPeriodNanos(int)}, nothing gets
+     * reserved otherwise.
+     *
+     * @return Time in nanoseconds to wait before trying again, if the permits
+     *         are not claimed. A zero value indicates that the permits are
+     *         claimed.
+     */
+    long tryClaimPermits(int permitCount) {
+        if (permitCount < 1) {
+            String message = String.format("was expecting a non-zero positive permit count, found %d", permitCount);
+            throw new IllegalArgumentException(message);
+        }
+        if (permitCount == 1) {
+            return nextPermitWaitPeriodNanos();
+        }
+        for (;;) {
+            long currentTimeNanos = currentTimeNanos();
+            long currentCycleIndex = currentTimeNanos / cyclePeriodNanos;
+            long prevState = getState();
+            int availablePermitCount = calculatePermitCount(prevState, currentCycleIndex);
+            long stateCycleIndex = calculateStateCycleIndex(prevState, currentCycleIndex);
+            if (availablePermitCount < permitCount) {
+                // Partially available permits are replenished in the next cycle.
+                return calculatePermitWaitPeriodNanos(
+                        Math.min(0, availablePermitCount), currentTimeNanos, stateCycleIndex);
+            }
+            long nextState = packState(stateCycleIndex, availablePermitCount - permitCount);
+            if (compareAndSetState(prevState, nextState)) {
+                return 0L;
+            }
+        }
+    }
+
+    /**
+     * Claims up to the given number of permits available in the current cycle
+     * without waiting.
+     *
+     * @return the index of the cycle the state is stored at (modulo
+     *         2<sup>32</sup>) in the high 32 bits and the number of claimed
+     *         permits in the low 32 bits
      */
-    private boolean compareAndSetWithBackOff(State current, State next) {
-        if (state.compareAndSet(current, next)) {
-            return true;
+    long claimAvailablePermits(int maxPermitCount) {
+        for (;;) {
+            long currentTimeNanos = currentTimeNanos();
+            long currentCycleIndex = currentTimeNanos / cyclePeriodNanos;
+            long prevState = getState();
+            int permitCount = calculatePermitCount(prevState, currentCycleIndex);
+            int claimedPermitCount = Math.max(0, Math.min(permitCount, maxPermitCount));
+            long stateCycleIndex = calculateStateCycleIndex(prevState, currentCycleIndex);
+            long claim = packState(stateCycleIndex, claimedPermitCount);
+            if (claimedPermitCount == 0) {
+                return claim;
+            }
+            long nextState = packState(stateCycleIndex, permitCount - claimedPermitCount);
+            if (compareAndSetState(prevState, nextState)) {
+                return claim;
+            }
         }
-        LockSupport.parkNanos(1); // back-off
-        return false;
     }
 
     /**
-     * A side-effect-free function that can calculate the next {@link State}
-     * from the current. It determines time duration that you should wait for
-     * permit.
+     * Returns the given number of unused permits of a claim obtained via
+     * {@link #claimAvailablePermits(int)}. Permits of a claim whose cycle has
+     * been left behind by the state are not returned, since the state has
+     * already been replenished.
      */
-    private State calculateNextState(State activeState) {
+    void releasePermits(long claim, int permitCount) {
+        if (permitCount < 1) {
+            return;
+        }
+        int claimCycleIndex = (int) (claim >>> 32);
+        for (;;) {
+            long prevState = getState();
+            if ((int) (prevState >>> 32) != claimCycleIndex) {
+                return;
+            }
+            int nextPermitCount = (int) Long.min((long) (int) prevState + permitCount, maxPermitCountPerCycle);
+            long nextState = packState(prevState >>> 32, nextPermitCount);
+            if (compareAndSetState(prevState, nextState)) {
+                return;
+            }
+        }
+    }
 
-        // Determine the current time and cycle.
-        long currentTimeNanos = System.nanoTime() - CLASS_INIT_TIME_NANOS;
+    /**
+     * Calculates the time for the next permit to become available without
+     * claiming it.
+     */
+    long calculatePermitWaitPeriodNanos() {
+        long currentTimeNanos = currentTimeNanos();
         long currentCycleIndex = currentTimeNanos / cyclePeriodNanos;
+        long state = getState();
+        int permitCount = calculatePermitCount(state, currentCycleIndex);
+        long stateCycleIndex = calculateStateCycleIndex(state, currentCycleIndex);
+        return calculatePermitWaitPeriodNanos(permitCount, currentTimeNanos, stateCycleIndex);
+    }
 
-        // Determine the next cycle and permit count.
-        long nextCycleIndex = activeState.cycleIndex;
-        int nextPermitCount = activeState.permitCount;
-        if (nextCycleIndex != currentCycleIndex) {
-            long elapsedCycleCount = currentCycleIndex - nextCycleIndex;
-            long accumulatedPermitCount = elapsedCycleCount * maxPermitCountPerCycle;
-            nextCycleIndex = currentCycleIndex;
-            nextPermitCount = Math.toIntExact(Long.min(
-                    nextPermitCount + accumulatedPermitCount,
-                    maxPermitCountPerCycle));
+    /**
+     * Calculates the available permit count at the given cycle, replenishing
+     * the permits of the elapsed cycles. A cycle preceding the one of the
+     * state is treated as no elapsed cycles.
+     */
+    private int calculatePermitCount(long state, long currentCycleIndex) {
+        int permitCount = (int) state;
+        int elapsedCycleCount = calculateElapsedCycleCount(state, currentCycleIndex);
+        if (elapsedCycleCount <= 0) {
+            return permitCount;
         }
+        long accumulatedPermitCount = (long) elapsedCycleCount * maxPermitCountPerCycle;
+        return (int) Long.min(permitCount + accumulatedPermitCount, maxPermitCountPerCycle);
+    }
 
-        // Determine the next wait period.
-        long nextPermitWaitPeriodNanos = calculatePermitWaitPeriodNanos(
-                nextPermitCount, currentTimeNanos, currentCycleIndex);
-
-        // Instantiate the next state.
-        boolean permitAllowed = nextPermitWaitPeriodNanos <= 0;
-        return permitAllowed
-                ? new State(nextCycleIndex, nextPermitCount - 1, nextPermitWaitPeriodNanos)
-                : new State(nextCycleIndex, nextPermitCount, nextPermitWaitPeriodNanos);
+    /**
+     * Calculates the cycle the next state is to be stored at, that is, the
+     * later one of the given cycle and the cycle of the given state.
+     */
+    private static long calculateStateCycleIndex(long state, long currentCycleIndex) {
+        int elapsedCycleCount = calculateElapsedCycleCount(state, currentCycleIndex);
+        return elapsedCycleCount < 0 ? currentCycleIndex - elapsedCycleCount : currentCycleIndex;
+    }
 
+    /**
+     * Calculates the signed difference between the given cycle and the cycle
+     * of the given state, both modulo 2<sup>32</sup>.
+     */
+    private static int calculateElapsedCycleCount(long state, long currentCycleIndex) {
+        return (int) (currentCycleIndex - (state >>> 32));
     }
 
     /**
@@ -160,7 +335,8 @@ class RateLimiter {
      *
      * @param permitCount       currently available permits
      * @param currentTimeNanos  current time in nanoseconds
-     * @param currentCycleIndex current {@link RateLimiter} cycle
+     * @param currentCycleIndex current {@link RateLimiter} cycle, or the one
+     *                          of the state, if it is later
      * @return nanoseconds to wait for the next permit
      */
     private long calculatePermitWaitPeriodNanos(
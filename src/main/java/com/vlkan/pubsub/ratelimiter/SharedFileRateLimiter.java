@@ -0,0 +1,350 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub.ratelimiter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link RateLimiter} whose state lives in a slot of a memory-mapped file,
+ * so that all processes on the host mapping the same file share a single
+ * budget.
+ * <p>
+ * State updates are CAS operations on the mapped memory via
+ * {@code sun.misc.Unsafe}, which is looked up reflectively. If it is not
+ * available, updates fall back to {@link FileLock}s, which are correct, yet,
+ * at the cost of a couple of system calls per claim.
+ * <p>
+ * Cycles are aligned to the wall clock, rather than the process start time, so
+ * that all processes agree on cycle boundaries. Hence, a wall clock stepping
+ * forward replenishes the permits early, whereas a wall clock stepping back
+ * (or a process lagging behind the others) pauses the replenishment until the
+ * clock catches up with the stored cycle. Permits are never replenished twice
+ * for the same cycle.
+ */
+class SharedFileRateLimiter extends RateLimiter {
+
+    private static final long EPOCH_OFFSET_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+
+    private final SharedFile file;
+
+    private final int stateOffset;
+
+    SharedFileRateLimiter(SharedFile file, int slotIndex, int maxPermitCountPerCycle, Duration cyclePeriod) {
+        super(maxPermitCountPerCycle, cyclePeriod);
+        this.file = file;
+        this.stateOffset = file.initSlot(
+                slotIndex,
+                maxPermitCountPerCycle,
+                cyclePeriod.toNanos(),
+                packState(getCurrentCycleIndex(), maxPermitCountPerCycle));
+    }
+
+    @Override
+    long currentTimeNanos() {
+        return System.nanoTime() + EPOCH_OFFSET_NANOS;
+    }
+
+    @Override
+    long getState() {
+        return file.getLong(stateOffset);
+    }
+
+    @Override
+    boolean compareAndSetState(long prevState, long nextState) {
+        return file.compareAndSetLong(stateOffset, prevState, nextState);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%s@%s", getMaxPermitCountPerCycle(), getCyclePeriod(), file.path);
+    }
+
+    /**
+     * A memory-mapped file of {@link #SLOT_COUNT} rate limiter slots, each
+     * occupying a separate cache line. A slot is composed of the state, the
+     * max. permit count per cycle, and the cycle period in nanoseconds. The
+     * latter two are used to detect processes disagreeing on the spec.
+     */
+    static final class SharedFile {
+
+        static final int SLOT_BYTE_COUNT = 64;
+
+        static final int SLOT_COUNT = 63;
+
+        /**
+         * The first slot is reserved for the header.
+         */
+        private static final int FILE_BYTE_COUNT = (SLOT_COUNT + 1) * SLOT_BYTE_COUNT;
+
+        private static final long MAGIC = 0x5250_5342_524C_0001L;
+
+        private static final int MAX_PERMIT_COUNT_OFFSET = 8;
+
+        private static final int CYCLE_PERIOD_OFFSET = 16;
+
+        /**
+         * Files by path. {@link FileLock}s are held on behalf of the entire
+         * JVM, hence threads need to synchronize on a single instance.
+         */
+        private static final Map<Path, SharedFile> FILE_BY_PATH = new ConcurrentHashMap<>();
+
+        private final Path path;
+
+        private final FileChannel channel;
+
+        private final MappedByteBuffer buffer;
+
+        /**
+         * Address of the mapped memory, if {@code sun.misc.Unsafe} is
+         * available, otherwise zero.
+         */
+        private final long address;
+
+        private SharedFile(Path path, boolean unsafeEnabled) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(
+                    path,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                try (FileLock ignored = channel.lock()) {
+                    long fileByteCount = channel.size();
+                    if (fileByteCount == 0) {
+                        // Extend the file with zeros and then write the header.
+                        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_BYTE_COUNT);
+                        buffer.order(ByteOrder.nativeOrder()).putLong(0, MAGIC);
+                        buffer.force();
+                    } else if (fileByteCount != FILE_BYTE_COUNT) {
+                        String message = String.format(
+                                "unexpected shared rate limiter file size (path=%s, size=%d)",
+                                path, fileByteCount);
+                        throw new IOException(message);
+                    }
+                }
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_BYTE_COUNT);
+                buffer.order(ByteOrder.nativeOrder());
+                if (buffer.getLong(0) != MAGIC) {
+                    String message = String.format("invalid shared rate limiter file header (path=%s)", path);
+                    throw new IOException(message);
+                }
+            } catch (IOException | RuntimeException error) {
+                channel.close();
+                throw error;
+            }
+            this.address = unsafeEnabled && UnsafeAccessor.AVAILABLE
+                    ? UnsafeAccessor.getBufferAddress(buffer)
+                    : 0L;
+        }
+
+        static SharedFile of(Path path) {
+            Path absolutePath = path.toAbsolutePath().normalize();
+            return FILE_BY_PATH.computeIfAbsent(absolutePath, ignored -> open(absolutePath, true));
+        }
+
+        static SharedFile open(Path path, boolean unsafeEnabled) {
+            try {
+                return new SharedFile(path, unsafeEnabled);
+            } catch (IOException error) {
+                String message = String.format("failed opening the shared rate limiter file (path=%s)", path);
+                throw new UncheckedIOException(message, error);
+            }
+        }
+
+        boolean isUnsafeEnabled() {
+            return address != 0L;
+        }
+
+        /**
+         * Initializes the slot, unless another process has already done so.
+         *
+         * @return the offset of the slot state
+         */
+        synchronized int initSlot(
+                int slotIndex,
+                int maxPermitCountPerCycle,
+                long cyclePeriodNanos,
+                long initialState) {
+            if (slotIndex < 0 || slotIndex >= SLOT_COUNT) {
+                String message = String.format(
+                        "was expecting a slot index in [0, %d), found %d (path=%s)",
+                        SLOT_COUNT, slotIndex, path);
+                throw new IllegalArgumentException(message);
+            }
+            int stateOffset = (slotIndex + 1) * SLOT_BYTE_COUNT;
+            try (FileLock ignored = channel.lock(stateOffset, SLOT_BYTE_COUNT, false)) {
+                long slotCyclePeriodNanos = buffer.getLong(stateOffset + CYCLE_PERIOD_OFFSET);
+                if (slotCyclePeriodNanos == 0) {
+                    buffer.putLong(stateOffset, initialState);
+                    buffer.putLong(stateOffset + MAX_PERMIT_COUNT_OFFSET, maxPermitCountPerCycle);
+                    buffer.putLong(stateOffset + CYCLE_PERIOD_OFFSET, cyclePeriodNanos);
+                } else {
+                    long slotMaxPermitCountPerCycle = buffer.getLong(stateOffset + MAX_PERMIT_COUNT_OFFSET);
+                    if (slotMaxPermitCountPerCycle != maxPermitCountPerCycle || slotCyclePeriodNanos != cyclePeriodNanos) {
+                        String message = String.format(
+                                "shared rate limiter slot mismatch " +
+                                        "(path=%s, slotIndex=%d, slotMaxPermitCountPerCycle=%d, " +
+                                        "slotCyclePeriodNanos=%d, maxPermitCountPerCycle=%d, cyclePeriodNanos=%d)",
+                                path, slotIndex, slotMaxPermitCountPerCycle,
+                                slotCyclePeriodNanos, maxPermitCountPerCycle, cyclePeriodNanos);
+                        throw new IllegalStateException(message);
+                    }
+                }
+            } catch (IOException error) {
+                String message = String.format(
+                        "failed initializing the shared rate limiter slot (path=%s, slotIndex=%d)",
+                        path, slotIndex);
+                throw new UncheckedIOException(message, error);
+            }
+            return stateOffset;
+        }
+
+        long getLong(int offset) {
+            if (address != 0L) {
+                return UnsafeAccessor.getLongVolatile(address + offset);
+            }
+            synchronized (this) {
+                return buffer.getLong(offset);
+            }
+        }
+
+        boolean compareAndSetLong(int offset, long prevValue, long nextValue) {
+            if (address != 0L) {
+                return UnsafeAccessor.compareAndSwapLong(address + offset, prevValue, nextValue);
+            }
+            synchronized (this) {
+                try (FileLock ignored = channel.lock(offset, Long.BYTES, false)) {
+                    if (buffer.getLong(offset) != prevValue) {
+                        return false;
+                    }
+                    buffer.putLong(offset, nextValue);
+                    return true;
+                } catch (IOException error) {
+                    String message = String.format("failed locking the shared rate limiter file (path=%s)", path);
+                    throw new UncheckedIOException(message, error);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Accesses {@code sun.misc.Unsafe} via method handles looked up
+     * reflectively, so that neither compiling nor loading this class
+     * depends on it.
+     */
+    private static final class UnsafeAccessor {
+
+        private static final boolean AVAILABLE;
+
+        private static final MethodHandle GET_LONG;
+
+        private static final MethodHandle GET_LONG_VOLATILE;
+
+        private static final MethodHandle COMPARE_AND_SWAP_LONG;
+
+        private static final long BUFFER_ADDRESS_OFFSET;
+
+        static {
+            boolean available;
+            MethodHandle getLong;
+            MethodHandle getLongVolatile;
+            MethodHandle compareAndSwapLong;
+            long bufferAddressOffset;
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field unsafeField = unsafeClass.getDeclaredField("theUnsafe");
+                unsafeField.setAccessible(true);
+                Object unsafe = unsafeField.get(null);
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                MethodType getLongType = MethodType.methodType(long.class, Object.class, long.class);
+                getLong = lookup
+                        .findVirtual(unsafeClass, "getLong", getLongType)
+                        .bindTo(unsafe);
+                getLongVolatile = lookup
+                        .findVirtual(unsafeClass, "getLongVolatile", getLongType)
+                        .bindTo(unsafe);
+                compareAndSwapLong = lookup
+                        .findVirtual(
+                                unsafeClass,
+                                "compareAndSwapLong",
+                                MethodType.methodType(
+                                        boolean.class, Object.class, long.class, long.class, long.class))
+                        .bindTo(unsafe);
+                MethodHandle objectFieldOffset = lookup
+                        .findVirtual(unsafeClass, "objectFieldOffset", MethodType.methodType(long.class, Field.class))
+                        .bindTo(unsafe);
+                bufferAddressOffset = (long) objectFieldOffset.invokeExact(Buffer.class.getDeclaredField("address"));
+                available = true;
+            } catch (Throwable ignored) {
+                available = false;
+                getLong = null;
+                getLongVolatile = null;
+                compareAndSwapLong = null;
+                bufferAddressOffset = -1;
+            }
+            AVAILABLE = available;
+            GET_LONG = getLong;
+            GET_LONG_VOLATILE = getLongVolatile;
+            COMPARE_AND_SWAP_LONG = compareAndSwapLong;
+            BUFFER_ADDRESS_OFFSET = bufferAddressOffset;
+        }
+
+        private static long getBufferAddress(Buffer buffer) {
+            try {
+                return (long) GET_LONG.invokeExact((Object) buffer, BUFFER_ADDRESS_OFFSET);
+            } catch (Throwable error) {
+                throw new IllegalStateException("failed reading the buffer address", error);
+            }
+        }
+
+        private static long getLongVolatile(long address) {
+            try {
+                return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address);
+            } catch (Throwable error) {
+                throw new IllegalStateException("failed reading the mapped memory", error);
+            }
+        }
+
+        private static boolean compareAndSwapLong(long address, long prevValue, long nextValue) {
+            try {
+                return (boolean) COMPARE_AND_SWAP_LONG.invokeExact((Object) null, address, prevValue, nextValue);
+            } catch (Throwable error) {
+                throw new IllegalStateException("failed updating the mapped memory", error);
+            }
+        }
+
+    }
+
+}
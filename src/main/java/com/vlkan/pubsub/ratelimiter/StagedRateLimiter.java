@@ -20,12 +20,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalUnit;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -79,8 +83,19 @@ import java.util.regex.Pattern;
  * </table>
  * </blockquote>
  *
+ * <p>A limit can be suffixed with a burst permit count, e.g.,
+ * <code>100/1s~10</code>, to spread its permits evenly using a {@link
+ * GcraRateLimiter} admitting bursts of up to 10 permits, rather than
+ * replenishing all 100 permits at the start of each second. Such limits
+ * override the {@link RateLimiterFactory}.
+ *
  * <p>By contract, initially the active stage is set to the one with the slowest
  * success rate limit.
+ *
+ * <p>The class is lock-free: the active stage index is stored along with an
+ * epoch incremented at every transition, and transitions are performed via a
+ * CAS on both. Among concurrent callers observing the same epoch, only one
+ * performs (and logs) the transition.
  */
 public class StagedRateLimiter {
 
@@ -102,12 +117,148 @@ public class StagedRateLimiter {
 
     private final int rateLimiterCount;
 
-    private volatile int activeRateLimiterIndex;
+    /**
+     * Active stage index in the low 32 bits, and the transition epoch in the
+     * high 32 bits.
+     */
+    private final AtomicLong activeState;
+
+    /**
+     * Factory of the rate limiters employed by stages. Instances are obtained
+     * via the provided static factory methods, since rate limiters are not
+     * exposed.
+     */
+    public static final class RateLimiterFactory {
+
+        private final BiFunction<Integer, Duration, RateLimiter> creator;
+
+        RateLimiterFactory(BiFunction<Integer, Duration, RateLimiter> creator) {
+            this.creator = Objects.requireNonNull(creator, "creator");
+        }
+
+        RateLimiter create(int maxPermitCountPerCycle, Duration cyclePeriod) {
+            return creator.apply(maxPermitCountPerCycle, cyclePeriod);
+        }
+
+        /**
+         * Creates rate limiters claiming permits via a single CAS on a shared
+         * state. This is the default.
+         */
+        public static RateLimiterFactory ofAtomic() {
+            return new RateLimiterFactory(RateLimiter::new);
+        }
+
+        /**
+         * Creates striped rate limiters with a stripe per available processor.
+         * See {@link #ofStriped(int)}.
+         */
+        public static RateLimiterFactory ofStriped() {
+            return new RateLimiterFactory(StripedRateLimiter::new);
+        }
+
+        /**
+         * Creates rate limiters spreading permit claims over the given number
+         * (rounded up to a power of two) of stripes, where each stripe leases
+         * blocks of permits from the shared state. These never admit more than
+         * the configured rate, though they can under-admit by at most {@code
+         * stripeCount * leaseBlockSize} permits per cycle under contention.
+         * Suitable for rates of 100k+ permits per second.
+         */
+        public static RateLimiterFactory ofStriped(int stripeCount) {
+            return new RateLimiterFactory((maxPermitCountPerCycle, cyclePeriod) ->
+                    new StripedRateLimiter(maxPermitCountPerCycle, cyclePeriod, stripeCount));
+        }
+
+        /**
+         * Creates GCRA rate limiters spreading permits evenly over the cycle,
+         * i.e., without any bursts. See {@link #ofGcra(int)}.
+         */
+        public static RateLimiterFactory ofGcra() {
+            return ofGcra(1);
+        }
+
+        /**
+         * Creates GCRA rate limiters spreading permits evenly over the cycle
+         * and admitting bursts of up to the given permit count, capped at the
+         * max. permit count per cycle. Limits with an explicit burst in the
+         * spec, e.g., {@code 100/1s~10}, override this.
+         */
+        public static RateLimiterFactory ofGcra(int burstPermitCount) {
+            if (burstPermitCount < 1) {
+                String message = String.format(
+                        "was expecting a non-zero positive burst permit count, found %d", burstPermitCount);
+                throw new IllegalArgumentException(message);
+            }
+            return new RateLimiterFactory((maxPermitCountPerCycle, cyclePeriod) -> new GcraRateLimiter(
+                    maxPermitCountPerCycle,
+                    cyclePeriod,
+                    Math.min(burstPermitCount, maxPermitCountPerCycle)));
+        }
+
+        /**
+         * Creates rate limiters whose state lives in the given memory-mapped
+         * file, so that all processes on the host share the budget of each
+         * stage. Rate limiters are assigned to slots of the file in creation
+         * order. Hence, processes sharing a file must use the same spec, and
+         * each staged rate limiter needs a separate file. Note that the active
+         * stage is still tracked per process.
+         */
+        public static RateLimiterFactory ofSharedFile(Path path) {
+            Objects.requireNonNull(path, "path");
+            AtomicInteger slotIndexCounter = new AtomicInteger(0);
+            return new RateLimiterFactory((maxPermitCountPerCycle, cyclePeriod) -> new SharedFileRateLimiter(
+                    SharedFileRateLimiter.SharedFile.of(path),
+                    slotIndexCounter.getAndIncrement(),
+                    maxPermitCountPerCycle,
+                    cyclePeriod));
+        }
+
+    }
+
+    /**
+     * Permits claimed via {@link #claimAvailablePermits(int)}.
+     */
+    public static final class PermitClaim {
+
+        /**
+         * Rate limiter the permits are claimed from, or {@code null}, if the
+         * permits are not limited.
+         */
+        @Nullable
+        private final RateLimiter rateLimiter;
+
+        private final long claim;
+
+        private final int permitCount;
+
+        private final long waitPeriodNanos;
+
+        private PermitClaim(@Nullable RateLimiter rateLimiter, long claim, int permitCount, long waitPeriodNanos) {
+            this.rateLimiter = rateLimiter;
+            this.claim = claim;
+            this.permitCount = permitCount;
+            this.waitPeriodNanos = waitPeriodNanos;
+        }
+
+        public int getPermitCount() {
+            return permitCount;
+        }
 
-    @FunctionalInterface
-    interface RateLimiterFactory {
+        /**
+         * Returns the time in nanoseconds until the next permit becomes
+         * available, if no permits are claimed; zero, otherwise.
+         */
+        public long getWaitPeriodNanos() {
+            return waitPeriodNanos;
+        }
 
-        RateLimiter create(int maxPermitCountPerCycle, Duration cyclePeriod);
+        @Override
+        public String toString() {
+            return "PermitClaim{" +
+                    "permitCount=" + permitCount +
+                    ", waitPeriodNanos=" + waitPeriodNanos +
+                    '}';
+        }
 
     }
 
@@ -125,25 +276,25 @@ public class StagedRateLimiter {
         this.successRateLimiters = successRateLimiters;
         this.failureRateLimiters = failureRateLimiters;
         this.rateLimiterCount = successRateLimiters.size();
-        this.activeRateLimiterIndex = rateLimiterCount - 1;
-
+        this.activeState = new AtomicLong(rateLimiterCount - 1);
     }
 
     static StagedRateLimiter of(String name, String spec) {
-        return of(name, spec, RateLimiter::new);
+        return of(name, spec, RateLimiterFactory.ofAtomic());
     }
 
     static StagedRateLimiter of(String name, String spec, RateLimiterFactory rateLimiterFactory) {
         try {
 
             // Check spec pattern.
+            String limitPattern = "[0-9]+/[0-9]+[hms](~[0-9]+)?";
             String pattern =
                     // The first pair must just have a success spec.
-                    "([0-9]+/[0-9]+[hms])?:" +
+                    "(" + limitPattern + ")?:" +
                             // Intermediate pairs must have a success spec and an optional failure spec.
-                            "(\\s*,\\s*[0-9]+/[0-9]+[hms]:([0-9]+/[0-9]+[hms])?)+" +
+                            "(\\s*,\\s*" + limitPattern + ":(" + limitPattern + ")?)+" +
                             // Both success and failure specs are optional for the last pair.
-                            "\\s*,\\s*([0-9]+/[0-9]+[hms])?:([0-9]+/[0-9]+[hms])?";
+                            "\\s*,\\s*(" + limitPattern + ")?:(" + limitPattern + ")?";
             boolean patternMatched = spec.matches(pattern);
             if (!patternMatched) {
                 String message = String.format("regex mismatch (pattern=%s)", pattern);
@@ -229,7 +380,7 @@ public class StagedRateLimiter {
     }
 
     private static RateLimiter createRateLimiter(String spec, RateLimiterFactory rateLimiterFactory) {
-        String pattern = "([0-9]+)/([0-9]+)([hms])";
+        String pattern = "([0-9]+)/([0-9]+)([hms])(?:~([0-9]+))?";
         Matcher matcher = Pattern.compile(pattern).matcher(spec);
         boolean matched = matcher.matches();
         if (!matched) {
@@ -243,6 +394,11 @@ public class StagedRateLimiter {
         long cyclePeriodAmount = Long.parseLong(cyclePeriodAmountText);
         TemporalUnit cyclePeriodUnit = parseTemporalUnit(cyclePeriodUnitText);
         Duration cyclePeriod = Duration.of(cyclePeriodAmount, cyclePeriodUnit);
+        @Nullable String burstPermitCountText = matcher.group(4);
+        if (burstPermitCountText != null) {
+            int burstPermitCount = Integer.parseInt(burstPermitCountText);
+            return new GcraRateLimiter(maxPermitCountPerCycle, cyclePeriod, burstPermitCount);
+        }
         return rateLimiterFactory.create(maxPermitCountPerCycle, cyclePeriod);
     }
 
@@ -263,12 +419,16 @@ public class StagedRateLimiter {
         return spec;
     }
 
-    synchronized String getActiveSuccessRateLimitSpec() {
-        return successRateLimitSpecs.get(activeRateLimiterIndex);
+    String getActiveSuccessRateLimitSpec() {
+        return successRateLimitSpecs.get(getActiveRateLimiterIndex(activeState.get()));
     }
 
-    synchronized String getActiveFailureRateLimitSpec() {
-        return failureRateLimitSpecs.get(activeRateLimiterIndex);
+    String getActiveFailureRateLimitSpec() {
+        return failureRateLimitSpecs.get(getActiveRateLimiterIndex(activeState.get()));
+    }
+
+    private static int getActiveRateLimiterIndex(long activeState) {
+        return (int) activeState;
     }
 
     /**
@@ -278,14 +438,45 @@ public class StagedRateLimiter {
      * @return Time in nanoseconds that the permit will become available. A
      *         zero value indicates that the permit is immediately available.
      */
-    public synchronized long nextPermitWaitPeriodNanos() {
+    public long nextPermitWaitPeriodNanos() {
+        return nextPermitWaitPeriodNanos(1);
+    }
+
+    /**
+     * Claim the given number of permits. Exceeding the current success rate
+     * limit will replace the active stage with the next faster one, if there
+     * is any. Permits that are not immediately available in the last stage
+     * are reserved, i.e., they must not be claimed again after waiting. In
+     * the other stages, permits are claimed either all or none, without any
+     * reservations.
+     *
+     * @return Time in nanoseconds that the permits will become available. A
+     *         zero value indicates that the permits are immediately available.
+     */
+    public long nextPermitWaitPeriodNanos(int permitCount) {
+        if (permitCount < 1) {
+            String message = String.format("was expecting a non-zero positive permit count, found %d", permitCount);
+            throw new IllegalArgumentException(message);
+        }
+        long prevActiveState = activeState.get();
+        int activeRateLimiterIndex = getActiveRateLimiterIndex(prevActiveState);
         @Nullable RateLimiter activeSuccessRateLimiter = successRateLimiters.get(activeRateLimiterIndex);
         if (activeSuccessRateLimiter != null) {
-            long permitWaitPeriodNanos = activeSuccessRateLimiter.nextPermitWaitPeriodNanos();
+            int nextActiveRateLimiterIndex = activeRateLimiterIndex + 1;
+            boolean lastStage = nextActiveRateLimiterIndex >= rateLimiterCount;
+            long permitWaitPeriodNanos;
+            if (permitCount == 1) {
+                permitWaitPeriodNanos = activeSuccessRateLimiter.nextPermitWaitPeriodNanos();
+            } else if (lastStage) {
+                permitWaitPeriodNanos = activeSuccessRateLimiter.nextPermitWaitPeriodNanos(permitCount);
+            } else {
+                // Don't leave a debt in a stage that is about to be left.
+                permitWaitPeriodNanos = activeSuccessRateLimiter.tryClaimPermits(permitCount);
+            }
             if (permitWaitPeriodNanos > 0) {
-                int nextActiveRateLimiterIndex = activeRateLimiterIndex + 1;
-                if (nextActiveRateLimiterIndex < rateLimiterCount) {
-                    unsychronizedSetRate(nextActiveRateLimiterIndex);
+                if (!lastStage) {
+                    // Losing the race implies a concurrent transition, hence no retries.
+                    trySetRate(prevActiveState, nextActiveRateLimiterIndex);
                 } else {
                     return permitWaitPeriodNanos;
                 }
@@ -294,25 +485,89 @@ public class StagedRateLimiter {
         return 0L;
     }
 
+    /**
+     * Claims up to the given number of permits that are immediately available,
+     * without reserving any. Exceeding the current success rate limit will
+     * replace the active stage with the next faster one, if there is any, and
+     * grant all permits. Unused permits can be returned via {@link
+     * #releasePermits(PermitClaim, int)}.
+     */
+    public PermitClaim claimAvailablePermits(int maxPermitCount) {
+        if (maxPermitCount < 1) {
+            String message = String.format(
+                    "was expecting a non-zero positive max. permit count, found %d", maxPermitCount);
+            throw new IllegalArgumentException(message);
+        }
+        long prevActiveState = activeState.get();
+        int activeRateLimiterIndex = getActiveRateLimiterIndex(prevActiveState);
+        @Nullable RateLimiter activeSuccessRateLimiter = successRateLimiters.get(activeRateLimiterIndex);
+        if (activeSuccessRateLimiter != null) {
+            long claim = activeSuccessRateLimiter.claimAvailablePermits(maxPermitCount);
+            int permitCount = (int) claim;
+            int nextActiveRateLimiterIndex = activeRateLimiterIndex + 1;
+            boolean lastStage = nextActiveRateLimiterIndex >= rateLimiterCount;
+            if (lastStage) {
+                long waitPeriodNanos = permitCount > 0
+                        ? 0L
+                        : Math.max(1L, activeSuccessRateLimiter.calculatePermitWaitPeriodNanos());
+                return new PermitClaim(activeSuccessRateLimiter, claim, permitCount, waitPeriodNanos);
+            }
+            if (permitCount < maxPermitCount) {
+                // Don't leave a debt in a stage that is about to be left.
+                activeSuccessRateLimiter.releasePermits(claim, permitCount);
+                // Losing the race implies a concurrent transition, hence no retries.
+                trySetRate(prevActiveState, nextActiveRateLimiterIndex);
+            } else {
+                return new PermitClaim(activeSuccessRateLimiter, claim, permitCount, 0L);
+            }
+        }
+        return new PermitClaim(null, 0L, maxPermitCount, 0L);
+    }
+
+    /**
+     * Returns the given number of unused permits of a claim obtained via
+     * {@link #claimAvailablePermits(int)}. Permits are not returned, if their
+     * cycle is already over.
+     */
+    public void releasePermits(PermitClaim claim, int permitCount) {
+        Objects.requireNonNull(claim, "claim");
+        if (permitCount < 0 || permitCount > claim.permitCount) {
+            String message = String.format(
+                    "was expecting a permit count in [0, %d], found %d",
+                    claim.permitCount, permitCount);
+            throw new IllegalArgumentException(message);
+        }
+        if (claim.rateLimiter != null) {
+            claim.rateLimiter.releasePermits(claim.claim, permitCount);
+        }
+    }
+
     /**
      * Acknowledge a failure. Exceeding the current failure rate limit will
      * replace the active stage with the next slower one, if there is any.
      */
-    public synchronized void acknowledgeFailure() {
+    public void acknowledgeFailure() {
+        long prevActiveState = activeState.get();
+        int activeRateLimiterIndex = getActiveRateLimiterIndex(prevActiveState);
         @Nullable RateLimiter activeFailureRateLimiter = failureRateLimiters.get(activeRateLimiterIndex);
         boolean acquired = activeFailureRateLimiter != null && activeFailureRateLimiter.nextPermitWaitPeriodNanos() == 0L;
         if (!acquired) {
             int nextActiveRateLimiterIndex = activeRateLimiterIndex - 1;
             if (nextActiveRateLimiterIndex >= 0) {
-                unsychronizedSetRate(nextActiveRateLimiterIndex);
+                trySetRate(prevActiveState, nextActiveRateLimiterIndex);
             }
         }
     }
 
-    private void unsychronizedSetRate(int nextActiveRateLimiterIndex) {
-        String direction = activeRateLimiterIndex < nextActiveRateLimiterIndex ? "up" : "down";
-        activeRateLimiterIndex = nextActiveRateLimiterIndex;
+    private void trySetRate(long prevActiveState, int nextActiveRateLimiterIndex) {
+        long nextEpoch = (prevActiveState >>> 32) + 1;
+        long nextActiveState = (nextEpoch << 32) | nextActiveRateLimiterIndex;
+        if (!activeState.compareAndSet(prevActiveState, nextActiveState)) {
+            return;
+        }
         if (LOGGER.isInfoEnabled()) {
+            int prevActiveRateLimiterIndex = getActiveRateLimiterIndex(prevActiveState);
+            String direction = prevActiveRateLimiterIndex < nextActiveRateLimiterIndex ? "up" : "down";
             String successRateLimitSpec = successRateLimitSpecs.get(nextActiveRateLimiterIndex);
             String failureRateLimitSpec = failureRateLimitSpecs.get(nextActiveRateLimiterIndex);
             LOGGER.info(
@@ -331,6 +586,8 @@ public class StagedRateLimiter {
 
         private String spec = DEFAULT_RATE_LIMITER_SPEC;
 
+        private RateLimiterFactory rateLimiterFactory = RateLimiterFactory.ofAtomic();
+
         private Builder() {}
 
         public Builder setName(String name) {
@@ -343,9 +600,14 @@ public class StagedRateLimiter {
             return this;
         }
 
+        public Builder setRateLimiterFactory(RateLimiterFactory rateLimiterFactory) {
+            this.rateLimiterFactory = Objects.requireNonNull(rateLimiterFactory, "rateLimiterFactory");
+            return this;
+        }
+
         public StagedRateLimiter build() {
             Objects.requireNonNull(name, "name");
-            return of(name, spec, RateLimiter::new);
+            return of(name, spec, rateLimiterFactory);
         }
 
     }
@@ -28,6 +28,7 @@ import java.util.Collections;
 import java.util.Map;
 import java.util.Objects;
 import java.util.function.Function;
+import java.util.function.ToIntFunction;
 
 public class StagedRateLimiterReactorDecoratorFactory {
 
@@ -68,41 +69,56 @@ public class StagedRateLimiterReactorDecoratorFactory {
     }
 
     public <V> Function<Mono<V>, Mono<V>> ofMono() {
+        return ofMono(ignored -> 1);
+    }
+
+    /**
+     * Creates a decorator claiming the number of permits determined by the
+     * weigher for the emitted value. Zero weights don't claim any permits.
+     */
+    public <V> Function<Mono<V>, Mono<V>> ofMono(ToIntFunction<V> weigher) {
+        Objects.requireNonNull(weigher, "weigher");
         return (Mono<V> mono) -> mono
-                .delayUntil(value -> {
-                    long permitWaitPeriodNanos = stagedRateLimiter.nextPermitWaitPeriodNanos();
-                    if (permitWaitPeriodDistributions != null) {
-                        permitWaitPeriodDistributions.record(permitWaitPeriodNanos);
-                    }
-                    if (permitWaitPeriodNanos > 0L) {
-                        return scheduler == null
-                                ? Mono.delay(Duration.ofNanos(permitWaitPeriodNanos))
-                                : Mono.delay(Duration.ofNanos(permitWaitPeriodNanos), scheduler);
-                    } else {
-                        return Mono.empty();
-                    }
-                })
+                .delayUntil(value -> claimPermits(weigher.applyAsInt(value)))
                 .doOnError(ignored -> stagedRateLimiter.acknowledgeFailure());
     }
 
     public <V> Function<Flux<V>, Flux<V>> ofFlux() {
+        return ofFlux(ignored -> 1);
+    }
+
+    /**
+     * Creates a decorator claiming the number of permits determined by the
+     * weigher for each emitted value, e.g., the number of messages in a pull
+     * response. Zero weights don't claim any permits.
+     */
+    public <V> Function<Flux<V>, Flux<V>> ofFlux(ToIntFunction<V> weigher) {
+        Objects.requireNonNull(weigher, "weigher");
         return (Flux<V> flux) -> flux
-                .delayUntil(value -> {
-                    long permitWaitPeriodNanos = stagedRateLimiter.nextPermitWaitPeriodNanos();
-                    if (permitWaitPeriodDistributions != null) {
-                        permitWaitPeriodDistributions.record(permitWaitPeriodNanos);
-                    }
-                    if (permitWaitPeriodNanos > 0L) {
-                        return scheduler == null
-                                ? Mono.delay(Duration.ofNanos(permitWaitPeriodNanos))
-                                : Mono.delay(Duration.ofNanos(permitWaitPeriodNanos), scheduler);
-                    } else {
-                        return Mono.empty();
-                    }
-                })
+                .delayUntil(value -> claimPermits(weigher.applyAsInt(value)))
                 .doOnError(ignored -> stagedRateLimiter.acknowledgeFailure());
     }
 
+    private Mono<Long> claimPermits(int permitCount) {
+        if (permitCount == 0) {
+            return Mono.empty();
+        } else if (permitCount < 0) {
+            String message = String.format("was expecting a non-negative weight, found %d", permitCount);
+            return Mono.error(new IllegalArgumentException(message));
+        }
+        long permitWaitPeriodNanos = stagedRateLimiter.nextPermitWaitPeriodNanos(permitCount);
+        if (permitWaitPeriodDistributions != null) {
+            permitWaitPeriodDistributions.record(permitWaitPeriodNanos);
+        }
+        if (permitWaitPeriodNanos > 0L) {
+            return scheduler == null
+                    ? Mono.delay(Duration.ofNanos(permitWaitPeriodNanos))
+                    : Mono.delay(Duration.ofNanos(permitWaitPeriodNanos), scheduler);
+        } else {
+            return Mono.empty();
+        }
+    }
+
     public static Builder builder() {
         return new Builder();
     }
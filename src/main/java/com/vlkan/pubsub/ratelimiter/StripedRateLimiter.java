@@ -0,0 +1,211 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub.ratelimiter;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link RateLimiter} spreading permit claims over stripes to avoid
+ * contending on a single memory location at high permit rates.
+ *
+ * <p>Each stripe leases blocks of up to {@link #leaseBlockSize} permits from
+ * the global state and hands them out locally. Leased permits are only valid
+ * within the cycle they are leased in, hence unused ones implicitly return to
+ * the global pool when the cycle ends. When the global pool is exhausted, a
+ * stripe steals the remaining permits of other stripes before asking its
+ * caller to wait. Therefore, the limiter never admits more than the configured
+ * rate per cycle, and it can under-admit by at most {@code stripeCount *
+ * leaseBlockSize} permits per cycle only when concurrent steals race with
+ * each other.
+ *
+ * <p>Threads are mapped to stripes by their IDs, which suits long-lived worker
+ * and event loop threads. Claims of multiple permits bypass the stripes and
+ * reserve from the global state.
+ */
+class StripedRateLimiter extends RateLimiter {
+
+    /**
+     * Number of {@code long}s between stripes, i.e., 128 bytes, to avoid
+     * false sharing, including the adjacent cache line prefetch.
+     */
+    private static final int STRIPE_STRIDE = 16;
+
+    private static final long PERMIT_COUNT_MASK = 0xFFFF_FFFFL;
+
+    private static final int MAX_STRIPE_COUNT = 1 << 16;
+
+    private final int stripeCount;
+
+    private final int stripeMask;
+
+    private final int leaseBlockSize;
+
+    /**
+     * Stripes holding the cycle index (modulo 2<sup>32</sup>) of their lease in
+     * the high 32 bits and the number of available leased permits in the low
+     * 32 bits.
+     */
+    private final AtomicLongArray stripes;
+
+    StripedRateLimiter(int maxPermitCountPerCycle, Duration cyclePeriod) {
+        this(maxPermitCountPerCycle, cyclePeriod, Runtime.getRuntime().availableProcessors());
+    }
+
+    StripedRateLimiter(int maxPermitCountPerCycle, Duration cyclePeriod, int stripeCount) {
+        this(maxPermitCountPerCycle,
+                cyclePeriod,
+                stripeCount,
+                defaultLeaseBlockSize(maxPermitCountPerCycle, stripeCount));
+    }
+
+    StripedRateLimiter(int maxPermitCountPerCycle, Duration cyclePeriod, int stripeCount, int leaseBlockSize) {
+        super(maxPermitCountPerCycle, cyclePeriod);
+        if (stripeCount < 1 || stripeCount > MAX_STRIPE_COUNT) {
+            String message = String.format(
+                    "was expecting a stripe count in [1, %d], found %d",
+                    MAX_STRIPE_COUNT, stripeCount);
+            throw new IllegalArgumentException(message);
+        }
+        if (leaseBlockSize < 1) {
+            throw new IllegalArgumentException("was expecting a non-zero positive lease block size");
+        }
+        this.stripeCount = ceilPowerOfTwo(stripeCount);
+        this.stripeMask = this.stripeCount - 1;
+        this.leaseBlockSize = leaseBlockSize;
+        this.stripes = new AtomicLongArray((this.stripeCount + 1) * STRIPE_STRIDE);
+    }
+
+    private static int ceilPowerOfTwo(int value) {
+        int highestOneBit = Integer.highestOneBit(value);
+        return highestOneBit == value ? value : highestOneBit << 1;
+    }
+
+    /**
+     * Leases a quarter of the fair share of a stripe at once, if possible.
+     */
+    private static int defaultLeaseBlockSize(int maxPermitCountPerCycle, int stripeCount) {
+        // Guards the division, the stripe count gets validated by the constructor afterwards.
+        return Math.max(1, Math.min(1_000, maxPermitCountPerCycle / (4 * Math.max(1, stripeCount))));
+    }
+
+    int getStripeCount() {
+        return stripeCount;
+    }
+
+    int getLeaseBlockSize() {
+        return leaseBlockSize;
+    }
+
+    @Override
+    long nextPermitWaitPeriodNanos() {
+        long threadId = Thread.currentThread().getId();
+        int stripeIndex = (int) (threadId ^ (threadId >>> 16)) & stripeMask;
+        return nextStripePermitWaitPeriodNanos(stripeIndex);
+    }
+
+    long nextStripePermitWaitPeriodNanos(int stripeIndex) {
+        int stripeOffset = (stripeIndex + 1) * STRIPE_STRIDE;
+        for (;;) {
+
+            // Try to claim a permit from the stripe.
+            int currentCycleIndex = getCurrentCycleIndex();
+            long prevStripe = stripes.get(stripeOffset);
+            if (tryClaimStripePermit(stripeOffset, prevStripe, currentCycleIndex)) {
+                return 0L;
+            }
+
+            // Try to lease a new block from the global pool.
+            long claim = claimAvailablePermits(leaseBlockSize);
+            int leasedPermitCount = (int) claim;
+            if (leasedPermitCount > 0) {
+                long nextStripe = (claim & ~PERMIT_COUNT_MASK) | (leasedPermitCount - 1);
+                if (stripes.compareAndSet(stripeOffset, prevStripe, nextStripe)) {
+                    return 0L;
+                }
+                // Another thread mapped to the same stripe has changed it.
+                // Keep the first permit of the lease and drop the rest of it
+                // in the stripe if it still belongs to the same cycle.
+                mergeLease(stripeOffset, claim, leasedPermitCount - 1);
+                return 0L;
+            }
+
+            // Try to steal a permit from other stripes.
+            if (tryStealPermit(stripeIndex, currentCycleIndex)) {
+                return 0L;
+            }
+
+            // Give up, if there is nothing left to claim.
+            long permitWaitPeriodNanos = calculatePermitWaitPeriodNanos();
+            if (permitWaitPeriodNanos > 0) {
+                return permitWaitPeriodNanos;
+            }
+
+        }
+    }
+
+    private boolean tryClaimStripePermit(int stripeOffset, long stripe, int currentCycleIndex) {
+        while ((int) (stripe >>> 32) == currentCycleIndex && (int) stripe > 0) {
+            if (stripes.compareAndSet(stripeOffset, stripe, stripe - 1)) {
+                return true;
+            }
+            stripe = stripes.get(stripeOffset);
+        }
+        return false;
+    }
+
+    private void mergeLease(int stripeOffset, long claim, int permitCount) {
+        if (permitCount == 0) {
+            return;
+        }
+        int claimCycleIndex = (int) (claim >>> 32);
+        for (;;) {
+            long prevStripe = stripes.get(stripeOffset);
+            int cycleDistance = (int) (prevStripe >>> 32) - claimCycleIndex;
+            if (cycleDistance > 0) {
+                // The stripe has already moved to a newer cycle, the lease is expired.
+                return;
+            }
+            long nextStripe = cycleDistance == 0
+                    ? prevStripe + permitCount
+                    : (claim & ~PERMIT_COUNT_MASK) | permitCount;
+            if (stripes.compareAndSet(stripeOffset, prevStripe, nextStripe)) {
+                return;
+            }
+        }
+    }
+
+    private boolean tryStealPermit(int stripeIndex, int currentCycleIndex) {
+        for (int stripeDistance = 1; stripeDistance < stripeCount; stripeDistance++) {
+            int victimStripeIndex = (stripeIndex + stripeDistance) & stripeMask;
+            int victimStripeOffset = (victimStripeIndex + 1) * STRIPE_STRIDE;
+            long victimStripe = stripes.get(victimStripeOffset);
+            if (tryClaimStripePermit(victimStripeOffset, victimStripe, currentCycleIndex)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%s{stripeCount=%d, leaseBlockSize=%d}",
+                super.toString(), stripeCount, leaseBlockSize);
+    }
+
+}
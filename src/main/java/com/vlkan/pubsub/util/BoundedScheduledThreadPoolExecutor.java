@@ -19,13 +19,15 @@ package com.vlkan.pubsub.util;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * A {@link ScheduledThreadPoolExecutor} wrapper enforcing a bound on the task
- * queue size. Excessive task queue growth yields {@link
- * RejectedExecutionException} errors. {@link RejectedExecutionHandler}s are
- * not supported since they expect a {@link ThreadPoolExecutor} in their
- * arguments.
+ * A {@link ScheduledThreadPoolExecutor} wrapper enforcing a bound on the
+ * number of in-flight, i.e., queued or running, tasks. Excessive task growth
+ * yields {@link RejectedExecutionException} errors. {@link
+ * RejectedExecutionHandler}s are not supported since they expect a {@link
+ * ThreadPoolExecutor} in their arguments.
  *
  * <p>Java Standard library unfortunately doesn't provide any {@link
  * ScheduledExecutorService} implementations that one can provide a bound on
@@ -34,6 +36,17 @@ import java.util.concurrent.*;
  * relevant concurrency-interest discussion</a> for {@link java.util.concurrent}
  * lead Doug Lea's tip for enforcing a bound via {@link
  * ScheduledThreadPoolExecutor#getQueue()}.
+ *
+ * <p>Rather than querying the lock-guarded queue size, tasks are counted via
+ * an atomic counter incremented on submission and decremented exactly once
+ * when the task completes, fails, or gets cancelled. Hence, the bound costs a
+ * single CAS per submission. Periodic tasks stay in-flight until they fail or
+ * get cancelled.
+ *
+ * <p>{@link #shutdownNow()} cancels the drained tasks and releases their slots.
+ * Periodic tasks cancelled by the wrapped executor itself upon {@link
+ * #shutdown()} keep their slots, which is harmless, since the executor rejects
+ * all submissions after shutdown anyway.
  */
 @SuppressWarnings("NullableProblems")
 public class BoundedScheduledThreadPoolExecutor implements ScheduledExecutorService {
@@ -42,6 +55,8 @@ public class BoundedScheduledThreadPoolExecutor implements ScheduledExecutorServ
 
     private final ScheduledThreadPoolExecutor executor;
 
+    private final AtomicInteger inFlightTaskCount = new AtomicInteger(0);
+
     public BoundedScheduledThreadPoolExecutor(
             int queueCapacity,
             ScheduledThreadPoolExecutor executor) {
@@ -53,41 +68,69 @@ public class BoundedScheduledThreadPoolExecutor implements ScheduledExecutorServ
         this.executor = executor;
     }
 
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return the number of submitted tasks that are neither completed nor
+     * cancelled yet
+     */
+    public int getInFlightTaskCount() {
+        return inFlightTaskCount.get();
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
-    public synchronized ScheduledFuture<?> schedule(
+    public ScheduledFuture<?> schedule(
             Runnable command,
             long delay,
             TimeUnit unit) {
-        ensureQueueCapacity(1);
-        return executor.schedule(command, delay, unit);
+        BoundedRunnable task = new BoundedRunnable(command, false);
+        try {
+            return new BoundedScheduledFuture<>(executor.schedule(task, delay, unit), task);
+        } catch (RuntimeException error) {
+            task.release();
+            throw error;
+        }
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public synchronized <V> ScheduledFuture<V> schedule(
+    public <V> ScheduledFuture<V> schedule(
             Callable<V> callable,
             long delay,
             TimeUnit unit) {
-        ensureQueueCapacity(1);
-        return executor.schedule(callable, delay, unit);
+        BoundedCallable<V> task = new BoundedCallable<>(callable);
+        try {
+            return new BoundedScheduledFuture<>(executor.schedule(task, delay, unit), task);
+        } catch (RuntimeException error) {
+            task.release();
+            throw error;
+        }
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public synchronized ScheduledFuture<?> scheduleAtFixedRate(
+    public ScheduledFuture<?> scheduleAtFixedRate(
             Runnable command,
             long initialDelay,
             long period,
             TimeUnit unit) {
-        ensureQueueCapacity(1);
-        return executor.scheduleAtFixedRate(command, initialDelay, period, unit);
+        BoundedRunnable task = new BoundedRunnable(command, true);
+        try {
+            return new BoundedScheduledFuture<>(
+                    executor.scheduleAtFixedRate(task, initialDelay, period, unit), task);
+        } catch (RuntimeException error) {
+            task.release();
+            throw error;
+        }
     }
 
     /**
@@ -99,8 +142,14 @@ public class BoundedScheduledThreadPoolExecutor implements ScheduledExecutorServ
             long initialDelay,
             long delay,
             TimeUnit unit) {
-        ensureQueueCapacity(1);
-        return executor.scheduleWithFixedDelay(command, initialDelay, delay, unit);
+        BoundedRunnable task = new BoundedRunnable(command, true);
+        try {
+            return new BoundedScheduledFuture<>(
+                    executor.scheduleWithFixedDelay(task, initialDelay, delay, unit), task);
+        } catch (RuntimeException error) {
+            task.release();
+            throw error;
+        }
     }
 
     /**
@@ -112,11 +161,25 @@ public class BoundedScheduledThreadPoolExecutor implements ScheduledExecutorServ
     }
 
     /**
-     * {@inheritDoc}
+     * Attempts to stop all actively executing tasks and cancels the drained
+     * ones, releasing their slots.
+     *
+     * @return the cancelled tasks that never commenced execution
      */
     @Override
     public List<Runnable> shutdownNow() {
-        return executor.shutdownNow();
+        List<Runnable> drainedTasks = executor.shutdownNow();
+        int cancelledTaskCount = 0;
+        for (Runnable drainedTask : drainedTasks) {
+            // Drained tasks are the futures of the submitted bounded tasks.
+            // Cancelling them ensures that they never release their slots
+            // again, neither by running, nor by getting cancelled.
+            if (drainedTask instanceof Future && ((Future<?>) drainedTask).cancel(false)) {
+                cancelledTaskCount++;
+            }
+        }
+        release(cancelledTaskCount);
+        return drainedTasks;
     }
 
     /**
@@ -148,90 +211,232 @@ public class BoundedScheduledThreadPoolExecutor implements ScheduledExecutorServ
      * {@inheritDoc}
      */
     @Override
-    public synchronized  <T> Future<T> submit(Callable<T> task) {
-        ensureQueueCapacity(1);
-        return executor.submit(task);
+    public <T> Future<T> submit(Callable<T> task) {
+        return schedule(task, 0, TimeUnit.NANOSECONDS);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public synchronized <T> Future<T> submit(Runnable task, T result) {
-        ensureQueueCapacity(1);
-        return executor.submit(task, result);
+    public <T> Future<T> submit(Runnable task, T result) {
+        return schedule(Executors.callable(task, result), 0, TimeUnit.NANOSECONDS);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public synchronized Future<?> submit(Runnable task) {
-        ensureQueueCapacity(1);
-        return executor.submit(task);
+    public Future<?> submit(Runnable task) {
+        return schedule(task, 0, TimeUnit.NANOSECONDS);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public synchronized <T> List<Future<T>> invokeAll(
+    public <T> List<Future<T>> invokeAll(
             Collection<? extends Callable<T>> tasks)
             throws InterruptedException {
-        ensureQueueCapacity(tasks.size());
-        return executor.invokeAll(tasks);
+        acquire(tasks.size());
+        try {
+            return executor.invokeAll(tasks);
+        } finally {
+            release(tasks.size());
+        }
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public synchronized <T> List<Future<T>> invokeAll(
+    public <T> List<Future<T>> invokeAll(
             Collection<? extends Callable<T>> tasks,
             long timeout,
             TimeUnit unit)
             throws InterruptedException {
-        ensureQueueCapacity(tasks.size());
-        return executor.invokeAll(tasks, timeout, unit);
+        acquire(tasks.size());
+        try {
+            return executor.invokeAll(tasks, timeout, unit);
+        } finally {
+            release(tasks.size());
+        }
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public synchronized <T> T invokeAny(Collection<? extends Callable<T>> tasks)
+    public <T> T invokeAny(Collection<? extends Callable<T>> tasks)
             throws InterruptedException, ExecutionException {
-        ensureQueueCapacity(tasks.size());
-        return executor.invokeAny(tasks);
+        acquire(tasks.size());
+        try {
+            return executor.invokeAny(tasks);
+        } finally {
+            release(tasks.size());
+        }
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public synchronized <T> T invokeAny(
+    public <T> T invokeAny(
             Collection<? extends Callable<T>> tasks,
             long timeout,
             TimeUnit unit)
             throws InterruptedException, ExecutionException, TimeoutException {
-        ensureQueueCapacity(tasks.size());
-        return executor.invokeAny(tasks, timeout, unit);
+        acquire(tasks.size());
+        try {
+            return executor.invokeAny(tasks, timeout, unit);
+        } finally {
+            release(tasks.size());
+        }
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public synchronized void execute(Runnable command) {
-        ensureQueueCapacity(1);
-        executor.submit(command);
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.NANOSECONDS);
     }
 
-    private void ensureQueueCapacity(int taskCount) {
-        int queueSize = executor.getQueue().size();
-        if ((queueSize + taskCount) >= queueCapacity) {
-            throw new RejectedExecutionException();
+    private void acquire(int taskCount) {
+        for (;;) {
+            int prevTaskCount = inFlightTaskCount.get();
+            int nextTaskCount = prevTaskCount + taskCount;
+            if (nextTaskCount > queueCapacity || nextTaskCount < 0) {
+                throw new RejectedExecutionException();
+            }
+            if (inFlightTaskCount.compareAndSet(prevTaskCount, nextTaskCount)) {
+                return;
+            }
         }
     }
 
+    private void release(int taskCount) {
+        inFlightTaskCount.addAndGet(-taskCount);
+    }
+
+    /**
+     * A task holding a slot of the in-flight task count, which is released
+     * exactly once, regardless of the race between completion and
+     * cancellation.
+     */
+    private abstract class BoundedTask {
+
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private BoundedTask() {
+            acquire(1);
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                BoundedScheduledThreadPoolExecutor.this.release(1);
+            }
+        }
+
+    }
+
+    private final class BoundedRunnable extends BoundedTask implements Runnable {
+
+        private final Runnable command;
+
+        private final boolean periodic;
+
+        private BoundedRunnable(Runnable command, boolean periodic) {
+            this.command = command;
+            this.periodic = periodic;
+        }
+
+        @Override
+        public void run() {
+            boolean succeeded = false;
+            try {
+                command.run();
+                succeeded = true;
+            } finally {
+                // Periodic tasks only complete on failures.
+                if (!periodic || !succeeded) {
+                    release();
+                }
+            }
+        }
+
+    }
+
+    private final class BoundedCallable<V> extends BoundedTask implements Callable<V> {
+
+        private final Callable<V> callable;
+
+        private BoundedCallable(Callable<V> callable) {
+            this.callable = callable;
+        }
+
+        @Override
+        public V call() throws Exception {
+            try {
+                return callable.call();
+            } finally {
+                release();
+            }
+        }
+
+    }
+
+    private static final class BoundedScheduledFuture<V> implements ScheduledFuture<V> {
+
+        private final ScheduledFuture<V> future;
+
+        private final BoundedTask task;
+
+        private BoundedScheduledFuture(ScheduledFuture<V> future, BoundedTask task) {
+            this.future = future;
+            this.task = task;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = future.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                task.release();
+            }
+            return cancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        @Override
+        public V get() throws InterruptedException, ExecutionException {
+            return future.get();
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            return future.get(timeout, unit);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return future.getDelay(unit);
+        }
+
+        @Override
+        public int compareTo(Delayed delayed) {
+            return future.compareTo(delayed);
+        }
+
+    }
+
 }
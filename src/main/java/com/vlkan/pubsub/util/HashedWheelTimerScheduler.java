@@ -0,0 +1,417 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub.util;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.Exceptions;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * A {@link Scheduler} tracking delays in a {@link HashedWheelTimer} and
+ * executing the due tasks on a delegate {@link Scheduler}.
+ *
+ * <p>{@link java.util.concurrent.ScheduledThreadPoolExecutor}-backed schedulers, e.g., {@link
+ * Schedulers#parallel()}, keep delayed tasks in a lock-guarded binary heap,
+ * which gets expensive with thousands of pending delays, e.g., throttled
+ * elements and idle pullers. A hashed timing wheel trades the timing precision
+ * for constant-time insertion and cancellation: delays are rounded up to the
+ * configured tick duration.
+ *
+ * <p>Tasks without a delay are directly passed to the delegate.
+ */
+public class HashedWheelTimerScheduler implements Scheduler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HashedWheelTimerScheduler.class);
+
+    public static final Duration DEFAULT_TICK_DURATION = Duration.ofMillis(10);
+
+    public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+    public static final String DEFAULT_THREAD_NAME = "pubsub-timer";
+
+    private final Duration tickDuration;
+
+    private final int ticksPerWheel;
+
+    private final Scheduler delegate;
+
+    private final HashedWheelTimer timer;
+
+    private volatile boolean disposed = false;
+
+    private HashedWheelTimerScheduler(Builder builder) {
+        this.tickDuration = builder.tickDuration;
+        this.ticksPerWheel = builder.ticksPerWheel;
+        this.delegate = builder.delegate;
+        this.timer = new HashedWheelTimer(
+                new DefaultThreadFactory(builder.threadName, true),
+                tickDuration.toNanos(),
+                TimeUnit.NANOSECONDS,
+                ticksPerWheel,
+                false);
+    }
+
+    public Duration getTickDuration() {
+        return tickDuration;
+    }
+
+    public int getTicksPerWheel() {
+        return ticksPerWheel;
+    }
+
+    public Scheduler getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @return the number of delayed tasks waiting in the timer
+     */
+    public long getPendingTaskCount() {
+        return timer.pendingTimeouts();
+    }
+
+    @Override
+    public Disposable schedule(Runnable task) {
+        ensureNotDisposed();
+        return delegate.schedule(task);
+    }
+
+    @Override
+    public Disposable schedule(Runnable task, long delay, TimeUnit unit) {
+        ensureNotDisposed();
+        if (delay <= 0) {
+            return delegate.schedule(task);
+        }
+        DelayedTask delayedTask = new DelayedTask(task, delegate::schedule, null);
+        delayedTask.start(delay, unit);
+        return delayedTask;
+    }
+
+    @Override
+    public Disposable schedulePeriodically(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        ensureNotDisposed();
+        if (period <= 0) {
+            return delegate.schedulePeriodically(task, initialDelay, period, unit);
+        }
+        PeriodicTask periodicTask = new PeriodicTask(task, delegate::schedule, null, unit.toNanos(period));
+        periodicTask.start(initialDelay, unit);
+        return periodicTask;
+    }
+
+    @Override
+    public Worker createWorker() {
+        ensureNotDisposed();
+        return new TimerWorker(delegate.createWorker());
+    }
+
+    private void ensureNotDisposed() {
+        if (disposed) {
+            throw Exceptions.failWithRejected();
+        }
+    }
+
+    /**
+     * Stops the timer, dropping the pending delayed tasks. The delegate is not
+     * disposed, since it is not owned by this scheduler.
+     */
+    @Override
+    public void dispose() {
+        if (!disposed) {
+            disposed = true;
+            timer.stop();
+        }
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return disposed;
+    }
+
+    @Override
+    public String toString() {
+        return "HashedWheelTimerScheduler{" +
+                "tickDuration=" + tickDuration +
+                ", ticksPerWheel=" + ticksPerWheel +
+                ", delegate=" + delegate +
+                '}';
+    }
+
+    private final class TimerWorker implements Worker {
+
+        private final Worker delegateWorker;
+
+        private final Disposable.Composite tasks;
+
+        private TimerWorker(Worker delegateWorker) {
+            this.delegateWorker = delegateWorker;
+            this.tasks = Disposables.composite();
+        }
+
+        @Override
+        public Disposable schedule(Runnable task) {
+            return delegateWorker.schedule(task);
+        }
+
+        @Override
+        public Disposable schedule(Runnable task, long delay, TimeUnit unit) {
+            if (delay <= 0) {
+                return delegateWorker.schedule(task);
+            }
+            DelayedTask delayedTask = new DelayedTask(task, delegateWorker::schedule, tasks);
+            if (!tasks.add(delayedTask)) {
+                throw Exceptions.failWithRejected();
+            }
+            delayedTask.start(delay, unit);
+            return delayedTask;
+        }
+
+        @Override
+        public Disposable schedulePeriodically(Runnable task, long initialDelay, long period, TimeUnit unit) {
+            if (period <= 0) {
+                return delegateWorker.schedulePeriodically(task, initialDelay, period, unit);
+            }
+            PeriodicTask periodicTask =
+                    new PeriodicTask(task, delegateWorker::schedule, tasks, unit.toNanos(period));
+            if (!tasks.add(periodicTask)) {
+                throw Exceptions.failWithRejected();
+            }
+            periodicTask.start(initialDelay, unit);
+            return periodicTask;
+        }
+
+        @Override
+        public void dispose() {
+            tasks.dispose();
+            delegateWorker.dispose();
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return tasks.isDisposed();
+        }
+
+    }
+
+    /**
+     * A task waiting in the timer till it is due, and then submitted to the
+     * delegate.
+     */
+    private class DelayedTask implements TimerTask, Disposable {
+
+        final Runnable task;
+
+        private final Function<Runnable, Disposable> submitter;
+
+        @Nullable
+        private final Disposable.Composite parent;
+
+        @Nullable
+        private volatile Timeout timeout;
+
+        @Nullable
+        private volatile Disposable submission;
+
+        volatile boolean disposed = false;
+
+        private DelayedTask(
+                Runnable task,
+                Function<Runnable, Disposable> submitter,
+                @Nullable Disposable.Composite parent) {
+            this.task = task;
+            this.submitter = submitter;
+            this.parent = parent;
+        }
+
+        void start(long delay, TimeUnit unit) {
+            try {
+                timeout = timer.newTimeout(this, delay, unit);
+            } catch (IllegalStateException | RejectedExecutionException error) {
+                // Stopped timer or too many pending timeouts.
+                dispose();
+                throw Exceptions.failWithRejected(error);
+            }
+        }
+
+        @Override
+        public void run(Timeout ignored) {
+            if (disposed) {
+                return;
+            }
+            Disposable nextSubmission;
+            try {
+                nextSubmission = submitter.apply(this::runTask);
+            } catch (RejectedExecutionException error) {
+                dispose();
+                LOGGER.warn("delegate has rejected the due task (delegate={})", delegate, error);
+                return;
+            }
+            submission = nextSubmission;
+            // Recheck to not miss a dispose() racing with the submission.
+            if (disposed) {
+                nextSubmission.dispose();
+            }
+        }
+
+        void runTask() {
+            if (parent != null) {
+                parent.remove(this);
+            }
+            task.run();
+        }
+
+        @Override
+        public void dispose() {
+            if (disposed) {
+                return;
+            }
+            disposed = true;
+            if (parent != null) {
+                parent.remove(this);
+            }
+            @Nullable Timeout lastTimeout = timeout;
+            if (lastTimeout != null) {
+                lastTimeout.cancel();
+            }
+            @Nullable Disposable lastSubmission = submission;
+            if (lastSubmission != null) {
+                lastSubmission.dispose();
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return disposed;
+        }
+
+    }
+
+    /**
+     * A task rescheduling itself at a fixed rate after each run. Runs never
+     * overlap: a run exceeding the period triggers the next one immediately.
+     */
+    private final class PeriodicTask extends DelayedTask {
+
+        private final long periodNanos;
+
+        private long nextInstantNanos;
+
+        private PeriodicTask(
+                Runnable task,
+                Function<Runnable, Disposable> submitter,
+                @Nullable Disposable.Composite parent,
+                long periodNanos) {
+            super(task, submitter, parent);
+            this.periodNanos = periodNanos;
+        }
+
+        @Override
+        void start(long delay, TimeUnit unit) {
+            long delayNanos = Math.max(0, unit.toNanos(delay));
+            nextInstantNanos = System.nanoTime() + delayNanos;
+            super.start(delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        void runTask() {
+            // An exception stops the repetition, as in Reactor schedulers.
+            task.run();
+            if (disposed) {
+                return;
+            }
+            nextInstantNanos += periodNanos;
+            long delayNanos = Math.max(0, nextInstantNanos - System.nanoTime());
+            try {
+                super.start(delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException ignored) {
+                // Stopped timer, the task is already disposed.
+            }
+        }
+
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+
+        private Duration tickDuration = DEFAULT_TICK_DURATION;
+
+        private int ticksPerWheel = DEFAULT_TICKS_PER_WHEEL;
+
+        private Scheduler delegate = Schedulers.parallel();
+
+        private String threadName = DEFAULT_THREAD_NAME;
+
+        private Builder() {}
+
+        public Builder setTickDuration(Duration tickDuration) {
+            Objects.requireNonNull(tickDuration, "tickDuration");
+            if (tickDuration.isNegative() || tickDuration.isZero()) {
+                throw new IllegalArgumentException(
+                        "was expecting a non-zero positive tick duration");
+            }
+            this.tickDuration = tickDuration;
+            return this;
+        }
+
+        public Builder setTicksPerWheel(int ticksPerWheel) {
+            if (ticksPerWheel < 1) {
+                throw new IllegalArgumentException(
+                        "was expecting a non-zero positive ticks per wheel");
+            }
+            this.ticksPerWheel = ticksPerWheel;
+            return this;
+        }
+
+        /**
+         * Sets the scheduler executing the tasks, which is {@link
+         * Schedulers#parallel()} by default. The timer thread never runs the
+         * tasks itself.
+         */
+        public Builder setDelegate(Scheduler delegate) {
+            this.delegate = Objects.requireNonNull(delegate, "delegate");
+            return this;
+        }
+
+        public Builder setThreadName(String threadName) {
+            this.threadName = Objects.requireNonNull(threadName, "threadName");
+            return this;
+        }
+
+        public HashedWheelTimerScheduler build() {
+            return new HashedWheelTimerScheduler(this);
+        }
+
+    }
+
+}
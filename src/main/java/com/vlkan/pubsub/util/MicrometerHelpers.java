@@ -17,17 +17,51 @@
 package com.vlkan.pubsub.util;
 
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
 import io.micrometer.core.instrument.Timer;
 import reactor.core.publisher.Mono;
 
+import java.util.Collections;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
 public enum MicrometerHelpers {;
 
+    /**
+     * Counts backing the gauges registered via {@link #registerCountGauge},
+     * by meter registry, which are weakly referenced.
+     */
+    private static final Map<MeterRegistry, Map<Meter.Id, AtomicInteger>> COUNT_BY_ID_BY_REGISTRY =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Registers a gauge backed by the returned count. Gauges are registered
+     * once per meter id, hence components registering the same gauge share a
+     * single count, rather than the gauge silently tracking the first one.
+     */
+    public static AtomicInteger registerCountGauge(MeterRegistry meterRegistry, String meterName, Tags tags) {
+        Map<Meter.Id, AtomicInteger> countById = COUNT_BY_ID_BY_REGISTRY
+                .computeIfAbsent(meterRegistry, ignored -> new ConcurrentHashMap<>());
+        Meter.Id id = new Meter.Id(meterName, tags, null, null, Meter.Type.GAUGE);
+        return countById.computeIfAbsent(id, ignored -> {
+            AtomicInteger count = new AtomicInteger(0);
+            Gauge
+                    .builder(meterName, count, AtomicInteger::get)
+                    .tags(tags)
+                    .strongReference(true)
+                    .register(meterRegistry);
+            return count;
+        });
+    }
+
     public static <T> Mono<T> measureLatency(
             MeterRegistry meterRegistry,
             String meterName,
@@ -35,44 +69,49 @@ public enum MicrometerHelpers {;
             String key,
             Function<Boolean, String[]> tagSupplier,
             Mono<T> mono) {
+        return measureLatency(
+                tags -> meterRegistry.timer(meterName, tags),
+                timerByKey,
+                key,
+                tagSupplier,
+                mono);
+    }
+
+    /**
+     * Measures the latency using timers created by the given factory, e.g.,
+     * to configure percentile histograms.
+     */
+    public static <T> Mono<T> measureLatency(
+            Function<String[], Timer> timerFactory,
+            Map<String, Timer> timerByKey,
+            String key,
+            Function<Boolean, String[]> tagSupplier,
+            Mono<T> mono) {
         return Mono
                 .fromCallable(System::nanoTime)
                 .flatMap(startInstantNanos -> mono
                         .doOnSuccess(ignored -> {
                             long durationNanos = System.nanoTime() - startInstantNanos;
-                            Timer timer = createSuccessTimer(meterRegistry, meterName, timerByKey, key, tagSupplier);
+                            Timer timer = createTimer(timerFactory, timerByKey, key, tagSupplier, true);
                             timer.record(durationNanos, TimeUnit.NANOSECONDS);
                         })
                         .doOnError(ignored -> {
                             long durationNanos = System.nanoTime() - startInstantNanos;
-                            Timer timer = createFailureTimer(meterRegistry, meterName, timerByKey, key, tagSupplier);
+                            Timer timer = createTimer(timerFactory, timerByKey, key, tagSupplier, false);
                             timer.record(durationNanos, TimeUnit.NANOSECONDS);
                         }));
     }
 
-    private static Timer createSuccessTimer(
-            MeterRegistry meterRegistry,
-            String meterName,
+    private static Timer createTimer(
+            Function<String[], Timer> timerFactory,
             Map<String, Timer> timerByKey,
             String key,
-            Function<Boolean, String[]> tagSupplier) {
-        String mapKey = key + "/success";
-        return timerByKey.computeIfAbsent(mapKey, ignoredKey -> {
-            String[] tags = tagSupplier.apply(true);
-            return meterRegistry.timer(meterName, tags);
-        });
-    }
-
-    private static Timer createFailureTimer(
-            MeterRegistry meterRegistry,
-            String meterName,
-            Map<String, Timer> timerByKey,
-            String key,
-            Function<Boolean, String[]> tagSupplier) {
-        String mapKey = key + "/failure";
+            Function<Boolean, String[]> tagSupplier,
+            boolean succeeded) {
+        String mapKey = key + (succeeded ? "/success" : "/failure");
         return timerByKey.computeIfAbsent(mapKey, ignoredKey -> {
-            String[] tags = tagSupplier.apply(false);
-            return meterRegistry.timer(meterName, tags);
+            String[] tags = tagSupplier.apply(succeeded);
+            return timerFactory.apply(tags);
         });
     }
 
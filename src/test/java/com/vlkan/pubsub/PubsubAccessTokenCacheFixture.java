@@ -17,6 +17,7 @@
 package com.vlkan.pubsub;
 
 import org.mockito.Mockito;
+import reactor.core.publisher.Mono;
 
 public enum PubsubAccessTokenCacheFixture {;
 
@@ -24,7 +25,7 @@ public enum PubsubAccessTokenCacheFixture {;
 
     private static PubsubAccessTokenCache instantiate() {
         PubsubAccessTokenCache instance = Mockito.mock(PubsubAccessTokenCache.class);
-        Mockito.when(instance.getAccessToken()).thenReturn("test");
+        Mockito.when(instance.getAccessToken()).thenReturn(Mono.just("test"));
         return instance;
     }
 
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.auth.oauth2.ServiceAccountCredentials;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class PubsubAccessTokenCacheRegistryTest {
+
+    private ScheduledThreadPoolExecutor executorService;
+
+    @Before
+    public void setUp() {
+        executorService = new ScheduledThreadPoolExecutor(1);
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void test_equal_credentials_share_a_cache() throws NoSuchAlgorithmException {
+        KeyPair keyPair = generateKeyPair();
+        PubsubAccessTokenCacheRegistry registry = PubsubAccessTokenCacheRegistry
+                .builder()
+                .setExecutorService(executorService)
+                .setSelfSignedJwtEnabled(true)
+                .build();
+        PubsubAccessTokenCache cache1 = registry.getAccessTokenCache(createCredentials("foo", keyPair));
+        PubsubAccessTokenCache cache2 = registry.getAccessTokenCache(createCredentials("foo", keyPair));
+        PubsubAccessTokenCache cache3 = registry.getAccessTokenCache(createCredentials("bar", keyPair));
+        Assertions.assertThat(cache1).isSameAs(cache2).isNotSameAs(cache3);
+        Assertions.assertThat(registry.getAccessTokenCacheCount()).isEqualTo(2);
+        Assertions.assertThat(cache1.getAccessToken().block(Duration.ofSeconds(5))).isNotEmpty();
+        Assertions.assertThat(cache3.getAccessToken().block(Duration.ofSeconds(5))).isNotEmpty();
+    }
+
+    @Test
+    public void test_meters() throws Exception {
+
+        // Create the registry.
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        PubsubAccessTokenCacheRegistry registry = PubsubAccessTokenCacheRegistry
+                .builder()
+                .setExecutorService(executorService)
+                .setSelfSignedJwtEnabled(true)
+                .setMeterRegistry(meterRegistry)
+                .build();
+
+        // Register a succeeding credentials.
+        ServiceAccountCredentials succeedingCredentials = createCredentials("foo", generateKeyPair());
+        registry.getAccessTokenCache(succeedingCredentials).getAccessToken().block(Duration.ofSeconds(5));
+        Timer timer = meterRegistry
+                .get(PubsubAccessTokenCache.DEFAULT_METER_NAME_PREFIX + ".refreshLatency")
+                .tag("credentials", succeedingCredentials.getClientEmail())
+                .timer();
+        Assertions.assertThat(timer.count()).isEqualTo(1);
+
+        // Register a failing credentials.
+        GoogleCredentials failingCredentials = new GoogleCredentials() {
+
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            public AccessToken refreshAccessToken() throws IOException {
+                throw new IOException("failure");
+            }
+
+        };
+        PubsubAccessTokenCacheRegistry failingRegistry = PubsubAccessTokenCacheRegistry
+                .builder()
+                .setExecutorService(executorService)
+                .setMeterRegistry(meterRegistry)
+                .build();
+        Assertions
+                .assertThatThrownBy(() -> failingRegistry
+                        .getAccessTokenCache(failingCredentials)
+                        .getAccessToken()
+                        .block(Duration.ofSeconds(5)))
+                .hasCauseInstanceOf(IOException.class);
+        Counter counter = meterRegistry
+                .get(PubsubAccessTokenCache.DEFAULT_METER_NAME_PREFIX + ".refreshFailureCount")
+                .tag("credentials", failingCredentials.getClass().getSimpleName())
+                .counter();
+        long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (counter.count() < 1 && System.nanoTime() < deadlineNanos) {
+            Thread.sleep(10);
+        }
+        Assertions.assertThat(counter.count()).isGreaterThanOrEqualTo(1);
+
+    }
+
+    private static KeyPair generateKeyPair() throws NoSuchAlgorithmException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        return keyPairGenerator.generateKeyPair();
+    }
+
+    private static ServiceAccountCredentials createCredentials(String name, KeyPair keyPair) {
+        return ServiceAccountCredentials
+                .newBuilder()
+                .setClientEmail(name + "@example.iam.gserviceaccount.com")
+                .setPrivateKey(keyPair.getPrivate())
+                .build();
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PubsubAccessTokenCacheTest {
+
+    private static final class TestCredentials extends GoogleCredentials {
+
+        private static final long serialVersionUID = 0L;
+
+        private final AtomicInteger refreshCounter = new AtomicInteger(0);
+
+        private final Duration tokenLifetime;
+
+        private final CountDownLatch refreshLatch;
+
+        private final int failureCount;
+
+        private TestCredentials(Duration tokenLifetime, CountDownLatch refreshLatch, int failureCount) {
+            this.tokenLifetime = tokenLifetime;
+            this.refreshLatch = refreshLatch;
+            this.failureCount = failureCount;
+        }
+
+        @Override
+        public AccessToken refreshAccessToken() throws IOException {
+            try {
+                refreshLatch.await();
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+            int refreshCount = refreshCounter.incrementAndGet();
+            if (refreshCount <= failureCount) {
+                throw new IOException("refresh failure #" + refreshCount);
+            }
+            Date expirationTime = new Date(System.currentTimeMillis() + tokenLifetime.toMillis());
+            return new AccessToken("token-" + refreshCount, expirationTime);
+        }
+
+    }
+
+    private ScheduledThreadPoolExecutor executorService;
+
+    @Before
+    public void setUp() {
+        executorService = new ScheduledThreadPoolExecutor(1);
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void test_concurrent_cold_reads_share_a_single_refresh() {
+        CountDownLatch refreshLatch = new CountDownLatch(1);
+        TestCredentials credentials = new TestCredentials(Duration.ofHours(1), refreshLatch, 0);
+        PubsubAccessTokenCache cache = createCache(credentials, Duration.ofMinutes(5));
+        List<Mono<String>> tokenMonos = Flux
+                .range(0, 10)
+                .map(ignored -> cache.getAccessToken())
+                .collectList()
+                .block();
+        refreshLatch.countDown();
+        List<String> tokens = Flux.concat(tokenMonos).collectList().block(Duration.ofSeconds(5));
+        Assertions.assertThat(tokens).hasSize(10).containsOnly("token-1");
+        Assertions.assertThat(credentials.refreshCounter).hasValue(1);
+        Assertions.assertThat(cache.getAccessToken().block()).isEqualTo("token-1");
+    }
+
+    @Test
+    public void test_refresh_ahead_of_expiration() throws InterruptedException {
+        TestCredentials credentials = new TestCredentials(Duration.ofMillis(1_500), new CountDownLatch(0), 0);
+        PubsubAccessTokenCache cache = createCache(credentials, Duration.ofSeconds(1));
+        Assertions.assertThat(cache.getAccessToken().block(Duration.ofSeconds(5))).isEqualTo("token-1");
+        // The token should be refreshed ~500ms later, before its expiration.
+        awaitAccessToken(cache, "token-2");
+        Assertions.assertThat(credentials.refreshCounter).hasValue(2);
+    }
+
+    @Test
+    public void test_refresh_retry_after_failure() throws InterruptedException {
+        TestCredentials credentials = new TestCredentials(Duration.ofHours(1), new CountDownLatch(0), 1);
+        PubsubAccessTokenCache cache = createCache(credentials, Duration.ofMinutes(5));
+        awaitAccessToken(cache, "token-2");
+    }
+
+    @Test
+    public void test_self_signed_jwt_without_service_account_credentials() {
+        TestCredentials credentials = new TestCredentials(Duration.ofHours(1), new CountDownLatch(0), 0);
+        Assertions
+                .assertThatThrownBy(() -> PubsubAccessTokenCache
+                        .builder()
+                        .setExecutorService(executorService)
+                        .setGoogleCredentials(credentials)
+                        .setSelfSignedJwtEnabled(true)
+                        .build())
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageStartingWith("was expecting service account credentials for self-signed JWTs");
+    }
+
+    private PubsubAccessTokenCache createCache(TestCredentials credentials, Duration refreshMargin) {
+        return PubsubAccessTokenCache
+                .builder()
+                .setExecutorService(executorService)
+                .setGoogleCredentials(credentials)
+                .setAccessTokenRefreshMargin(refreshMargin)
+                .build();
+    }
+
+    private static void awaitAccessToken(PubsubAccessTokenCache cache, String expectedAccessToken)
+            throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        @Nullable String accessToken;
+        while (!expectedAccessToken.equals(accessToken = blockAccessToken(cache))
+                && System.nanoTime() < deadlineNanos) {
+            Thread.sleep(10);
+        }
+        Assertions.assertThat(accessToken).isEqualTo(expectedAccessToken);
+    }
+
+    @Nullable
+    private static String blockAccessToken(PubsubAccessTokenCache cache) {
+        try {
+            return cache.getAccessToken().block(Duration.ofSeconds(5));
+        } catch (Exception ignored) {
+            return null;
+        }
+    }
+
+}
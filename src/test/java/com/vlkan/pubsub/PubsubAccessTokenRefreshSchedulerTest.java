@@ -0,0 +1,64 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class PubsubAccessTokenRefreshSchedulerTest {
+
+    private ScheduledThreadPoolExecutor executorService;
+
+    @Before
+    public void setUp() {
+        executorService = new ScheduledThreadPoolExecutor(1);
+        executorService.setRemoveOnCancelPolicy(true);
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void test_tasks_run_in_due_order_with_a_single_scheduled_task() throws InterruptedException {
+        PubsubAccessTokenRefreshScheduler scheduler = new PubsubAccessTokenRefreshScheduler(executorService);
+        List<String> runKeys = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(3);
+        long nowMillis = System.currentTimeMillis();
+        for (String key : new String[]{"c", "a", "b"}) {
+            scheduler.schedule(key, () -> { runKeys.add(key); latch.countDown(); }, Long.MAX_VALUE);
+        }
+        scheduler.schedule("c", () -> { runKeys.add("c"); latch.countDown(); }, nowMillis + 300);
+        scheduler.schedule("a", () -> { runKeys.add("a"); latch.countDown(); }, nowMillis + 100);
+        scheduler.schedule("b", () -> { runKeys.add("b"); latch.countDown(); }, nowMillis + 200);
+        Assertions.assertThat(scheduler.getEntryCount()).isEqualTo(3);
+        Assertions.assertThat(executorService.getQueue().size()).isLessThanOrEqualTo(1);
+        Assertions.assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        Assertions.assertThat(runKeys).containsExactly("a", "b", "c");
+        Assertions.assertThat(scheduler.getEntryCount()).isZero();
+    }
+
+}
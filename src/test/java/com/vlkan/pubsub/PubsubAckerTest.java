@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import com.vlkan.pubsub.model.PubsubAckRequest;
+import com.vlkan.pubsub.model.PubsubReceivedMessage;
+import com.vlkan.pubsub.model.PubsubReceivedMessageEmbedding;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+
+public class PubsubAckerTest {
+
+    private static final String PROJECT_NAME = "test-project";
+
+    private static final String SUBSCRIPTION_NAME = "test-subscription";
+
+    @Test
+    public void test_acks_release_leases() {
+
+        // Create a client succeeding every ack.
+        PubsubClient client = Mockito.mock(PubsubClient.class);
+        Mockito
+                .when(client.ack(
+                        ArgumentMatchers.anyString(),
+                        ArgumentMatchers.anyString(),
+                        ArgumentMatchers.any(PubsubAckRequest.class)))
+                .thenReturn(Mono.empty());
+
+        // Create the acker.
+        PubsubAckerConfig config = PubsubAckerConfig
+                .builder()
+                .setProjectName(PROJECT_NAME)
+                .setSubscriptionName(SUBSCRIPTION_NAME)
+                .build();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        PubsubLeasedMessageTracker leasedMessageTracker = PubsubLeasedMessageTracker
+                .builder()
+                .setMeterRegistry(meterRegistry)
+                .build();
+        PubsubAcker acker = PubsubAcker
+                .builder()
+                .setConfig(config)
+                .setClient(client)
+                .setLeasedMessageTracker(leasedMessageTracker)
+                .setMeterRegistry(meterRegistry)
+                .build();
+
+        // Lease and ack a message.
+        PubsubReceivedMessageEmbedding embedding = new PubsubReceivedMessageEmbedding(
+                Instant.now(),
+                "id",
+                "payload".getBytes(StandardCharsets.UTF_8),
+                Collections.emptyMap());
+        List<PubsubReceivedMessage> messages = Collections.singletonList(new PubsubReceivedMessage("ackId", embedding));
+        leasedMessageTracker.lease(messages);
+        Assertions.assertThat(leasedMessageTracker.getLeasedMessageCount()).isEqualTo(1);
+        acker.ackMessages(messages).block(Duration.ofSeconds(5));
+
+        // Verify the release.
+        Assertions.assertThat(leasedMessageTracker.getLeasedMessageCount()).isZero();
+        Assertions
+                .assertThat(meterRegistry
+                        .get(PubsubLeasedMessageTracker.DEFAULT_METER_NAME_PREFIX + ".receiveToAckDelay")
+                        .timer()
+                        .count())
+                .isEqualTo(1);
+        Assertions
+                .assertThat(meterRegistry
+                        .get(PubsubAcker.DEFAULT_METER_NAME_PREFIX + ".activeAckCount")
+                        .tag("subscriptionName", SUBSCRIPTION_NAME)
+                        .gauge()
+                        .value())
+                .isZero();
+
+    }
+
+}
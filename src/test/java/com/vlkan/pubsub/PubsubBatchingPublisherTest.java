@@ -0,0 +1,460 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import com.vlkan.pubsub.model.PubsubDraftedMessage;
+import com.vlkan.pubsub.model.PubsubPublishResponse;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class PubsubBatchingPublisherTest {
+
+    /**
+     * Creates a publisher mock responding with message IDs echoing the
+     * payloads and recording the size of each published batch.
+     */
+    private static PubsubPublisher createEchoingPublisher(List<Integer> batchSizes) {
+        PubsubPublisher publisher = Mockito.mock(PubsubPublisher.class);
+        Mockito
+                .when(publisher.publishMessages(ArgumentMatchers.anyList()))
+                .thenAnswer(invocation -> {
+                    List<PubsubDraftedMessage> messages = invocation.getArgument(0);
+                    batchSizes.add(messages.size());
+                    List<String> messageIds = messages
+                            .stream()
+                            .map(message -> new String(message.getPayload(), StandardCharsets.UTF_8))
+                            .collect(Collectors.toList());
+                    return Mono.just(new PubsubPublishResponse(messageIds));
+                });
+        return publisher;
+    }
+
+    private static PubsubDraftedMessage createMessage(int messageIndex) {
+        byte[] payload = String.valueOf(messageIndex).getBytes(StandardCharsets.UTF_8);
+        return new PubsubDraftedMessage(payload);
+    }
+
+    private static PubsubDraftedMessage createOrderedMessage(String orderingKey, int messageIndex) {
+        byte[] payload = (orderingKey + messageIndex).getBytes(StandardCharsets.UTF_8);
+        return new PubsubDraftedMessage(payload, Collections.emptyMap(), orderingKey);
+    }
+
+    private static String getPayload(PubsubDraftedMessage message) {
+        return new String(message.getPayload(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates a publisher mock echoing the payloads as message IDs once the
+     * returned batch completer gets triggered.
+     */
+    private static PubsubPublisher createDeferringPublisher(
+            List<List<String>> batches,
+            Map<String, Sinks.Empty<Void>> batchCompleterByFirstPayload) {
+        PubsubPublisher publisher = Mockito.mock(PubsubPublisher.class);
+        Mockito
+                .when(publisher.publishMessages(ArgumentMatchers.anyList()))
+                .thenAnswer(invocation -> {
+                    List<PubsubDraftedMessage> messages = invocation.getArgument(0);
+                    List<String> payloads = messages
+                            .stream()
+                            .map(PubsubBatchingPublisherTest::getPayload)
+                            .collect(Collectors.toList());
+                    batches.add(payloads);
+                    Sinks.Empty<Void> batchCompleter = Sinks.empty();
+                    batchCompleterByFirstPayload.put(payloads.get(0), batchCompleter);
+                    return batchCompleter
+                            .asMono()
+                            .then(Mono.fromSupplier(() -> new PubsubPublishResponse(payloads)));
+                });
+        return publisher;
+    }
+
+    @Test
+    public void test_batching_by_message_count() {
+
+        // Create the publisher.
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        PubsubBatchingPublisherConfig config = PubsubBatchingPublisherConfig
+                .builder()
+                .setBatchMessageCount(10)
+                .setLingerPeriod(Duration.ofHours(1))
+                .build();
+        PubsubBatchingPublisher batchingPublisher = PubsubBatchingPublisher
+                .builder()
+                .setConfig(config)
+                .setPublisher(createEchoingPublisher(batchSizes))
+                .build();
+
+        // Publish messages.
+        List<Mono<String>> messageIdMonos = IntStream
+                .range(0, 25)
+                .mapToObj(messageIndex -> batchingPublisher
+                        .publish(createMessage(messageIndex))
+                        .cache())
+                .collect(Collectors.toList());
+        messageIdMonos.forEach(Mono::subscribe);
+
+        // Verify full batches.
+        Assertions.assertThat(batchSizes).containsExactly(10, 10);
+
+        // Verify the flush of the remaining messages.
+        batchingPublisher.flush();
+        Assertions.assertThat(batchSizes).containsExactly(10, 10, 5);
+        for (int messageIndex = 0; messageIndex < messageIdMonos.size(); messageIndex++) {
+            String messageId = messageIdMonos.get(messageIndex).block(Duration.ofSeconds(1));
+            Assertions.assertThat(messageId).isEqualTo(String.valueOf(messageIndex));
+        }
+
+    }
+
+    @Test
+    public void test_batching_by_byte_count() {
+
+        // Create the publisher.
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        long messageByteCount = createMessage(0).estimateSerializedByteCount();
+        PubsubBatchingPublisherConfig config = PubsubBatchingPublisherConfig
+                .builder()
+                .setBatchByteCount(3 * messageByteCount)
+                .setLingerPeriod(Duration.ofHours(1))
+                .build();
+        PubsubBatchingPublisher batchingPublisher = PubsubBatchingPublisher
+                .builder()
+                .setConfig(config)
+                .setPublisher(createEchoingPublisher(batchSizes))
+                .build();
+
+        // Publish single-digit messages and verify the batches.
+        IntStream
+                .range(0, 7)
+                .forEach(messageIndex -> batchingPublisher
+                        .publish(createMessage(messageIndex))
+                        .subscribe());
+        Assertions.assertThat(batchSizes).containsExactly(3, 3);
+
+    }
+
+    @Test
+    public void test_linger() {
+
+        // Create the publisher.
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        PubsubBatchingPublisherConfig config = PubsubBatchingPublisherConfig
+                .builder()
+                .setBatchMessageCount(100)
+                .setLingerPeriod(Duration.ofMillis(100))
+                .build();
+        PubsubBatchingPublisher batchingPublisher = PubsubBatchingPublisher
+                .builder()
+                .setConfig(config)
+                .setPublisher(createEchoingPublisher(batchSizes))
+                .build();
+
+        // Verify that pending messages get flushed after the linger period.
+        List<String> messageIds = Flux
+                .range(0, 3)
+                .flatMap(messageIndex -> batchingPublisher.publish(createMessage(messageIndex)))
+                .collectList()
+                .block(Duration.ofSeconds(3));
+        Assertions.assertThat(messageIds).containsExactlyInAnyOrder("0", "1", "2");
+        Assertions.assertThat(batchSizes).containsExactly(3);
+
+    }
+
+    @Test
+    public void test_concurrent_producers() {
+
+        // Create the publisher.
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        PubsubBatchingPublisherConfig config = PubsubBatchingPublisherConfig
+                .builder()
+                .setBatchMessageCount(50)
+                .setLingerPeriod(Duration.ofMillis(10))
+                .build();
+        PubsubBatchingPublisher batchingPublisher = PubsubBatchingPublisher
+                .builder()
+                .setConfig(config)
+                .setPublisher(createEchoingPublisher(batchSizes))
+                .build();
+
+        // Publish from multiple threads and verify the correlation of message IDs.
+        int messageCount = 10_000;
+        List<Boolean> matches = Flux
+                .range(0, messageCount)
+                .parallel(8)
+                .runOn(Schedulers.parallel())
+                .flatMap(messageIndex -> batchingPublisher
+                        .publish(createMessage(messageIndex))
+                        .map(messageId -> messageId.equals(String.valueOf(messageIndex))))
+                .sequential()
+                .collectList()
+                .block(Duration.ofSeconds(10));
+        Assertions.assertThat(matches).hasSize(messageCount).doesNotContain(false);
+        Assertions.assertThat(batchSizes).allMatch(batchSize -> batchSize <= 50);
+        Assertions.assertThat(batchSizes.stream().mapToInt(Integer::intValue).sum()).isEqualTo(messageCount);
+
+    }
+
+    @Test
+    public void test_failure_propagation() {
+
+        // Create a failing publisher.
+        PubsubPublisher publisher = Mockito.mock(PubsubPublisher.class);
+        RuntimeException error = new RuntimeException("test");
+        Mockito
+                .when(publisher.publishMessages(ArgumentMatchers.anyList()))
+                .thenReturn(Mono.error(error));
+        PubsubBatchingPublisherConfig config = PubsubBatchingPublisherConfig
+                .builder()
+                .setBatchMessageCount(2)
+                .build();
+        PubsubBatchingPublisher batchingPublisher = PubsubBatchingPublisher
+                .builder()
+                .setConfig(config)
+                .setPublisher(publisher)
+                .build();
+
+        // Verify that every message of the batch fails.
+        Mono<String> messageIdMono1 = batchingPublisher.publish(createMessage(1)).cache();
+        Mono<String> messageIdMono2 = batchingPublisher.publish(createMessage(2)).cache();
+        messageIdMono1.subscribe(ignored -> {}, ignored -> {});
+        messageIdMono2.subscribe(ignored -> {}, ignored -> {});
+        for (Mono<String> messageIdMono : Arrays.asList(messageIdMono1, messageIdMono2)) {
+            Assertions
+                    .assertThatThrownBy(() -> messageIdMono.block(Duration.ofSeconds(1)))
+                    .isSameAs(error);
+        }
+
+    }
+
+    @Test
+    public void test_message_count_mismatch() {
+
+        // Create a publisher responding with a single message ID.
+        PubsubPublisher publisher = Mockito.mock(PubsubPublisher.class);
+        Mockito
+                .when(publisher.publishMessages(ArgumentMatchers.anyList()))
+                .thenReturn(Mono.just(new PubsubPublishResponse(Collections.singletonList("id"))));
+        PubsubBatchingPublisherConfig config = PubsubBatchingPublisherConfig
+                .builder()
+                .setBatchMessageCount(2)
+                .build();
+        PubsubBatchingPublisher batchingPublisher = PubsubBatchingPublisher
+                .builder()
+                .setConfig(config)
+                .setPublisher(publisher)
+                .build();
+
+        // Verify the failure.
+        Assertions
+                .assertThatThrownBy(() -> Flux
+                        .range(0, 2)
+                        .flatMap(messageIndex -> batchingPublisher.publish(createMessage(messageIndex)))
+                        .blockLast(Duration.ofSeconds(1)))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("message ID count mismatch (messageCount=2, messageIdCount=1)");
+
+    }
+
+    @Test
+    public void test_ordered_flush_on_rejected_linger() throws InterruptedException {
+
+        // Create a publisher enqueueing a message of the same key from another thread while publishing.
+        Scheduler scheduler = Schedulers.newSingle("test_ordered_flush_on_rejected_linger");
+        scheduler.dispose();
+        PubsubBatchingPublisherConfig config = PubsubBatchingPublisherConfig
+                .builder()
+                .setBatchMessageCount(100)
+                .setLingerPeriod(Duration.ofHours(1))
+                .build();
+        AtomicReference<PubsubBatchingPublisher> batchingPublisherRef = new AtomicReference<>();
+        AtomicBoolean concurrentEnqueueSucceeded = new AtomicBoolean(false);
+        PubsubPublisher publisher = Mockito.mock(PubsubPublisher.class);
+        Mockito
+                .when(publisher.publishMessages(ArgumentMatchers.anyList()))
+                .thenAnswer(invocation -> {
+                    List<PubsubDraftedMessage> messages = invocation.getArgument(0);
+                    if ("a0".equals(getPayload(messages.get(0)))) {
+                        Thread thread = new Thread(() -> batchingPublisherRef
+                                .get()
+                                .publish(createOrderedMessage("a", 1))
+                                .subscribe());
+                        thread.start();
+                        thread.join(1_000);
+                        concurrentEnqueueSucceeded.set(!thread.isAlive());
+                    }
+                    List<String> messageIds = messages
+                            .stream()
+                            .map(PubsubBatchingPublisherTest::getPayload)
+                            .collect(Collectors.toList());
+                    return Mono.just(new PubsubPublishResponse(messageIds));
+                });
+        PubsubBatchingPublisher batchingPublisher = PubsubBatchingPublisher
+                .builder()
+                .setConfig(config)
+                .setPublisher(publisher)
+                .setScheduler(scheduler)
+                .build();
+        batchingPublisherRef.set(batchingPublisher);
+
+        // Verify that the message gets flushed without holding the lane.
+        String messageId = batchingPublisher
+                .publish(createOrderedMessage("a", 0))
+                .block(Duration.ofSeconds(3));
+        Assertions.assertThat(messageId).isEqualTo("a0");
+        Assertions.assertThat(concurrentEnqueueSucceeded).isTrue();
+
+    }
+
+    @Test
+    public void test_ordering_key_pipelining() {
+
+        // Create the publisher.
+        List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+        Map<String, Sinks.Empty<Void>> batchCompleters = new ConcurrentHashMap<>();
+        PubsubBatchingPublisherConfig config = PubsubBatchingPublisherConfig
+                .builder()
+                .setBatchMessageCount(2)
+                .setLingerPeriod(Duration.ofHours(1))
+                .build();
+        PubsubBatchingPublisher batchingPublisher = PubsubBatchingPublisher
+                .builder()
+                .setConfig(config)
+                .setPublisher(createDeferringPublisher(batches, batchCompleters))
+                .build();
+
+        // Publish messages of two keys.
+        List<Mono<String>> messageIdMonos = new ArrayList<>();
+        for (int messageIndex = 0; messageIndex < 5; messageIndex++) {
+            messageIdMonos.add(batchingPublisher.publish(createOrderedMessage("a", messageIndex)).cache());
+        }
+        for (int messageIndex = 0; messageIndex < 2; messageIndex++) {
+            messageIdMonos.add(batchingPublisher.publish(createOrderedMessage("b", messageIndex)).cache());
+        }
+        messageIdMonos.forEach(Mono::subscribe);
+
+        // Verify that each key has a single batch in flight.
+        Assertions
+                .assertThat(batches)
+                .containsExactly(
+                        Arrays.asList("a0", "a1"),
+                        Arrays.asList("b0", "b1"));
+
+        // Verify that the accumulated messages get published once the in-flight batch succeeds.
+        batchCompleters.get("a0").tryEmitEmpty();
+        Assertions.assertThat(batches).hasSize(3).endsWith(Arrays.asList("a2", "a3"));
+        batchCompleters.get("a2").tryEmitEmpty();
+        Assertions.assertThat(batches).hasSize(4).endsWith(Collections.singletonList("a4"));
+        batchCompleters.get("a4").tryEmitEmpty();
+        batchCompleters.get("b0").tryEmitEmpty();
+
+        // Verify the message IDs.
+        List<String> messageIds = messageIdMonos
+                .stream()
+                .map(messageIdMono -> messageIdMono.block(Duration.ofSeconds(1)))
+                .collect(Collectors.toList());
+        Assertions
+                .assertThat(messageIds)
+                .containsExactly("a0", "a1", "a2", "a3", "a4", "b0", "b1");
+
+    }
+
+    @Test
+    public void test_ordering_key_pause_and_resume() {
+
+        // Create the publisher.
+        List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+        Map<String, Sinks.Empty<Void>> batchCompleters = new ConcurrentHashMap<>();
+        PubsubBatchingPublisherConfig config = PubsubBatchingPublisherConfig
+                .builder()
+                .setBatchMessageCount(1)
+                .setLingerPeriod(Duration.ofHours(1))
+                .build();
+        PubsubBatchingPublisher batchingPublisher = PubsubBatchingPublisher
+                .builder()
+                .setConfig(config)
+                .setPublisher(createDeferringPublisher(batches, batchCompleters))
+                .build();
+
+        // Publish messages and fail the first one.
+        Mono<String> messageIdMono0 = batchingPublisher.publish(createOrderedMessage("a", 0)).cache();
+        Mono<String> messageIdMono1 = batchingPublisher.publish(createOrderedMessage("a", 1)).cache();
+        Mono<String> otherMessageIdMono = batchingPublisher.publish(createOrderedMessage("b", 0)).cache();
+        messageIdMono0.subscribe(ignored -> {}, ignored -> {});
+        messageIdMono1.subscribe(ignored -> {}, ignored -> {});
+        otherMessageIdMono.subscribe(ignored -> {}, ignored -> {});
+        RuntimeException error = new RuntimeException("test");
+        batchCompleters.get("a0").tryEmitError(error);
+
+        // Verify that the failed batch and the pending message of the key fail.
+        Assertions
+                .assertThatThrownBy(() -> messageIdMono0.block(Duration.ofSeconds(1)))
+                .isSameAs(error);
+        Assertions
+                .assertThatThrownBy(() -> messageIdMono1.block(Duration.ofSeconds(1)))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("ordering key is paused (orderingKey=a)")
+                .hasCause(error);
+
+        // Verify that subsequent messages of the key fail as well.
+        Assertions
+                .assertThatThrownBy(() -> batchingPublisher
+                        .publish(createOrderedMessage("a", 2))
+                        .block(Duration.ofSeconds(1)))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("ordering key is paused (orderingKey=a)");
+
+        // Verify that other keys are not affected.
+        batchCompleters.get("b0").tryEmitEmpty();
+        Assertions.assertThat(otherMessageIdMono.block(Duration.ofSeconds(1))).isEqualTo("b0");
+
+        // Verify that the key accepts messages after resumption.
+        batchingPublisher.resumePublish("a");
+        Mono<String> messageIdMono3 = batchingPublisher.publish(createOrderedMessage("a", 3)).cache();
+        messageIdMono3.subscribe();
+        batchCompleters.get("a3").tryEmitEmpty();
+        Assertions.assertThat(messageIdMono3.block(Duration.ofSeconds(1))).isEqualTo("a3");
+        Assertions
+                .assertThat(batches)
+                .containsExactly(
+                        Collections.singletonList("a0"),
+                        Collections.singletonList("b0"),
+                        Collections.singletonList("a3"));
+
+    }
+
+}
@@ -29,6 +29,11 @@ import com.vlkan.pubsub.model.PubsubPullResponse;
 import com.vlkan.pubsub.model.PubsubPullResponseFixture;
 import com.vlkan.pubsub.model.PubsubReceivedMessage;
 import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import io.micrometer.prometheus.PrometheusConfig;
 import io.micrometer.prometheus.PrometheusMeterRegistry;
 import io.netty.handler.codec.http.HttpHeaderNames;
@@ -38,9 +43,14 @@ import io.prometheus.client.CollectorRegistry;
 import org.assertj.core.api.Assertions;
 import org.junit.Rule;
 import org.junit.Test;
+import reactor.core.Disposable;
 
 import javax.annotation.Nullable;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
@@ -104,39 +114,7 @@ public class PubsubClientTest {
     @Test
     public void test_metrics_against_prometheus() {
 
-        // Stub pull response.
-        String pullResponseJson = JacksonHelpers.writeValueAsString(PULL_RESPONSE);
-        serverMockRule.addStubMapping(
-                WireMock.stubFor(WireMock
-                        .post(WireMock.urlEqualTo(PULL_REQUEST_RELATIVE_PATH))
-                        .willReturn(WireMock
-                                .aResponse()
-                                .withHeader(
-                                        HttpHeaderNames.CONTENT_TYPE.toString(),
-                                        HttpHeaderValues.APPLICATION_JSON.toString())
-                                .withBody(pullResponseJson))));
-
-        // Stub ack response.
-        serverMockRule.addStubMapping(
-                WireMock.stubFor(WireMock
-                        .post(WireMock.urlEqualTo(ACK_REQUEST_RELATIVE_PATH))
-                        .willReturn(WireMock
-                                .aResponse()
-                                .withHeader(
-                                        HttpHeaderNames.CONTENT_TYPE.toString(),
-                                        HttpHeaderValues.APPLICATION_JSON.toString()))));
-
-        // Stub publish response.
-        String publishResponseJson = JacksonHelpers.writeValueAsString(PUBLISH_RESPONSE);
-        serverMockRule.addStubMapping(
-                WireMock.stubFor(WireMock
-                        .post(WireMock.urlEqualTo(PUBLISH_REQUEST_RELATIVE_PATH))
-                        .willReturn(WireMock
-                                .aResponse()
-                                .withHeader(
-                                        HttpHeaderNames.CONTENT_TYPE.toString(),
-                                        HttpHeaderValues.APPLICATION_JSON.toString())
-                                .withBody(publishResponseJson))));
+        stubSuccessfulResponses();
 
         // Create Pub/Sub client using Prometheus meter registry.
         PubsubClientConfig clientConfig = PubsubClientConfig
@@ -199,6 +177,295 @@ public class PubsubClientTest {
 
     }
 
+    @Test
+    public void test_size_and_percentile_metrics() {
+
+        // Create Pub/Sub client with percentiles.
+        stubSuccessfulResponses();
+        PubsubClientConfig clientConfig = PubsubClientConfig
+                .builder()
+                .setBaseUrl(serverMockRule.baseUrl())
+                .build();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        PubsubClient client = PubsubClient
+                .builder()
+                .setConfig(clientConfig)
+                .setAccessTokenCache(PubsubAccessTokenCacheFixture.getInstance())
+                .setMeterRegistry(meterRegistry)
+                .setMeterPercentileHistogramEnabled(true)
+                .setMeterPercentiles(0.5, 0.99)
+                .setLatencyServiceLevelObjectives(Duration.ofSeconds(1))
+                .build();
+
+        // Execute a request per endpoint.
+        client.pull(PROJECT_NAME, SUBSCRIPTION_NAME, PULL_REQUEST).block(Duration.ofSeconds(3));
+        client.ack(PROJECT_NAME, SUBSCRIPTION_NAME, ACK_REQUEST).block(Duration.ofSeconds(3));
+        client.publish(PROJECT_NAME, TOPIC_NAME, PUBLISH_REQUEST).block(Duration.ofSeconds(3));
+
+        // Verify the distribution summaries.
+        int messageCount = PULL_RESPONSE.getReceivedMessages().size();
+        for (String endpoint : new String[]{"pull", "ack", "publish"}) {
+            String meterNamePrefix = PubsubClient.DEFAULT_METER_NAME_PREFIX + '.' + endpoint;
+            DistributionSummary messageCountSummary = meterRegistry
+                    .get(meterNamePrefix + ".messageCountPerRequest")
+                    .summary();
+            Assertions.assertThat(messageCountSummary.count()).as("endpoint=%s", endpoint).isEqualTo(1);
+            Assertions.assertThat(messageCountSummary.totalAmount()).as("endpoint=%s", endpoint).isEqualTo(messageCount);
+            DistributionSummary requestBodySizeSummary = meterRegistry
+                    .get(meterNamePrefix + ".requestBodySize")
+                    .summary();
+            Assertions.assertThat(requestBodySizeSummary.count()).as("endpoint=%s", endpoint).isEqualTo(1);
+            Assertions.assertThat(requestBodySizeSummary.totalAmount()).as("endpoint=%s", endpoint).isPositive();
+            Timer latencyTimer = meterRegistry
+                    .get(meterNamePrefix + ".latency")
+                    .tag("result", "success")
+                    .timer();
+            Assertions.assertThat(latencyTimer.count()).as("endpoint=%s", endpoint).isEqualTo(1);
+            Assertions
+                    .assertThat(latencyTimer.takeSnapshot().percentileValues())
+                    .as("endpoint=%s", endpoint)
+                    .hasSize(2);
+        }
+        Assertions
+                .assertThat(meterRegistry
+                        .get(PubsubClient.DEFAULT_METER_NAME_PREFIX + ".pull.responseBodySize")
+                        .summary()
+                        .totalAmount())
+                .isEqualTo(JacksonHelpers.writeValueAsString(PULL_RESPONSE).length());
+
+    }
+
+    @Test
+    public void test_phase_latency_metrics() {
+
+        // Create Pub/Sub client.
+        stubSuccessfulResponses();
+        PubsubClientConfig clientConfig = PubsubClientConfig
+                .builder()
+                .setBaseUrl(serverMockRule.baseUrl())
+                .build();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        PubsubClient client = PubsubClient
+                .builder()
+                .setConfig(clientConfig)
+                .setAccessTokenCache(PubsubAccessTokenCacheFixture.getInstance())
+                .setMeterRegistry(meterRegistry)
+                .build();
+
+        // Execute a request per endpoint.
+        client.pull(PROJECT_NAME, SUBSCRIPTION_NAME, PULL_REQUEST).block(Duration.ofSeconds(3));
+        client.ack(PROJECT_NAME, SUBSCRIPTION_NAME, ACK_REQUEST).block(Duration.ofSeconds(3));
+        client.publish(PROJECT_NAME, TOPIC_NAME, PUBLISH_REQUEST).block(Duration.ofSeconds(3));
+
+        // Verify the phase timers. (Empty ack responses skip the body phases.)
+        for (String endpoint : new String[]{"pull", "ack", "publish"}) {
+            String meterName = PubsubClient.DEFAULT_METER_NAME_PREFIX + '.' + endpoint + ".phaseLatency";
+            boolean bodyExpected = !"ack".equals(endpoint);
+            for (String phase : new String[]{"serialization", "acquisition", "firstByte", "bodyRead", "deserialization"}) {
+                boolean recordExpected = bodyExpected || !("bodyRead".equals(phase) || "deserialization".equals(phase));
+                Timer phaseTimer = meterRegistry
+                        .get(meterName)
+                        .tag("projectName", PROJECT_NAME)
+                        .tag("phase", phase)
+                        .timer();
+                Assertions
+                        .assertThat(phaseTimer.count())
+                        .as("endpoint=%s, phase=%s", endpoint, phase)
+                        .isEqualTo(recordExpected ? 1 : 0);
+            }
+        }
+
+    }
+
+    @Test
+    public void test_active_request_and_connection_pool_gauges() throws InterruptedException {
+
+        // Stub a delayed pull response.
+        String pullResponseJson = JacksonHelpers.writeValueAsString(PULL_RESPONSE);
+        serverMockRule.addStubMapping(
+                WireMock.stubFor(WireMock
+                        .post(WireMock.urlEqualTo(PULL_REQUEST_RELATIVE_PATH))
+                        .willReturn(WireMock
+                                .aResponse()
+                                .withFixedDelay(500)
+                                .withHeader(
+                                        HttpHeaderNames.CONTENT_TYPE.toString(),
+                                        HttpHeaderValues.APPLICATION_JSON.toString())
+                                .withBody(pullResponseJson))));
+
+        // Create Pub/Sub client.
+        PubsubClientConfig clientConfig = PubsubClientConfig
+                .builder()
+                .setBaseUrl(serverMockRule.baseUrl())
+                .build();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        PubsubClient client = PubsubClient
+                .builder()
+                .setConfig(clientConfig)
+                .setAccessTokenCache(PubsubAccessTokenCacheFixture.getInstance())
+                .setMeterRegistry(meterRegistry)
+                .setConnectionPoolMetricsEnabled(true)
+                .build();
+
+        // Verify the gauges while the request is in flight.
+        String meterNamePrefix = PubsubClient.DEFAULT_METER_NAME_PREFIX;
+        Disposable pullDisposable = client.pull(PROJECT_NAME, SUBSCRIPTION_NAME, PULL_REQUEST).subscribe();
+        try {
+            awaitGaugeValue(meterRegistry, meterNamePrefix + ".pull.activeRequestCount", 1);
+            awaitGaugeValue(meterRegistry, meterNamePrefix + ".connectionPool.activeConnectionCount", 1);
+        } finally {
+            pullDisposable.dispose();
+        }
+
+        // Verify the gauges once the request is completed.
+        client.pull(PROJECT_NAME, SUBSCRIPTION_NAME, PULL_REQUEST).block(Duration.ofSeconds(3));
+        awaitGaugeValue(meterRegistry, meterNamePrefix + ".pull.activeRequestCount", 0);
+        awaitGaugeValue(meterRegistry, meterNamePrefix + ".connectionPool.activeConnectionCount", 0);
+        Assertions
+                .assertThat(meterRegistry.get(meterNamePrefix + ".connectionPool.idleConnectionCount").gauge().value())
+                .isPositive();
+
+    }
+
+    @Test
+    public void test_connection_pool_metrics_of_multiple_clients() throws InterruptedException {
+
+        // Stub the pull response.
+        String pullResponseJson = JacksonHelpers.writeValueAsString(PULL_RESPONSE);
+        serverMockRule.addStubMapping(
+                WireMock.stubFor(WireMock
+                        .post(WireMock.urlEqualTo(PULL_REQUEST_RELATIVE_PATH))
+                        .willReturn(WireMock
+                                .aResponse()
+                                .withHeader(
+                                        HttpHeaderNames.CONTENT_TYPE.toString(),
+                                        HttpHeaderValues.APPLICATION_JSON.toString())
+                                .withBody(pullResponseJson))));
+
+        // Create Pub/Sub clients sharing the meter registry.
+        PubsubClientConfig clientConfig = PubsubClientConfig
+                .builder()
+                .setBaseUrl(serverMockRule.baseUrl())
+                .build();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        List<PubsubClient> clients = new ArrayList<>();
+        for (int clientIndex = 0; clientIndex < 2; clientIndex++) {
+            PubsubClient client = PubsubClient
+                    .builder()
+                    .setConfig(clientConfig)
+                    .setAccessTokenCache(PubsubAccessTokenCacheFixture.getInstance())
+                    .setMeterRegistry(meterRegistry)
+                    .setConnectionPoolMetricsEnabled(true)
+                    .build();
+            clients.add(client);
+        }
+
+        // Pull using both clients.
+        for (PubsubClient client : clients) {
+            client.pull(PROJECT_NAME, SUBSCRIPTION_NAME, PULL_REQUEST).block(Duration.ofSeconds(3));
+        }
+
+        // Verify that the pools are measured separately.
+        String meterNamePrefix = PubsubClient.DEFAULT_METER_NAME_PREFIX;
+        Set<String> poolNames = meterRegistry
+                .get(meterNamePrefix + ".connectionPool.idleConnectionCount")
+                .gauges()
+                .stream()
+                .map(gauge -> gauge.getId().getTag("poolName"))
+                .collect(Collectors.toSet());
+        Assertions.assertThat(poolNames).hasSize(2);
+
+        // Verify that the shared in-flight request gauge is accurate.
+        Assertions
+                .assertThat(meterRegistry.get(meterNamePrefix + ".pull.activeRequestCount").gauges())
+                .hasSize(1);
+        awaitGaugeValue(meterRegistry, meterNamePrefix + ".pull.activeRequestCount", 0);
+
+        // Verify that closing the clients releases the pooled connections.
+        awaitGaugeValue(meterRegistry, meterNamePrefix + ".connectionPool.idleConnectionCount", 2);
+        clients.forEach(PubsubClient::close);
+        awaitGaugeValue(meterRegistry, meterNamePrefix + ".connectionPool.idleConnectionCount", 0);
+
+    }
+
+    @Test
+    public void test_connection_pool_metrics_validation() {
+        Assertions
+                .assertThatThrownBy(() -> PubsubClient
+                        .builder()
+                        .setConnectionPoolMetricsEnabled(true)
+                        .build())
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("was expecting a meter registry for connection pool metrics");
+        Assertions
+                .assertThatThrownBy(() -> PubsubClient
+                        .builder()
+                        .setMeterRegistry(new SimpleMeterRegistry())
+                        .setHttpClient(PubsubClient.getDefaultHttpClient())
+                        .setConnectionPoolMetricsEnabled(true)
+                        .build())
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("was expecting no custom HTTP client for connection pool metrics");
+    }
+
+    private static void awaitGaugeValue(MeterRegistry meterRegistry, String meterName, double expectedValue)
+            throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        double value;
+        while ((value = sumGaugeValues(meterRegistry, meterName)) != expectedValue
+                && System.nanoTime() < deadlineNanos) {
+            Thread.sleep(10);
+        }
+        Assertions.assertThat(value).as("meterName=%s", meterName).isEqualTo(expectedValue);
+    }
+
+    private static double sumGaugeValues(MeterRegistry meterRegistry, String meterName) {
+        return meterRegistry
+                .find(meterName)
+                .gauges()
+                .stream()
+                .mapToDouble(Gauge::value)
+                .sum();
+    }
+
+    private void stubSuccessfulResponses() {
+
+        // Stub pull response.
+        String pullResponseJson = JacksonHelpers.writeValueAsString(PULL_RESPONSE);
+        serverMockRule.addStubMapping(
+                WireMock.stubFor(WireMock
+                        .post(WireMock.urlEqualTo(PULL_REQUEST_RELATIVE_PATH))
+                        .willReturn(WireMock
+                                .aResponse()
+                                .withHeader(
+                                        HttpHeaderNames.CONTENT_TYPE.toString(),
+                                        HttpHeaderValues.APPLICATION_JSON.toString())
+                                .withBody(pullResponseJson))));
+
+        // Stub ack response.
+        serverMockRule.addStubMapping(
+                WireMock.stubFor(WireMock
+                        .post(WireMock.urlEqualTo(ACK_REQUEST_RELATIVE_PATH))
+                        .willReturn(WireMock
+                                .aResponse()
+                                .withHeader(
+                                        HttpHeaderNames.CONTENT_TYPE.toString(),
+                                        HttpHeaderValues.APPLICATION_JSON.toString()))));
+
+        // Stub publish response.
+        String publishResponseJson = JacksonHelpers.writeValueAsString(PUBLISH_RESPONSE);
+        serverMockRule.addStubMapping(
+                WireMock.stubFor(WireMock
+                        .post(WireMock.urlEqualTo(PUBLISH_REQUEST_RELATIVE_PATH))
+                        .willReturn(WireMock
+                                .aResponse()
+                                .withHeader(
+                                        HttpHeaderNames.CONTENT_TYPE.toString(),
+                                        HttpHeaderValues.APPLICATION_JSON.toString())
+                                .withBody(publishResponseJson))));
+
+    }
+
     @Test
     public void test_pull_timeout_with_returnImmediateEnabled_true() {
 
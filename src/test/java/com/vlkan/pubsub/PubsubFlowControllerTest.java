@@ -0,0 +1,215 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class PubsubFlowControllerTest {
+
+    private static PubsubFlowController createFlowController(
+            PubsubFlowControllerConfig.LimitExceededBehavior limitExceededBehavior) {
+        PubsubFlowControllerConfig config = PubsubFlowControllerConfig
+                .builder()
+                .setMaxOutstandingMessageCount(2)
+                .setMaxOutstandingByteCount(100)
+                .setLimitExceededBehavior(limitExceededBehavior)
+                .build();
+        return PubsubFlowController.builder().setConfig(config).build();
+    }
+
+    @Test
+    public void test_wait() {
+
+        // Occupy the message count limit.
+        PubsubFlowController flowController =
+                createFlowController(PubsubFlowControllerConfig.LimitExceededBehavior.WAIT);
+        Sinks.Empty<Void> completer = Sinks.empty();
+        flowController.control(2, 10, completer.asMono()).subscribe();
+        Assertions.assertThat(flowController.getOutstandingMessageCount()).isEqualTo(2);
+        Assertions.assertThat(flowController.getOutstandingByteCount()).isEqualTo(10);
+
+        // Verify that the next reservation waits.
+        AtomicBoolean subscribed = new AtomicBoolean(false);
+        Mono<String> waitingMono = flowController
+                .control(1, 10, Mono.fromSupplier(() -> {
+                    subscribed.set(true);
+                    return "done";
+                }))
+                .cache();
+        waitingMono.subscribe();
+        Assertions.assertThat(subscribed).isFalse();
+        Assertions.assertThat(flowController.getWaiterCount()).isEqualTo(1);
+
+        // Verify that the reservation gets granted upon release.
+        completer.tryEmitEmpty();
+        Assertions.assertThat(waitingMono.block(Duration.ofSeconds(1))).isEqualTo("done");
+        Assertions.assertThat(flowController.getWaiterCount()).isZero();
+        Assertions.assertThat(flowController.getOutstandingMessageCount()).isZero();
+        Assertions.assertThat(flowController.getOutstandingByteCount()).isZero();
+
+    }
+
+    @Test
+    public void test_wait_cancellation() {
+
+        // Occupy the byte count limit.
+        PubsubFlowController flowController =
+                createFlowController(PubsubFlowControllerConfig.LimitExceededBehavior.WAIT);
+        Sinks.Empty<Void> completer = Sinks.empty();
+        flowController.control(1, 100, completer.asMono()).subscribe();
+
+        // Verify that a cancelled waiter leaves the queue.
+        Disposable disposable = flowController.control(1, 1, Mono.just(1)).subscribe();
+        Assertions.assertThat(flowController.getWaiterCount()).isEqualTo(1);
+        disposable.dispose();
+        Assertions.assertThat(flowController.getWaiterCount()).isZero();
+
+        // Verify that nothing leaks after the release.
+        completer.tryEmitEmpty();
+        Assertions.assertThat(flowController.getOutstandingMessageCount()).isZero();
+        Assertions.assertThat(flowController.getOutstandingByteCount()).isZero();
+
+    }
+
+    @Test
+    public void test_error() {
+
+        // Occupy the message count limit.
+        PubsubFlowController flowController =
+                createFlowController(PubsubFlowControllerConfig.LimitExceededBehavior.ERROR);
+        Sinks.Empty<Void> completer = Sinks.empty();
+        flowController.control(2, 10, completer.asMono()).subscribe();
+
+        // Verify the failure.
+        Assertions
+                .assertThatThrownBy(() -> flowController
+                        .control(1, 10, Mono.just(1))
+                        .block(Duration.ofSeconds(1)))
+                .isInstanceOf(PubsubFlowControlException.class)
+                .hasMessageStartingWith("flow control limits exceeded (messageCount=1, byteCount=10");
+        Assertions.assertThat(flowController.getOutstandingMessageCount()).isEqualTo(2);
+
+    }
+
+    @Test
+    public void test_block() {
+
+        // Occupy the byte count limit.
+        PubsubFlowController flowController =
+                createFlowController(PubsubFlowControllerConfig.LimitExceededBehavior.BLOCK);
+        Sinks.Empty<Void> completer = Sinks.empty();
+        flowController.control(1, 100, completer.asMono()).subscribe();
+
+        // Verify that the next reservation blocks until the release.
+        Mono<Integer> blockedMono = flowController
+                .control(1, 1, Mono.just(1))
+                .subscribeOn(Schedulers.boundedElastic())
+                .cache();
+        blockedMono.subscribe();
+        Assertions
+                .assertThatThrownBy(() -> blockedMono.block(Duration.ofMillis(100)))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("Timeout");
+        completer.tryEmitEmpty();
+        Assertions.assertThat(blockedMono.block(Duration.ofSeconds(1))).isEqualTo(1);
+
+    }
+
+    @Test
+    public void test_blocking_on_non_blocking_thread() {
+        PubsubFlowController flowController =
+                createFlowController(PubsubFlowControllerConfig.LimitExceededBehavior.BLOCK);
+        Mono<Integer> mono = flowController
+                .control(1, 1, Mono.just(1))
+                .subscribeOn(Schedulers.parallel());
+        Assertions
+                .assertThatThrownBy(() -> mono.block(Duration.ofSeconds(1)))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageStartingWith("blocking flow control reservation on a non-blocking thread");
+        Assertions.assertThat(flowController.getOutstandingMessageCount()).isZero();
+    }
+
+    @Test
+    public void test_oversized_reservation() {
+        PubsubFlowController flowController =
+                createFlowController(PubsubFlowControllerConfig.LimitExceededBehavior.ERROR);
+        Integer result = flowController.control(10, 1_000, Mono.just(1)).block(Duration.ofSeconds(1));
+        Assertions.assertThat(result).isEqualTo(1);
+        Assertions.assertThat(flowController.getOutstandingMessageCount()).isZero();
+    }
+
+    @Test
+    public void test_failure_release() {
+        PubsubFlowController flowController =
+                createFlowController(PubsubFlowControllerConfig.LimitExceededBehavior.ERROR);
+        RuntimeException error = new RuntimeException("test");
+        Assertions
+                .assertThatThrownBy(() -> flowController
+                        .control(1, 1, Mono.error(error))
+                        .block(Duration.ofSeconds(1)))
+                .isSameAs(error);
+        Assertions.assertThat(flowController.getOutstandingMessageCount()).isZero();
+        Assertions.assertThat(flowController.getOutstandingByteCount()).isZero();
+    }
+
+    @Test
+    public void test_meters() {
+
+        // Create the flow controller.
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        PubsubFlowController flowController = PubsubFlowController
+                .builder()
+                .setConfig(PubsubFlowControllerConfig
+                        .builder()
+                        .setMaxOutstandingMessageCount(1)
+                        .setLimitExceededBehavior(PubsubFlowControllerConfig.LimitExceededBehavior.ERROR)
+                        .build())
+                .setMeterRegistry(meterRegistry)
+                .build();
+
+        // Occupy the limit and get rejected.
+        Sinks.Empty<Void> completer = Sinks.empty();
+        flowController.control(1, 10, completer.asMono()).subscribe();
+        flowController.control(1, 10, Mono.empty()).subscribe(ignored -> {}, ignored -> {});
+
+        // Verify the meters.
+        Assertions
+                .assertThat(meterRegistry.get("pubsub.flowController.outstandingMessageCount").gauge().value())
+                .isEqualTo(1);
+        Assertions
+                .assertThat(meterRegistry.get("pubsub.flowController.outstandingByteCount").gauge().value())
+                .isEqualTo(10);
+        Assertions
+                .assertThat(meterRegistry.get("pubsub.flowController.waiterCount").gauge().value())
+                .isEqualTo(0);
+        Assertions
+                .assertThat(meterRegistry.get("pubsub.flowController.rejectionCount").counter().count())
+                .isEqualTo(1);
+
+    }
+
+}
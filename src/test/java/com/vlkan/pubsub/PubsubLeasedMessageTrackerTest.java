@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import com.vlkan.pubsub.model.PubsubReceivedMessage;
+import com.vlkan.pubsub.model.PubsubReceivedMessageEmbedding;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class PubsubLeasedMessageTrackerTest {
+
+    @Test
+    public void test_lease_and_release() {
+
+        // Create the tracker.
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        PubsubLeasedMessageTracker tracker = PubsubLeasedMessageTracker
+                .builder()
+                .setMeterRegistry(meterRegistry)
+                .build();
+        Assertions.assertThat(tracker.getLeasedMessageCount()).isZero();
+        Assertions.assertThat(tracker.getOldestLeasedMessageAgeMillis()).isZero();
+
+        // Lease messages published a minute and a second ago.
+        Instant now = Instant.now();
+        List<PubsubReceivedMessage> messages = Arrays.asList(
+                createReceivedMessage("ackId0", now.minusSeconds(60)),
+                createReceivedMessage("ackId1", now.minusSeconds(1)));
+        tracker.lease(messages);
+        Assertions.assertThat(tracker.getLeasedMessageCount()).isEqualTo(2);
+        Assertions.assertThat(tracker.getOldestLeasedMessageAgeMillis()).isBetween(60_000L, 65_000L);
+
+        // Release the oldest message.
+        tracker.release(Collections.singletonList("ackId0"));
+        Assertions.assertThat(tracker.getLeasedMessageCount()).isEqualTo(1);
+        Assertions.assertThat(tracker.getOldestLeasedMessageAgeMillis()).isBetween(1_000L, 5_000L);
+
+        // Release an unknown message.
+        tracker.release(Collections.singletonList("unknownAckId"));
+        Assertions.assertThat(tracker.getLeasedMessageCount()).isEqualTo(1);
+
+        // Verify the meters.
+        String meterNamePrefix = PubsubLeasedMessageTracker.DEFAULT_METER_NAME_PREFIX;
+        Timer receiveToAckDelayTimer = meterRegistry.get(meterNamePrefix + ".receiveToAckDelay").timer();
+        Assertions.assertThat(receiveToAckDelayTimer.count()).isEqualTo(1);
+        Assertions
+                .assertThat(meterRegistry.get(meterNamePrefix + ".leasedMessageCount").gauge().value())
+                .isEqualTo(1);
+        Assertions
+                .assertThat(meterRegistry
+                        .get(meterNamePrefix + ".oldestLeasedMessageAge")
+                        .timeGauge()
+                        .value(TimeUnit.MILLISECONDS))
+                .isBetween(1_000D, 5_000D);
+
+    }
+
+    @Test
+    public void test_oldest_leased_message_age_tracking() {
+
+        // Lease messages published an hour, a minute, and a second ago.
+        PubsubLeasedMessageTracker tracker = PubsubLeasedMessageTracker.builder().build();
+        Instant now = Instant.now();
+        tracker.lease(Arrays.asList(
+                createReceivedMessage("ackId0", now.minusSeconds(60)),
+                createReceivedMessage("ackId1", now.minusSeconds(1))));
+        tracker.lease(Collections.singletonList(createReceivedMessage("ackId2", now.minusSeconds(3_600))));
+        Assertions.assertThat(tracker.getOldestLeasedMessageAgeMillis()).isBetween(3_600_000L, 3_605_000L);
+
+        // Release a message other than the oldest one.
+        tracker.release(Collections.singletonList("ackId0"));
+        Assertions.assertThat(tracker.getOldestLeasedMessageAgeMillis()).isBetween(3_600_000L, 3_605_000L);
+
+        // Re-lease the oldest message with a recent publish instant.
+        tracker.lease(Collections.singletonList(createReceivedMessage("ackId2", now.minusSeconds(2))));
+        Assertions.assertThat(tracker.getOldestLeasedMessageAgeMillis()).isBetween(2_000L, 6_000L);
+
+        // Release all messages.
+        tracker.release(Arrays.asList("ackId1", "ackId2"));
+        Assertions.assertThat(tracker.getOldestLeasedMessageAgeMillis()).isZero();
+
+    }
+
+    @Test
+    public void test_expired_leases_are_evicted() throws InterruptedException {
+        PubsubLeasedMessageTracker tracker = PubsubLeasedMessageTracker
+                .builder()
+                .setLeaseExpirationPeriod(Duration.ofMillis(10))
+                .build();
+        tracker.lease(Collections.singletonList(createReceivedMessage("ackId0", Instant.now())));
+        Assertions.assertThat(tracker.getLeasedMessageCount()).isEqualTo(1);
+        Thread.sleep(50);
+        Assertions.assertThat(tracker.getOldestLeasedMessageAgeMillis()).isZero();
+        Assertions.assertThat(tracker.getLeasedMessageCount()).isZero();
+    }
+
+    private static PubsubReceivedMessage createReceivedMessage(String ackId, Instant publishInstant) {
+        PubsubReceivedMessageEmbedding embedding = new PubsubReceivedMessageEmbedding(
+                publishInstant,
+                "id-" + ackId,
+                "payload".getBytes(StandardCharsets.UTF_8),
+                Collections.emptyMap());
+        return new PubsubReceivedMessage(ackId, embedding);
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import com.vlkan.pubsub.codec.PubsubDeflatePayloadCodec;
+import com.vlkan.pubsub.codec.PubsubPayloadCodec;
+import com.vlkan.pubsub.model.PubsubDraftedMessage;
+import com.vlkan.pubsub.model.PubsubPublishRequest;
+import com.vlkan.pubsub.model.PubsubPublishResponse;
+import com.vlkan.pubsub.model.PubsubPullRequest;
+import com.vlkan.pubsub.model.PubsubPullResponse;
+import com.vlkan.pubsub.model.PubsubReceivedMessage;
+import com.vlkan.pubsub.model.PubsubReceivedMessageEmbedding;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class PubsubPublisherTest {
+
+    private static final String PROJECT_NAME = "test-project";
+
+    private static final String TOPIC_NAME = "test-topic";
+
+    private static final String SUBSCRIPTION_NAME = "test-subscription";
+
+    @Test
+    public void test_payload_codec_round_trip() {
+
+        // Create the publisher.
+        PubsubClient client = Mockito.mock(PubsubClient.class);
+        Mockito
+                .when(client.publish(
+                        ArgumentMatchers.anyString(),
+                        ArgumentMatchers.anyString(),
+                        ArgumentMatchers.any(PubsubPublishRequest.class)))
+                .thenReturn(Mono.just(new PubsubPublishResponse(Arrays.asList("id1", "id2"))));
+        PubsubPublisherConfig publisherConfig = PubsubPublisherConfig
+                .builder()
+                .setProjectName(PROJECT_NAME)
+                .setTopicName(TOPIC_NAME)
+                .setPayloadCodec(PubsubDeflatePayloadCodec.getDefaultInstance())
+                .setPayloadCodecThreshold(100)
+                .build();
+        PubsubPublisher publisher = PubsubPublisher
+                .builder()
+                .setConfig(publisherConfig)
+                .setClient(client)
+                .build();
+
+        // Publish a small and a large message.
+        byte[] smallPayload = "small".getBytes(StandardCharsets.UTF_8);
+        byte[] largePayload = IntStream
+                .range(0, 100)
+                .mapToObj(index -> "{\"key\":\"value\"}")
+                .collect(Collectors.joining(",", "[", "]"))
+                .getBytes(StandardCharsets.UTF_8);
+        PubsubDraftedMessage smallMessage = new PubsubDraftedMessage(smallPayload);
+        PubsubDraftedMessage largeMessage = new PubsubDraftedMessage(
+                largePayload, Collections.singletonMap("key", "val"), "orderingKey");
+        publisher
+                .publishMessages(Arrays.asList(smallMessage, largeMessage))
+                .block(Duration.ofSeconds(1));
+
+        // Verify that only the large message is encoded.
+        ArgumentCaptor<PubsubPublishRequest> publishRequestCaptor =
+                ArgumentCaptor.forClass(PubsubPublishRequest.class);
+        Mockito
+                .verify(client)
+                .publish(
+                        ArgumentMatchers.eq(PROJECT_NAME),
+                        ArgumentMatchers.eq(TOPIC_NAME),
+                        publishRequestCaptor.capture());
+        List<PubsubDraftedMessage> publishedMessages = publishRequestCaptor.getValue().getMessages();
+        Assertions.assertThat(publishedMessages.get(0)).isSameAs(smallMessage);
+        PubsubDraftedMessage encodedMessage = publishedMessages.get(1);
+        Assertions.assertThat(encodedMessage.getPayload().length).isLessThan(largePayload.length / 4);
+        Assertions
+                .assertThat(encodedMessage.getAttributes())
+                .containsEntry("key", "val")
+                .containsEntry(PubsubPayloadCodec.ATTRIBUTE_KEY, PubsubDeflatePayloadCodec.NAME);
+        Assertions.assertThat(encodedMessage.getOrderingKey()).isEqualTo("orderingKey");
+
+        // Pull the published messages.
+        List<PubsubReceivedMessage> receivedMessages = IntStream
+                .range(0, publishedMessages.size())
+                .mapToObj(messageIndex -> {
+                    PubsubDraftedMessage publishedMessage = publishedMessages.get(messageIndex);
+                    PubsubReceivedMessageEmbedding embedding = new PubsubReceivedMessageEmbedding(
+                            Instant.EPOCH,
+                            "id" + messageIndex,
+                            publishedMessage.getPayload(),
+                            publishedMessage.getAttributes(),
+                            publishedMessage.getOrderingKey());
+                    return new PubsubReceivedMessage("ackId" + messageIndex, embedding);
+                })
+                .collect(Collectors.toList());
+        Mockito
+                .when(client.pull(
+                        ArgumentMatchers.anyString(),
+                        ArgumentMatchers.anyString(),
+                        ArgumentMatchers.any(PubsubPullRequest.class)))
+                .thenReturn(Mono.just(new PubsubPullResponse(receivedMessages)));
+        PubsubPullerConfig pullerConfig = PubsubPullerConfig
+                .builder()
+                .setProjectName(PROJECT_NAME)
+                .setSubscriptionName(SUBSCRIPTION_NAME)
+                .build();
+        PubsubPuller puller = PubsubPuller
+                .builder()
+                .setConfig(pullerConfig)
+                .setClient(client)
+                .build();
+        PubsubPullResponse pullResponse = puller.pullOne().block(Duration.ofSeconds(1));
+
+        // Verify that the payloads are decoded.
+        Assertions.assertThat(pullResponse).isNotNull();
+        List<PubsubReceivedMessage> pulledMessages = pullResponse.getReceivedMessages();
+        Assertions.assertThat(pulledMessages.get(0)).isSameAs(receivedMessages.get(0));
+        PubsubReceivedMessage decodedMessage = pulledMessages.get(1);
+        Assertions.assertThat(decodedMessage.getAckId()).isEqualTo("ackId1");
+        Assertions.assertThat(decodedMessage.getPayload()).isEqualTo(largePayload);
+        Assertions.assertThat(decodedMessage.getAttributes()).isEqualTo(Collections.singletonMap("key", "val"));
+        Assertions.assertThat(decodedMessage.getOrderingKey()).isEqualTo("orderingKey");
+
+    }
+
+    @Test
+    public void test_payload_codec_with_reserved_attribute() {
+        PubsubPublisherConfig publisherConfig = PubsubPublisherConfig
+                .builder()
+                .setProjectName(PROJECT_NAME)
+                .setTopicName(TOPIC_NAME)
+                .setPayloadCodec(PubsubDeflatePayloadCodec.getDefaultInstance())
+                .build();
+        PubsubPublisher publisher = PubsubPublisher
+                .builder()
+                .setConfig(publisherConfig)
+                .setClient(Mockito.mock(PubsubClient.class))
+                .build();
+        PubsubDraftedMessage message = new PubsubDraftedMessage(
+                new byte[]{1},
+                Collections.singletonMap(PubsubPayloadCodec.ATTRIBUTE_KEY, "foo"));
+        Assertions
+                .assertThatThrownBy(() -> publisher.publishMessage(message).block(Duration.ofSeconds(1)))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("message contains a reserved attribute (key=%s)", PubsubPayloadCodec.ATTRIBUTE_KEY);
+    }
+
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import com.vlkan.pubsub.codec.PubsubDeflatePayloadCodec;
+import com.vlkan.pubsub.codec.PubsubPayloadCodec;
+import com.vlkan.pubsub.model.PubsubPullRequest;
+import com.vlkan.pubsub.model.PubsubPullResponse;
+import com.vlkan.pubsub.model.PubsubReceivedMessage;
+import com.vlkan.pubsub.model.PubsubReceivedMessageEmbedding;
+import com.vlkan.pubsub.ratelimiter.StagedRateLimiter;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class PubsubPullerTest {
+
+    private static final String PROJECT_NAME = "test-project";
+
+    private static final String SUBSCRIPTION_NAME = "test-subscription";
+
+    @Test
+    public void test_rate_limited_pulls() {
+
+        // Create a client responding with 2 messages per pull.
+        PubsubClient client = Mockito.mock(PubsubClient.class);
+        AtomicInteger pullCounter = new AtomicInteger(0);
+        PubsubPullResponse pullResponse = new PubsubPullResponse(createReceivedMessages(2));
+        Mockito
+                .when(client.pull(
+                        ArgumentMatchers.anyString(),
+                        ArgumentMatchers.anyString(),
+                        ArgumentMatchers.any(PubsubPullRequest.class)))
+                .thenReturn(Mono.fromCallable(() -> {
+                    pullCounter.incrementAndGet();
+                    return pullResponse;
+                }));
+
+        // Create a puller allowing 3 messages per hour.
+        StagedRateLimiter stagedRateLimiter = StagedRateLimiter
+                .builder()
+                .setName("test")
+                .setSpec("1/1h:, 2/1h:, 3/1h:")
+                .build();
+        PubsubPuller puller = createPuller(client, stagedRateLimiter);
+
+        // Verify that the budget delays the 3rd pull, but not the delivery of the 2nd one.
+        List<PubsubPullResponse> pullResponses = puller
+                .pullAll()
+                .take(Duration.ofMillis(500))
+                .collectList()
+                .block(Duration.ofSeconds(5));
+        Assertions.assertThat(pullResponses).containsExactly(pullResponse, pullResponse);
+        Assertions.assertThat(pullCounter.get()).isEqualTo(2);
+
+    }
+
+    @Test
+    public void test_rate_limited_concurrent_pulls() {
+
+        // Create a client responding with as many messages as requested.
+        PubsubClient client = Mockito.mock(PubsubClient.class);
+        AtomicInteger requestedMessageCounter = new AtomicInteger(0);
+        Mockito
+                .when(client.pull(
+                        ArgumentMatchers.anyString(),
+                        ArgumentMatchers.anyString(),
+                        ArgumentMatchers.any(PubsubPullRequest.class)))
+                .thenAnswer(invocation -> {
+                    PubsubPullRequest pullRequest = invocation.getArgument(2);
+                    int messageCount = pullRequest.getMaxMessageCount();
+                    requestedMessageCounter.addAndGet(messageCount);
+                    PubsubPullResponse pullResponse = new PubsubPullResponse(createReceivedMessages(messageCount));
+                    return Mono.delay(Duration.ofMillis(50)).thenReturn(pullResponse);
+                });
+
+        // Create a puller allowing 5 messages per hour with concurrent pulls of 3 messages each.
+        StagedRateLimiter stagedRateLimiter = StagedRateLimiter
+                .builder()
+                .setName("test")
+                .setSpec("1/1h:, 2/1h:, 5/1h:")
+                .build();
+        PubsubPuller puller = createPuller(client, stagedRateLimiter, 4, 3);
+
+        // Verify that concurrent pulls do not exceed the budget.
+        List<PubsubPullResponse> pullResponses = puller
+                .pullAll()
+                .take(Duration.ofMillis(500))
+                .collectList()
+                .block(Duration.ofSeconds(5));
+        int receivedMessageCount = pullResponses
+                .stream()
+                .mapToInt(pullResponse -> pullResponse.getReceivedMessages().size())
+                .sum();
+        Assertions.assertThat(receivedMessageCount).isEqualTo(5);
+        Assertions.assertThat(requestedMessageCounter.get()).isEqualTo(5);
+
+    }
+
+    @Test
+    public void test_short_pull_responses_release_permits() {
+
+        // Create a client responding with a single message per pull.
+        PubsubClient client = Mockito.mock(PubsubClient.class);
+        PubsubPullResponse pullResponse = new PubsubPullResponse(createReceivedMessages(1));
+        Mockito
+                .when(client.pull(
+                        ArgumentMatchers.anyString(),
+                        ArgumentMatchers.anyString(),
+                        ArgumentMatchers.any(PubsubPullRequest.class)))
+                .thenReturn(Mono.just(pullResponse));
+
+        // Create a puller allowing 5 messages per hour with pulls of 3 messages each.
+        StagedRateLimiter stagedRateLimiter = StagedRateLimiter
+                .builder()
+                .setName("test")
+                .setSpec("1/1h:, 2/1h:, 5/1h:")
+                .build();
+        PubsubPuller puller = createPuller(client, stagedRateLimiter, 1, 3);
+
+        // Verify that the unused permits are used by the succeeding pulls.
+        List<PubsubPullResponse> pullResponses = puller
+                .pullAll()
+                .take(Duration.ofMillis(500))
+                .collectList()
+                .block(Duration.ofSeconds(5));
+        Assertions.assertThat(pullResponses).hasSize(5);
+
+    }
+
+    @Test
+    public void test_rate_limited_pull_failures() {
+
+        // Create a client failing every pull.
+        PubsubClient client = Mockito.mock(PubsubClient.class);
+        Mockito
+                .when(client.pull(
+                        ArgumentMatchers.anyString(),
+                        ArgumentMatchers.anyString(),
+                        ArgumentMatchers.any(PubsubPullRequest.class)))
+                .thenReturn(Mono.error(new RuntimeException("pull failure")));
+
+        // Create the puller.
+        StagedRateLimiter stagedRateLimiter = Mockito.spy(StagedRateLimiter
+                .builder()
+                .setName("test")
+                .setSpec("1/1h:, 2/1h:, 10/1h:")
+                .build());
+        PubsubPuller puller = createPuller(client, stagedRateLimiter);
+
+        // Fail pulls twice.
+        for (int attemptIndex = 0; attemptIndex < 2; attemptIndex++) {
+            Assertions
+                    .assertThatThrownBy(() -> puller.pullOne().block(Duration.ofSeconds(5)))
+                    .hasMessage("pull failure");
+        }
+
+        // Verify that the failures are not acknowledged and release their permits.
+        Mockito.verify(stagedRateLimiter, Mockito.never()).acknowledgeFailure();
+        Assertions.assertThat(stagedRateLimiter.claimAvailablePermits(100).getPermitCount()).isEqualTo(10);
+
+    }
+
+    @Test
+    public void test_received_message_tracking() {
+
+        // Create a client responding with 2 messages published at epoch.
+        PubsubClient client = Mockito.mock(PubsubClient.class);
+        PubsubPullResponse pullResponse = new PubsubPullResponse(createReceivedMessages(2));
+        Mockito
+                .when(client.pull(
+                        ArgumentMatchers.anyString(),
+                        ArgumentMatchers.anyString(),
+                        ArgumentMatchers.any(PubsubPullRequest.class)))
+                .thenReturn(Mono.just(pullResponse));
+
+        // Create the puller.
+        PubsubPullerConfig config = PubsubPullerConfig
+                .builder()
+                .setProjectName(PROJECT_NAME)
+                .setSubscriptionName(SUBSCRIPTION_NAME)
+                .build();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        PubsubLeasedMessageTracker leasedMessageTracker = PubsubLeasedMessageTracker
+                .builder()
+                .setMeterRegistry(meterRegistry)
+                .build();
+        PubsubPuller puller = PubsubPuller
+                .builder()
+                .setConfig(config)
+                .setClient(client)
+                .setLeasedMessageTracker(leasedMessageTracker)
+                .setMeterRegistry(meterRegistry)
+                .build();
+
+        // Pull once.
+        Assertions.assertThat(puller.pullOne().block(Duration.ofSeconds(5))).isEqualTo(pullResponse);
+
+        // Verify the publish-to-receive delay.
+        Timer publishToReceiveDelayTimer = meterRegistry
+                .get(PubsubPuller.DEFAULT_METER_NAME_PREFIX + ".publishToReceiveDelay")
+                .tag("projectName", PROJECT_NAME)
+                .tag("subscriptionName", SUBSCRIPTION_NAME)
+                .timer();
+        Assertions.assertThat(publishToReceiveDelayTimer.count()).isEqualTo(2);
+        Assertions
+                .assertThat(publishToReceiveDelayTimer.max(TimeUnit.MILLISECONDS))
+                .isGreaterThanOrEqualTo(Instant.now().minusSeconds(60).toEpochMilli());
+
+        // Verify the leases and the gauges.
+        Assertions.assertThat(leasedMessageTracker.getLeasedMessageCount()).isEqualTo(2);
+        Assertions
+                .assertThat(meterRegistry
+                        .get(PubsubLeasedMessageTracker.DEFAULT_METER_NAME_PREFIX + ".leasedMessageCount")
+                        .gauge()
+                        .value())
+                .isEqualTo(2);
+        Assertions
+                .assertThat(meterRegistry
+                        .get(PubsubPuller.DEFAULT_METER_NAME_PREFIX + ".activePullCount")
+                        .gauge()
+                        .value())
+                .isZero();
+        Assertions
+                .assertThat(meterRegistry.find(PubsubPuller.DEFAULT_METER_NAME_PREFIX + ".leasedMessageCount").gauge())
+                .isNull();
+
+    }
+
+    @Test
+    public void test_decoding_failures() {
+
+        // Create a client responding with a corrupt encoded message.
+        PubsubClient client = Mockito.mock(PubsubClient.class);
+        String codecName = PubsubDeflatePayloadCodec.getDefaultInstance().getName();
+        Map<String, String> attributes = Collections.singletonMap(PubsubPayloadCodec.ATTRIBUTE_KEY, codecName);
+        byte[] payload = "corrupt".getBytes(StandardCharsets.UTF_8);
+        PubsubReceivedMessageEmbedding embedding =
+                new PubsubReceivedMessageEmbedding(Instant.EPOCH, "id", payload, attributes);
+        PubsubReceivedMessage message = new PubsubReceivedMessage("ackId", embedding);
+        Mockito
+                .when(client.pull(
+                        ArgumentMatchers.anyString(),
+                        ArgumentMatchers.anyString(),
+                        ArgumentMatchers.any(PubsubPullRequest.class)))
+                .thenReturn(Mono.just(new PubsubPullResponse(Collections.singletonList(message))));
+
+        // Create the puller.
+        PubsubPullerConfig config = PubsubPullerConfig
+                .builder()
+                .setProjectName(PROJECT_NAME)
+                .setSubscriptionName(SUBSCRIPTION_NAME)
+                .build();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        PubsubPuller puller = PubsubPuller
+                .builder()
+                .setConfig(config)
+                .setClient(client)
+                .setMeterRegistry(meterRegistry)
+                .build();
+
+        // Verify that the message is delivered as is, along with the marker.
+        PubsubPullResponse pullResponse = puller.pullOne().block(Duration.ofSeconds(5));
+        Assertions.assertThat(pullResponse).isNotNull();
+        Assertions.assertThat(pullResponse.getReceivedMessages()).containsExactly(message);
+        Assertions.assertThat(message.getAttributes()).containsEntry(PubsubPayloadCodec.ATTRIBUTE_KEY, codecName);
+
+        // Verify the failure count.
+        Assertions
+                .assertThat(meterRegistry
+                        .get(PubsubPuller.DEFAULT_METER_NAME_PREFIX + ".decodingFailureCount")
+                        .counter()
+                        .count())
+                .isEqualTo(1);
+
+    }
+
+    private static PubsubPuller createPuller(PubsubClient client, StagedRateLimiter stagedRateLimiter) {
+        return createPuller(client, stagedRateLimiter, 1, PubsubPullerConfig.DEFAULT_PULL_BUFFER_SIZE);
+    }
+
+    private static PubsubPuller createPuller(
+            PubsubClient client,
+            StagedRateLimiter stagedRateLimiter,
+            int pullConcurrency,
+            int pullBufferSize) {
+        PubsubPullerConfig config = PubsubPullerConfig
+                .builder()
+                .setProjectName(PROJECT_NAME)
+                .setSubscriptionName(SUBSCRIPTION_NAME)
+                .setPullConcurrency(pullConcurrency)
+                .setPullBufferSize(pullBufferSize)
+                .build();
+        return PubsubPuller
+                .builder()
+                .setConfig(config)
+                .setClient(client)
+                .setStagedRateLimiter(stagedRateLimiter)
+                .build();
+    }
+
+    private static List<PubsubReceivedMessage> createReceivedMessages(int messageCount) {
+        return IntStream
+                .range(0, messageCount)
+                .mapToObj(messageIndex -> {
+                    PubsubReceivedMessageEmbedding embedding = new PubsubReceivedMessageEmbedding(
+                            Instant.EPOCH,
+                            "id" + messageIndex,
+                            ("payload" + messageIndex).getBytes(StandardCharsets.UTF_8),
+                            Collections.emptyMap());
+                    return new PubsubReceivedMessage("ackId" + messageIndex, embedding);
+                })
+                .collect(Collectors.toList());
+    }
+
+}
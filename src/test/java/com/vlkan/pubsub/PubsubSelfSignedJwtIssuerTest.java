@@ -0,0 +1,102 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.ServiceAccountCredentials;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.Map;
+
+public class PubsubSelfSignedJwtIssuerTest {
+
+    @Test
+    public void test_issue() throws GeneralSecurityException, IOException {
+
+        // Create the issuer.
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        ServiceAccountCredentials credentials = ServiceAccountCredentials
+                .newBuilder()
+                .setClientEmail("test@example.iam.gserviceaccount.com")
+                .setPrivateKey(keyPair.getPrivate())
+                .setPrivateKeyId("test-key-id")
+                .build();
+        PubsubSelfSignedJwtIssuer issuer = new PubsubSelfSignedJwtIssuer(
+                PubsubClient.getDefaultObjectMapper(),
+                credentials,
+                PubsubAccessTokenCache.DEFAULT_SELF_SIGNED_JWT_AUDIENCE);
+
+        // Issue a token.
+        long startInstantMillis = System.currentTimeMillis();
+        AccessToken accessToken = issuer.issue();
+        String[] tokenParts = accessToken.getTokenValue().split("\\.");
+        Assertions.assertThat(tokenParts).hasSize(3);
+
+        // Verify the header.
+        Map<String, Object> header = decodeJson(tokenParts[0]);
+        Assertions
+                .assertThat(header)
+                .containsEntry("alg", "RS256")
+                .containsEntry("typ", "JWT")
+                .containsEntry("kid", "test-key-id");
+
+        // Verify the claims.
+        Map<String, Object> claims = decodeJson(tokenParts[1]);
+        Assertions
+                .assertThat(claims)
+                .containsEntry("iss", "test@example.iam.gserviceaccount.com")
+                .containsEntry("sub", "test@example.iam.gserviceaccount.com")
+                .containsEntry("aud", PubsubAccessTokenCache.DEFAULT_SELF_SIGNED_JWT_AUDIENCE);
+        long issueInstantSeconds = ((Number) claims.get("iat")).longValue();
+        long expirationInstantSeconds = ((Number) claims.get("exp")).longValue();
+        Assertions
+                .assertThat(issueInstantSeconds)
+                .isBetween(startInstantMillis / 1_000L - 1, startInstantMillis / 1_000L + 60);
+        Assertions
+                .assertThat(expirationInstantSeconds - issueInstantSeconds)
+                .isEqualTo(PubsubSelfSignedJwtIssuer.TOKEN_LIFETIME.getSeconds());
+        Assertions
+                .assertThat(accessToken.getExpirationTime().getTime())
+                .isEqualTo(expirationInstantSeconds * 1_000L);
+
+        // Verify the signature.
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initVerify(keyPair.getPublic());
+        signature.update((tokenParts[0] + '.' + tokenParts[1]).getBytes(StandardCharsets.US_ASCII));
+        Assertions.assertThat(signature.verify(Base64.getUrlDecoder().decode(tokenParts[2]))).isTrue();
+
+    }
+
+    private static Map<String, Object> decodeJson(String encodedJson) throws IOException {
+        byte[] jsonBytes = Base64.getUrlDecoder().decode(encodedJson);
+        return PubsubClient
+                .getDefaultObjectMapper()
+                .readValue(jsonBytes, new TypeReference<Map<String, Object>>() {});
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import com.vlkan.pubsub.model.PubsubDraftedMessage;
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+public class PubsubSpilloverJournalTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static PubsubDraftedMessage createMessage(int messageIndex) {
+        byte[] payload = String.format("payload-%04d", messageIndex).getBytes(StandardCharsets.UTF_8);
+        String orderingKey = messageIndex % 2 == 0 ? null : "key-" + messageIndex % 3;
+        return new PubsubDraftedMessage(
+                payload,
+                Collections.singletonMap("index", String.valueOf(messageIndex)),
+                orderingKey);
+    }
+
+    private static List<PubsubDraftedMessage> createMessages(int startIndex, int endIndex) {
+        return IntStream
+                .range(startIndex, endIndex)
+                .mapToObj(PubsubSpilloverJournalTest::createMessage)
+                .collect(Collectors.toList());
+    }
+
+    private static List<Path> findSegmentPaths(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths
+                    .filter(path -> path.getFileName().toString().endsWith(".journal"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void test_encoding() {
+        PubsubDraftedMessage message = createMessage(1);
+        byte[] bytes = PubsubSpilloverJournal.encodeMessage(message);
+        Assertions.assertThat(PubsubSpilloverJournal.decodeMessage(bytes)).isEqualTo(message);
+    }
+
+    @Test
+    public void test_directory_is_locked_while_open() throws IOException {
+        Path directory = temporaryFolder.getRoot().toPath();
+        try (PubsubSpilloverJournal journal = new PubsubSpilloverJournal(directory, 256)) {
+            journal.append(createMessages(0, 1));
+            Assertions
+                    .assertThatThrownBy(() -> new PubsubSpilloverJournal(directory, 256))
+                    .isInstanceOf(IOException.class)
+                    .hasMessageContaining("locked");
+        }
+        try (PubsubSpilloverJournal journal = new PubsubSpilloverJournal(directory, 256)) {
+            Assertions.assertThat(journal.getPendingMessageCount()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void test_append_read_and_commit_across_segments() throws IOException {
+        Path directory = temporaryFolder.getRoot().toPath();
+        try (PubsubSpilloverJournal journal = new PubsubSpilloverJournal(directory, 256)) {
+
+            // Append messages spanning multiple segments.
+            List<PubsubDraftedMessage> messages = createMessages(0, 20);
+            journal.append(messages);
+            Assertions.assertThat(journal.getPendingMessageCount()).isEqualTo(20);
+            Assertions.assertThat(findSegmentPaths(directory)).hasSizeGreaterThan(2);
+
+            // Consume the messages in batches.
+            List<PubsubDraftedMessage> readMessages = new ArrayList<>();
+            PubsubSpilloverJournal.Batch batch;
+            while (!(batch = journal.read(7, Long.MAX_VALUE)).getMessages().isEmpty()) {
+                Assertions.assertThat(batch.getMessages()).hasSizeLessThanOrEqualTo(7);
+                readMessages.addAll(batch.getMessages());
+                journal.commit(batch);
+            }
+            Assertions.assertThat(readMessages).isEqualTo(messages);
+            Assertions.assertThat(journal.getPendingMessageCount()).isZero();
+
+            // Verify that the consumed segments are deleted.
+            Assertions.assertThat(findSegmentPaths(directory)).hasSize(1);
+
+        }
+    }
+
+    @Test
+    public void test_read_by_byte_count() throws IOException {
+        Path directory = temporaryFolder.getRoot().toPath();
+        try (PubsubSpilloverJournal journal = new PubsubSpilloverJournal(directory, 1024)) {
+            journal.append(createMessages(0, 5));
+            long byteCount = createMessage(0).estimateSerializedByteCount() +
+                    createMessage(1).estimateSerializedByteCount();
+            PubsubSpilloverJournal.Batch batch = journal.read(100, byteCount);
+            Assertions.assertThat(batch.getMessages()).isEqualTo(createMessages(0, 2));
+        }
+    }
+
+    @Test
+    public void test_large_record() throws IOException {
+        Path directory = temporaryFolder.getRoot().toPath();
+        try (PubsubSpilloverJournal journal = new PubsubSpilloverJournal(directory, 64)) {
+            PubsubDraftedMessage message = new PubsubDraftedMessage(new byte[1_000]);
+            journal.append(Collections.singletonList(message));
+            Assertions.assertThat(journal.read(1, Long.MAX_VALUE).getMessages()).containsExactly(message);
+        }
+    }
+
+    @Test
+    public void test_recovery() throws IOException {
+        Path directory = temporaryFolder.getRoot().toPath();
+
+        // Append messages and consume some.
+        try (PubsubSpilloverJournal journal = new PubsubSpilloverJournal(directory, 256)) {
+            journal.append(createMessages(0, 10));
+            journal.commit(journal.read(4, Long.MAX_VALUE));
+        }
+
+        // Verify that the rest survives the restart.
+        try (PubsubSpilloverJournal journal = new PubsubSpilloverJournal(directory, 256)) {
+            Assertions.assertThat(journal.getPendingMessageCount()).isEqualTo(6);
+            journal.append(createMessages(10, 12));
+            PubsubSpilloverJournal.Batch batch = journal.read(100, Long.MAX_VALUE);
+            Assertions.assertThat(batch.getMessages()).isEqualTo(createMessages(4, 12));
+        }
+
+    }
+
+    @Test
+    public void test_recovery_with_corrupt_tail() throws IOException {
+        Path directory = temporaryFolder.getRoot().toPath();
+
+        // Append messages into a single segment.
+        try (PubsubSpilloverJournal journal = new PubsubSpilloverJournal(directory, 4096)) {
+            journal.append(createMessages(0, 3));
+        }
+
+        // Corrupt the last byte of the last record.
+        List<Path> segmentPaths = findSegmentPaths(directory);
+        Assertions.assertThat(segmentPaths).hasSize(1);
+        int recordByteCount = 8 + PubsubSpilloverJournal.encodeMessage(createMessage(0)).length;
+        try (RandomAccessFile file = new RandomAccessFile(segmentPaths.get(0).toFile(), "rw")) {
+            long lastByteOffset = 3L * recordByteCount - 1;
+            file.seek(lastByteOffset);
+            byte lastByte = file.readByte();
+            file.seek(lastByteOffset);
+            file.writeByte(lastByte + 1);
+        }
+
+        // Verify that the corrupt record is dropped and the rest is intact.
+        try (PubsubSpilloverJournal journal = new PubsubSpilloverJournal(directory, 4096)) {
+            Assertions.assertThat(journal.getPendingMessageCount()).isEqualTo(2);
+            journal.append(createMessages(3, 4));
+            List<PubsubDraftedMessage> expectedMessages = new ArrayList<>(createMessages(0, 2));
+            expectedMessages.add(createMessage(3));
+            Assertions
+                    .assertThat(journal.read(100, Long.MAX_VALUE).getMessages())
+                    .isEqualTo(expectedMessages);
+        }
+
+    }
+
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.stubbing.ServeEvent;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
+import com.vlkan.pubsub.jackson.JacksonHelpers;
+import com.vlkan.pubsub.model.PubsubDraftedMessage;
+import com.vlkan.pubsub.model.PubsubPublishResponse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class PubsubSpilloverPublisherTest {
+
+    @Rule
+    public final WireMockRule serverMockRule =
+            new WireMockRule(WireMockConfiguration.options().port(8888), true);
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static final String PROJECT_NAME = "test-project";
+
+    private static final String TOPIC_NAME = "test-topic";
+
+    private static final String PUBLISH_REQUEST_RELATIVE_PATH =
+            PubsubClient.createPublishRequestRelativePath(PROJECT_NAME, TOPIC_NAME);
+
+    private int stubPriority = 100;
+
+    @Test
+    public void test_outage_restart_and_recovery() throws InterruptedException {
+
+        // Simulate an outage.
+        stubPublishResponse(HttpResponseStatus.SERVICE_UNAVAILABLE);
+
+        // Verify that the failed publishes get journaled.
+        PubsubPublisher publisher = createPublisher();
+        Path journalDirectory = temporaryFolder.getRoot().toPath();
+        PubsubSpilloverPublisher spilloverPublisher1 = createSpilloverPublisher(publisher, journalDirectory);
+        for (int messageIndex = 0; messageIndex < 10; messageIndex++) {
+            spilloverPublisher1
+                    .publishMessage(createMessage(messageIndex))
+                    .block(Duration.ofSeconds(3));
+        }
+        Assertions.assertThat(spilloverPublisher1.getPendingMessageCount()).isEqualTo(10);
+
+        // Verify that the journal survives a restart.
+        spilloverPublisher1.close();
+        PubsubSpilloverPublisher spilloverPublisher2 = createSpilloverPublisher(publisher, journalDirectory);
+        Assertions.assertThat(spilloverPublisher2.getPendingMessageCount()).isEqualTo(10);
+
+        // Verify that publishes are journaled until the journal is drained.
+        for (int messageIndex = 10; messageIndex < 15; messageIndex++) {
+            spilloverPublisher2
+                    .publishMessage(createMessage(messageIndex))
+                    .block(Duration.ofSeconds(3));
+        }
+        Assertions.assertThat(spilloverPublisher2.getPendingMessageCount()).isEqualTo(15);
+
+        // Recover from the outage and verify the drain.
+        serverMockRule.resetRequests();
+        stubPublishResponse(HttpResponseStatus.OK);
+        awaitUntil(() -> spilloverPublisher2.getPendingMessageCount() == 0);
+        // Requests of the outage might still get logged, hence filtering by the response.
+        List<LoggedRequest> requests = serverMockRule
+                .getAllServeEvents()
+                .stream()
+                .filter(serveEvent -> serveEvent.getResponse().getStatus() == HttpResponseStatus.OK.code())
+                .map(ServeEvent::getRequest)
+                .collect(Collectors.toList());
+        Collections.reverse(requests);
+        List<String> publishedPayloads = new ArrayList<>();
+        for (LoggedRequest request : requests) {
+            publishedPayloads.addAll(readPayloads(request));
+        }
+        List<String> expectedPayloads = IntStream
+                .range(0, 15)
+                .mapToObj(PubsubSpilloverPublisherTest::createPayload)
+                .collect(Collectors.toList());
+        Assertions.assertThat(publishedPayloads).isEqualTo(expectedPayloads);
+        Assertions.assertThat(requests).hasSizeLessThan(15);
+
+        // Verify that direct publishes are back.
+        serverMockRule.resetRequests();
+        spilloverPublisher2.publishMessage(createMessage(15)).block(Duration.ofSeconds(3));
+        Assertions.assertThat(spilloverPublisher2.getPendingMessageCount()).isZero();
+        serverMockRule.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo(PUBLISH_REQUEST_RELATIVE_PATH)));
+        spilloverPublisher2.close();
+
+    }
+
+    @Test
+    public void test_permanent_failures_are_not_spilled() {
+        stubPublishResponse(HttpResponseStatus.BAD_REQUEST);
+        PubsubPublisher publisher = createPublisher();
+        Path journalDirectory = temporaryFolder.getRoot().toPath();
+        PubsubSpilloverPublisher spilloverPublisher = createSpilloverPublisher(publisher, journalDirectory);
+        Assertions
+                .assertThatThrownBy(() -> spilloverPublisher
+                        .publishMessage(createMessage(0))
+                        .block(Duration.ofSeconds(3)))
+                .isInstanceOf(PubsubResponseException.class)
+                .satisfies(error -> Assertions
+                        .assertThat(((PubsubResponseException) error).getStatusCode())
+                        .isEqualTo(HttpResponseStatus.BAD_REQUEST.code()));
+        Assertions.assertThat(spilloverPublisher.getPendingMessageCount()).isZero();
+        spilloverPublisher.close();
+    }
+
+    @Test
+    public void test_permanently_failing_journaled_messages_get_dropped() throws InterruptedException {
+
+        // Journal messages during an outage.
+        stubPublishResponse(HttpResponseStatus.SERVICE_UNAVAILABLE);
+        PubsubPublisher publisher = createPublisher();
+        Path journalDirectory = temporaryFolder.getRoot().toPath();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        PubsubSpilloverPublisher spilloverPublisher =
+                createSpilloverPublisher(publisher, journalDirectory, meterRegistry);
+        for (int messageIndex = 0; messageIndex < 5; messageIndex++) {
+            spilloverPublisher
+                    .publishMessage(createMessage(messageIndex))
+                    .block(Duration.ofSeconds(3));
+        }
+        Assertions.assertThat(spilloverPublisher.getPendingMessageCount()).isEqualTo(5);
+
+        // Recover from the outage, yet, with a message Pub/Sub rejects.
+        serverMockRule.resetRequests();
+        String poisonPayload = Base64
+                .getEncoder()
+                .encodeToString(createPayload(2).getBytes(StandardCharsets.UTF_8));
+        serverMockRule.addStubMapping(
+                WireMock.stubFor(WireMock
+                        .post(WireMock.urlEqualTo(PUBLISH_REQUEST_RELATIVE_PATH))
+                        .withRequestBody(WireMock.containing(poisonPayload))
+                        .atPriority(1)
+                        .willReturn(WireMock
+                                .aResponse()
+                                .withStatus(HttpResponseStatus.BAD_REQUEST.code()))));
+        stubPublishResponse(HttpResponseStatus.OK);
+
+        // Verify that the drain drops the rejected message only. Served
+        // requests might get logged after the drain, hence the wait.
+        awaitUntil(() -> spilloverPublisher.getPendingMessageCount() == 0);
+        awaitUntil(() -> readPublishedPayloads().size() >= 4);
+        Assertions
+                .assertThat(readPublishedPayloads())
+                .containsExactly(createPayload(0), createPayload(1), createPayload(3), createPayload(4));
+        Assertions
+                .assertThat(meterRegistry
+                        .get("pubsub.spilloverPublisher.droppedMessageCount")
+                        .counter()
+                        .count())
+                .isEqualTo(1D);
+
+        // Verify that direct publishes are back.
+        serverMockRule.resetRequests();
+        spilloverPublisher.publishMessage(createMessage(5)).block(Duration.ofSeconds(3));
+        Assertions.assertThat(spilloverPublisher.getPendingMessageCount()).isZero();
+        serverMockRule.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo(PUBLISH_REQUEST_RELATIVE_PATH)));
+        spilloverPublisher.close();
+
+    }
+
+    @Test
+    public void test_journal_io_runs_on_scheduler() throws InterruptedException {
+
+        // Create a publisher failing the direct publish and succeeding the
+        // drain, each signaled on a thread mimicking a Netty event loop.
+        Scheduler eventLoopScheduler = Schedulers.newSingle("eventLoop");
+        Scheduler journalScheduler = Schedulers.newSingle("journal");
+        List<String> publishThreadNames = new CopyOnWriteArrayList<>();
+        PubsubPublisher publisher = Mockito.mock(PubsubPublisher.class);
+        Mockito
+                .when(publisher.publishMessages(Mockito.anyList()))
+                .thenAnswer(invocation -> {
+                    publishThreadNames.add(Thread.currentThread().getName());
+                    return Mono.error(new IOException("outage")).publishOn(eventLoopScheduler);
+                })
+                .thenAnswer(invocation -> {
+                    publishThreadNames.add(Thread.currentThread().getName());
+                    PubsubPublishResponse response = new PubsubPublishResponse(Collections.singletonList("id"));
+                    return Mono.just(response).publishOn(eventLoopScheduler);
+                });
+
+        // Verify that the spill completes on the journal scheduler.
+        PubsubSpilloverPublisherConfig config = PubsubSpilloverPublisherConfig
+                .builder()
+                .setJournalDirectory(temporaryFolder.getRoot().toPath())
+                .build();
+        PubsubSpilloverPublisher spilloverPublisher = PubsubSpilloverPublisher
+                .builder()
+                .setConfig(config)
+                .setPublisher(publisher)
+                .setScheduler(journalScheduler)
+                .build();
+        try {
+            String spillThreadName = spilloverPublisher
+                    .publishMessage(createMessage(0))
+                    .then(Mono.fromCallable(() -> Thread.currentThread().getName()))
+                    .block(Duration.ofSeconds(3));
+            Assertions.assertThat(spillThreadName).startsWith("journal");
+
+            // Verify that the drain reads and commits on the journal scheduler.
+            awaitUntil(() -> spilloverPublisher.getPendingMessageCount() == 0);
+            Assertions.assertThat(publishThreadNames).hasSize(2);
+            Assertions.assertThat(publishThreadNames.get(1)).startsWith("journal");
+        } finally {
+            spilloverPublisher.close();
+            journalScheduler.dispose();
+            eventLoopScheduler.dispose();
+        }
+
+    }
+
+    /**
+     * Stubs the publish response overriding the earlier stubs. Earlier stubs
+     * are not removed, since a drain retry in between would otherwise hit a
+     * 404 response and drop the messages.
+     */
+    private void stubPublishResponse(HttpResponseStatus responseStatus) {
+        String publishResponseJson = JacksonHelpers.writeValueAsString(
+                new PubsubPublishResponse(Collections.singletonList("id")));
+        serverMockRule.addStubMapping(
+                WireMock.stubFor(WireMock
+                        .post(WireMock.urlEqualTo(PUBLISH_REQUEST_RELATIVE_PATH))
+                        .atPriority(stubPriority--)
+                        .willReturn(WireMock
+                                .aResponse()
+                                .withStatus(responseStatus.code())
+                                .withHeader(
+                                        HttpHeaderNames.CONTENT_TYPE.toString(),
+                                        HttpHeaderValues.APPLICATION_JSON.toString())
+                                .withBody(publishResponseJson))));
+    }
+
+    private PubsubPublisher createPublisher() {
+        PubsubClientConfig clientConfig = PubsubClientConfig
+                .builder()
+                .setBaseUrl(serverMockRule.baseUrl())
+                .build();
+        PubsubClient client = PubsubClient
+                .builder()
+                .setConfig(clientConfig)
+                .setAccessTokenCache(PubsubAccessTokenCacheFixture.getInstance())
+                .build();
+        PubsubPublisherConfig publisherConfig = PubsubPublisherConfig
+                .builder()
+                .setProjectName(PROJECT_NAME)
+                .setTopicName(TOPIC_NAME)
+                .build();
+        return PubsubPublisher
+                .builder()
+                .setConfig(publisherConfig)
+                .setClient(client)
+                .build();
+    }
+
+    private static PubsubSpilloverPublisher createSpilloverPublisher(
+            PubsubPublisher publisher,
+            Path journalDirectory) {
+        return createSpilloverPublisher(publisher, journalDirectory, null);
+    }
+
+    private static PubsubSpilloverPublisher createSpilloverPublisher(
+            PubsubPublisher publisher,
+            Path journalDirectory,
+            @Nullable SimpleMeterRegistry meterRegistry) {
+        PubsubSpilloverPublisherConfig config = PubsubSpilloverPublisherConfig
+                .builder()
+                .setJournalDirectory(journalDirectory)
+                .setSegmentByteCount(512)
+                .setDrainRetryPeriod(Duration.ofMillis(100))
+                .build();
+        PubsubSpilloverPublisher.Builder builder = PubsubSpilloverPublisher
+                .builder()
+                .setConfig(config)
+                .setPublisher(publisher);
+        if (meterRegistry != null) {
+            builder.setMeterRegistry(meterRegistry);
+        }
+        return builder.build();
+    }
+
+    private static String createPayload(int messageIndex) {
+        return String.format("payload-%04d", messageIndex);
+    }
+
+    private static PubsubDraftedMessage createMessage(int messageIndex) {
+        byte[] payload = createPayload(messageIndex).getBytes(StandardCharsets.UTF_8);
+        return new PubsubDraftedMessage(payload);
+    }
+
+    private List<String> readPublishedPayloads() {
+        List<LoggedRequest> requests = serverMockRule
+                .getAllServeEvents()
+                .stream()
+                .filter(serveEvent -> serveEvent.getResponse().getStatus() == HttpResponseStatus.OK.code())
+                .map(ServeEvent::getRequest)
+                .collect(Collectors.toList());
+        Collections.reverse(requests);
+        List<String> publishedPayloads = new ArrayList<>();
+        for (LoggedRequest request : requests) {
+            publishedPayloads.addAll(readPayloads(request));
+        }
+        return publishedPayloads;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> readPayloads(LoggedRequest request) {
+        Map<String, Object> publishRequest = JacksonHelpers.readValue(request.getBodyAsString(), Map.class);
+        List<Map<String, Object>> messages = (List<Map<String, Object>>) publishRequest.get("messages");
+        return messages
+                .stream()
+                .map(message -> {
+                    byte[] payload = Base64.getDecoder().decode((String) message.get("data"));
+                    return new String(payload, StandardCharsets.UTF_8);
+                })
+                .collect(Collectors.toList());
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadlineNanos) {
+                throw new AssertionError("condition is not satisfied in time");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+}
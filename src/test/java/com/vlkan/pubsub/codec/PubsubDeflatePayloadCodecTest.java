@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub.codec;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+public class PubsubDeflatePayloadCodecTest {
+
+    private static final byte[] PAYLOAD = createPayload();
+
+    private static byte[] createPayload() {
+        StringBuilder payloadBuilder = new StringBuilder("[");
+        for (int recordIndex = 0; recordIndex < 100; recordIndex++) {
+            if (recordIndex > 0) {
+                payloadBuilder.append(',');
+            }
+            payloadBuilder.append(String.format("{\"id\":%d,\"name\":\"record-%d\",\"enabled\":true}", recordIndex, recordIndex));
+        }
+        return payloadBuilder.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void test_round_trip() {
+        for (int level = 1; level <= 9; level++) {
+            PubsubDeflatePayloadCodec codec = new PubsubDeflatePayloadCodec(level);
+            byte[] encodedPayload = codec.encode(PAYLOAD);
+            Assertions.assertThat(encodedPayload.length).as("level=%d", level).isLessThan(PAYLOAD.length / 4);
+            Assertions.assertThat(codec.decode(encodedPayload)).as("level=%d", level).isEqualTo(PAYLOAD);
+        }
+    }
+
+    @Test
+    public void test_round_trip_of_incompressible_payload() {
+        byte[] payload = new byte[10_000];
+        new Random(0).nextBytes(payload);
+        PubsubDeflatePayloadCodec codec = PubsubDeflatePayloadCodec.getDefaultInstance();
+        Assertions.assertThat(codec.decode(codec.encode(payload))).isEqualTo(payload);
+        Assertions.assertThat(codec.decode(codec.encode(new byte[0]))).isEmpty();
+    }
+
+    @Test
+    public void test_malformed_payload() {
+        PubsubDeflatePayloadCodec codec = PubsubDeflatePayloadCodec.getDefaultInstance();
+        Assertions
+                .assertThatThrownBy(() -> codec.decode(PAYLOAD))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("malformed payload");
+        byte[] encodedPayload = codec.encode(PAYLOAD);
+        byte[] truncatedPayload = Arrays.copyOf(encodedPayload, encodedPayload.length / 2);
+        Assertions
+                .assertThatThrownBy(() -> codec.decode(truncatedPayload))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("truncated payload");
+    }
+
+    @Test
+    public void test_invalid_level() {
+        Assertions
+                .assertThatThrownBy(() -> new PubsubDeflatePayloadCodec(0))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("was expecting a level in [1, 9], found 0");
+    }
+
+}
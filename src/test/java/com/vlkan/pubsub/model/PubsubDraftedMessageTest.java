@@ -17,9 +17,13 @@
 package com.vlkan.pubsub.model;
 
 import com.vlkan.pubsub.jackson.JacksonHelpers;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
 import org.assertj.core.api.Assertions;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
 import java.util.Base64;
 import java.util.Collections;
 import java.util.LinkedHashMap;
@@ -67,4 +71,108 @@ public class PubsubDraftedMessageTest {
         Assertions.assertThat(actualMessageMap).isEqualTo(expectedMessageMap);
     }
 
+    @Test
+    public void test_serialization_with_orderingKey() {
+        byte[] payload = new byte[]{1, 2, 3, 4};
+        PubsubDraftedMessage message = new PubsubDraftedMessage(payload, Collections.emptyMap(), "key");
+        Map<String, Object> actualMessageMap = JacksonHelpers.writeValueAsMap(message);
+        Map<String, Object> expectedMessageMap = new LinkedHashMap<>();
+        expectedMessageMap.put(
+                PubsubDraftedMessage.JsonFieldName.PAYLOAD,
+                Base64.getEncoder().encodeToString(payload));
+        expectedMessageMap.put(
+                PubsubDraftedMessage.JsonFieldName.ATTRIBUTES,
+                Collections.emptyMap());
+        expectedMessageMap.put(
+                PubsubDraftedMessage.JsonFieldName.ORDERING_KEY,
+                "key");
+        Assertions.assertThat(actualMessageMap).isEqualTo(expectedMessageMap);
+    }
+
+    @Test
+    public void test_serialization_with_array_slice() {
+        byte[] bytes = new byte[]{0, 1, 2, 3, 4, 5};
+        PubsubDraftedMessage message = new PubsubDraftedMessage(bytes, 1, 4, Collections.emptyMap(), null);
+        test_serialization_of_payload(message, new byte[]{1, 2, 3, 4});
+    }
+
+    @Test
+    public void test_serialization_with_heap_ByteBuffer() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{0, 1, 2, 3, 4, 5});
+        buffer.position(2);
+        PubsubDraftedMessage message = new PubsubDraftedMessage(buffer, Collections.emptyMap(), null);
+        Assertions.assertThat(buffer.position()).isEqualTo(2);
+        test_serialization_of_payload(message, new byte[]{2, 3, 4, 5});
+    }
+
+    @Test
+    public void test_serialization_with_direct_ByteBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(6);
+        buffer.put(new byte[]{0, 1, 2, 3, 4, 5}).flip();
+        buffer.position(1);
+        PubsubDraftedMessage message = new PubsubDraftedMessage(buffer, Collections.emptyMap(), null);
+        test_serialization_of_payload(message, new byte[]{1, 2, 3, 4, 5});
+        // Serialization must not consume the buffer.
+        test_serialization_of_payload(message, new byte[]{1, 2, 3, 4, 5});
+    }
+
+    @Test
+    public void test_serialization_with_ByteBuf() {
+        ByteBuf buffer = Unpooled.directBuffer(6).writeBytes(new byte[]{0, 1, 2, 3, 4, 5});
+        try {
+            buffer.readByte();
+            PubsubDraftedMessage message = new PubsubDraftedMessage(buffer, Collections.emptyMap(), null);
+            Assertions.assertThat(buffer.readerIndex()).isEqualTo(1);
+            test_serialization_of_payload(message, new byte[]{1, 2, 3, 4, 5});
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void test_serialization_with_CompositeByteBuf() {
+        CompositeByteBuf buffer = Unpooled
+                .compositeBuffer()
+                .addComponent(true, Unpooled.wrappedBuffer(new byte[]{0, 1, 2}))
+                .addComponent(true, Unpooled.directBuffer(3).writeBytes(new byte[]{3, 4, 5}));
+        try {
+            buffer.readByte();
+            PubsubDraftedMessage message = new PubsubDraftedMessage(buffer, Collections.emptyMap(), null);
+            Assertions.assertThat(buffer.readerIndex()).isEqualTo(1);
+            // Multi-component buffers get consolidated into a copy.
+            buffer.setByte(1, 9);
+            test_serialization_of_payload(message, new byte[]{1, 2, 3, 4, 5});
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private static void test_serialization_of_payload(PubsubDraftedMessage message, byte[] expectedPayload) {
+        Assertions.assertThat(message.getPayloadLength()).isEqualTo(expectedPayload.length);
+        Assertions.assertThat(message.getPayload()).isEqualTo(expectedPayload);
+        Map<String, Object> actualMessageMap = JacksonHelpers.writeValueAsMap(message);
+        Assertions
+                .assertThat(actualMessageMap)
+                .containsEntry(
+                        PubsubDraftedMessage.JsonFieldName.PAYLOAD,
+                        Base64.getEncoder().encodeToString(expectedPayload));
+    }
+
+    @Test
+    public void test_getPayload_does_not_copy_entire_array() {
+        byte[] payload = new byte[]{1, 2, 3, 4};
+        PubsubDraftedMessage message = new PubsubDraftedMessage(payload);
+        Assertions.assertThat(message.getPayload()).isSameAs(payload);
+    }
+
+    @Test
+    public void test_equals_across_payload_sources() {
+        PubsubDraftedMessage arrayMessage = new PubsubDraftedMessage(new byte[]{1, 2, 3});
+        ByteBuffer directBuffer = ByteBuffer.allocateDirect(3);
+        directBuffer.put(new byte[]{1, 2, 3}).flip();
+        PubsubDraftedMessage bufferMessage = new PubsubDraftedMessage(directBuffer, Collections.emptyMap(), null);
+        Assertions.assertThat(bufferMessage).isEqualTo(arrayMessage);
+        Assertions.assertThat(bufferMessage.hashCode()).isEqualTo(arrayMessage.hashCode());
+    }
+
 }
@@ -178,4 +178,32 @@ public class PubsubReceivedMessageEmbeddingTest {
         Assertions.assertThat(deserializedMessage).isEqualTo(message);
     }
 
+    @Test
+    public void test_deserialization_with_orderingKey() {
+
+        // Build a Pub/Sub pull response JSON.
+        Instant expectedInstant = Instant.parse("2019-08-27T08:04:57Z");
+        byte[] expectedPayload = {1, 2, 3};
+        Map<String, Object> expectedMessageMap = MapHelpers.createMap(
+                PubsubReceivedMessageEmbedding.JsonFieldName.PUBLISH_INSTANT, expectedInstant.toString(),
+                PubsubReceivedMessageEmbedding.JsonFieldName.ID, "messageId1",
+                PubsubReceivedMessageEmbedding.JsonFieldName.PAYLOAD, Base64.getEncoder().encodeToString(expectedPayload),
+                PubsubReceivedMessageEmbedding.JsonFieldName.ORDERING_KEY, "key");
+        String messageJson = JacksonHelpers.writeValueAsString(expectedMessageMap);
+
+        // Deserialize Pub/Sub message from the JSON.
+        PubsubReceivedMessageEmbedding actualMessage =
+                JacksonHelpers.readValue(messageJson, PubsubReceivedMessageEmbedding.class);
+
+        // Build the expected response model.
+        PubsubReceivedMessageEmbedding expectedMessage =
+                new PubsubReceivedMessageEmbedding(
+                        expectedInstant, "messageId1", expectedPayload, Collections.emptyMap(), "key");
+
+        // Compare contents.
+        Assertions.assertThat(actualMessage).isEqualTo(expectedMessage);
+        Assertions.assertThat(actualMessage.getOrderingKey()).isEqualTo("key");
+
+    }
+
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub.ratelimiter;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import java.time.Duration;
+
+public class GcraRateLimiterTest {
+
+    @Test
+    public void test_permits_are_spread_evenly() {
+        Duration cyclePeriod = Duration.ofHours(1);
+        RateLimiter rateLimiter = new GcraRateLimiter(10, cyclePeriod, 1);
+        Assertions.assertThat(rateLimiter.nextPermitWaitPeriodNanos()).isZero();
+        long emissionIntervalNanos = cyclePeriod.toNanos() / 10;
+        Assertions
+                .assertThat(rateLimiter.nextPermitWaitPeriodNanos())
+                .isBetween(emissionIntervalNanos - Duration.ofSeconds(1).toNanos(), emissionIntervalNanos);
+    }
+
+    @Test
+    public void test_bursts() {
+        RateLimiter rateLimiter = new GcraRateLimiter(10, Duration.ofHours(1), 3);
+        for (int permitIndex = 0; permitIndex < 3; permitIndex++) {
+            Assertions.assertThat(rateLimiter.nextPermitWaitPeriodNanos()).isZero();
+        }
+        Assertions.assertThat(rateLimiter.nextPermitWaitPeriodNanos()).isPositive();
+        Assertions
+                .assertThat(rateLimiter.getAcquiredPermitCountPerSecond())
+                .isCloseTo(10D / 3600, Assertions.within(1e-6));
+    }
+
+    @Test
+    public void test_permits_get_replenished() throws InterruptedException {
+        RateLimiter rateLimiter = new GcraRateLimiter(10, Duration.ofSeconds(1), 1);
+        Assertions.assertThat(rateLimiter.nextPermitWaitPeriodNanos()).isZero();
+        long permitWaitPeriodNanos = rateLimiter.nextPermitWaitPeriodNanos();
+        Assertions.assertThat(permitWaitPeriodNanos).isBetween(1L, Duration.ofMillis(100).toNanos());
+        Thread.sleep(Duration.ofNanos(permitWaitPeriodNanos).toMillis() + 1);
+        Assertions.assertThat(rateLimiter.nextPermitWaitPeriodNanos()).isZero();
+    }
+
+    @Test
+    public void test_weighted_claims_reserve_permits() {
+        Duration cyclePeriod = Duration.ofHours(1);
+        long emissionIntervalNanos = cyclePeriod.toNanos() / 10;
+        RateLimiter rateLimiter = new GcraRateLimiter(10, cyclePeriod, 5);
+        Assertions.assertThat(rateLimiter.nextPermitWaitPeriodNanos(5)).isZero();
+
+        // Reserve 3 more permits beyond the burst.
+        Assertions
+                .assertThat(rateLimiter.nextPermitWaitPeriodNanos(3))
+                .isBetween(2 * emissionIntervalNanos, 3 * emissionIntervalNanos);
+
+        // Verify that single permits wait for the reservations.
+        Assertions
+                .assertThat(rateLimiter.nextPermitWaitPeriodNanos())
+                .isBetween(3 * emissionIntervalNanos, 4 * emissionIntervalNanos);
+
+    }
+
+    @Test
+    public void test_all_or_nothing_claims() {
+        RateLimiter rateLimiter = new GcraRateLimiter(10, Duration.ofHours(1), 4);
+        Assertions.assertThat(rateLimiter.tryClaimPermits(3)).isZero();
+        Assertions.assertThat(rateLimiter.tryClaimPermits(3)).isPositive();
+        Assertions.assertThat(rateLimiter.tryClaimPermits(5)).isPositive();
+        Assertions.assertThat((int) rateLimiter.claimAvailablePermits(3)).isEqualTo(1);
+    }
+
+    @Test
+    public void test_claim_available_permits() {
+        RateLimiter rateLimiter = new GcraRateLimiter(10, Duration.ofHours(1), 4);
+        Assertions.assertThat((int) rateLimiter.claimAvailablePermits(3)).isEqualTo(3);
+        Assertions.assertThat((int) rateLimiter.claimAvailablePermits(3)).isEqualTo(1);
+        Assertions.assertThat((int) rateLimiter.claimAvailablePermits(3)).isZero();
+        Assertions.assertThat(rateLimiter.calculatePermitWaitPeriodNanos()).isPositive();
+    }
+
+    @Test
+    public void test_invalid_burst_permit_count() {
+        for (int burstPermitCount : new int[]{0, 11}) {
+            Assertions
+                    .assertThatThrownBy(() -> new GcraRateLimiter(10, Duration.ofHours(1), burstPermitCount))
+                    .isInstanceOf(IllegalArgumentException.class)
+                    .hasMessage("was expecting a burst permit count in [1, 10], found %d", burstPermitCount);
+        }
+    }
+
+    @Test
+    public void test_spec() {
+        StagedRateLimiter stagedRateLimiter = StagedRateLimiter.of("test", "1/1h:, 2/1h:1/1h~1, 100/1h~3:");
+        Assertions.assertThat(stagedRateLimiter.getActiveSuccessRateLimitSpec()).isEqualTo("100/1h~3");
+        for (int permitIndex = 0; permitIndex < 3; permitIndex++) {
+            Assertions.assertThat(stagedRateLimiter.nextPermitWaitPeriodNanos()).isZero();
+        }
+        Assertions.assertThat(stagedRateLimiter.nextPermitWaitPeriodNanos()).isPositive();
+        Assertions
+                .assertThatThrownBy(() -> StagedRateLimiter.of("test", "1/1h:, 2/1h:, 3/1h~4:"))
+                .hasRootCauseMessage("was expecting a burst permit count in [1, 3], found 4");
+    }
+
+    @Test
+    public void test_factory() {
+        StagedRateLimiter stagedRateLimiter = StagedRateLimiter.of(
+                "test", "1/1h:, 2/1h:, 100/1h:", StagedRateLimiter.RateLimiterFactory.ofGcra(2));
+        for (int permitIndex = 0; permitIndex < 2; permitIndex++) {
+            Assertions.assertThat(stagedRateLimiter.nextPermitWaitPeriodNanos()).isZero();
+        }
+        Assertions.assertThat(stagedRateLimiter.nextPermitWaitPeriodNanos()).isPositive();
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub.ratelimiter;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RateLimiterTest {
+
+    @Test
+    public void test_permits_get_exhausted() {
+        RateLimiter rateLimiter = new RateLimiter(3, Duration.ofHours(1));
+        for (int permitIndex = 0; permitIndex < 3; permitIndex++) {
+            Assertions.assertThat(rateLimiter.nextPermitWaitPeriodNanos()).isZero();
+        }
+        Assertions
+                .assertThat(rateLimiter.nextPermitWaitPeriodNanos())
+                .isBetween(1L, Duration.ofHours(1).toNanos());
+        Assertions.assertThat(rateLimiter.getAcquiredPermitCountPerSecond()).isEqualTo(3D / 3600);
+    }
+
+    @Test
+    public void test_permits_get_replenished() throws InterruptedException {
+        RateLimiter rateLimiter = new RateLimiter(2, Duration.ofMillis(100));
+        while (rateLimiter.nextPermitWaitPeriodNanos() == 0L) {}
+        long permitWaitPeriodNanos = rateLimiter.nextPermitWaitPeriodNanos();
+        Assertions.assertThat(permitWaitPeriodNanos).isBetween(1L, Duration.ofMillis(100).toNanos());
+        Thread.sleep(Duration.ofNanos(permitWaitPeriodNanos).toMillis() + 1);
+        Assertions.assertThat(rateLimiter.nextPermitWaitPeriodNanos()).isZero();
+    }
+
+    @Test
+    public void test_weighted_claims_reserve_permits() {
+        Duration cyclePeriod = Duration.ofHours(1);
+        RateLimiter rateLimiter = new RateLimiter(10, cyclePeriod);
+        Assertions.assertThat(rateLimiter.nextPermitWaitPeriodNanos(4)).isZero();
+        Assertions.assertThat(rateLimiter.nextPermitWaitPeriodNanos(4)).isZero();
+
+        // Reserve 2 permits from the next cycle.
+        Assertions.assertThat(rateLimiter.nextPermitWaitPeriodNanos(4)).isBetween(1L, cyclePeriod.toNanos());
+        Assertions.assertThat(rateLimiter.nextPermitWaitPeriodNanos()).isBetween(1L, cyclePeriod.toNanos());
+
+        // Reserve 30 more permits, i.e., all the permits of the next 3 cycles and 2 more.
+        Assertions
+                .assertThat(rateLimiter.nextPermitWaitPeriodNanos(30))
+                .isBetween(3 * cyclePeriod.toNanos() + 1, 4 * cyclePeriod.toNanos());
+
+        // Verify that single permits wait for the reservations.
+        Assertions
+                .assertThat(rateLimiter.nextPermitWaitPeriodNanos())
+                .isBetween(3 * cyclePeriod.toNanos() + 1, 4 * cyclePeriod.toNanos());
+
+    }
+
+    @Test
+    public void test_all_or_nothing_claims() {
+        Duration cyclePeriod = Duration.ofHours(1);
+        RateLimiter rateLimiter = new RateLimiter(4, cyclePeriod);
+        Assertions.assertThat(rateLimiter.tryClaimPermits(3)).isZero();
+        Assertions.assertThat(rateLimiter.tryClaimPermits(3)).isBetween(1L, cyclePeriod.toNanos());
+        Assertions.assertThat((int) rateLimiter.claimAvailablePermits(3)).isEqualTo(1);
+    }
+
+    @Test
+    public void test_claims_with_stale_cycle_index() {
+
+        // Create a rate limiter with a controlled clock.
+        Duration cyclePeriod = Duration.ofSeconds(1);
+        AtomicLong currentTimeNanos = new AtomicLong(0);
+        RateLimiter rateLimiter = new RateLimiter(3, cyclePeriod) {
+            @Override
+            long currentTimeNanos() {
+                return currentTimeNanos.get();
+            }
+        };
+
+        // Claim 2 permits in the 2nd cycle.
+        currentTimeNanos.set(cyclePeriod.toNanos());
+        Assertions.assertThat(rateLimiter.nextPermitWaitPeriodNanos()).isZero();
+        Assertions.assertThat(rateLimiter.nextPermitWaitPeriodNanos()).isZero();
+
+        // Claim with a stale time sampled in the 1st cycle, e.g., by a
+        // preempted thread, and verify that the permits are not replenished.
+        currentTimeNanos.set(cyclePeriod.toNanos() - 1);
+        Assertions.assertThat(rateLimiter.nextPermitWaitPeriodNanos()).isZero();
+        Assertions.assertThat(rateLimiter.nextPermitWaitPeriodNanos()).isPositive();
+        Assertions.assertThat((int) rateLimiter.claimAvailablePermits(3)).isZero();
+
+        // Verify that the state is not moved back to the 1st cycle.
+        currentTimeNanos.set(cyclePeriod.toNanos());
+        Assertions.assertThat(rateLimiter.nextPermitWaitPeriodNanos()).isBetween(1L, cyclePeriod.toNanos());
+
+        // Reserve permits from the upcoming cycles in the 2nd cycle and
+        // verify that a stale claim doesn't wipe the reservation.
+        Assertions
+                .assertThat(rateLimiter.nextPermitWaitPeriodNanos(5))
+                .isBetween(cyclePeriod.toNanos() + 1, 2 * cyclePeriod.toNanos());
+        currentTimeNanos.set(cyclePeriod.toNanos() - 1);
+        Assertions
+                .assertThat(rateLimiter.nextPermitWaitPeriodNanos())
+                .isBetween(cyclePeriod.toNanos() + 1, 2 * cyclePeriod.toNanos() + 1);
+        currentTimeNanos.set(3 * cyclePeriod.toNanos());
+        Assertions.assertThat(rateLimiter.nextPermitWaitPeriodNanos()).isZero();
+
+    }
+
+    @Test
+    public void test_weighted_claims_with_invalid_permit_count() {
+        RateLimiter rateLimiter = new RateLimiter(10, Duration.ofHours(1));
+        Assertions
+                .assertThatThrownBy(() -> rateLimiter.nextPermitWaitPeriodNanos(0))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("was expecting a non-zero positive permit count, found 0");
+    }
+
+    @Test
+    public void test_concurrent_claims() throws InterruptedException {
+        int maxPermitCount = 10_000;
+        RateLimiter rateLimiter = new RateLimiter(maxPermitCount, Duration.ofHours(1));
+        AtomicInteger claimedPermitCount = new AtomicInteger(0);
+        int threadCount = 4;
+        CountDownLatch startLatch = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int threadIndex = 0; threadIndex < threadCount; threadIndex++) {
+            threads[threadIndex] = new Thread(() -> {
+                try {
+                    startLatch.await();
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int attemptIndex = 0; attemptIndex < maxPermitCount; attemptIndex++) {
+                    if (rateLimiter.nextPermitWaitPeriodNanos() == 0L) {
+                        claimedPermitCount.incrementAndGet();
+                    }
+                }
+            });
+            threads[threadIndex].start();
+        }
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assertions.assertThat(claimedPermitCount).hasValue(maxPermitCount);
+    }
+
+}
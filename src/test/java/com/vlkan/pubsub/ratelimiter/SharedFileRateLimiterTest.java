@@ -0,0 +1,223 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub.ratelimiter;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SharedFileRateLimiterTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static final Duration CYCLE_PERIOD = Duration.ofHours(1);
+
+    /**
+     * Time in the middle of a cycle all rate limiters, including the ones of
+     * the child processes, are pinned to, so that no cycle elapses in tests.
+     */
+    private static final long PINNED_TIME_NANOS = 1_000 * CYCLE_PERIOD.toNanos() + CYCLE_PERIOD.toNanos() / 2;
+
+    @Test
+    public void test_budget_is_shared_by_instances() throws IOException {
+        for (boolean unsafeEnabled : new boolean[]{true, false}) {
+            Path path = temporaryFolder.newFolder().toPath().resolve("rate-limiter");
+            SharedFileRateLimiter.SharedFile file = SharedFileRateLimiter.SharedFile.open(path, unsafeEnabled);
+            Assertions.assertThat(file.isUnsafeEnabled()).isEqualTo(unsafeEnabled);
+            RateLimiter rateLimiter1 = new PinnedSharedFileRateLimiter(file, 0, 3);
+            RateLimiter rateLimiter2 = new PinnedSharedFileRateLimiter(file, 0, 3);
+            Assertions.assertThat(rateLimiter1.nextPermitWaitPeriodNanos()).isZero();
+            Assertions.assertThat(rateLimiter2.nextPermitWaitPeriodNanos(2)).isZero();
+            Assertions.assertThat(rateLimiter1.nextPermitWaitPeriodNanos()).isPositive();
+            Assertions.assertThat(rateLimiter2.nextPermitWaitPeriodNanos()).isPositive();
+        }
+    }
+
+    @Test
+    public void test_slot_mismatch() throws IOException {
+        Path path = temporaryFolder.newFolder().toPath().resolve("rate-limiter");
+        SharedFileRateLimiter.SharedFile file = SharedFileRateLimiter.SharedFile.of(path);
+        new SharedFileRateLimiter(file, 0, 3, Duration.ofHours(1));
+        Assertions
+                .assertThatThrownBy(() -> new SharedFileRateLimiter(file, 0, 3, Duration.ofMinutes(1)))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageStartingWith("shared rate limiter slot mismatch");
+        Assertions
+                .assertThatThrownBy(() -> new SharedFileRateLimiter(
+                        file, SharedFileRateLimiter.SharedFile.SLOT_COUNT, 3, Duration.ofHours(1)))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void test_budget_is_shared_by_processes() throws Exception {
+
+        // Start the processes.
+        Path path = temporaryFolder.newFolder().toPath().resolve("rate-limiter");
+        int processCount = 3;
+        int maxPermitCountPerCycle = 1_000;
+        List<Process> processes = new ArrayList<>();
+        for (int processIndex = 0; processIndex < processCount; processIndex++) {
+            Process process = startProcess(Claimer.class, path.toString(), String.valueOf(maxPermitCountPerCycle));
+            processes.add(process);
+        }
+
+        // Collect the claimed permit counts.
+        int claimedPermitCount = 0;
+        for (Process process : processes) {
+            claimedPermitCount += readClaimedPermitCount(process);
+        }
+
+        // Verify that the processes didn't claim more than a single budget.
+        Assertions.assertThat(claimedPermitCount).isEqualTo(maxPermitCountPerCycle);
+
+    }
+
+    @Test
+    public void test_lagging_process_does_not_replenish_permits() throws Exception {
+
+        // Exhaust the budget using a clock one cycle ahead.
+        Path path = temporaryFolder.newFolder().toPath().resolve("rate-limiter");
+        int maxPermitCountPerCycle = 10;
+        SharedFileRateLimiter.SharedFile file = SharedFileRateLimiter.SharedFile.of(path);
+        SharedFileRateLimiter leadingRateLimiter =
+                new PinnedSharedFileRateLimiter(file, 0, maxPermitCountPerCycle) {
+                    @Override
+                    long currentTimeNanos() {
+                        return super.currentTimeNanos() + CYCLE_PERIOD.toNanos();
+                    }
+                };
+        long claim = leadingRateLimiter.claimAvailablePermits(Integer.MAX_VALUE);
+        Assertions.assertThat((int) claim).isEqualTo(maxPermitCountPerCycle);
+        long leadingState = leadingRateLimiter.getState();
+
+        // Claim permits from another process lagging a cycle behind.
+        Process process = startProcess(SlotClaimer.class, path.toString(), String.valueOf(maxPermitCountPerCycle));
+        int laggingClaimedPermitCount = readClaimedPermitCount(process);
+
+        // Verify that the lagging process neither claimed any permits, nor rewound the cycle.
+        Assertions.assertThat(laggingClaimedPermitCount).isZero();
+        Assertions.assertThat(leadingRateLimiter.getState()).isEqualTo(leadingState);
+        Assertions.assertThat(leadingRateLimiter.nextPermitWaitPeriodNanos()).isPositive();
+
+    }
+
+    private static Process startProcess(Class<?> mainClass, String... args) throws IOException {
+        String javaPath = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String classPath = System.getProperty("java.class.path");
+        List<String> command = new ArrayList<>();
+        command.add(javaPath);
+        command.add("-cp");
+        command.add(classPath);
+        command.add(mainClass.getName());
+        command.addAll(Arrays.asList(args));
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .start();
+    }
+
+    private static int readClaimedPermitCount(Process process) throws Exception {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            Assertions.assertThat(process.waitFor(30, TimeUnit.SECONDS)).isTrue();
+            String output = reader.readLine();
+            Assertions.assertThat(process.exitValue()).as("output: %s", output).isZero();
+            return Integer.parseInt(output);
+        } finally {
+            process.destroyForcibly();
+        }
+    }
+
+    /**
+     * {@link SharedFileRateLimiter} with its clock pinned to {@link
+     * #PINNED_TIME_NANOS}.
+     */
+    private static class PinnedSharedFileRateLimiter extends SharedFileRateLimiter {
+
+        private PinnedSharedFileRateLimiter(SharedFile file, int slotIndex, int maxPermitCountPerCycle) {
+            super(file, slotIndex, maxPermitCountPerCycle, CYCLE_PERIOD);
+        }
+
+        @Override
+        long currentTimeNanos() {
+            return PINNED_TIME_NANOS;
+        }
+
+    }
+
+    /**
+     * Claims permits from the rate limiter of a staged rate limiter till
+     * exhaustion and prints the number of claimed permits.
+     */
+    public static final class Claimer {
+
+        public static void main(String[] args) {
+            Path path = new File(args[0]).toPath();
+            int maxPermitCountPerCycle = Integer.parseInt(args[1]);
+            String spec = String.format("1/1h:, 2/1h:, %d/1h:", maxPermitCountPerCycle);
+            // Mimic StagedRateLimiter.RateLimiterFactory.ofSharedFile() with pinned clocks.
+            SharedFileRateLimiter.SharedFile file = SharedFileRateLimiter.SharedFile.of(path);
+            AtomicInteger slotIndexCounter = new AtomicInteger(0);
+            StagedRateLimiter stagedRateLimiter = StagedRateLimiter.of(
+                    "test",
+                    spec,
+                    new StagedRateLimiter.RateLimiterFactory((maxPermitCount, cyclePeriod) ->
+                            new PinnedSharedFileRateLimiter(file, slotIndexCounter.getAndIncrement(), maxPermitCount)));
+            int claimedPermitCount = 0;
+            while (stagedRateLimiter.nextPermitWaitPeriodNanos() == 0) {
+                claimedPermitCount++;
+            }
+            System.out.println(claimedPermitCount);
+        }
+
+    }
+
+    /**
+     * Claims permits from the rate limiter in the first slot till exhaustion
+     * and prints the number of claimed permits.
+     */
+    public static final class SlotClaimer {
+
+        public static void main(String[] args) {
+            Path path = new File(args[0]).toPath();
+            int maxPermitCountPerCycle = Integer.parseInt(args[1]);
+            SharedFileRateLimiter.SharedFile file = SharedFileRateLimiter.SharedFile.of(path);
+            RateLimiter rateLimiter = new PinnedSharedFileRateLimiter(file, 0, maxPermitCountPerCycle);
+            int claimedPermitCount = 0;
+            while (rateLimiter.nextPermitWaitPeriodNanos() == 0) {
+                claimedPermitCount++;
+            }
+            System.out.println(claimedPermitCount);
+        }
+
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub.ratelimiter;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class StagedRateLimiterReactorDecoratorFactoryTest {
+
+    @Test
+    public void test_weighted_flux() {
+        StagedRateLimiterReactorDecoratorFactory decoratorFactory = createDecoratorFactory();
+        List<List<Integer>> batches = Arrays.asList(
+                Arrays.asList(1, 2, 3, 4),
+                Collections.emptyList(),
+                Arrays.asList(5, 6, 7, 8),
+                Arrays.asList(9, 10, 11, 12));
+        List<List<Integer>> passedBatches = Flux
+                .fromIterable(batches)
+                .transform(decoratorFactory.ofFlux(List::size))
+                .take(Duration.ofMillis(500))
+                .collectList()
+                .block(Duration.ofSeconds(5));
+        // 10 permits should let the first 8 messages, but not the rest, pass.
+        Assertions.assertThat(passedBatches).isEqualTo(batches.subList(0, 3));
+    }
+
+    @Test
+    public void test_weighted_mono() {
+        StagedRateLimiterReactorDecoratorFactory decoratorFactory = createDecoratorFactory();
+        Assertions
+                .assertThat(Mono
+                        .just(10)
+                        .transform(decoratorFactory.<Integer>ofMono(weight -> weight))
+                        .block(Duration.ofSeconds(5)))
+                .isEqualTo(10);
+        Assertions
+                .assertThat(Mono
+                        .just(1)
+                        .transform(decoratorFactory.<Integer>ofMono(weight -> weight))
+                        .timeout(Duration.ofMillis(500), Mono.just(-1))
+                        .block(Duration.ofSeconds(5)))
+                .isEqualTo(-1);
+    }
+
+    @Test
+    public void test_negative_weight() {
+        StagedRateLimiterReactorDecoratorFactory decoratorFactory = createDecoratorFactory();
+        Assertions
+                .assertThatThrownBy(() -> Mono
+                        .just(-1)
+                        .transform(decoratorFactory.<Integer>ofMono(weight -> weight))
+                        .block(Duration.ofSeconds(5)))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("was expecting a non-negative weight, found -1");
+    }
+
+    private static StagedRateLimiterReactorDecoratorFactory createDecoratorFactory() {
+        StagedRateLimiter stagedRateLimiter = StagedRateLimiter
+                .builder()
+                .setName("test")
+                .setSpec("1/1h:, 2/1h:, 10/1h:")
+                .build();
+        return StagedRateLimiterReactorDecoratorFactory
+                .builder()
+                .setStagedRateLimiter(stagedRateLimiter)
+                .build();
+    }
+
+}
@@ -19,7 +19,10 @@ package com.vlkan.pubsub.ratelimiter;
 import org.assertj.core.api.Assertions;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 public class StagedRateLimiterTest {
 
@@ -138,13 +141,125 @@ public class StagedRateLimiterTest {
 
     }
 
+    @Test
+    public void test_concurrent_transitions() throws InterruptedException {
+
+        // Create an adaptive rate limiter where internal rate limiters are constantly failing.
+        String spec = "2/1h:, 2/1m:1/1m, 2/1s:1/1s";
+        StagedRateLimiter adaptiveRateLimiter =
+                StagedRateLimiter.of("test", spec, createConstantlyFailingRateLimiterFactory());
+
+        // Concurrently move the stages up and down.
+        int threadCount = 4;
+        int transitionCount = 10_000;
+        CountDownLatch startLatch = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int threadIndex = 0; threadIndex < threadCount; threadIndex++) {
+            boolean up = threadIndex % 2 == 0;
+            threads[threadIndex] = new Thread(() -> {
+                try {
+                    startLatch.await();
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int transitionIndex = 0; transitionIndex < transitionCount; transitionIndex++) {
+                    if (up) {
+                        adaptiveRateLimiter.nextPermitWaitPeriodNanos();
+                    } else {
+                        adaptiveRateLimiter.acknowledgeFailure();
+                    }
+                }
+            });
+            threads[threadIndex].start();
+        }
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Verify the active stage is still a valid one.
+        Assertions
+                .assertThat(adaptiveRateLimiter.getActiveSuccessRateLimitSpec())
+                .isIn("2/1h", "2/1m", "2/1s");
+
+        // Verify that the transitions still work one stage at a time.
+        adaptiveRateLimiter.nextPermitWaitPeriodNanos();
+        adaptiveRateLimiter.nextPermitWaitPeriodNanos();
+        Assertions.assertThat(adaptiveRateLimiter.getActiveSuccessRateLimitSpec()).isEqualTo("2/1s");
+        adaptiveRateLimiter.acknowledgeFailure();
+        Assertions.assertThat(adaptiveRateLimiter.getActiveSuccessRateLimitSpec()).isEqualTo("2/1m");
+
+    }
+
+    @Test
+    public void test_denied_weighted_claims_do_not_reserve_in_intermediate_stages() {
+
+        // Create a staged rate limiter and step down to the intermediate stage.
+        List<RateLimiter> rateLimiters = new ArrayList<>();
+        StagedRateLimiter stagedRateLimiter = StagedRateLimiter.of(
+                "test",
+                "4/1h:, 8/1h:, 16/1h:",
+                new StagedRateLimiter.RateLimiterFactory((maxPermitCountPerCycle, cyclePeriod) -> {
+                    RateLimiter rateLimiter = new RateLimiter(maxPermitCountPerCycle, cyclePeriod);
+                    rateLimiters.add(rateLimiter);
+                    return rateLimiter;
+                }));
+        stagedRateLimiter.acknowledgeFailure();
+        Assertions.assertThat(stagedRateLimiter.getActiveSuccessRateLimitSpec()).isEqualTo("8/1h");
+
+        // Exceed the intermediate stage with weighted claims.
+        Assertions.assertThat(stagedRateLimiter.nextPermitWaitPeriodNanos(5)).isZero();
+        Assertions.assertThat(stagedRateLimiter.nextPermitWaitPeriodNanos(5)).isZero();
+        Assertions.assertThat(stagedRateLimiter.getActiveSuccessRateLimitSpec()).isEqualTo("16/1h");
+
+        // Verify that the denied claim has not touched the intermediate stage.
+        Assertions.assertThat((int) rateLimiters.get(1).claimAvailablePermits(8)).isEqualTo(3);
+
+    }
+
+    @Test
+    public void test_claim_and_release_available_permits() {
+
+        // Create a staged rate limiter and step down to the intermediate stage.
+        StagedRateLimiter stagedRateLimiter = StagedRateLimiter.of("test", "4/1h:, 8/1h:, 16/1h:");
+        stagedRateLimiter.acknowledgeFailure();
+        Assertions.assertThat(stagedRateLimiter.getActiveSuccessRateLimitSpec()).isEqualTo("8/1h");
+
+        // Verify that exceeding the intermediate stage grants all permits and steps up.
+        Assertions.assertThat(stagedRateLimiter.claimAvailablePermits(10).getPermitCount()).isEqualTo(10);
+        Assertions.assertThat(stagedRateLimiter.getActiveSuccessRateLimitSpec()).isEqualTo("16/1h");
+
+        // Verify that the last stage grants only the available permits.
+        StagedRateLimiter.PermitClaim claim = stagedRateLimiter.claimAvailablePermits(10);
+        Assertions.assertThat(claim.getPermitCount()).isEqualTo(10);
+        claim = stagedRateLimiter.claimAvailablePermits(10);
+        Assertions.assertThat(claim.getPermitCount()).isEqualTo(6);
+        StagedRateLimiter.PermitClaim emptyClaim = stagedRateLimiter.claimAvailablePermits(10);
+        Assertions.assertThat(emptyClaim.getPermitCount()).isZero();
+        Assertions.assertThat(emptyClaim.getWaitPeriodNanos()).isPositive();
+
+        // Verify that released permits can be claimed again.
+        stagedRateLimiter.releasePermits(claim, 4);
+        Assertions.assertThat(stagedRateLimiter.claimAvailablePermits(10).getPermitCount()).isEqualTo(4);
+
+        // Verify that permits beyond the claim cannot be released.
+        StagedRateLimiter.PermitClaim finalClaim = claim;
+        Assertions
+                .assertThatThrownBy(() -> stagedRateLimiter.releasePermits(finalClaim, 7))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("was expecting a permit count in [0, 6], found 7");
+
+    }
+
     private StagedRateLimiter.RateLimiterFactory createConstantlyFailingRateLimiterFactory() {
-        return (maxPermitCountPerCycle, cyclePeriod) -> new RateLimiter(maxPermitCountPerCycle, cyclePeriod) {
-            @Override
-            long nextPermitWaitPeriodNanos() {
-                return Long.MAX_VALUE;
-            }
-        };
+        return new StagedRateLimiter.RateLimiterFactory((maxPermitCountPerCycle, cyclePeriod) ->
+                new RateLimiter(maxPermitCountPerCycle, cyclePeriod) {
+                    @Override
+                    long nextPermitWaitPeriodNanos() {
+                        return Long.MAX_VALUE;
+                    }
+                });
     }
 
 }
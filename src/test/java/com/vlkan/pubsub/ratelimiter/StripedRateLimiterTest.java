@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub.ratelimiter;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StripedRateLimiterTest {
+
+    @Test
+    public void test_stripe_count_is_rounded_to_power_of_two() {
+        Assertions.assertThat(new StripedRateLimiter(100, Duration.ofSeconds(1), 1).getStripeCount()).isEqualTo(1);
+        Assertions.assertThat(new StripedRateLimiter(100, Duration.ofSeconds(1), 3).getStripeCount()).isEqualTo(4);
+        Assertions.assertThat(new StripedRateLimiter(100, Duration.ofSeconds(1), 8).getStripeCount()).isEqualTo(8);
+        Assertions
+                .assertThatThrownBy(() -> new StripedRateLimiter(100, Duration.ofSeconds(1), 0))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("was expecting a stripe count in [1, 65536], found 0");
+    }
+
+    @Test
+    public void test_leftover_permits_get_stolen() {
+        StripedRateLimiter rateLimiter = new StripedRateLimiter(10, Duration.ofHours(1), 2, 8);
+
+        // Lease a block of 8 permits to the 1st stripe.
+        Assertions.assertThat(rateLimiter.nextStripePermitWaitPeriodNanos(0)).isZero();
+
+        // Verify that the 2nd stripe can claim all the remaining permits.
+        int claimedPermitCount = 0;
+        while (rateLimiter.nextStripePermitWaitPeriodNanos(1) == 0L) {
+            claimedPermitCount++;
+        }
+        Assertions.assertThat(claimedPermitCount).isEqualTo(9);
+
+        // Verify that none of the stripes has any permits left.
+        Assertions.assertThat(rateLimiter.nextStripePermitWaitPeriodNanos(0)).isPositive();
+        Assertions.assertThat(rateLimiter.nextStripePermitWaitPeriodNanos(1)).isPositive();
+
+    }
+
+    @Test
+    public void test_concurrent_claims_do_not_exceed_the_limit() throws InterruptedException {
+        int maxPermitCount = 10_000;
+        StripedRateLimiter rateLimiter = new StripedRateLimiter(maxPermitCount, Duration.ofHours(1), 4, 16);
+        AtomicInteger claimedPermitCount = new AtomicInteger(0);
+        int threadCount = 4;
+        CountDownLatch startLatch = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int threadIndex = 0; threadIndex < threadCount; threadIndex++) {
+            threads[threadIndex] = new Thread(() -> {
+                try {
+                    startLatch.await();
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int attemptIndex = 0; attemptIndex < maxPermitCount; attemptIndex++) {
+                    if (rateLimiter.nextPermitWaitPeriodNanos() == 0L) {
+                        claimedPermitCount.incrementAndGet();
+                    }
+                }
+            });
+            threads[threadIndex].start();
+        }
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assertions.assertThat(claimedPermitCount).hasValue(maxPermitCount);
+    }
+
+    @Test
+    public void test_staged_rate_limiter_with_striped_factory() {
+        StagedRateLimiter stagedRateLimiter = StagedRateLimiter
+                .builder()
+                .setName("test")
+                .setSpec("1/1h:, 1/1m:, 2/1h:1/1h")
+                .setRateLimiterFactory(StagedRateLimiter.RateLimiterFactory.ofStriped(2))
+                .build();
+        Assertions.assertThat(stagedRateLimiter.nextPermitWaitPeriodNanos()).isZero();
+        Assertions.assertThat(stagedRateLimiter.nextPermitWaitPeriodNanos()).isZero();
+        Assertions.assertThat(stagedRateLimiter.nextPermitWaitPeriodNanos()).isPositive();
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub.util;
+
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class BoundedScheduledThreadPoolExecutorTest {
+
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2);
+
+    private final BoundedScheduledThreadPoolExecutor boundedExecutor =
+            new BoundedScheduledThreadPoolExecutor(2, executor);
+
+    @After
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void test_cancellation_releases_capacity() {
+        ScheduledFuture<?> future1 = boundedExecutor.schedule(() -> {}, 1, TimeUnit.HOURS);
+        boundedExecutor.schedule(() -> 1, 1, TimeUnit.HOURS);
+        Assertions.assertThat(boundedExecutor.getInFlightTaskCount()).isEqualTo(2);
+        Assertions
+                .assertThatThrownBy(() -> boundedExecutor.schedule(() -> {}, 1, TimeUnit.HOURS))
+                .isInstanceOf(RejectedExecutionException.class);
+        Assertions.assertThat(boundedExecutor.getInFlightTaskCount()).isEqualTo(2);
+        Assertions.assertThat(future1.cancel(false)).isTrue();
+        Assertions.assertThat(future1.cancel(false)).isFalse();
+        Assertions.assertThat(boundedExecutor.getInFlightTaskCount()).isEqualTo(1);
+        boundedExecutor.schedule(() -> {}, 1, TimeUnit.HOURS);
+        Assertions.assertThat(boundedExecutor.getInFlightTaskCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void test_completion_releases_capacity() throws Exception {
+        Future<?> future1 = boundedExecutor.submit(() -> {});
+        Future<Integer> future2 = boundedExecutor.submit(() -> {
+            throw new IllegalStateException();
+        }, 1);
+        future1.get(5, TimeUnit.SECONDS);
+        Assertions
+                .assertThatThrownBy(() -> future2.get(5, TimeUnit.SECONDS))
+                .hasCauseInstanceOf(IllegalStateException.class);
+        Assertions.assertThat(boundedExecutor.getInFlightTaskCount()).isZero();
+    }
+
+    @Test
+    public void test_shutdown_now_releases_drained_tasks() {
+        ScheduledFuture<?> future1 = boundedExecutor.schedule(() -> {}, 1, TimeUnit.HOURS);
+        boundedExecutor.scheduleAtFixedRate(() -> {}, 1, 1, TimeUnit.HOURS);
+        Assertions.assertThat(boundedExecutor.getInFlightTaskCount()).isEqualTo(2);
+        List<Runnable> drainedTasks = boundedExecutor.shutdownNow();
+        Assertions.assertThat(drainedTasks).hasSize(2);
+        Assertions.assertThat(boundedExecutor.getInFlightTaskCount()).isZero();
+        Assertions.assertThat(future1.cancel(false)).isFalse();
+        drainedTasks.forEach(Runnable::run);
+        Assertions.assertThat(boundedExecutor.getInFlightTaskCount()).isZero();
+    }
+
+    @Test
+    public void test_periodic_tasks() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(3);
+        ScheduledFuture<?> future = boundedExecutor
+                .scheduleWithFixedDelay(latch::countDown, 0, 1, TimeUnit.MILLISECONDS);
+        Assertions.assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        Assertions.assertThat(boundedExecutor.getInFlightTaskCount()).isEqualTo(1);
+        future.cancel(false);
+        Assertions.assertThat(boundedExecutor.getInFlightTaskCount()).isZero();
+    }
+
+    @Test
+    public void test_shutdown_releases_rejected_tasks() {
+        executor.shutdown();
+        Assertions
+                .assertThatThrownBy(() -> boundedExecutor.execute(() -> {}))
+                .isInstanceOf(RejectedExecutionException.class);
+        Assertions.assertThat(boundedExecutor.getInFlightTaskCount()).isZero();
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub.util;
+
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HashedWheelTimerSchedulerTest {
+
+    private final HashedWheelTimerScheduler scheduler = HashedWheelTimerScheduler
+            .builder()
+            .setTickDuration(Duration.ofMillis(1))
+            .setThreadName("test-timer")
+            .build();
+
+    @After
+    public void disposeScheduler() {
+        scheduler.dispose();
+    }
+
+    @Test
+    public void test_delays() {
+        long startInstantNanos = System.nanoTime();
+        Long value = Mono
+                .delay(Duration.ofMillis(100), scheduler)
+                .block(Duration.ofSeconds(5));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startInstantNanos);
+        Assertions.assertThat(value).isEqualTo(0L);
+        Assertions.assertThat(elapsedMillis).isGreaterThanOrEqualTo(100);
+        Assertions
+                .assertThat(Flux
+                        .range(0, 3)
+                        .delayElements(Duration.ofMillis(10), scheduler)
+                        .collectList()
+                        .block(Duration.ofSeconds(5)))
+                .containsExactly(0, 1, 2);
+    }
+
+    @Test
+    public void test_disposal() throws InterruptedException {
+        AtomicInteger runCounter = new AtomicInteger(0);
+        Disposable disposable = scheduler.schedule(runCounter::incrementAndGet, 100, TimeUnit.MILLISECONDS);
+        Assertions.assertThat(scheduler.getPendingTaskCount()).isEqualTo(1);
+        disposable.dispose();
+        Thread.sleep(200);
+        Assertions.assertThat(disposable.isDisposed()).isTrue();
+        Assertions.assertThat(runCounter.get()).isZero();
+        Assertions.assertThat(scheduler.getPendingTaskCount()).isZero();
+    }
+
+    @Test
+    public void test_periodic_tasks() throws InterruptedException {
+        CountDownLatch schedulerLatch = new CountDownLatch(3);
+        CountDownLatch workerLatch = new CountDownLatch(3);
+        Scheduler.Worker worker = scheduler.createWorker();
+        try {
+            Disposable schedulerTask = scheduler
+                    .schedulePeriodically(schedulerLatch::countDown, 10, 10, TimeUnit.MILLISECONDS);
+            Disposable workerTask = worker
+                    .schedulePeriodically(workerLatch::countDown, 10, 10, TimeUnit.MILLISECONDS);
+            Assertions.assertThat(schedulerLatch.await(5, TimeUnit.SECONDS)).isTrue();
+            Assertions.assertThat(workerLatch.await(5, TimeUnit.SECONDS)).isTrue();
+            schedulerTask.dispose();
+            Assertions.assertThat(workerTask.isDisposed()).isFalse();
+        } finally {
+            worker.dispose();
+        }
+        Assertions.assertThat(worker.isDisposed()).isTrue();
+        Assertions
+                .assertThatThrownBy(() -> worker.schedule(() -> {}, 1, TimeUnit.SECONDS))
+                .isInstanceOf(RejectedExecutionException.class);
+    }
+
+    @Test
+    public void test_disposed_scheduler() {
+        scheduler.dispose();
+        Assertions.assertThat(scheduler.isDisposed()).isTrue();
+        Assertions
+                .assertThatThrownBy(() -> scheduler.schedule(() -> {}, 1, TimeUnit.SECONDS))
+                .isInstanceOf(RejectedExecutionException.class);
+    }
+
+}
@@ -1,13 +1,26 @@
 package com.vlkan.pubsub;
 
+import com.vlkan.pubsub.model.PubsubDraftedMessage;
 import io.netty.channel.epoll.Epoll;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
 import org.mockito.Mockito;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class BenchmarkClient implements Callable<Integer> {
 
@@ -18,26 +31,53 @@ public class BenchmarkClient implements Callable<Integer> {
     private static final String DEFAULT_BASE_URL =
             "http://" + BenchmarkConstants.DEFAULT_SERVER_HOST + ':' + BenchmarkConstants.DEFAULT_SERVER_PORT;
 
+    private static final Random RANDOM = new Random(0);
+
     private final String baseUrl;
 
+    private final String mode;
+
     private final int concurrency;
 
     private final int pullCount;
 
+    private final int publishCount;
+
+    private final int publishBatchSize;
+
+    private final int publishPayloadLength;
+
+    private final int publishAttributeCount;
+
     private final long warmUpPeriodSeconds;
 
     private BenchmarkClient(
             String baseUrl,
+            String mode,
             int concurrency,
             int pullCount,
+            int publishCount,
+            int publishBatchSize,
+            int publishPayloadLength,
+            int publishAttributeCount,
             long warmUpPeriodSeconds) {
         this.baseUrl = baseUrl;
+        this.mode = mode;
         this.concurrency = concurrency;
         this.pullCount = pullCount;
+        this.publishCount = publishCount;
+        this.publishBatchSize = publishBatchSize;
+        this.publishPayloadLength = publishPayloadLength;
+        this.publishAttributeCount = publishAttributeCount;
         this.warmUpPeriodSeconds = warmUpPeriodSeconds;
         LOGGER.info("baseUrl = {}", baseUrl);
+        LOGGER.info("mode = {}", mode);
         LOGGER.info("concurrency = {}", concurrency);
         LOGGER.info("pullCount = {}", pullCount);
+        LOGGER.info("publishCount = {}", publishCount);
+        LOGGER.info("publishBatchSize = {}", publishBatchSize);
+        LOGGER.info("publishPayloadLength = {}", publishPayloadLength);
+        LOGGER.info("publishAttributeCount = {}", publishAttributeCount);
         LOGGER.info("warmUpPeriodSeconds = {}", warmUpPeriodSeconds);
     }
 
@@ -46,7 +86,7 @@ public class BenchmarkClient implements Callable<Integer> {
 
         // Mock the access token cache.
         PubsubAccessTokenCache accessTokenCache = Mockito.mock(PubsubAccessTokenCache.class);
-        Mockito.when(accessTokenCache.getAccessToken()).thenReturn("benchmark-token");
+        Mockito.when(accessTokenCache.getAccessToken()).thenReturn(Mono.just("benchmark-token"));
 
         // Create client.
         PubsubClientConfig clientConfig = PubsubClientConfig
@@ -59,6 +99,20 @@ public class BenchmarkClient implements Callable<Integer> {
                 .setAccessTokenCache(accessTokenCache)
                 .build();
 
+        // Run the benchmark.
+        switch (mode) {
+            case "pull": pullAndAck(client); break;
+            case "publish": publish(client); break;
+            default: throw new IllegalArgumentException("unknown mode: " + mode);
+        }
+
+        // Exit with success.
+        return 0;
+
+    }
+
+    private void pullAndAck(PubsubClient client) {
+
         // Create puller.
         PubsubPullerConfig pullerConfig = PubsubPullerConfig
                 .builder()
@@ -88,22 +142,29 @@ public class BenchmarkClient implements Callable<Integer> {
         pullAndAck(puller, acker, "warm-up", Duration.ofSeconds(warmUpPeriodSeconds));
         pullAndAck(puller, acker, "benchmark", null);
 
-        // Exit with success.
-        return 0;
-
     }
 
+    /**
+     * Pulls and acks messages with the given concurrency. Unlike
+     * {@link PubsubPuller#pullAll()}, pulls are issued one by one via
+     * {@link PubsubPuller#pullOne()} to measure the latency of each.
+     */
     private void pullAndAck(
             PubsubPuller puller,
             PubsubAcker acker,
             String label,
             @Nullable Duration timespan) {
-        puller
-                .pullAll()
-                .retry()
-                .flatMap(pullResponse -> acker
-                        .ackPullResponse(pullResponse)
-                        .retry()
+        LatencyRecorders pullLatencyRecorders = new LatencyRecorders();
+        LatencyRecorders ackLatencyRecorders = new LatencyRecorders();
+        BenchmarkJvmMonitor jvmMonitor = new BenchmarkJvmMonitor();
+        Flux
+                .range(0, Integer.MAX_VALUE)
+                .flatMap(
+                        ignored -> measureLatencyAndRetry(puller.pullOne(), pullLatencyRecorders),
+                        concurrency)
+                .flatMap(pullResponse -> measureLatencyAndRetry(
+                        acker.ackPullResponse(pullResponse),
+                        ackLatencyRecorders)
                         .thenReturn(pullResponse.getReceivedMessages().size()))
                 .transform(receivedMessageCounts -> timespan != null
                         ? receivedMessageCounts.take(timespan)
@@ -111,22 +172,198 @@ public class BenchmarkClient implements Callable<Integer> {
                 .reduce(0L, Long::sum)
                 .elapsed()
                 .doOnNext(elapsedMillisAndMessageCount -> {
+                    BenchmarkJvmMonitor.Snapshot jvmSnapshot = jvmMonitor.stop();
                     long elapsedMillis = elapsedMillisAndMessageCount.getT1();
                     long messageCount = elapsedMillisAndMessageCount.getT2();
                     LOGGER.info(
                             "[{}] pulled and ack'ed {} messages in {} ms",
                             label, messageCount, elapsedMillis);
+                    logLatencies(label, "pull", pullLatencyRecorders);
+                    logLatencies(label, "ack", ackLatencyRecorders);
+                    LOGGER.info("[{}] {}", label, jvmSnapshot);
+                })
+                .doFirst(() -> {
+                    LOGGER.info("[{}] started", label);
+                    jvmMonitor.start();
                 })
-                .doFirst(() -> LOGGER.info("[{}] started", label))
                 .block();
     }
 
+    private void publish(PubsubClient client) {
+
+        // Create publisher.
+        PubsubPublisherConfig publisherConfig = PubsubPublisherConfig
+                .builder()
+                .setProjectName(BenchmarkConstants.PROJECT_NAME)
+                .setTopicName(BenchmarkConstants.TOPIC_NAME)
+                .build();
+        PubsubPublisher publisher = PubsubPublisher
+                .builder()
+                .setClient(client)
+                .setConfig(publisherConfig)
+                .build();
+
+        // Publish loop.
+        List<PubsubDraftedMessage> messages = createDraftedMessages();
+        publish(publisher, messages, "warm-up", Duration.ofSeconds(warmUpPeriodSeconds));
+        publish(publisher, messages, "benchmark", null);
+
+    }
+
+    private List<PubsubDraftedMessage> createDraftedMessages() {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        for (int attributeIndex = 0; attributeIndex < publishAttributeCount; attributeIndex++) {
+            String attributeName = String.format("attribute-%04d", attributeIndex);
+            String attributeValue = String.format("value-%04d", attributeIndex);
+            attributes.put(attributeName, attributeValue);
+        }
+        return IntStream
+                .range(0, publishBatchSize)
+                .mapToObj(ignored -> {
+                    byte[] payload = new byte[publishPayloadLength];
+                    RANDOM.nextBytes(payload);
+                    return new PubsubDraftedMessage(payload, attributes);
+                })
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Publishes the very same batch repeatedly. Each publish serializes the
+     * batch from scratch, hence the reuse does not bias the measurement.
+     */
+    private void publish(
+            PubsubPublisher publisher,
+            List<PubsubDraftedMessage> messages,
+            String label,
+            @Nullable Duration timespan) {
+        long batchByteCount = calculateByteCount(messages);
+        LatencyRecorders publishLatencyRecorders = new LatencyRecorders();
+        BenchmarkJvmMonitor jvmMonitor = new BenchmarkJvmMonitor();
+        Flux
+                .range(0, Integer.MAX_VALUE)
+                .flatMap(
+                        ignored -> measureLatencyAndRetry(publisher.publishMessages(messages), publishLatencyRecorders)
+                                .thenReturn(messages.size()),
+                        concurrency)
+                .transform(publishedMessageCounts -> timespan != null
+                        ? publishedMessageCounts.take(timespan)
+                        : publishedMessageCounts.take(publishCount))
+                .reduce(0L, Long::sum)
+                .elapsed()
+                .doOnNext(elapsedMillisAndMessageCount -> {
+                    BenchmarkJvmMonitor.Snapshot jvmSnapshot = jvmMonitor.stop();
+                    long elapsedMillis = Math.max(1, elapsedMillisAndMessageCount.getT1());
+                    long messageCount = elapsedMillisAndMessageCount.getT2();
+                    long byteCount = messageCount / messages.size() * batchByteCount;
+                    double messageRate = 1e3 * messageCount / elapsedMillis;
+                    double megaByteRate = 1e3 * byteCount / elapsedMillis / 1e6;
+                    LOGGER.info(
+                            "[{}] published {} messages ({} bytes) in {} ms ({} messages/s, {} MB/s)",
+                            label, messageCount, byteCount, elapsedMillis,
+                            String.format("%.1f", messageRate), String.format("%.3f", megaByteRate));
+                    logLatencies(label, "publish", publishLatencyRecorders);
+                    LOGGER.info("[{}] {}", label, jvmSnapshot);
+                })
+                .doFirst(() -> {
+                    LOGGER.info("[{}] started", label);
+                    jvmMonitor.start();
+                })
+                .block();
+    }
+
+    /**
+     * Calculates the number of payload and attribute bytes of the given
+     * messages, excluding the JSON and Base64 encoding overhead.
+     */
+    private static long calculateByteCount(List<PubsubDraftedMessage> messages) {
+        long byteCount = 0;
+        for (PubsubDraftedMessage message : messages) {
+            byteCount += message.getPayloadLength();
+            for (Map.Entry<String, String> attribute : message.getAttributes().entrySet()) {
+                byteCount += attribute.getKey().getBytes(StandardCharsets.UTF_8).length;
+                byteCount += attribute.getValue().getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+        return byteCount;
+    }
+
+    /**
+     * Latency histograms of an operation: as seen by the caller, i.e.,
+     * including retries, and of individual successful and failed attempts.
+     */
+    private static final class LatencyRecorders {
+
+        private final Recorder callerRecorder = new Recorder(3);
+
+        private final Recorder attemptRecorder = new Recorder(3);
+
+        private final Recorder failedAttemptRecorder = new Recorder(3);
+
+    }
+
+    /**
+     * Retries the given operation till it succeeds, recording the latency of
+     * each attempt and of the whole operation.
+     */
+    private static <T> Mono<T> measureLatencyAndRetry(Mono<T> mono, LatencyRecorders latencyRecorders) {
+        Mono<T> attemptMono = Mono.defer(() -> {
+            long startInstantNanos = System.nanoTime();
+            return mono
+                    .doOnSuccess(ignored -> recordLatency(latencyRecorders.attemptRecorder, startInstantNanos))
+                    .doOnError(ignored -> recordLatency(latencyRecorders.failedAttemptRecorder, startInstantNanos));
+        });
+        return Mono.defer(() -> {
+            long startInstantNanos = System.nanoTime();
+            return attemptMono
+                    .retry()
+                    .doOnSuccess(ignored -> recordLatency(latencyRecorders.callerRecorder, startInstantNanos));
+        });
+    }
+
+    private static void recordLatency(Recorder latencyRecorder, long startInstantNanos) {
+        long latencyNanos = System.nanoTime() - startInstantNanos;
+        latencyRecorder.recordValue(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+    }
+
+    private static void logLatencies(String label, String operation, LatencyRecorders latencyRecorders) {
+        logLatencies(label, operation + " latency", latencyRecorders.callerRecorder);
+        logLatencies(label, operation + " attempt latency", latencyRecorders.attemptRecorder);
+        logLatencies(label, operation + " failed attempt latency", latencyRecorders.failedAttemptRecorder);
+    }
+
+    private static void logLatencies(String label, String name, Recorder latencyRecorder) {
+        Histogram histogram = latencyRecorder.getIntervalHistogram();
+        LOGGER.info(
+                "[{}] {} (us): count={} p50={} p99={} p999={} max={}",
+                label,
+                name,
+                histogram.getTotalCount(),
+                histogram.getValueAtPercentile(50),
+                histogram.getValueAtPercentile(99),
+                histogram.getValueAtPercentile(99.9),
+                histogram.getMaxValue());
+    }
+
     public static void main(String[] args) {
         String baseUrl = BenchmarkHelpers.getStringProperty("benchmark.baseUrl", DEFAULT_BASE_URL);
+        String mode = BenchmarkHelpers.getStringProperty("benchmark.mode", "pull");
         int concurrency = BenchmarkHelpers.getIntProperty("benchmark.concurrency", 2);
         int pullCount  = BenchmarkHelpers.getIntProperty("benchmark.pullCount", 1000);
+        int publishCount = BenchmarkHelpers.getIntProperty("benchmark.publishCount", 1000);
+        int publishBatchSize = BenchmarkHelpers.getIntProperty("benchmark.publishBatchSize", 100);
+        int publishPayloadLength = BenchmarkHelpers.getIntProperty("benchmark.publishPayloadLength", 1024);
+        int publishAttributeCount = BenchmarkHelpers.getIntProperty("benchmark.publishAttributeCount", 0);
         int warmUpPeriodSeconds = BenchmarkHelpers.getIntProperty("benchmark.warmUpPeriodSeconds", 30);
-        BenchmarkClient client = new BenchmarkClient(baseUrl, concurrency, pullCount, warmUpPeriodSeconds);
+        BenchmarkClient client = new BenchmarkClient(
+                baseUrl,
+                mode,
+                concurrency,
+                pullCount,
+                publishCount,
+                publishBatchSize,
+                publishPayloadLength,
+                publishAttributeCount,
+                warmUpPeriodSeconds);
         int exitCode = client.call();
         System.exit(exitCode);
     }
@@ -0,0 +1,198 @@
+package com.vlkan.pubsub;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelOption;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.reactivestreams.Publisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.server.HttpServerResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Degrades the responses of a particular route, i.e., {@code pull},
+ * {@code ack}, or {@code publish}, configured via the following system
+ * properties, where {@code <route>} denotes the route name:
+ * <ul>
+ *     <li>{@code benchmark.<route>.latencyMillis}: mean injected latency
+ *     (defaults to 0)</li>
+ *     <li>{@code benchmark.<route>.latencyDistribution}: {@code constant}
+ *     (default), {@code uniform} (in [0, 2 * mean]), or
+ *     {@code exponential}</li>
+ *     <li>{@code benchmark.<route>.errorRate}: ratio of error responses in
+ *     [0, 1] (defaults to 0)</li>
+ *     <li>{@code benchmark.<route>.errorStatuses}: comma-separated error
+ *     response statuses to pick from (defaults to {@code 429,500,503})</li>
+ *     <li>{@code benchmark.<route>.retryAfterSeconds}: {@code Retry-After}
+ *     header of 429 and 503 responses (defaults to 1, disabled if 0)</li>
+ *     <li>{@code benchmark.<route>.connectionResetRate}: ratio of
+ *     connections reset instead of responding in [0, 1] (defaults to 0)</li>
+ *     <li>{@code benchmark.<route>.slowDripChunkCount}: number of chunks the
+ *     response body is split into (defaults to 0, that is, disabled)</li>
+ *     <li>{@code benchmark.<route>.slowDripChunkPeriodMillis}: delay before
+ *     each chunk (defaults to 10)</li>
+ * </ul>
+ */
+final class BenchmarkFaultInjector {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BenchmarkFaultInjector.class);
+
+    private enum LatencyDistribution { CONSTANT, UNIFORM, EXPONENTIAL }
+
+    private final String route;
+
+    private final int latencyMillis;
+
+    private final LatencyDistribution latencyDistribution;
+
+    private final double errorRate;
+
+    private final HttpResponseStatus[] errorStatuses;
+
+    private final int retryAfterSeconds;
+
+    private final double connectionResetRate;
+
+    private final int slowDripChunkCount;
+
+    private final Duration slowDripChunkPeriod;
+
+    private BenchmarkFaultInjector(String route) {
+        this.route = route;
+        String keyPrefix = "benchmark." + route + '.';
+        this.latencyMillis = BenchmarkHelpers.getIntProperty(keyPrefix + "latencyMillis", 0);
+        this.latencyDistribution = LatencyDistribution.valueOf(BenchmarkHelpers
+                .getStringProperty(keyPrefix + "latencyDistribution", "constant")
+                .toUpperCase(Locale.US));
+        this.errorRate = BenchmarkHelpers.getDoubleProperty(keyPrefix + "errorRate", 0);
+        this.errorStatuses = Arrays
+                .stream(BenchmarkHelpers
+                        .getStringProperty(keyPrefix + "errorStatuses", "429,500,503")
+                        .split(","))
+                .map(errorStatus -> HttpResponseStatus.valueOf(Integer.parseInt(errorStatus.trim())))
+                .toArray(HttpResponseStatus[]::new);
+        this.retryAfterSeconds = BenchmarkHelpers.getIntProperty(keyPrefix + "retryAfterSeconds", 1);
+        this.connectionResetRate = BenchmarkHelpers.getDoubleProperty(keyPrefix + "connectionResetRate", 0);
+        this.slowDripChunkCount = BenchmarkHelpers.getIntProperty(keyPrefix + "slowDripChunkCount", 0);
+        this.slowDripChunkPeriod = Duration.ofMillis(
+                BenchmarkHelpers.getIntProperty(keyPrefix + "slowDripChunkPeriodMillis", 10));
+    }
+
+    static BenchmarkFaultInjector ofRoute(String route) {
+        BenchmarkFaultInjector faultInjector = new BenchmarkFaultInjector(route);
+        LOGGER.info("{}", faultInjector);
+        return faultInjector;
+    }
+
+    /**
+     * Sends the given payload after applying the configured latency,
+     * connection reset, error, and slow-drip faults. The payload is released
+     * either by the response or, if it is not sent, here.
+     */
+    Publisher<Void> respond(HttpServerResponse response, ByteBuf payload) {
+        return delay().then(Mono.defer(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (connectionResetRate > 0 && random.nextDouble() < connectionResetRate) {
+                payload.release();
+                return resetConnection(response);
+            }
+            if (errorRate > 0 && random.nextDouble() < errorRate) {
+                payload.release();
+                HttpResponseStatus errorStatus = errorStatuses[random.nextInt(errorStatuses.length)];
+                return respondError(response, errorStatus);
+            }
+            response.header(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
+            if (slowDripChunkCount > 0 && payload.readableBytes() > 0) {
+                return respondSlowly(response, payload);
+            }
+            // Here, replacing send(Mono) with send() causes
+            // "status and headers are already sent" errors.
+            return response.send(Mono.just(payload)).then();
+        }));
+    }
+
+    private Mono<Void> delay() {
+        if (latencyMillis <= 0) {
+            return Mono.empty();
+        }
+        double randomDouble = ThreadLocalRandom.current().nextDouble();
+        double delayMillis;
+        switch (latencyDistribution) {
+            case CONSTANT: delayMillis = latencyMillis; break;
+            case UNIFORM: delayMillis = 2D * latencyMillis * randomDouble; break;
+            case EXPONENTIAL: delayMillis = -latencyMillis * Math.log(1D - randomDouble); break;
+            default: throw new IllegalStateException("unknown latency distribution: " + latencyDistribution);
+        }
+        Duration delay = Duration.ofNanos((long) (delayMillis * 1e6));
+        return Mono.delay(delay).then();
+    }
+
+    /**
+     * Closes the connection with {@code SO_LINGER} set to zero, so that the
+     * client receives a TCP {@code RST} rather than a graceful {@code FIN}.
+     */
+    private static Mono<Void> resetConnection(HttpServerResponse response) {
+        return Mono.fromRunnable(() -> response.withConnection(connection -> {
+            connection.channel().config().setOption(ChannelOption.SO_LINGER, 0);
+            connection.channel().close();
+        }));
+    }
+
+    private Mono<Void> respondError(HttpServerResponse response, HttpResponseStatus errorStatus) {
+        response.status(errorStatus).header(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
+        boolean retryAfterSupported =
+                HttpResponseStatus.TOO_MANY_REQUESTS.equals(errorStatus) ||
+                        HttpResponseStatus.SERVICE_UNAVAILABLE.equals(errorStatus);
+        if (retryAfterSupported && retryAfterSeconds > 0) {
+            response.header(HttpHeaderNames.RETRY_AFTER, String.valueOf(retryAfterSeconds));
+        }
+        String errorPayload = String.format(
+                "{\"error\":{\"code\":%d,\"message\":\"injected failure\",\"status\":\"%s\"}}",
+                errorStatus.code(), errorStatus.reasonPhrase());
+        ByteBuf errorPayloadByteBuf = Unpooled.wrappedBuffer(errorPayload.getBytes(StandardCharsets.UTF_8));
+        return response.send(Mono.just(errorPayloadByteBuf)).then();
+    }
+
+    private Mono<Void> respondSlowly(HttpServerResponse response, ByteBuf payload) {
+        int payloadLength = payload.readableBytes();
+        int chunkCount = Math.min(slowDripChunkCount, payloadLength);
+        int chunkLength = (payloadLength + chunkCount - 1) / chunkCount;
+        response.header(HttpHeaderNames.CONTENT_LENGTH, String.valueOf(payloadLength));
+        Flux<ByteBuf> chunks = Flux
+                .range(0, chunkCount)
+                .delayElements(slowDripChunkPeriod)
+                .map(chunkIndex -> {
+                    int chunkOffset = chunkIndex * chunkLength;
+                    int length = Math.min(chunkLength, payloadLength - chunkOffset);
+                    return payload.retainedSlice(payload.readerIndex() + chunkOffset, length);
+                })
+                .doFinally(ignored -> payload.release());
+        return response.send(chunks).then();
+    }
+
+    @Override
+    public String toString() {
+        return "BenchmarkFaultInjector{" +
+                "route='" + route + '\'' +
+                ", latencyMillis=" + latencyMillis +
+                ", latencyDistribution=" + latencyDistribution +
+                ", errorRate=" + errorRate +
+                ", errorStatuses=" + Arrays.toString(errorStatuses) +
+                ", retryAfterSeconds=" + retryAfterSeconds +
+                ", connectionResetRate=" + connectionResetRate +
+                ", slowDripChunkCount=" + slowDripChunkCount +
+                ", slowDripChunkPeriod=" + slowDripChunkPeriod +
+                '}';
+    }
+
+}
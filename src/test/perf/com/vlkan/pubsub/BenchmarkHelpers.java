@@ -13,4 +13,11 @@ enum BenchmarkHelpers {;
                 : defaultValue;
     }
 
+    static double getDoubleProperty(String key, double defaultValue) {
+        String valueString = System.getProperty(key);
+        return valueString != null
+                ? Double.parseDouble(valueString)
+                : defaultValue;
+    }
+
 }
@@ -0,0 +1,149 @@
+package com.vlkan.pubsub;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.ThreadMXBean;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Captures the allocated bytes and GC pauses of the JVM between
+ * {@link #start()} and {@link #stop()} via JMX.
+ * <p>
+ * Allocations are summed over the threads alive at {@link #stop()}, hence
+ * allocations of threads that have died in between are missed. This is
+ * negligible for the event loop threads doing the bulk of the work.
+ */
+final class BenchmarkJvmMonitor implements NotificationListener {
+
+    static final class Snapshot {
+
+        final long elapsedNanos;
+
+        final long allocatedByteCount;
+
+        final long gcCount;
+
+        final long gcPauseMillis;
+
+        final long maxGcPauseMillis;
+
+        private Snapshot(
+                long elapsedNanos,
+                long allocatedByteCount,
+                long gcCount,
+                long gcPauseMillis,
+                long maxGcPauseMillis) {
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedByteCount = allocatedByteCount;
+            this.gcCount = gcCount;
+            this.gcPauseMillis = gcPauseMillis;
+            this.maxGcPauseMillis = maxGcPauseMillis;
+        }
+
+        double getAllocationRateMegaBytesPerSecond() {
+            return allocatedByteCount / 1e6 / (Math.max(1, elapsedNanos) / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "allocated %d bytes (%.3f MB/s), gc count %d, gc pause %d ms, max gc pause %d ms",
+                    allocatedByteCount, getAllocationRateMegaBytesPerSecond(),
+                    gcCount, gcPauseMillis, maxGcPauseMillis);
+        }
+
+    }
+
+    private final ThreadMXBean threadMXBean =
+            (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final List<GarbageCollectorMXBean> gcMXBeans =
+            ManagementFactory.getGarbageCollectorMXBeans();
+
+    private final AtomicLong gcCount = new AtomicLong();
+
+    private final AtomicLong gcPauseMillis = new AtomicLong();
+
+    private final AtomicLong maxGcPauseMillis = new AtomicLong();
+
+    private Map<Long, Long> allocatedByteCountByThreadId;
+
+    private long startInstantNanos;
+
+    BenchmarkJvmMonitor() {
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    void start() {
+        gcCount.set(0);
+        gcPauseMillis.set(0);
+        maxGcPauseMillis.set(0);
+        for (GarbageCollectorMXBean gcMXBean : gcMXBeans) {
+            ((NotificationEmitter) gcMXBean).addNotificationListener(this, null, null);
+        }
+        allocatedByteCountByThreadId = readAllocatedByteCountByThreadId();
+        startInstantNanos = System.nanoTime();
+    }
+
+    Snapshot stop() {
+        long elapsedNanos = System.nanoTime() - startInstantNanos;
+        Map<Long, Long> lastAllocatedByteCountByThreadId = readAllocatedByteCountByThreadId();
+        for (GarbageCollectorMXBean gcMXBean : gcMXBeans) {
+            try {
+                ((NotificationEmitter) gcMXBean).removeNotificationListener(this);
+            } catch (Exception error) {
+                throw new RuntimeException(error);
+            }
+        }
+        long allocatedByteCount = 0;
+        for (Map.Entry<Long, Long> entry : lastAllocatedByteCountByThreadId.entrySet()) {
+            long firstAllocatedByteCount = allocatedByteCountByThreadId.getOrDefault(entry.getKey(), 0L);
+            allocatedByteCount += entry.getValue() - firstAllocatedByteCount;
+        }
+        return new Snapshot(
+                elapsedNanos,
+                allocatedByteCount,
+                gcCount.get(),
+                gcPauseMillis.get(),
+                maxGcPauseMillis.get());
+    }
+
+    private Map<Long, Long> readAllocatedByteCountByThreadId() {
+        long[] threadIds = threadMXBean.getAllThreadIds();
+        long[] allocatedByteCounts = threadMXBean.getThreadAllocatedBytes(threadIds);
+        Map<Long, Long> allocatedByteCountByThreadId = new HashMap<>(threadIds.length);
+        for (int threadIndex = 0; threadIndex < threadIds.length; threadIndex++) {
+            // Dead threads are reported with -1.
+            if (allocatedByteCounts[threadIndex] >= 0) {
+                allocatedByteCountByThreadId.put(threadIds[threadIndex], allocatedByteCounts[threadIndex]);
+            }
+        }
+        return allocatedByteCountByThreadId;
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            GarbageCollectionNotificationInfo info =
+                    GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            // Skip concurrent cycles (e.g., "G1 Concurrent GC"), which are not pauses.
+            if (info.getGcName().contains("Concurrent")) {
+                return;
+            }
+            long durationMillis = info.getGcInfo().getDuration();
+            gcCount.incrementAndGet();
+            gcPauseMillis.addAndGet(durationMillis);
+            maxGcPauseMillis.accumulateAndGet(durationMillis, Math::max);
+        }
+    }
+
+}
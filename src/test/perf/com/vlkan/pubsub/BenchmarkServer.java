@@ -9,8 +9,6 @@ import com.vlkan.pubsub.model.PubsubReceivedMessageEmbedding;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.epoll.Epoll;
-import io.netty.handler.codec.http.HttpHeaderNames;
-import io.netty.handler.codec.http.HttpHeaderValues;
 import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -95,6 +93,11 @@ public class BenchmarkServer implements Callable<Integer> {
         List<PubsubPublishResponse> publishResponses = createPublishResponses();
         List<byte[]> jsonPublishResponsePayloads = createPublishResponsePayloads(publishResponses);
 
+        LOGGER.info("building fault injectors");
+        BenchmarkFaultInjector pullFaultInjector = BenchmarkFaultInjector.ofRoute("pull");
+        BenchmarkFaultInjector ackFaultInjector = BenchmarkFaultInjector.ofRoute("ack");
+        BenchmarkFaultInjector publishFaultInjector = BenchmarkFaultInjector.ofRoute("publish");
+
         LOGGER.info("starting server");
         HttpServer
                 .create()
@@ -103,15 +106,20 @@ public class BenchmarkServer implements Callable<Integer> {
                                 RequestRelativePath.PULL,
                                 (request, response) -> handlePull(
                                         jsonPullResponsePayloads,
+                                        pullFaultInjector,
                                         request,
                                         response))
                         .post(
                                 RequestRelativePath.ACK,
-                                BenchmarkServer::handleAck)
+                                (request, response) -> handleAck(
+                                        ackFaultInjector,
+                                        request,
+                                        response))
                         .post(
                                 RequestRelativePath.PUBLISH,
                                 (request, response) -> handlePublish(
                                         jsonPublishResponsePayloads,
+                                        publishFaultInjector,
                                         request,
                                         response)))
                 .host(host)
@@ -213,6 +221,7 @@ public class BenchmarkServer implements Callable<Integer> {
 
     private static Publisher<Void> handlePull(
             List<byte[]> responsePayloads,
+            BenchmarkFaultInjector faultInjector,
             HttpServerRequest request,
             HttpServerResponse response) {
         return request
@@ -226,29 +235,23 @@ public class BenchmarkServer implements Callable<Integer> {
                                     responsePayloads.get(responsePayloadIndex));
 
                     // Feed the content.
-                    return response
-                            .header(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON)
-                            .send(Mono.just(responsePayload))
-                            .then();
+                    return Mono.from(faultInjector.respond(response, responsePayload));
 
                 }));
     }
 
     private static Publisher<Void> handleAck(
+            BenchmarkFaultInjector faultInjector,
             HttpServerRequest request,
             HttpServerResponse response) {
         return request
                 .receive()
-                .then(Mono.defer(() -> response
-                        .header(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON)
-                        // Here, replacing send(Mono) with send() causes
-                        // "status and headers are already sent" errors.
-                        .send(Mono.empty())
-                        .then()));
+                .then(Mono.defer(() -> Mono.from(faultInjector.respond(response, Unpooled.EMPTY_BUFFER))));
     }
 
     private static Publisher<Void> handlePublish(
             List<byte[]> responsePayloads,
+            BenchmarkFaultInjector faultInjector,
             HttpServerRequest request,
             HttpServerResponse response) {
         return request
@@ -262,10 +265,7 @@ public class BenchmarkServer implements Callable<Integer> {
                                     responsePayloads.get(responsePayloadIndex));
 
                     // Feed the response.
-                    return response
-                            .header(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON)
-                            .send(Mono.just(responsePayload))
-                            .then();
+                    return Mono.from(faultInjector.respond(response, responsePayload));
 
                 }));
     }
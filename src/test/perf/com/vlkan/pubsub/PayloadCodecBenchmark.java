@@ -0,0 +1,107 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub;
+
+import com.vlkan.pubsub.codec.PubsubDeflatePayloadCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of {@link PubsubDeflatePayloadCodec} on verbose
+ * JSON payloads. Run it via:
+ *
+ * <pre>
+ * ./mvnw test-compile
+ * java -cp "target/test-classes:target/classes:$(./mvnw -q dependency:build-classpath -Dmdep.outputFile=/dev/stdout)" \
+ *     org.openjdk.jmh.Main PayloadCodecBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PayloadCodecBenchmark {
+
+    @Param({"1024", "16384", "262144"})
+    public int payloadByteCount;
+
+    @Param({"1", "6"})
+    public int level;
+
+    private PubsubDeflatePayloadCodec codec;
+
+    private byte[] payload;
+
+    private byte[] encodedPayload;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        codec = new PubsubDeflatePayloadCodec(level);
+        payload = createJsonPayload(payloadByteCount);
+        encodedPayload = codec.encode(payload);
+        System.out.format(
+                "%npayloadByteCount=%d, level=%d, encodedByteCount=%d, ratio=%.3f%n",
+                payload.length, level, encodedPayload.length, (double) encodedPayload.length / payload.length);
+    }
+
+    static byte[] createJsonPayload(int payloadByteCount) {
+        Random random = new Random(0);
+        StringBuilder payloadBuilder = new StringBuilder(payloadByteCount + 256).append('[');
+        for (int recordIndex = 0; payloadBuilder.length() < payloadByteCount - 1; recordIndex++) {
+            if (recordIndex > 0) {
+                payloadBuilder.append(',');
+            }
+            payloadBuilder
+                    .append("{\"id\":").append(random.nextInt(1_000_000))
+                    .append(",\"timestamp\":\"2021-02-").append(10 + random.nextInt(18))
+                    .append("T12:").append(10 + random.nextInt(50)).append(":00Z\"")
+                    .append(",\"customerId\":\"customer-").append(random.nextInt(10_000)).append('"')
+                    .append(",\"amount\":").append(random.nextInt(100_000) / 100D)
+                    .append(",\"currency\":\"").append(random.nextBoolean() ? "EUR" : "USD").append('"')
+                    .append(",\"status\":\"").append(random.nextBoolean() ? "COMPLETED" : "PENDING").append("\"}");
+        }
+        payloadBuilder.setLength(payloadByteCount - 1);
+        return payloadBuilder.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(payload);
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return codec.decode(encodedPayload);
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub.ratelimiter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of {@link RateLimiter#nextPermitWaitPeriodNanos()}
+ * and its {@link StripedRateLimiter}, {@link SharedFileRateLimiter}, and {@link
+ * GcraRateLimiter} variants under contention, both when permits are available and when they are
+ * exhausted. Allocation rates can be observed by adding {@code -prof gc}:
+ *
+ * <pre>
+ * ./mvnw test-compile
+ * java -cp "target/test-classes:target/classes:$(./mvnw -q dependency:build-classpath -Dmdep.outputFile=/dev/stdout)" \
+ *     org.openjdk.jmh.Main RateLimiterBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class RateLimiterBenchmark {
+
+    @Param({"atomic", "striped", "shared", "gcra"})
+    public String type;
+
+    @Param({"available", "exhausted"})
+    public String permitAvailability;
+
+    private RateLimiter rateLimiter;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int maxPermitCountPerCycle = "available".equals(permitAvailability) ? Integer.MAX_VALUE : 1;
+        Duration cyclePeriod = Duration.ofHours(1);
+        if ("striped".equals(type)) {
+            rateLimiter = new StripedRateLimiter(maxPermitCountPerCycle, cyclePeriod, 4);
+        } else if ("shared".equals(type)) {
+            Path path = Files.createTempFile("RateLimiterBenchmark-", ".bin");
+            Files.delete(path);
+            path.toFile().deleteOnExit();
+            rateLimiter = new SharedFileRateLimiter(
+                    SharedFileRateLimiter.SharedFile.of(path), 0, maxPermitCountPerCycle, cyclePeriod);
+        } else if ("gcra".equals(type)) {
+            rateLimiter = new GcraRateLimiter(maxPermitCountPerCycle, cyclePeriod, 1);
+        } else {
+            rateLimiter = new RateLimiter(maxPermitCountPerCycle, cyclePeriod);
+        }
+    }
+
+    @Benchmark
+    public long nextPermitWaitPeriodNanos() {
+        return rateLimiter.nextPermitWaitPeriodNanos();
+    }
+
+}
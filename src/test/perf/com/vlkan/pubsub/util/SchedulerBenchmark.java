@@ -0,0 +1,97 @@
+/*
+ * Copyright 2019-2020 Volkan Yazıcı
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permits and
+ * limitations under the License.
+ */
+
+package com.vlkan.pubsub.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of scheduling and cancelling a delayed task, e.g., a
+ * throttled element or an idle pull, on {@link Schedulers#parallel()} and on
+ * {@link HashedWheelTimerScheduler}, while a given number of other delayed
+ * tasks are pending. Allocation rates can be observed by adding {@code -prof
+ * gc}:
+ *
+ * <pre>
+ * ./mvnw test-compile
+ * java -cp "target/test-classes:target/classes:$(./mvnw -q dependency:build-classpath -Dmdep.outputFile=/dev/stdout)" \
+ *     org.openjdk.jmh.Main SchedulerBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class SchedulerBenchmark {
+
+    @Param({"parallel", "wheel"})
+    public String type;
+
+    @Param({"0", "100000"})
+    public int pendingTaskCount;
+
+    private Scheduler scheduler;
+
+    private Disposable.Composite pendingTasks;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        scheduler = "wheel".equals(type)
+                ? HashedWheelTimerScheduler.builder().setTickDuration(Duration.ofMillis(10)).build()
+                : Schedulers.newParallel("benchmark");
+        pendingTasks = Disposables.composite();
+        for (int taskIndex = 0; taskIndex < pendingTaskCount; taskIndex++) {
+            pendingTasks.add(scheduler.schedule(() -> {}, 1, TimeUnit.HOURS));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pendingTasks.dispose();
+        scheduler.dispose();
+    }
+
+    @Benchmark
+    public boolean scheduleAndCancel() {
+        Disposable task = scheduler.schedule(() -> {}, 1, TimeUnit.SECONDS);
+        task.dispose();
+        return task.isDisposed();
+    }
+
+}